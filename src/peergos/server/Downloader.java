@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.net.*;
 import peergos.shared.*;
 import peergos.shared.crypto.random.*;
 import peergos.shared.user.*;
@@ -16,7 +17,7 @@ public class Downloader {
 
     public static void main(String[] args) throws Exception {
         Crypto crypto = Crypto.initJava();
-        NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
+        NetworkAccess network = NetworkAccess.buildJava(new PooledPoster(new URL("https://demo.peergos.net"))).get();
         String username = args[0];
         String fromPath = args[1];
         String toPath = args[2];
@@ -5,6 +5,7 @@ import peergos.shared.*;
 import peergos.server.corenode.*;
 import peergos.server.fuse.*;
 import peergos.server.mutable.*;
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.cbor.*;
@@ -27,6 +28,7 @@ import java.io.*;
 import java.net.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -36,7 +38,7 @@ public class Main {
             Paths.get(System.getProperty("user.home"), ".peergos");
 
     static {
-        PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.Java());
+        PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.OptimisedJava());
     }
 
     public static Command ENSURE_IPFS_INSTALLED = new Command("install-ipfs",
@@ -76,10 +78,18 @@ public class Main {
                     new Command.Arg("domain", "Domain name to bind to,", false, "localhost"),
                     new Command.Arg("max-users", "The maximum number of local users", false, "1"),
                     new Command.Arg("useIPFS", "Use IPFS for storage or a local disk store", false, "true"),
+                    new Command.Arg("usePackfiles", "Store local blocks in large segment files rather than a file per block", false, "false"),
                     new Command.Arg("mutable-pointers-file", "The filename for the mutable pointers datastore", true, "mutable.sql"),
                     new Command.Arg("social-sql-file", "The filename for the follow requests datastore", true, "social.sql"),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
-                    new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024))
+                    new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
+                    new Command.Arg("space-checker-threads", "The number of threads updating storage usage", false,
+                            Integer.toString(SpaceCheckingKeyFilter.DEFAULT_EVENT_WORKERS)),
+                    new Command.Arg("handler-threads", "The number of threads running http handlers", false,
+                            Integer.toString(UserService.HANDLER_THREADS)),
+                    new Command.Arg("virtual-threads", "Run http handlers on virtual threads, if the runtime has them", false, "false"),
+                    new Command.Arg("max-requests-in-flight", "The maximum number of concurrent requests per api before replying 503", false,
+                            Integer.toString(AsyncHandler.DEFAULT_MAX_IN_FLIGHT))
             ).collect(Collectors.toList())
     );
 
@@ -99,7 +109,7 @@ public class Main {
                     String ipfsApiAddress = args.getArg("ipfs-api-address", "/ip4/127.0.0.1/tcp/5001");
                     ContentAddressedStorage dht = useIPFS ?
                             new IpfsDHT(new MultiAddress(ipfsApiAddress)) :
-                            new FileContentAddressedStorage(blockstorePath(args));
+                            buildLocalStorage(args);
 
                     SigningKeyPair peergosIdentityKeys = peergos.getUser();
                     PublicKeyHash peergosPublicHash = ContentAddressedStorage.hashKey(peergosIdentityKeys.publicSigningKey);
@@ -219,7 +229,7 @@ public class Main {
 
                     Multihash pkiIpfsNodeId = useIPFS ?
                             new IpfsDHT(getLocalMultiAddress(ipfsApiPort)).id().get() :
-                            new FileContentAddressedStorage(blockstorePath(args)).id().get();
+                            buildLocalStorage(args).id().get();
 
                     if (ipfs != null)
                         ipfs.stop();
@@ -266,7 +276,7 @@ public class Main {
 
                     Multihash pkiIpfsNodeId = useIPFS ?
                             new IpfsDHT(getLocalMultiAddress(ipfsApiPort)).id().get() :
-                            new FileContentAddressedStorage(blockstorePath(args)).id().get();
+                            buildLocalStorage(args).id().get();
 
                     if (ipfs != null)
                         ipfs.stop();
@@ -305,7 +315,7 @@ public class Main {
 
     public static void startPeergos(Args a) {
         try {
-            PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.Java());
+            PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.OptimisedJava());
             int webPort = a.getInt("port");
             a.setIfAbsent("proxy-target", getLocalMultiAddress(webPort).toString());
 
@@ -321,14 +331,14 @@ public class Main {
             String domain = a.getArg("domain");
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
-            int dhtCacheEntries = 1000;
+            long dhtCacheBytes = 20 * 1024 * 1024;
             int maxValueSizeToCache = 50 * 1024;
             JavaPoster ipfsApi = new JavaPoster(ipfsApiAddress);
             JavaPoster ipfsGateway = new JavaPoster(ipfsGatewayAddress);
 
             ContentAddressedStorage localDht = useIPFS ?
-                    new CachingStorage(new ContentAddressedStorage.HTTP(ipfsApi, false), dhtCacheEntries, maxValueSizeToCache) :
-                    new FileContentAddressedStorage(blockstorePath(a));
+                    new CachingStorage(new ContentAddressedStorage.HTTP(ipfsApi, false), dhtCacheBytes, maxValueSizeToCache) :
+                    buildLocalStorage(a);
 
             String hostname = a.getArg("domain");
             Multihash nodeId = localDht.id().get();
@@ -337,7 +347,8 @@ public class Main {
             String path = mutablePointersSqlFile.equals(":memory:") ?
                     mutablePointersSqlFile :
                     a.fromPeergosDir("mutable-pointers-file").toString();
-            MutablePointers sqlMutable = UserRepository.buildSqlLite(path, localDht);
+            UserRepository sqlMutable = UserRepository.buildSqlLite(path, localDht);
+            Runtime.getRuntime().addShutdownHook(new Thread(sqlMutable::close));
             MutablePointersProxy proxingMutable = new HttpMutablePointers(ipfsGateway, pkiServerNodeId);
 
             PublicKeyHash peergosId = PublicKeyHash.fromString(a.getArg("peergos.identity.hash"));
@@ -355,7 +366,8 @@ public class Main {
 
             UserQuotas userQuotas = new UserQuotas(quotaFilePath, defaultQuota, maxUsers);
             CoreNode signupFilter = new SignUpFilter(core, userQuotas, nodeId);
-            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, sqlMutable, localDht, userQuotas, statePath);
+            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, sqlMutable, localDht, userQuotas, statePath,
+                    a.getInt("space-checker-threads", SpaceCheckingKeyFilter.DEFAULT_EVENT_WORKERS));
             CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(signupFilter);
             corePropagator.addListener(spaceChecker::accept);
             MutableEventPropagator localMutable = new MutableEventPropagator(sqlMutable);
@@ -368,14 +380,19 @@ public class Main {
             Path blacklistPath = a.fromPeergosDir("blacklist_file", "blacklist.txt");
             PublicKeyBlackList blacklist = new UserBasedBlacklist(blacklistPath, core, localMutable, p2pDht);
             MutablePointers blockingMutablePointers = new BlockingMutablePointers(new PinningMutablePointers(localMutable, p2pDht), blacklist);
-            MutablePointers p2mMutable = new ProxyingMutablePointers(nodeId, core, blockingMutablePointers, proxingMutable);
+            ProxyingMutablePointers p2mMutable = new ProxyingMutablePointers(nodeId, core, blockingMutablePointers, proxingMutable);
+            PointerUpdateStream pointerUpdates = new PointerUpdateStream(sqlMutable, owner -> p2mMutable.redirectCall(owner,
+                    () -> CompletableFuture.completedFuture(true),
+                    target -> CompletableFuture.completedFuture(false)));
+            localMutable.addListener(pointerUpdates);
 
             SocialNetworkProxy httpSocial = new HttpSocialNetwork(ipfsGateway, ipfsGateway);
             String socialNodeFile = a.getArg("social-sql-file");
             String socialPath = socialNodeFile.equals(":memory:") ?
                     socialNodeFile :
                     a.fromPeergosDir("social-sql-file").toString();
-            SocialNetwork local = UserRepository.buildSqlLite(socialPath, p2pDht);
+            UserRepository local = UserRepository.buildSocialSqlLite(socialPath, p2pDht);
+            Runtime.getRuntime().addShutdownHook(new Thread(local::close));
             SocialNetwork p2pSocial = new ProxyingSocialNetwork(nodeId, core, local, httpSocial);
 
             Path userPath = a.fromPeergosDir("whitelist_file", "user_whitelist.txt");
@@ -384,7 +401,7 @@ public class Main {
             new UserFilePinner(userPath, core, p2mMutable, p2pDht, delayMs).start();
 
             Admin storageAdmin = new Admin();
-            UserService peergos = new UserService(p2pDht, corePropagator, p2pSocial, p2mMutable, storageAdmin);
+            UserService peergos = new UserService(p2pDht, corePropagator, p2pSocial, p2mMutable, pointerUpdates, storageAdmin);
             InetSocketAddress localAddress = new InetSocketAddress("localhost", userAPIAddress.getPort());
             Optional<Path> webroot = a.hasArg("webroot") ?
                     Optional.of(Paths.get(a.getArg("webroot"))) :
@@ -393,7 +410,11 @@ public class Main {
             Optional<String> tlsHostname = hostname.equals("localhost") ? Optional.empty() : Optional.of(hostname);
             Optional<UserService.TlsProperties> tlsProps =
                     tlsHostname.map(host -> new UserService.TlsProperties(host, a.getArg("tls.keyfile.password")));
-            peergos.initAndStart(localAddress, tlsProps, webroot, useWebAssetCache);
+            int handlerThreads = a.getInt("handler-threads", UserService.HANDLER_THREADS);
+            boolean virtualThreads = a.getBoolean("virtual-threads", false);
+            int maxRequestsInFlight = a.getInt("max-requests-in-flight", AsyncHandler.DEFAULT_MAX_IN_FLIGHT);
+            peergos.initAndStart(localAddress, tlsProps, webroot, useWebAssetCache,
+                    () -> Threads.handlerPool(handlerThreads, virtualThreads), maxRequestsInFlight);
             if (! isPkiNode)
                 ((MirrorCoreNode) core).start();
             spaceChecker.calculateUsage();
@@ -420,7 +441,7 @@ public class Main {
 
         System.out.println("\n\nPeergos mounted at " + path + "\n\n");
         try {
-            NetworkAccess network = NetworkAccess.buildJava(webPort).get();
+            NetworkAccess network = NetworkAccess.buildJava(new PooledPoster(new URL("http://localhost:" + webPort + "/"))).get();
             Crypto crypto = Crypto.initJava();
             UserContext userContext = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
             PeergosFS peergosFS = new PeergosFS(userContext);
@@ -465,14 +486,15 @@ public class Main {
         System.out.println("Using mutable-pointers path " + path);
         boolean useIPFS = a.getBoolean("useIPFS");
 
-        int dhtCacheEntries = 1000;
+        long dhtCacheBytes = 100 * 1024 * 1024;
         int maxValueSizeToCache = 2 * 1024 * 1024;
         ContentAddressedStorage dht = useIPFS ?
-                new CachingStorage(new IpfsDHT(), dhtCacheEntries, maxValueSizeToCache) :
-                new FileContentAddressedStorage(blockstorePath(a));
+                new CachingStorage(new IpfsDHT(), dhtCacheBytes, maxValueSizeToCache) :
+                buildLocalStorage(a);
         try {
             Crypto crypto = Crypto.initJava();
-            MutablePointers mutable = UserRepository.buildSqlLite(path, dht);
+            UserRepository mutable = UserRepository.buildSqlLite(path, dht);
+            Runtime.getRuntime().addShutdownHook(new Thread(mutable::close));
             PublicKeyHash peergosIdentity = PublicKeyHash.fromString(a.getArg("peergos.identity.hash"));
 
             String pkiSecretKeyfilePassword = a.getArg("pki.keyfile.password");
@@ -568,6 +590,12 @@ public class Main {
         return args.fromPeergosDir("blockstore_dir", "blockstore");
     }
 
+    private static ContentAddressedStorage buildLocalStorage(Args args) {
+        return args.getBoolean("usePackfiles", false) ?
+                PackfileContentAddressedStorage.open(args.fromPeergosDir("packstore_dir", "packstore")) :
+                new FileContentAddressedStorage(blockstorePath(args));
+    }
+
     public static MultiAddress getLocalMultiAddress(int port) {
         return new MultiAddress("/ip4/127.0.0.1/tcp/" + port);
     }
@@ -22,6 +22,7 @@ public class NonWriteThroughNetwork {
                 mutableTree,
                 synchronizer,
                 source.instanceAdmin,
+                source.uploadBudget,
                 source.usernames,
                 false);
     }
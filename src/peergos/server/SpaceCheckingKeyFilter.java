@@ -20,8 +20,11 @@ import peergos.shared.util.*;
 import java.time.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
@@ -34,6 +37,10 @@ import java.util.stream.Collectors;
 public class SpaceCheckingKeyFilter {
     private static final Logger LOG = Logging.LOG();
     private static final long DEFAULT_STORE_PERIOD = 60*1000*10; //10M
+    private static final int MIN_JOURNAL_RECORDS_TO_COMPACT = 10_000;
+    private static final long LAG_WARNING_MILLIS = 60_000;
+    private static final long UNKNOWN_WRITER_WAIT_MILLIS = 30_000;
+    public static final int DEFAULT_EVENT_WORKERS = 4;
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
@@ -41,7 +48,103 @@ public class SpaceCheckingKeyFilter {
     private final Path statePath;
     private final State state;
     private final AtomicBoolean isRunning = new AtomicBoolean(true);
-    private final BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+    private final Partition[] partitions;
+    // writes by unknown writers continue on these threads, rather than on a partition worker or the timer
+    private final ExecutorService writeChecks = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Space checker write checks");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService waitTimeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Space checker wait timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong processedEvents = new AtomicLong(0);
+    private final AtomicLong coalescedEvents = new AtomicLong(0);
+
+    /** The pending mutable pointer events for a subset of owners, which are processed by a single thread so that each
+     *  owner's events are handled in order. Only the latest event for each writer is kept, because usage is always
+     *  updated from the last processed root of a writer, so superseded events can be skipped.
+     */
+    private static final class Partition {
+        private final BlockingQueue<PublicKeyHash> writers = new LinkedBlockingQueue<>();
+        // writer -> (latest event, time the writer became pending)
+        private final Map<PublicKeyHash, Pair<MutableEvent, Long>> latest = new ConcurrentHashMap<>();
+        // the time the event being processed became pending, if there is one
+        private long processingSince = Long.MAX_VALUE; // guarded by this
+        // futures waiting for every event which became pending before a time to be processed
+        private final List<Pair<Long, CompletableFuture<Boolean>>> waiters = new ArrayList<>(); // guarded by this
+
+        /**
+         *
+         * @param event
+         * @return true if this event superseded a pending event
+         */
+        boolean add(MutableEvent event) {
+            boolean[] coalesced = new boolean[1];
+            latest.compute(event.writer, (writer, pending) -> {
+                coalesced[0] = pending != null;
+                return new Pair<>(event, pending == null ? System.currentTimeMillis() : pending.right);
+            });
+            if (! coalesced[0])
+                writers.add(event.writer);
+            return coalesced[0];
+        }
+
+        long oldestPendingMillis() {
+            PublicKeyHash next = writers.peek();
+            Pair<MutableEvent, Long> pending = next == null ? null : latest.get(next);
+            return pending == null ? System.currentTimeMillis() : pending.right;
+        }
+
+        /**
+         *
+         * @return the time the oldest event which hasn't finished being processed became pending
+         */
+        synchronized long oldestUnprocessedMillis() {
+            long oldest = processingSince;
+            for (Pair<MutableEvent, Long> pending : latest.values())
+                oldest = Math.min(oldest, pending.right);
+            return oldest;
+        }
+
+        synchronized Pair<MutableEvent, Long> startProcessing(PublicKeyHash writer) {
+            Pair<MutableEvent, Long> pending = latest.remove(writer);
+            if (pending != null)
+                processingSince = pending.right;
+            return pending;
+        }
+
+        void finishProcessing() {
+            List<CompletableFuture<Boolean>> done = new ArrayList<>();
+            synchronized (this) {
+                processingSince = Long.MAX_VALUE;
+                long oldest = oldestUnprocessedMillis();
+                waiters.removeIf(waiter -> {
+                    if (waiter.left >= oldest)
+                        return false;
+                    done.add(waiter.right);
+                    return true;
+                });
+            }
+            for (CompletableFuture<Boolean> waiter : done)
+                waiter.complete(true);
+        }
+
+        /**
+         *
+         * @param time
+         * @return a future which completes when every event which became pending before time has been processed
+         */
+        synchronized CompletableFuture<Boolean> processedBefore(long time) {
+            if (oldestUnprocessedMillis() > time)
+                return CompletableFuture.completedFuture(true);
+            CompletableFuture<Boolean> res = new CompletableFuture<>();
+            waiters.add(new Pair<>(time, res));
+            return res;
+        }
+    }
 
     /**
      *
@@ -50,33 +153,104 @@ public class SpaceCheckingKeyFilter {
      * @param dht
      * @param quotaSupplier The quota supplier
      * @param statePath path to local file with user usages
+     * @param eventWorkers the number of threads processing mutable pointer events
      */
     public SpaceCheckingKeyFilter(CoreNode core,
                                   MutablePointers mutable,
                                   ContentAddressedStorage dht,
                                   UserQuotas quotaSupplier,
-                                  Path statePath) throws IOException{
+                                  Path statePath,
+                                  int eventWorkers) throws IOException{
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
         this.quotaSupplier = quotaSupplier;
         this.statePath = statePath;
         this.state = initState(statePath, mutable, dht);
-        new Thread(() -> {
-            while (isRunning.get()) {
-                try {
-                    MutableEvent event = mutableQueue.take();
-                    processMutablePointerEvent(event);
-                } catch (InterruptedException e) {}
-            }
-        }).start();
+        state.openJournal(statePath);
+        this.partitions = new Partition[Math.max(1, eventWorkers)];
+        for (int i = 0; i < partitions.length; i++) {
+            Partition partition = new Partition();
+            partitions[i] = partition;
+            Thread worker = new Thread(() -> processEvents(partition), "Space checker " + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
         //add shutdown-hook to call close
         Runtime.getRuntime().addShutdownHook(new Thread(this::close));
     }
 
+    public SpaceCheckingKeyFilter(CoreNode core,
+                                  MutablePointers mutable,
+                                  ContentAddressedStorage dht,
+                                  UserQuotas quotaSupplier,
+                                  Path statePath) throws IOException{
+        this(core, mutable, dht, quotaSupplier, statePath, DEFAULT_EVENT_WORKERS);
+    }
+
+    private void processEvents(Partition partition) {
+        while (isRunning.get()) {
+            try {
+                PublicKeyHash writer = partition.writers.take();
+                Pair<MutableEvent, Long> pending = partition.startProcessing(writer);
+                if (pending == null)
+                    continue;
+                try {
+                    processMutablePointerEvent(pending.left);
+                } finally {
+                    partition.finishProcessing();
+                }
+                processedEvents.incrementAndGet();
+                long lag = System.currentTimeMillis() - pending.right;
+                if (lag > LAG_WARNING_MILLIS)
+                    LOG.warning("Space usage updates are lagging by " + lag + " mS, with " + getQueueDepth() + " writers pending");
+            } catch (InterruptedException e) {}
+        }
+    }
+
+    /**
+     *
+     * @return the number of writers with unprocessed mutable pointer events
+     */
+    public int getQueueDepth() {
+        int total = 0;
+        for (Partition partition : partitions)
+            total += partition.latest.size();
+        return total;
+    }
+
+    /**
+     *
+     * @return how long the oldest unprocessed mutable pointer event has been waiting
+     */
+    public long getProcessingLagMillis() {
+        long oldest = System.currentTimeMillis();
+        for (Partition partition : partitions)
+            oldest = Math.min(oldest, partition.oldestPendingMillis());
+        return System.currentTimeMillis() - oldest;
+    }
+
+    public long getProcessedEvents() {
+        return processedEvents.get();
+    }
+
+    /**
+     *
+     * @return the number of events skipped because a later event for the same writer arrived before they were processed
+     */
+    public long getCoalescedEvents() {
+        return coalescedEvents.get();
+    }
+
+    /** The usage state is persisted as a snapshot followed by a journal of the writer stats and usages changed by
+     *  each subsequent update, so persisting an update costs in proportion to the change rather than the whole state.
+     */
     public static class State implements Cborable {
-        final Map<PublicKeyHash, Stat> currentView;
-        final Map<String, Usage> usage;
+        public final Map<PublicKeyHash, Stat> currentView;
+        public final Map<String, Usage> usage;
+        private Path journalPath;
+        private FileChannel journal;
+        private long journalRecords;
 
         public State(Map<PublicKeyHash, Stat> currentView, Map<String, Usage> usage) {
             this.currentView = currentView;
@@ -115,6 +289,95 @@ public class SpaceCheckingKeyFilter {
             return new ConcurrentHashMap<>(usage);
         }
 
+        /**
+         *  Write a snapshot of the current state to the given file, and append all subsequent updates to it
+         * @param path
+         * @throws IOException
+         */
+        public synchronized void openJournal(Path path) throws IOException {
+            this.journalPath = path;
+            writeSnapshot();
+        }
+
+        public synchronized void closeJournal() throws IOException {
+            if (journal == null)
+                return;
+            writeSnapshot();
+            journal.close();
+            journal = null;
+        }
+
+        private void writeSnapshot() throws IOException {
+            if (journal != null)
+                journal.close();
+            byte[] serialized = toCbor().serialize();
+            Path tmp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+            Files.write(tmp, serialized);
+            Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            journalRecords = 0;
+        }
+
+        /**
+         *  Record the current stat of a writer, and the usage of its owner
+         * @param writer
+         */
+        public synchronized void logUpdate(PublicKeyHash writer) {
+            if (journal == null)
+                return;
+            Stat stat = currentView.get(writer);
+            Map<String, Cborable> record = new HashMap<>();
+            record.put("writer", writer);
+            record.put("stat", stat);
+            Usage ownerUsage = usage.get(stat.owner);
+            if (ownerUsage != null)
+                record.put("usage", ownerUsage);
+            ByteBuffer buf = ByteBuffer.wrap(CborObject.CborMap.build(record).serialize());
+            try {
+                while (buf.hasRemaining())
+                    journal.write(buf);
+                journalRecords++;
+                if (journalRecords > MIN_JOURNAL_RECORDS_TO_COMPACT && journalRecords > currentView.size())
+                    writeSnapshot();
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         *  Read a snapshot and replay any journalled updates after it
+         * @param path
+         * @return the state
+         * @throws IOException
+         */
+        public static State load(Path path) throws IOException {
+            byte[] data = Files.readAllBytes(path);
+            ByteArrayInputStream in = new ByteArrayInputStream(data);
+            CborDecoder decoder = new CborDecoder(in);
+            State state = State.fromCbor(CborObject.deserialize(decoder, data.length));
+            int updates = 0;
+            while (in.available() > 0) {
+                try {
+                    CborObject.CborMap record = (CborObject.CborMap) CborObject.deserialize(decoder, data.length);
+                    PublicKeyHash writer = record.get("writer", PublicKeyHash::fromCbor);
+                    Stat stat = record.get("stat", Stat::fromCbor);
+                    state.currentView.put(writer, stat);
+                    record.getOptional("usage", Usage::fromCbor)
+                            .ifPresent(u -> state.usage.put(stat.owner, u));
+                    updates++;
+                } catch (RuntimeException e) {
+                    LOG.warning("Ignoring incomplete update at end of usage state " + path);
+                    break;
+                }
+            }
+            // owned keys which have never been written to only appear in their parent's stat
+            for (Stat stat : new ArrayList<>(state.currentView.values()))
+                for (PublicKeyHash owned : stat.getOwnedKeys())
+                    state.currentView.putIfAbsent(owned, new Stat(stat.owner, MaybeMultihash.empty(), 0, Collections.emptySet()));
+            LOG.info("Loaded usage state with " + updates + " journalled updates");
+            return state;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -237,7 +500,7 @@ public class SpaceCheckingKeyFilter {
         }
 
         @Override
-        public CborObject toCbor() {
+        public synchronized CborObject toCbor() {
             return new CborObject.CborLong(usage);
         }
 
@@ -274,7 +537,7 @@ public class SpaceCheckingKeyFilter {
         State state;
         try {
             // Read stored usages and update current view.
-            state = load(statePath);
+            state = State.load(statePath);
             System.out.println("Successfully loaded usage-state from "+ statePath);
         } catch (IOException ioe) {
             System.out.println("Could not read usage-state from "+ statePath);
@@ -289,21 +552,18 @@ public class SpaceCheckingKeyFilter {
                 System.out.println("Checking for updates from user " + stat.owner);
 
                 MaybeMultihash rootHash = mutable.getPointerTarget(ownerKey, ownerKey, dht).join();
-                boolean isChanged = stat.target.equals(rootHash);
+                boolean isChanged = ! stat.getRoot().equals(rootHash);
                 if (isChanged) {
-                    long updatedSize = dht.getRecursiveBlockSize(rootHash.get()).get();
-                    long deltaUsage = updatedSize - stat.directRetainedStorage;
-                    state.usage.get(stat.owner).confirmUsage(ownerKey, deltaUsage); //NB: ownerKey is a dummy value
-                    Set<PublicKeyHash> directOwnedKeys = WriterData.getDirectOwnedKeys(ownerKey, ownerKey, mutable, dht).join();
-                    List<PublicKeyHash> newOwnedKeys = directOwnedKeys.stream()
-                            .filter(key -> !stat.ownedKeys.contains(key))
+                    // only the difference between the recorded and current roots needs to be examined
+                    Set<PublicKeyHash> priorOwnedKeys = stat.getOwnedKeys();
+                    processMutablePointerEvent(state, ownerKey, ownerKey, stat.getRoot(), rootHash, mutable, dht);
+                    List<PublicKeyHash> newOwnedKeys = stat.getOwnedKeys().stream()
+                            .filter(key -> !priorOwnedKeys.contains(key))
                             .collect(Collectors.toList());
                     for (PublicKeyHash newOwnedKey : newOwnedKeys) {
-                        state.currentView.putIfAbsent(newOwnedKey, new Stat(stat.owner, MaybeMultihash.empty(), 0, Collections.emptySet()));
-                        processMutablePointerEvent(state, ownerKey, newOwnedKey, MaybeMultihash.empty(),
+                        processMutablePointerEvent(state, ownerKey, newOwnedKey, state.currentView.get(newOwnedKey).getRoot(),
                                 mutable.getPointerTarget(ownerKey, newOwnedKey, dht).get(), mutable, dht);
                     }
-                    stat.update(rootHash, directOwnedKeys, updatedSize);
                 }
             }
         } catch (InterruptedException | ExecutionException ex) {
@@ -319,38 +579,15 @@ public class SpaceCheckingKeyFilter {
     private synchronized void close() {
         try {
             isRunning.set(false);
-            store();
+            waitTimeouts.shutdownNow();
+            writeChecks.shutdown();
+            state.closeJournal();
             System.out.println("Successfully stored usage-state to " + this.statePath);
         } catch (Throwable t) {
             System.out.println("Failed to  store "+ this);
             t.printStackTrace();
         }
     }
-    /**
-     * Read local file with cached user usages.
-     * @return previous usages
-     * @throws IOException
-     */
-    private static State load(Path statePath) throws IOException {
-        System.out.println("Reading state from "+ statePath +" which exists ? "+ Files.exists(statePath) +" from cwd "+ System.getProperty("cwd"));
-        byte[] data = Files.readAllBytes(statePath);
-        CborObject object = CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(data)), 1000);
-        return State.fromCbor(object);
-    }
-
-    /**
-     * Store usages
-     * @throws IOException
-     */
-    private synchronized void store() throws IOException {
-        byte[] serialized = state.toCbor().serialize();
-        System.out.println("Writing "+ serialized.length +" bytes to "+ statePath);
-        Files.write(
-            statePath,
-            serialized,
-            StandardOpenOption.CREATE);
-    }
-
     /**
      * Walk the virtual file-system to calculate space used by each owner not already checked
      */
@@ -398,22 +635,18 @@ public class SpaceCheckingKeyFilter {
         }
     }
 
+    /** Queue a mutable pointer event for processing. Any newly owned keys are added to our view when it is processed,
+     *  and a write by a key we don't know about yet waits for that in allowWrite.
+     *
+     * @param event
+     */
     public void accept(MutableEvent event) {
-        mutableQueue.add(event);
-        try {
-            HashCasPair hashCasPair = dht.getSigningKey(event.writer)
-                    .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
-                            .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            Set<PublicKeyHash> updatedOwned =
-                    WriterData.getDirectOwnedKeys(event.writer, hashCasPair.updated, dht).join();
-            Stat current = state.currentView.get(event.writer);
-            for (PublicKeyHash owned : updatedOwned) {
-                state.currentView.computeIfAbsent(owned,
-                        k -> new Stat(current.owner, MaybeMultihash.empty(), 0, Collections.emptySet()));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        if (partitionOf(event.owner).add(event))
+            coalescedEvents.incrementAndGet();
+    }
+
+    private Partition partitionOf(PublicKeyHash owner) {
+        return partitions[Math.floorMod(owner.hashCode(), partitions.length)];
     }
 
     private void processMutablePointerEvent(MutableEvent event) {
@@ -441,6 +674,7 @@ public class SpaceCheckingKeyFilter {
             throw new IllegalStateException("Unknown writer key hash: " + writer);
         if (! newRoot.isPresent()) {
             current.update(MaybeMultihash.empty(), Collections.emptySet(), 0);
+            state.logUpdate(writer);
             if (existingRoot.isPresent()) {
                 try {
                     // subtract data size from orphaned child keys (this assumes the keys form a tree without dupes)
@@ -470,6 +704,7 @@ public class SpaceCheckingKeyFilter {
                 removedChildren.removeAll(updatedOwned);
                 processRemovedOwnedKeys(state, owner, removedChildren, mutable, dht);
                 current.update(newRoot, updatedOwned, current.directRetainedStorage + changeInStorage);
+                state.logUpdate(writer);
             }
         } catch (Exception e) {
             Exceptions.getRootCause(e).printStackTrace();
@@ -491,7 +726,30 @@ public class SpaceCheckingKeyFilter {
         }
     }
 
-    public boolean allowWrite(PublicKeyHash writer, int size) {
+    /** A write by a key we don't know about yet could be from a key added by an update of the owner's pointers which
+     *  we haven't processed yet, so that waits for the owner's earlier events to be processed, without holding a thread.
+     *  Other owners' events are never waited for.
+     *
+     * @param owner
+     * @param writer
+     * @param size
+     * @return true if the write is allowed
+     */
+    public CompletableFuture<Boolean> allowWrite(PublicKeyHash owner, PublicKeyHash writer, int size) {
+        if (state.currentView.containsKey(writer)) {
+            try {
+                return CompletableFuture.completedFuture(checkWrite(writer, size));
+            } catch (Throwable t) {
+                return Futures.errored(t);
+            }
+        }
+        CompletableFuture<Boolean> processed = partitionOf(owner).processedBefore(System.currentTimeMillis());
+        if (! processed.isDone())
+            waitTimeouts.schedule(() -> processed.complete(false), UNKNOWN_WRITER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        return processed.thenApplyAsync(done -> checkWrite(writer, size), writeChecks);
+    }
+
+    private boolean checkWrite(PublicKeyHash writer, int size) {
         Stat stat = state.currentView.get(writer);
         if (stat == null)
             throw new IllegalStateException("Unknown writing key hash: " + writer);
@@ -71,17 +71,20 @@ public class UserService {
     private final CoreNode coreNode;
     private final SocialNetwork social;
     private final MutablePointers mutable;
+    private final PointerSubscriptions pointerUpdates;
     private final InstanceAdmin controller;
 
     public UserService(ContentAddressedStorage storage,
                        CoreNode coreNode,
                        SocialNetwork social,
                        MutablePointers mutable,
+                       PointerSubscriptions pointerUpdates,
                        InstanceAdmin controller) {
         this.storage = storage;
         this.coreNode = coreNode;
         this.social = social;
         this.mutable = mutable;
+        this.pointerUpdates = pointerUpdates;
         this.controller = controller;
     }
 
@@ -98,6 +101,21 @@ public class UserService {
                                 Optional<TlsProperties> tlsProps,
                                 Optional<Path> webroot,
                                 boolean useWebCache) throws IOException {
+        return initAndStart(local, tlsProps, webroot, useWebCache,
+                () -> Executors.newFixedThreadPool(HANDLER_THREADS), AsyncHandler.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     *
+     * @param handlerPool Supplies the executor for each http server to run handlers on
+     * @param maxRequestsInFlight The maximum number of concurrent requests to each api endpoint
+     */
+    public boolean initAndStart(InetSocketAddress local,
+                                Optional<TlsProperties> tlsProps,
+                                Optional<Path> webroot,
+                                boolean useWebCache,
+                                Supplier<ExecutorService> handlerPool,
+                                int maxRequestsInFlight) throws IOException {
         InetAddress allInterfaces = InetAddress.getByName("::");
         if (tlsProps.isPresent())
             try {
@@ -191,23 +209,26 @@ public class UserService {
                 tlsServer.createContext(path, new HSTSHandler(handlerFunc));
         };
 
-        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, (h, i) -> true));
+        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, (o, w, i) -> CompletableFuture.completedFuture(true), maxRequestsInFlight));
         addHandler.accept("/" + Constants.CORE_URL,
-                new HttpCoreNodeServer.CoreNodeHandler(this.coreNode));
+                new HttpCoreNodeServer.CoreNodeHandler(this.coreNode, maxRequestsInFlight));
         addHandler.accept("/" + Constants.SOCIAL_URL,
-                new SocialHandler(this.social));
+                new SocialHandler(this.social, maxRequestsInFlight));
         addHandler.accept("/" + Constants.MUTABLE_POINTERS_URL,
-                new MutationHandler(this.mutable));
+                new MutationHandler(this.mutable, maxRequestsInFlight));
+        addHandler.accept("/" + Constants.POINTER_UPDATES_URL,
+                new PointerUpdatesHandler(this.pointerUpdates));
         addHandler.accept("/" + Constants.ADMIN_URL,
                 new AdminHandler(this.controller));
-        addHandler.accept("/" + Constants.PUBLIC_FILES_URL, new PublicFileHandler(coreNode, mutable, storage));
+        addHandler.accept("/" + Constants.PUBLIC_FILES_URL,
+                new PublicFileHandler(coreNode, mutable, storage, maxRequestsInFlight));
         addHandler.accept(UI_URL, handler);
 
-        localhostServer.setExecutor(Executors.newFixedThreadPool(HANDLER_THREADS));
+        localhostServer.setExecutor(handlerPool.get());
         localhostServer.start();
 
         if (tlsServer != null) {
-            tlsServer.setExecutor(Executors.newFixedThreadPool(HANDLER_THREADS));
+            tlsServer.setExecutor(handlerPool.get());
             tlsServer.start();
         }
 
@@ -27,26 +27,27 @@ import peergos.shared.util.*;
 public class HttpCoreNodeServer {
 	private static final Logger LOG = Logging.LOG();
 
-    private static final boolean LOGGING = true;
     private static final int CONNECTION_BACKLOG = 100;
     private static final int HANDLER_THREAD_COUNT = 100;
 
-    public static class CoreNodeHandler implements HttpHandler
+    public static class CoreNodeHandler extends AsyncHandler
     {
         private final CoreNode coreNode;
 
-        public CoreNodeHandler(CoreNode coreNode) {
+        public CoreNodeHandler(CoreNode coreNode, int maxInFlight) {
+            super("Corenode server", maxInFlight);
             this.coreNode = coreNode;
         }
 
-        public void handle(HttpExchange exchange) throws IOException 
+        public CoreNodeHandler(CoreNode coreNode) {
+            this(coreNode, DEFAULT_MAX_IN_FLIGHT);
+        }
+
+        @Override
+        protected CompletableFuture<?> handleAsync(HttpExchange exchange) throws IOException
         {
-            long t1 = System.currentTimeMillis();
             DataInputStream din = new DataInputStream(exchange.getRequestBody());
             
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            DataOutputStream dout = new DataOutputStream(bout);
-            
             String path = exchange.getRequestURI().getPath();
             if (path.startsWith("/"))
                 path = path.substring(1);
@@ -54,61 +55,41 @@ public class HttpCoreNodeServer {
             String method = subComponents[0];
 //            LOG.info("core method "+ method +" from path "+ path);
 
-            try {
-                switch (method)
-                {
-                    case "getChain":
-                        getChain(din, dout);
-                        break;
-                    case "updateChain":
-                        updateChain(din, dout);
-                        break;
-                    case "getPublicKey":
-                        getPublicKey(din, dout);
-                        break;
-                    case "getUsername":
-                        getUsername(din, dout);
-                        break;
-                    case "getUsernamesGzip":
-                        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
-                        exchange.getResponseHeaders().set("Content-Type", "application/json");
-                        getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "", din, dout);
-                        break;
-                    default:
-                        throw new IOException("Unknown method "+ method);
-                }
-
-                dout.flush();
-                dout.close();
-                byte[] b = bout.toByteArray();
-                exchange.sendResponseHeaders(200, b.length);
-                exchange.getResponseBody().write(b);
-            } catch (Exception e) {
-                Throwable cause = e.getCause();
-                if (cause != null)
-                    exchange.getResponseHeaders().set("Trailer", cause.getMessage());
-                else
-                    exchange.getResponseHeaders().set("Trailer", e.getMessage());
-
-                exchange.sendResponseHeaders(400, 0);
-            } finally {
-                exchange.close();
-                long t2 = System.currentTimeMillis();
-                if (LOGGING)
-                    LOG.info("Corenode server handled " + method + " request in: " + (t2 - t1) + " mS");
+            CompletableFuture<byte[]> reply;
+            switch (method)
+            {
+                case "getChain":
+                    reply = getChain(din);
+                    break;
+                case "updateChain":
+                    reply = updateChain(din);
+                    break;
+                case "getPublicKey":
+                    reply = getPublicKey(din);
+                    break;
+                case "getUsername":
+                    reply = getUsername(din);
+                    break;
+                case "getUsernamesGzip":
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    reply = getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "");
+                    break;
+                default:
+                    throw new IOException("Unknown method "+ method);
             }
-
+            return reply.thenAccept(b -> replyBytes(exchange, b));
         }
 
-        void getChain(DataInputStream din, DataOutputStream dout) throws Exception
+        CompletableFuture<byte[]> getChain(DataInputStream din) throws IOException
         {
             String username = CoreNodeUtils.deserializeString(din);
 
-            List<UserPublicKeyLink> chain = coreNode.getChain(username).get();
-            dout.write(new CborObject.CborList(chain).serialize());
+            return coreNode.getChain(username)
+                    .thenApply(chain -> new CborObject.CborList(chain).serialize());
         }
 
-        void updateChain(DataInputStream din, DataOutputStream dout) throws Exception
+        CompletableFuture<byte[]> updateChain(DataInputStream din) throws IOException
         {
             String username = CoreNodeUtils.deserializeString(din);
             int count = din.readInt();
@@ -116,41 +97,37 @@ public class HttpCoreNodeServer {
             for (int i=0; i < count; i++) {
                 res.add(UserPublicKeyLink.fromCbor(CborObject.fromByteArray(Serialize.deserializeByteArray(din, UserPublicKeyLink.MAX_SIZE))));
             }
-            boolean isAdded = coreNode.updateChain(username, res).get();
-
-            dout.writeBoolean(isAdded);
+            return coreNode.updateChain(username, res)
+                    .thenApply(isAdded -> serialize(dout -> dout.writeBoolean(isAdded)));
         }
 
-        void getPublicKey(DataInputStream din, DataOutputStream dout) throws Exception
+        CompletableFuture<byte[]> getPublicKey(DataInputStream din) throws IOException
         {
             String username = CoreNodeUtils.deserializeString(din);
-            Optional<PublicKeyHash> k = coreNode.getPublicKeyHash(username).get();
-            dout.writeBoolean(k.isPresent());
-            if (!k.isPresent())
-                return;
-            byte[] b = k.get().serialize();
-            dout.writeInt(b.length);
-            dout.write(b);
+            return coreNode.getPublicKeyHash(username).thenApply(k -> serialize(dout -> {
+                dout.writeBoolean(k.isPresent());
+                if (!k.isPresent())
+                    return;
+                byte[] b = k.get().serialize();
+                dout.writeInt(b.length);
+                dout.write(b);
+            }));
         }
 
-        void getUsername(DataInputStream din, DataOutputStream dout) throws Exception
+        CompletableFuture<byte[]> getUsername(DataInputStream din) throws IOException
         {
             byte[] publicKey = CoreNodeUtils.deserializeByteArray(din);
-            String k = coreNode.getUsername(PublicKeyHash.fromCbor(CborObject.fromByteArray(publicKey))).get();
-            if (k == null)
-                k="";
-            Serialize.serialize(k, dout);
+            return coreNode.getUsername(PublicKeyHash.fromCbor(CborObject.fromByteArray(publicKey)))
+                    .thenApply(k -> serialize(dout -> Serialize.serialize(k == null ? "" : k, dout)));
         }
 
-        void getAllUsernamesGzip(String prefix, DataInputStream din, DataOutputStream dout) throws Exception
+        CompletableFuture<byte[]> getAllUsernamesGzip(String prefix)
         {
-            List<String> res = coreNode.getUsernames(prefix).get();
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            GZIPOutputStream gout = new GZIPOutputStream(bout);
-            gout.write(JSONParser.toString(res).getBytes());
-            gout.flush();
-            gout.close();
-            dout.write(bout.toByteArray());
+            return coreNode.getUsernames(prefix).thenApply(res -> serialize(dout -> {
+                GZIPOutputStream gout = new GZIPOutputStream(dout);
+                gout.write(JSONParser.toString(res).getBytes());
+                gout.finish();
+            }));
         }
 
         public void close() throws IOException{
@@ -22,6 +22,10 @@ import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
+/** The PKI, a champ from username to public key chain, with in memory mappings for lookups.
+ *
+ *  Updates are serialized, but lookups never wait for them, even while an update is committing a new champ.
+ */
 public class IpfsCoreNode implements CoreNode {
 	private static final Logger LOG = Logging.LOG();
 
@@ -32,9 +36,9 @@ public class IpfsCoreNode implements CoreNode {
 
     private final Map<String, List<UserPublicKeyLink>> chains = new ConcurrentHashMap<>();
     private final Map<PublicKeyHash, String> reverseLookup = new ConcurrentHashMap<>();
-    private final List<String> usernames = new ArrayList<>();
+    private final UsernameIndex usernames = new UsernameIndex();
 
-    private MaybeMultihash currentRoot;
+    private MaybeMultihash currentRoot; // guarded by this
 
     public IpfsCoreNode(SigningPrivateKeyAndPublicHash pkiSigner,
                         MaybeMultihash currentRoot,
@@ -72,13 +76,16 @@ public class IpfsCoreNode implements CoreNode {
                                          ContentAddressedStorage ipfs,
                                          Map<String, List<UserPublicKeyLink>> chains,
                                          Map<PublicKeyHash, String> reverseLookup,
-                                         List<String> usernames) {
+                                         UsernameIndex usernames) {
         try {
             MaybeMultihash currentTree = getTreeRoot(currentChampRoot, ipfs);
             MaybeMultihash updatedTree = getTreeRoot(newChampRoot, ipfs);
+            List<String> newUsernames = Collections.synchronizedList(new ArrayList<>());
             Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer =
-                    t -> updateMapping(t.left, t.middle, t.right, ipfs, chains, reverseLookup, usernames);
+                    t -> updateMapping(t.left, t.middle, t.right, ipfs, chains, reverseLookup, newUsernames);
             Champ.applyToDiff(currentTree, updatedTree, consumer, ipfs).get();
+            // publish all the new users at once, rather than copying the index for each of them
+            usernames.addAll(newUsernames);
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -90,7 +97,7 @@ public class IpfsCoreNode implements CoreNode {
                                      ContentAddressedStorage ipfs,
                                      Map<String, List<UserPublicKeyLink>> chains,
                                      Map<PublicKeyHash, String> reverseLookup,
-                                     List<String> usernames) {
+                                     List<String> newUsernames) {
         try {
             Optional<CborObject> cborOpt = ipfs.get(newValue.get()).get();
             if (!cborOpt.isPresent()) {
@@ -121,7 +128,7 @@ public class IpfsCoreNode implements CoreNode {
             chains.put(username, updatedChain);
             if (! oldValue.isPresent()) {
                 // This is a new user
-                usernames.add(username);
+                newUsernames.add(username);
             }
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
@@ -173,11 +180,12 @@ public class IpfsCoreNode implements CoreNode {
                                             .commit(peergosIdentity, signer, currentRoot, mutable, ipfs, tid)),
                             ipfs
                     ).thenApply(committed -> {
-                        if (existingChain.isEmpty())
-                            usernames.add(username);
                         PublicKeyHash owner = updatedChain.get(updatedChain.size() - 1).owner;
                         reverseLookup.put(owner, username);
                         chains.put(username, mergedChain);
+                        // only list a new user once their chain can be looked up
+                        if (existingChain.isEmpty())
+                            usernames.add(username);
                         currentRoot = committed.hash;
                         return true;
                     });
@@ -188,19 +196,19 @@ public class IpfsCoreNode implements CoreNode {
     }
 
     @Override
-    public synchronized CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
+    public CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
         return CompletableFuture.completedFuture(chains.getOrDefault(username, Collections.emptyList()));
     }
 
     @Override
-    public synchronized CompletableFuture<String> getUsername(PublicKeyHash key) {
+    public CompletableFuture<String> getUsername(PublicKeyHash key) {
         return CompletableFuture.completedFuture(Optional.ofNullable(reverseLookup.get(key))
                 .orElseThrow(() -> new IllegalStateException("Unknown identity key: " + key)));
     }
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(usernames);
+        return CompletableFuture.completedFuture(usernames.getByPrefix(prefix));
     }
 
     @Override
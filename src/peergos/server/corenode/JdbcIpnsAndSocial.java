@@ -27,18 +27,9 @@ public class JdbcIpnsAndSocial {
     private static final String SELECT_FOLLOW_REQUESTS = "SELECT name, followrequest FROM followrequests WHERE name = ?;";
     private static final String DELETE_FOLLOW_REQUEST = "DELETE FROM followrequests WHERE name = ? AND followrequest = ?;";
 
-    private static final String CREATE_IPNS_TABLE =
-            "CREATE TABLE metadatablobs (writingkey text primary key not null, hash text not null); " +
-            "CREATE UNIQUE INDEX index_name ON metadatablobs (writingkey);";
-    private static final String IPNS_TARGET_NAME = "hash";
-    private static final String IPNS_CREATE = "INSERT INTO metadatablobs (writingkey, hash) VALUES(?, ?)";
-    private static final String IPNS_UPDATE = "UPDATE metadatablobs SET hash=? WHERE writingkey = ? AND hash = ?";
-    private static final String IPNS_GET = "SELECT * FROM metadatablobs WHERE writingKey = ? LIMIT 1;";
-
     private static final Map<String,String> TABLES = new HashMap<>();
     static {
         TABLES.put("followrequests", CREATE_FOLLOW_REQUESTS_TABLE);
-        TABLES.put("metadatablobs", CREATE_IPNS_TABLE);
     }
 
     private Connection conn;
@@ -173,49 +164,6 @@ public class JdbcIpnsAndSocial {
         return CompletableFuture.completedFuture(resp.serialize());
     }
 
-    public CompletableFuture<Boolean> setPointer(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
-        if (existingCas.isPresent()) {
-            try (PreparedStatement insert = conn.prepareStatement(IPNS_UPDATE)) {
-                conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-                String key = new String(Base64.getEncoder().encode(writingKey.serialize()));
-
-                insert.setString(1, new String(Base64.getEncoder().encode(newCas)));
-                insert.setString(2, key);
-                insert.setString(3, new String(Base64.getEncoder().encode(existingCas.get())));
-                int changed = insert.executeUpdate();
-                return CompletableFuture.completedFuture(changed > 0);
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
-            }
-        } else {
-            try (PreparedStatement stmt = conn.prepareStatement(IPNS_CREATE)) {
-                stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
-                stmt.setString(2, new String(Base64.getEncoder().encode(newCas)));
-                stmt.executeUpdate();
-                return CompletableFuture.completedFuture(true);
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
-            }
-        }
-    }
-
-    public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
-        try (PreparedStatement stmt = conn.prepareStatement(IPNS_GET)) {
-            stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return CompletableFuture.completedFuture(Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME))));
-            }
-
-            return CompletableFuture.completedFuture(Optional.empty());
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            return Futures.errored(sqe);
-        }
-    }
-
     public synchronized void close() {
         if (isClosed)
             return;
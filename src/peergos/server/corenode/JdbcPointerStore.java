@@ -0,0 +1,272 @@
+package peergos.server.corenode;
+
+import peergos.server.util.Logging;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A sqlite store of the current signed root of each writer.
+ *
+ *  All writes are made by a single thread with its own connection, which applies every compare-and-set that is waiting
+ *  in one transaction. Reads use a pool of other connections, which never block on the writer in WAL mode. Every
+ *  connection prepares its statements once. The current values of recently used writers are cached, and the writer
+ *  updates the cache after each commit, so most reads never reach sqlite.
+ */
+public class JdbcPointerStore {
+    private static final Logger LOG = Logging.LOG();
+
+    public static final int DEFAULT_READERS = 4;
+    public static final int DEFAULT_CACHE_SIZE = 10_000;
+    private static final int MAX_BATCH_SIZE = 1_000;
+    private static final String IN_MEMORY = ":memory:";
+
+    private static final String CREATE_IPNS_TABLE =
+            "CREATE TABLE IF NOT EXISTS metadatablobs (writingkey text primary key not null, hash text not null);";
+    private static final String IPNS_TARGET_NAME = "hash";
+    // a conflicting create is an expected outcome of a CAS, so it changes nothing rather than throwing
+    private static final String IPNS_CREATE = "INSERT OR IGNORE INTO metadatablobs (writingkey, hash) VALUES(?, ?)";
+    private static final String IPNS_UPDATE = "UPDATE metadatablobs SET hash=? WHERE writingkey = ? AND hash = ?";
+    private static final String IPNS_GET = "SELECT * FROM metadatablobs WHERE writingKey = ? LIMIT 1;";
+
+    private static class CasUpdate {
+        public final PublicKeyHash writer;
+        public final Optional<byte[]> existing;
+        public final byte[] updated;
+        public final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        public CasUpdate(PublicKeyHash writer, Optional<byte[]> existing, byte[] updated) {
+            this.writer = writer;
+            this.existing = existing;
+            this.updated = updated;
+        }
+    }
+
+    /** A connection with its statements already prepared. Callers synchronize on the connection, because an in
+     *  memory database has only one, which is shared between the writer and the readers.
+     */
+    private static class Statements {
+        public final Connection conn;
+        public final PreparedStatement get, create, update;
+
+        public Statements(Connection conn, boolean isWriter) throws SQLException {
+            this.conn = conn;
+            this.get = conn.prepareStatement(IPNS_GET);
+            this.create = isWriter ? conn.prepareStatement(IPNS_CREATE) : null;
+            this.update = isWriter ? conn.prepareStatement(IPNS_UPDATE) : null;
+        }
+
+        public Optional<byte[]> get(PublicKeyHash writer) throws SQLException {
+            synchronized (conn) {
+                get.setString(1, encode(writer.serialize()));
+                try (ResultSet rs = get.executeQuery()) {
+                    if (rs.next())
+                        return Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME)));
+                    return Optional.empty();
+                }
+            }
+        }
+
+        /** Must be called holding the connection's monitor
+         */
+        public boolean apply(CasUpdate cas) {
+            try {
+                if (cas.existing.isPresent()) {
+                    update.setString(1, encode(cas.updated));
+                    update.setString(2, encode(cas.writer.serialize()));
+                    update.setString(3, encode(cas.existing.get()));
+                    return update.executeUpdate() > 0;
+                }
+                create.setString(1, encode(cas.writer.serialize()));
+                create.setString(2, encode(cas.updated));
+                return create.executeUpdate() > 0;
+            } catch (SQLException sqe) {
+                // a failed statement only aborts itself, not the rest of the transaction
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                return false;
+            }
+        }
+    }
+
+    private final Statements writer;
+    private final BlockingQueue<Statements> readers;
+    private final BlockingQueue<CasUpdate> pending = new LinkedBlockingQueue<>();
+    private final Map<PublicKeyHash, Optional<byte[]>> cache; // guarded by itself
+    private long commits; // guarded by cache
+    private final Thread writerThread;
+    // callers' continuations run here, so they can't delay the next batch, or block it waiting on their own write
+    private final ExecutorService completions = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Pointer write results");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean isClosed;
+
+    private JdbcPointerStore(Connection writer, List<Connection> readers, int cacheSize) throws SQLException {
+        try (Statement create = writer.createStatement()) {
+            create.executeUpdate(CREATE_IPNS_TABLE);
+        }
+        writer.setAutoCommit(false);
+        this.writer = new Statements(writer, true);
+        this.readers = new ArrayBlockingQueue<>(readers.size());
+        for (Connection reader : readers)
+            this.readers.add(reader == writer ? this.writer : new Statements(reader, false));
+        this.cache = new LRUCache<>(cacheSize);
+        this.writerThread = new Thread(this::writeLoop, "Pointer writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    private static String encode(byte[] in) {
+        return new String(Base64.getEncoder().encode(in));
+    }
+
+    public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
+        long version;
+        synchronized (cache) {
+            Optional<byte[]> cached = cache.get(writingKey);
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached);
+            version = commits;
+        }
+        Statements reader = null;
+        try {
+            reader = readers.take();
+            Optional<byte[]> current = reader.get(writingKey);
+            synchronized (cache) {
+                // a commit since we started could have made what we read stale
+                if (commits == version)
+                    cache.put(writingKey, current);
+            }
+            return CompletableFuture.completedFuture(current);
+        } catch (SQLException | InterruptedException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+            return Futures.errored(e);
+        } finally {
+            if (reader != null)
+                readers.add(reader);
+        }
+    }
+
+    /** Queue a compare-and-set to be committed by the writer, along with any others waiting
+     *
+     * @return true if the pointer was updated
+     */
+    public CompletableFuture<Boolean> setPointer(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
+        if (isClosed)
+            return Futures.errored(new IllegalStateException("Pointer store is closed!"));
+        CasUpdate cas = new CasUpdate(writingKey, existingCas, newCas);
+        pending.add(cas);
+        return cas.result;
+    }
+
+    private void writeLoop() {
+        List<CasUpdate> batch = new ArrayList<>();
+        while (! isClosed) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+            commit(batch);
+            batch.clear();
+        }
+        for (CasUpdate cas : pending)
+            cas.result.completeExceptionally(new IllegalStateException("Pointer store is closed!"));
+    }
+
+    private void commit(List<CasUpdate> batch) {
+        boolean[] results = new boolean[batch.size()];
+        SQLException failure = null;
+        synchronized (writer.conn) {
+            for (int i = 0; i < batch.size(); i++)
+                results[i] = writer.apply(batch.get(i));
+            try {
+                writer.conn.commit();
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                failure = sqe;
+                try {
+                    writer.conn.rollback();
+                } catch (SQLException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+        synchronized (cache) {
+            commits++;
+            for (int i = 0; i < batch.size(); i++) {
+                CasUpdate cas = batch.get(i);
+                if (failure != null)
+                    cache.remove(cas.writer);
+                else if (results[i])
+                    cache.put(cas.writer, Optional.of(cas.updated));
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            CompletableFuture<Boolean> result = batch.get(i).result;
+            // a failed commit isn't a lost CAS, so the caller must not retry against a value it thinks has changed
+            if (failure != null) {
+                SQLException cause = failure;
+                completions.execute(() -> result.completeExceptionally(cause));
+            } else {
+                boolean success = results[i];
+                completions.execute(() -> result.complete(success));
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {}
+        completions.shutdown();
+        Set<Connection> all = new HashSet<>();
+        all.add(writer.conn);
+        for (Statements reader : readers)
+            all.add(reader.conn);
+        for (Connection conn : all) {
+            try {
+                conn.close();
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param dbPath The sqlite file, or :memory:, in which case the single connection is shared by reads and writes
+     * @param readers The number of connections to read from
+     * @param cacheSize The maximum number of pointers to cache
+     * @return
+     * @throws SQLException
+     */
+    public static JdbcPointerStore buildSqlLite(String dbPath, int readers, int cacheSize) throws SQLException {
+        if (dbPath.equals(IN_MEMORY)) {
+            Connection conn = JdbcIpnsAndSocial.buildSqlLite(dbPath);
+            return new JdbcPointerStore(conn, Collections.singletonList(conn), cacheSize);
+        }
+        Connection writer = JdbcIpnsAndSocial.buildSqlLite(dbPath);
+        // this version of the driver predates WAL, but the bundled sqlite supports it, and the mode is persistent
+        try (Statement wal = writer.createStatement()) {
+            wal.execute("PRAGMA journal_mode=WAL;");
+        }
+        List<Connection> readerConns = new ArrayList<>();
+        for (int i = 0; i < readers; i++)
+            readerConns.add(JdbcIpnsAndSocial.buildSqlLite(dbPath));
+        return new JdbcPointerStore(writer, readerConns, cacheSize);
+    }
+
+    public static JdbcPointerStore buildSqlLite(String dbPath) throws SQLException {
+        return buildSqlLite(dbPath, DEFAULT_READERS, DEFAULT_CACHE_SIZE);
+    }
+}
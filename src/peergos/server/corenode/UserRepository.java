@@ -7,6 +7,7 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.social.*;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.sql.*;
 import java.util.*;
@@ -16,10 +17,12 @@ public class UserRepository implements SocialNetwork, MutablePointers {
 
     private final ContentAddressedStorage ipfs;
     private final JdbcIpnsAndSocial store;
+    private final Optional<JdbcPointerStore> pointers;
 
-    public UserRepository(ContentAddressedStorage ipfs, JdbcIpnsAndSocial store) {
+    public UserRepository(ContentAddressedStorage ipfs, JdbcIpnsAndSocial store, Optional<JdbcPointerStore> pointers) {
         this.ipfs = ipfs;
         this.store = store;
+        this.pointers = pointers;
     }
 
     @Override
@@ -62,7 +65,9 @@ public class UserRepository implements SocialNetwork, MutablePointers {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
-        return store.getPointer(writer);
+        if (! pointers.isPresent())
+            return Futures.errored(new IllegalStateException("This repository doesn't store mutable pointers!"));
+        return pointers.get().getPointer(writer);
     }
 
     @Override
@@ -77,7 +82,7 @@ public class UserRepository implements SocialNetwork, MutablePointers {
                                 if (! MutablePointers.isValidUpdate(writerKey, current, writerSignedBtreeRootHash))
                                     return CompletableFuture.completedFuture(false);
 
-                                return store.setPointer(writer, current, writerSignedBtreeRootHash);
+                                return pointers.get().setPointer(writer, current, writerSignedBtreeRootHash);
                             } catch (TweetNaCl.InvalidSignatureException e) {
                                 System.err.println("Invalid signature during setMetadataBlob for sharer: " + writer);
                                 return CompletableFuture.completedFuture(false);
@@ -86,9 +91,25 @@ public class UserRepository implements SocialNetwork, MutablePointers {
 
     }
 
+    public void close() {
+        pointers.ifPresent(JdbcPointerStore::close);
+        store.close();
+    }
+
+    /** Build a repository of follow requests and mutable pointers
+     */
     public static UserRepository buildSqlLite(String dbPath, ContentAddressedStorage ipfs) throws SQLException
     {
         JdbcIpnsAndSocial coreNode = new JdbcIpnsAndSocial(JdbcIpnsAndSocial.buildSqlLite(dbPath));
-        return new UserRepository(ipfs, coreNode);
+        JdbcPointerStore pointers = JdbcPointerStore.buildSqlLite(dbPath);
+        return new UserRepository(ipfs, coreNode, Optional.of(pointers));
+    }
+
+    /** Build a repository of only follow requests, without the threads and connections of a pointer store
+     */
+    public static UserRepository buildSocialSqlLite(String dbPath, ContentAddressedStorage ipfs) throws SQLException
+    {
+        JdbcIpnsAndSocial coreNode = new JdbcIpnsAndSocial(JdbcIpnsAndSocial.buildSqlLite(dbPath));
+        return new UserRepository(ipfs, coreNode, Optional.empty());
     }
 }
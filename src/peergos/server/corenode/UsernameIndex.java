@@ -0,0 +1,85 @@
+package peergos.server.corenode;
+
+import java.util.*;
+
+/** A sorted index of usernames for prefix queries.
+ *
+ *  Readers never lock. Each update publishes a new immutable snapshot, so a list returned by a query is never changed
+ *  afterwards, and it is a view of the snapshot rather than a copy.
+ */
+public class UsernameIndex {
+
+    private volatile String[] sorted = new String[0];
+
+    /** Add any of the given usernames which aren't already present, publishing them all in one new snapshot.
+     */
+    public synchronized void addAll(Collection<String> usernames) {
+        if (usernames.isEmpty())
+            return;
+        String[] current = sorted;
+        String[] added = usernames.toArray(new String[0]);
+        Arrays.sort(added);
+        String[] merged = new String[current.length + added.length];
+        int i = 0, j = 0, size = 0;
+        while (i < current.length || j < added.length) {
+            String next;
+            if (j == added.length || (i < current.length && current[i].compareTo(added[j]) <= 0))
+                next = current[i++];
+            else
+                next = added[j++];
+            if (size == 0 || ! merged[size - 1].equals(next))
+                merged[size++] = next;
+        }
+        sorted = size == merged.length ? merged : Arrays.copyOf(merged, size);
+    }
+
+    public void add(String username) {
+        addAll(Collections.singletonList(username));
+    }
+
+    public boolean contains(String username) {
+        return Arrays.binarySearch(sorted, username) >= 0;
+    }
+
+    /**
+     *
+     * @param prefix
+     * @return All usernames starting with prefix, in sorted order
+     */
+    public List<String> getByPrefix(String prefix) {
+        String[] snapshot = sorted;
+        int from = lowerBound(snapshot, prefix);
+        int to = prefix.isEmpty() ? snapshot.length : from;
+        if (! prefix.isEmpty()) {
+            char last = prefix.charAt(prefix.length() - 1);
+            if (last < Character.MAX_VALUE) {
+                // every name with the prefix sorts before the prefix with its last character incremented
+                to = lowerBound(snapshot, prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+            } else {
+                while (to < snapshot.length && snapshot[to].startsWith(prefix))
+                    to++;
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(snapshot).subList(from, to));
+    }
+
+    public int size() {
+        return sorted.length;
+    }
+
+    /**
+     *
+     * @return the index of the first element which is not less than target
+     */
+    private static int lowerBound(String[] sorted, String target) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(target) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
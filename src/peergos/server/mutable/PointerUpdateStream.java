@@ -0,0 +1,227 @@
+package peergos.server.mutable;
+
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.util.*;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** This numbers every pointer update on this server, and answers subscribers waiting for updates to the writers they
+ *  are interested in.
+ *
+ *  Only the latest update of each recently updated writer is kept. A subscriber asking for updates since a position
+ *  which has been forgotten, or from a previous run of the server, is told to reset.
+ *
+ *  Events for successive updates of a writer can arrive out of order, so rather than publishing the value in an event,
+ *  this publishes the writer's current value in the local store. There is at most one read of each writer in flight,
+ *  and an event which arrives during it causes another read, so the last value published was read after the last
+ *  update.
+ */
+public class PointerUpdateStream implements Consumer<MutableEvent>, PointerSubscriptions {
+    private static final Logger LOG = Logging.LOG();
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 25_000;
+    public static final int DEFAULT_MAX_WRITERS = 100_000;
+
+    private static class Waiter {
+        // the sequence each writer's value is current as of
+        public final Map<PublicKeyHash, Long> since;
+        public final Set<PublicKeyHash> remote;
+        public final CompletableFuture<PointerUpdates> result = new CompletableFuture<>();
+
+        public Waiter(Map<PublicKeyHash, Long> since, Set<PublicKeyHash> remote) {
+            this.since = since;
+            this.remote = remote;
+        }
+    }
+
+    private final long epoch;
+    private final long timeoutMillis;
+    private final MutablePointers local;
+    private final Function<PublicKeyHash, CompletableFuture<Boolean>> isLocalOwner;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Pointer subscription timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+    // the sequence and signed root of the latest update of each writer, least recently updated first
+    private final LinkedHashMap<PublicKeyHash, Pair<Long, byte[]>> latest; // guarded by this
+    private final Map<PublicKeyHash, Set<Waiter>> waiting = new HashMap<>(); // guarded by this
+    // writers with a read in flight, and those of them which have been updated again since it started
+    private final Set<PublicKeyHash> reading = new HashSet<>(), reread = new HashSet<>(); // guarded by this
+    private long sequence; // guarded by this
+    // the highest sequence number we no longer have the update for
+    private long forgotten; // guarded by this
+
+    /**
+     *
+     * @param local the pointers stored on this server, whose updates are the events this is given
+     * @param isLocalOwner whether an owner's pointers are stored on this server
+     * @param maxWriters the number of writers to remember the latest update of
+     * @param timeoutMillis how long to wait for an update before replying with none
+     */
+    public PointerUpdateStream(MutablePointers local,
+                               Function<PublicKeyHash, CompletableFuture<Boolean>> isLocalOwner,
+                               int maxWriters,
+                               long timeoutMillis) {
+        this.local = local;
+        this.isLocalOwner = isLocalOwner;
+        this.timeoutMillis = timeoutMillis;
+        long random = 0;
+        while (random == NEW_EPOCH)
+            random = new SecureRandom().nextLong();
+        this.epoch = random;
+        this.latest = new LinkedHashMap<PublicKeyHash, Pair<Long, byte[]>>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PublicKeyHash, Pair<Long, byte[]>> eldest) {
+                if (size() <= maxWriters)
+                    return false;
+                forgotten = Math.max(forgotten, eldest.getValue().left);
+                return true;
+            }
+        };
+    }
+
+    public PointerUpdateStream(MutablePointers local, Function<PublicKeyHash, CompletableFuture<Boolean>> isLocalOwner) {
+        this(local, isLocalOwner, DEFAULT_MAX_WRITERS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public void accept(MutableEvent event) {
+        synchronized (this) {
+            if (! reading.add(event.writer)) {
+                reread.add(event.writer);
+                return;
+            }
+        }
+        readAndPublish(event.owner, event.writer);
+    }
+
+    private void readAndPublish(PublicKeyHash owner, PublicKeyHash writer) {
+        local.getPointer(owner, writer).thenAccept(current -> {
+            List<Pair<Waiter, PointerUpdates>> toComplete = new ArrayList<>();
+            boolean again;
+            synchronized (this) {
+                if (current.isPresent())
+                    publish(writer, current.get(), toComplete);
+                again = reread.remove(writer);
+                if (! again)
+                    reading.remove(writer);
+            }
+            for (Pair<Waiter, PointerUpdates> pair : toComplete)
+                pair.left.result.complete(pair.right);
+            if (again)
+                readAndPublish(owner, writer);
+        }).exceptionally(t -> {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+            synchronized (this) {
+                reading.remove(writer);
+                reread.remove(writer);
+            }
+            return null;
+        });
+    }
+
+    /** Must be called holding this object's monitor
+     */
+    private void publish(PublicKeyHash writer, byte[] current, List<Pair<Waiter, PointerUpdates>> toComplete) {
+        Pair<Long, byte[]> previous = latest.get(writer);
+        if (previous != null && Arrays.equals(previous.right, current))
+            return;
+        sequence++;
+        // move the writer to the most recently updated end
+        latest.remove(writer);
+        latest.put(writer, new Pair<>(sequence, current));
+        Set<Waiter> waiters = waiting.get(writer);
+        if (waiters == null)
+            return;
+        for (Waiter waiter : new ArrayList<>(waiters)) {
+            removeWaiter(waiter);
+            toComplete.add(new Pair<>(waiter, updatesSince(waiter.since, waiter.remote)));
+        }
+    }
+
+    /** Must be called holding this object's monitor
+     */
+    private PointerUpdates updatesSince(Map<PublicKeyHash, Long> since, Set<PublicKeyHash> remote) {
+        Map<PublicKeyHash, byte[]> updated = new HashMap<>();
+        for (Map.Entry<PublicKeyHash, Long> e : since.entrySet()) {
+            Pair<Long, byte[]> update = latest.get(e.getKey());
+            if (update != null && update.left > e.getValue())
+                updated.put(e.getKey(), update.right);
+        }
+        return new PointerUpdates(epoch, sequence, false, updated, remote);
+    }
+
+    /** Must be called holding this object's monitor
+     */
+    private void removeWaiter(Waiter waiter) {
+        for (PublicKeyHash writer : waiter.since.keySet()) {
+            Set<Waiter> waiters = waiting.get(writer);
+            if (waiters == null)
+                continue;
+            waiters.remove(waiter);
+            if (waiters.isEmpty())
+                waiting.remove(writer);
+        }
+    }
+
+    private synchronized void timeout(Waiter waiter) {
+        if (waiter.result.isDone())
+            return;
+        removeWaiter(waiter);
+        // none of the waiter's writers have been updated, or it would have been completed
+        waiter.result.complete(new PointerUpdates(epoch, sequence, false, Collections.emptyMap(), waiter.remote));
+    }
+
+    @Override
+    public CompletableFuture<PointerUpdates> waitForUpdates(long epoch, Map<PublicKeyHash, Pair<PublicKeyHash, Long>> writers) {
+        List<PublicKeyHash> owners = writers.values().stream()
+                .map(p -> p.left)
+                .distinct()
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(owners.stream()
+                .map(isLocalOwner)
+                .collect(Collectors.toList()))
+                .thenCompose(isLocal -> {
+                    Set<PublicKeyHash> remoteOwners = new HashSet<>();
+                    for (int i = 0; i < owners.size(); i++)
+                        if (! isLocal.get(i))
+                            remoteOwners.add(owners.get(i));
+                    Map<PublicKeyHash, Long> local = new HashMap<>();
+                    Set<PublicKeyHash> remote = new HashSet<>();
+                    for (Map.Entry<PublicKeyHash, Pair<PublicKeyHash, Long>> e : writers.entrySet()) {
+                        if (remoteOwners.contains(e.getValue().left))
+                            remote.add(e.getKey());
+                        else
+                            local.put(e.getKey(), e.getValue().right);
+                    }
+                    return waitForLocalUpdates(epoch, local, remote);
+                });
+    }
+
+    private CompletableFuture<PointerUpdates> waitForLocalUpdates(long epoch,
+                                                                  Map<PublicKeyHash, Long> since,
+                                                                  Set<PublicKeyHash> remote) {
+        Waiter waiter = new Waiter(since, remote);
+        synchronized (this) {
+            boolean validPositions = since.values().stream().allMatch(s -> s >= forgotten && s <= sequence);
+            if (epoch != this.epoch || ! validPositions)
+                return CompletableFuture.completedFuture(
+                        new PointerUpdates(this.epoch, sequence, true, Collections.emptyMap(), remote));
+            PointerUpdates current = updatesSince(since, remote);
+            if (! current.isEmpty() || since.isEmpty())
+                return CompletableFuture.completedFuture(current);
+            for (PublicKeyHash writer : since.keySet())
+                waiting.computeIfAbsent(writer, w -> new HashSet<>()).add(waiter);
+        }
+        timer.schedule(() -> timeout(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+        return waiter.result;
+    }
+}
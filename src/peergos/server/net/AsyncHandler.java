@@ -0,0 +1,120 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.util.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A handler which replies to a request when the future returned by handleAsync completes, rather than blocking a
+ *  server thread until then.
+ *
+ *  Each handler bounds the number of requests it has in flight, and rejects any more with a 503, so that a slow
+ *  backend for one endpoint can't take up every connection.
+ */
+public abstract class AsyncHandler implements HttpHandler {
+    private static final Logger LOG = Logging.LOG();
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1_000;
+
+    private final String name;
+    private final Semaphore inFlight;
+
+    protected AsyncHandler(String name, int maxInFlight) {
+        this.name = name;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     *
+     * @param exchange
+     * @return A future which completes after the reply has been written. The exchange is closed after this.
+     * @throws Exception
+     */
+    protected abstract CompletableFuture<?> handleAsync(HttpExchange exchange) throws Exception;
+
+    @Override
+    public final void handle(HttpExchange exchange) {
+        long t1 = System.currentTimeMillis();
+        String path = exchange.getRequestURI().getPath();
+        if (! inFlight.tryAcquire()) {
+            LOG.warning(name + " rejected " + path + ", too many requests in flight");
+            try {
+                exchange.getResponseHeaders().set("Trailer", "Server busy, too many requests in flight");
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            } finally {
+                exchange.close();
+            }
+            return;
+        }
+        CompletableFuture<?> result;
+        try {
+            result = handleAsync(exchange);
+        } catch (Throwable t) {
+            result = Futures.errored(t);
+        }
+        result.whenComplete((r, t) -> {
+            try {
+                if (t != null) {
+                    LOG.severe("Error handling " + exchange.getRequestURI());
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                    replyError(exchange, t);
+                }
+            } finally {
+                exchange.close();
+                inFlight.release();
+                long t2 = System.currentTimeMillis();
+                LOG.info(name + " handled " + path + " request in: " + (t2 - t1) + " mS");
+            }
+        });
+    }
+
+    private static void replyError(HttpExchange exchange, Throwable t) {
+        Throwable cause = (t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null ?
+                t.getCause() :
+                t;
+        try {
+            exchange.getResponseHeaders().set("Trailer", String.valueOf(cause.getMessage()));
+            exchange.sendResponseHeaders(400, -1);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    protected interface Serializer {
+        void write(DataOutputStream dout) throws IOException;
+    }
+
+    /**
+     *
+     * @param serializer
+     * @return the bytes written by serializer
+     */
+    protected static byte[] serialize(Serializer serializer) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(bout);
+            serializer.write(dout);
+            dout.flush();
+            return bout.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected static void replyBytes(HttpExchange exchange, byte[] body) {
+        try {
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
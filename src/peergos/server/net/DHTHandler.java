@@ -16,114 +16,131 @@ import peergos.shared.storage.TransactionId;
 import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
-public class DHTHandler implements HttpHandler {
+public class DHTHandler extends AsyncHandler {
 	private static final Logger LOG = Logging.LOG();
 
-    private static final boolean LOGGING = true;
+    private static final long MAX_PUT_SIZE = 50L * ContentAddressedStorage.MAX_BLOCK_SIZE;
+    private static final int MAX_CACHED_WRITERS = 10_000;
     private final ContentAddressedStorage dht;
-    private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
+    // A key hash always refers to the same key, so writer keys can be cached indefinitely
+    private final Map<PublicKeyHash, PublicSigningKey> writerKeys = Collections.synchronizedMap(new LRUCache<>(MAX_CACHED_WRITERS));
+    private final TriFunction<PublicKeyHash, PublicKeyHash, Integer, CompletableFuture<Boolean>> keyFilter;
     private final String apiPrefix;
 
-    public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter, String apiPrefix) {
+    public DHTHandler(ContentAddressedStorage dht,
+                      TriFunction<PublicKeyHash, PublicKeyHash, Integer, CompletableFuture<Boolean>> keyFilter,
+                      String apiPrefix,
+                      int maxInFlight) {
+        super("DHT Handler", maxInFlight);
         this.dht = dht;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
     }
 
-    public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter) {
+    public DHTHandler(ContentAddressedStorage dht, TriFunction<PublicKeyHash, PublicKeyHash, Integer, CompletableFuture<Boolean>> keyFilter, String apiPrefix) {
+        this(dht, keyFilter, apiPrefix, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public DHTHandler(ContentAddressedStorage dht, TriFunction<PublicKeyHash, PublicKeyHash, Integer, CompletableFuture<Boolean>> keyFilter, int maxInFlight) {
+        this(dht, keyFilter, "/api/v0/", maxInFlight);
+    }
+
+    public DHTHandler(ContentAddressedStorage dht, TriFunction<PublicKeyHash, PublicKeyHash, Integer, CompletableFuture<Boolean>> keyFilter) {
         this(dht, keyFilter, "/api/v0/");
     }
 
     @Override
-    public void handle(HttpExchange httpExchange) {
-        long t1 = System.currentTimeMillis();
+    protected CompletableFuture<?> handleAsync(HttpExchange httpExchange) throws IOException {
         String path = httpExchange.getRequestURI().getPath();
-        try {
-            if (! path.startsWith(apiPrefix))
-                throw new IllegalStateException("Unsupported api version, required: " + apiPrefix);
-            path = path.substring(apiPrefix.length());
-            // N.B. URI.getQuery() decodes the query string
-            Map<String, List<String>> params = HttpUtil.parseQuery(httpExchange.getRequestURI().getQuery());
-            List<String> args = params.get("arg");
-            Function<String, String> last = key -> params.get(key).get(params.get(key).size() - 1);
-
-            switch (path) {
-                case TRANSACTION_START: {
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    dht.startTransaction(ownerHash).thenAccept(tid -> {
-                        replyJson(httpExchange, tid.toString(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case TRANSACTION_CLOSE: {
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    TransactionId tid = new TransactionId(args.get(0));
-                    dht.closeTransaction(ownerHash, tid).thenAccept(b -> {
-                        replyJson(httpExchange, JSONParser.toString(b ? 1 : 0), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case BLOCK_PUT: {
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    TransactionId tid = new TransactionId(last.apply("transaction"));
-                    PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
-                    List<byte[]> signatures = Arrays.stream(last.apply("signatures").split(","))
-                            .map(ArrayOps::hexToBytes)
-                            .collect(Collectors.toList());
-                    String boundary = httpExchange.getRequestHeaders().get("Content-Type")
-                            .stream()
-                            .filter(s -> s.contains("boundary="))
-                            .map(s -> s.substring(s.indexOf("=") + 1))
-                            .findAny()
-                            .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
-                    boolean isRaw = last.apply("format").equals("raw");
+        if (! path.startsWith(apiPrefix))
+            throw new IllegalStateException("Unsupported api version, required: " + apiPrefix);
+        path = path.substring(apiPrefix.length());
+        // N.B. URI.getQuery() decodes the query string
+        Map<String, List<String>> params = HttpUtil.parseQuery(httpExchange.getRequestURI().getQuery());
+        List<String> args = params.get("arg");
+        Function<String, String> last = key -> params.get(key).get(params.get(key).size() - 1);
 
-                    // check writer is allowed to write to this server, and check their free space
-                    if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
-                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+        switch (path) {
+            case TRANSACTION_START: {
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                return dht.startTransaction(ownerHash).thenAccept(tid -> {
+                    replyJson(httpExchange, tid.toString(), Optional.empty());
+                });
+            }
+            case TRANSACTION_CLOSE: {
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                TransactionId tid = new TransactionId(args.get(0));
+                return dht.closeTransaction(ownerHash, tid).thenAccept(b -> {
+                    replyJson(httpExchange, JSONParser.toString(b ? 1 : 0), Optional.empty());
+                });
+            }
+            case BLOCK_PUT: {
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                TransactionId tid = new TransactionId(last.apply("transaction"));
+                PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
+                List<byte[]> signatures = Arrays.stream(last.apply("signatures").split(","))
+                        .map(ArrayOps::hexToBytes)
+                        .collect(Collectors.toList());
+                String boundary = httpExchange.getRequestHeaders().get("Content-Type")
+                        .stream()
+                        .filter(s -> s.contains("boundary="))
+                        .map(s -> s.substring(s.indexOf("=") + 1))
+                        .findAny()
+                        .get();
+                String contentLength = httpExchange.getRequestHeaders().getFirst("Content-Length");
+                if (contentLength != null && Long.parseLong(contentLength) > MAX_PUT_SIZE)
+                    throw new IllegalStateException("Block put too large: " + contentLength);
+                List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary,
+                        ContentAddressedStorage.MAX_BLOCK_SIZE, MAX_PUT_SIZE);
+                boolean isRaw = last.apply("format").equals("raw");
 
-                    // Get the actual key, unless this is the initial write of the signing key during sign up
-                    // In the initial put of a signing key during sign up the key signs itself (we still check the hash
-                    // against the core node)
-                    Supplier<PublicSigningKey> fromDht = () -> {
-                        try {
-                            return dht.getSigningKey(writerHash).get().get();
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
+                // Get the actual key, unless this is the initial write of the signing key during sign up
+                // In the initial put of a signing key during sign up the key signs itself (we still check the hash
+                // against the core node)
+                Supplier<CompletableFuture<PublicSigningKey>> fromDht = () -> {
+                    PublicSigningKey cached = writerKeys.get(writerHash);
+                    if (cached != null)
+                        return CompletableFuture.completedFuture(cached);
+                    return dht.getSigningKey(writerHash).thenApply(keyOpt -> {
+                        PublicSigningKey key = keyOpt.get();
+                        writerKeys.put(writerHash, key);
+                        return key;
+                    });
+                };
+                Supplier<CompletableFuture<PublicSigningKey>> inBandOrDht = () -> {
+                    try {
+                        PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
+                        PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
+                        if (calculatedHash.equals(writerHash)) {
+                            if (candidateKey.isValidSignature(signatures.get(0), data.get(0)))
+                                return CompletableFuture.completedFuture(candidateKey);
                         }
-                    };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
-                        try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
-                            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
-                            if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(ArrayOps.concat(signatures.get(0), data.get(0)));
-                                return candidateKey;
-                            }
-                        } catch (Throwable e) {
-                            // If signature is not valid then the signing key has already been written, retrieve it
-                            // This happens for the boxing key during sign up for example
-                        }
-                        return fromDht.get();
-                    };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
-
-                    // verify signatures
-                    for (int i = 0; i < data.size(); i++) {
-                        byte[] signature = signatures.get(i);
-                        byte[] unsigned = writer.unsignMessage(ArrayOps.concat(signature, data.get(i)));
-                        if (!Arrays.equals(unsigned, data.get(i)))
-                            throw new IllegalStateException("Invalid signature for block!");
+                    } catch (Throwable e) {
+                        // If signature is not valid then the signing key has already been written, retrieve it
+                        // This happens for the boxing key during sign up for example
                     }
+                    return fromDht.get();
+                };
+                // check writer is allowed to write to this server, and check their free space
+                return keyFilter.apply(ownerHash, writerHash, data.stream().mapToInt(x -> x.length).sum()).thenCompose(allowed -> {
+                    if (! allowed)
+                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+                    return data.size() > 1 ? fromDht.get() : inBandOrDht.get();
+                }).thenCompose(writer -> {
+                    // verify signatures
+                    if (signatures.size() != data.size() || ! writer.isValidSignatures(signatures, data))
+                        throw new IllegalStateException("Invalid signature for block!");
 
-                    List<Multihash> hashes = (isRaw ?
+                    return isRaw ?
                             dht.putRaw(ownerHash, writerHash, signatures, data, tid) :
-                            dht.put(ownerHash, writerHash, signatures, data, tid)).get();
+                            dht.put(ownerHash, writerHash, signatures, data, tid);
+                }).thenAccept(hashes -> {
                     List<Object> json = hashes.stream()
                             .map(h -> wrapHash(h))
                             .collect(Collectors.toList());
@@ -132,92 +149,142 @@ public class DHTHandler implements HttpHandler {
                             .map(m -> JSONParser.toString(m))
                             .reduce("", (a, b) -> a + b);
                     replyJson(httpExchange, jsonStream, Optional.empty());
-                    break;
-                }
-                case BLOCK_GET:{
-                    Multihash hash = Cid.decode(args.get(0));
-                    (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
-                            dht.getRaw(hash) :
-                            dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
-                            .thenAccept(opt -> replyBytes(httpExchange,
-                                    opt.orElse(new byte[0]), opt.map(x -> hash)))
-                            .exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case PIN_ADD: {
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    Multihash hash = Cid.decode(args.get(0));
-                    dht.recursivePin(ownerHash, hash).thenAccept(pinned -> {
-                        Map<String, Object> json = new TreeMap<>();
-                        json.put("Pins", pinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
-                        replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case PIN_UPDATE: {
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    Multihash existing = Cid.decode(args.get(0));
-                    Multihash updated = Cid.decode(args.get(1));
-                    dht.pinUpdate(ownerHash, existing, updated).thenAccept(pinned -> {
-                        Map<String, Object> json = new TreeMap<>();
-                        json.put("Pins", pinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
-                        replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case PIN_RM: {
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    boolean recursive = params.containsKey("r") && Boolean.parseBoolean(last.apply("r"));
-                    if (!recursive)
-                        throw new IllegalStateException("Unimplemented: non recursive unpin!");
-                    Multihash hash = Cid.decode(args.get(0));
-                    dht.recursiveUnpin(ownerHash, hash).thenAccept(unpinned -> {
-                        Map<String, Object> json = new TreeMap<>();
-                        json.put("Pins", unpinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
-                        replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case BLOCK_STAT: {
-                    Multihash block = Cid.decode(args.get(0));
-                    dht.getSize(block).thenAccept(sizeOpt -> {
-                        Map<String, Object> res = new HashMap<>();
-                        res.put("Size", sizeOpt.orElse(0));
-                        String json = JSONParser.toString(res);
-                        replyJson(httpExchange, json, Optional.of(block));
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case REFS: {
-                    Multihash block = Cid.decode(args.get(0));
-                    dht.getLinks(block).thenAccept(links -> {
-                        List<Object> json = links.stream().map(h -> wrapHash("Ref", h)).collect(Collectors.toList());
-                        // make stream of JSON objects
-                        String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
-                        replyJson(httpExchange, jsonStream, Optional.of(block));
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case ID: {
-                    dht.id().thenAccept(id -> {
-                        Object json = wrapHash("ID", id);
-                        replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                default: {
-                    httpExchange.sendResponseHeaders(404, 0);
+                });
+            }
+            case BLOCK_GET:{
+                Multihash hash = Cid.decode(args.get(0));
+                return (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
+                        dht.getRaw(hash) :
+                        dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
+                        .thenAccept(opt -> replyBytes(httpExchange,
+                                opt.orElse(new byte[0]), opt.map(x -> hash)));
+            }
+            case BLOCK_GET_ALL: {
+                CborObject.CborList request = (CborObject.CborList) CborObject.fromByteArray(
+                        Serialize.readFully(httpExchange.getRequestBody(), 64 * MAX_BLOCKS_PER_GET_ALL));
+                if (request.value.size() > MAX_BLOCKS_PER_GET_ALL)
+                    throw new IllegalStateException("Too many blocks requested: " + request.value.size());
+                List<CompletableFuture<Optional<byte[]>>> blocks = request.value.stream()
+                        .map(c -> Cid.cast(((CborObject.CborByteArray) c).value))
+                        .map(hash -> hash.codec == Cid.Codec.Raw ?
+                                dht.getRaw(hash) :
+                                dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
+                        .collect(Collectors.toList());
+                if (blocks.isEmpty()) {
+                    replyBytes(httpExchange, new byte[0], Optional.empty());
+                    return CompletableFuture.completedFuture(true);
                 }
+                // Only send the status once the first block, or its failure, is known, so an early failure is a normal
+                // error reply. Then stream each block as soon as it and all its predecessors are available. A later
+                // failure can only be reported in the body, after which nothing more is sent.
+                return blocks.get(0).thenCompose(first -> {
+                    try {
+                        httpExchange.sendResponseHeaders(200, 0);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    DataOutputStream dout = new DataOutputStream(httpExchange.getResponseBody());
+                    return Futures.reduceAll(blocks, true, (ok, block) -> block.handle((data, t) -> {
+                        if (! ok)
+                            return false;
+                        try {
+                            if (t != null) {
+                                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                                LOG.log(Level.WARNING, cause.getMessage(), cause);
+                                byte[] message = String.valueOf(cause.getMessage()).getBytes(StandardCharsets.UTF_8);
+                                dout.writeInt(GET_ALL_ERROR);
+                                dout.writeInt(message.length);
+                                dout.write(message);
+                                return false;
+                            }
+                            dout.writeInt(data.map(b -> b.length).orElse(GET_ALL_MISSING));
+                            if (data.isPresent())
+                                dout.write(data.get());
+                            return true;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }), (a, b) -> a && b).thenAccept(done -> {
+                        try {
+                            dout.flush();
+                            dout.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                });
+            }
+            case CHAMP_GET: {
+                Multihash root = Cid.decode(args.get(0));
+                byte[] champKey = ArrayOps.hexToBytes(args.get(1));
+                return dht.getChampLookup(root, champKey).thenAccept(blocks -> {
+                    byte[] body = new CborObject.CborList(blocks.stream()
+                            .map(p -> new CborObject.CborList(Arrays.asList(
+                                    new CborObject.CborByteArray(p.left.toBytes()),
+                                    new CborObject.CborByteArray(p.right))))
+                            .collect(Collectors.toList())).serialize();
+                    replyBytes(httpExchange, body, Optional.empty());
+                });
+            }
+            case PIN_ADD: {
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                Multihash hash = Cid.decode(args.get(0));
+                return dht.recursivePin(ownerHash, hash).thenAccept(pinned -> {
+                    Map<String, Object> json = new TreeMap<>();
+                    json.put("Pins", pinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
+                    replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
+                });
+            }
+            case PIN_UPDATE: {
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                Multihash existing = Cid.decode(args.get(0));
+                Multihash updated = Cid.decode(args.get(1));
+                return dht.pinUpdate(ownerHash, existing, updated).thenAccept(pinned -> {
+                    Map<String, Object> json = new TreeMap<>();
+                    json.put("Pins", pinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
+                    replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
+                });
+            }
+            case PIN_RM: {
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                boolean recursive = params.containsKey("r") && Boolean.parseBoolean(last.apply("r"));
+                if (!recursive)
+                    throw new IllegalStateException("Unimplemented: non recursive unpin!");
+                Multihash hash = Cid.decode(args.get(0));
+                return dht.recursiveUnpin(ownerHash, hash).thenAccept(unpinned -> {
+                    Map<String, Object> json = new TreeMap<>();
+                    json.put("Pins", unpinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
+                    replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
+                });
+            }
+            case BLOCK_STAT: {
+                Multihash block = Cid.decode(args.get(0));
+                return dht.getSize(block).thenAccept(sizeOpt -> {
+                    Map<String, Object> res = new HashMap<>();
+                    res.put("Size", sizeOpt.orElse(0));
+                    String json = JSONParser.toString(res);
+                    replyJson(httpExchange, json, Optional.of(block));
+                });
+            }
+            case REFS: {
+                Multihash block = Cid.decode(args.get(0));
+                return dht.getLinks(block).thenAccept(links -> {
+                    List<Object> json = links.stream().map(h -> wrapHash("Ref", h)).collect(Collectors.toList());
+                    // make stream of JSON objects
+                    String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
+                    replyJson(httpExchange, jsonStream, Optional.of(block));
+                });
+            }
+            case ID: {
+                return dht.id().thenAccept(id -> {
+                    Object json = wrapHash("ID", id);
+                    replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
+                });
+            }
+            default: {
+                httpExchange.sendResponseHeaders(404, 0);
+                return CompletableFuture.completedFuture(true);
             }
-        } catch (Exception e) {
-            LOG.severe("Error handling " +httpExchange.getRequestURI());
-            LOG.log(Level.WARNING, e.getMessage(), e);
-            replyError(httpExchange, e);
-        } finally {
-            httpExchange.close();
-            long t2 = System.currentTimeMillis();
-            if (LOGGING)
-                LOG.info("DHT Handler handled " + path + " query in: " + (t2 - t1) + " mS");
         }
     }
 
@@ -231,16 +298,6 @@ public class DHTHandler implements HttpHandler {
         return json;
     }
 
-    private static void replyError(HttpExchange exchange, Throwable t) {
-        try {
-            exchange.getResponseHeaders().set("Trailer", t.getMessage());
-            exchange.sendResponseHeaders(400, -1);
-        } catch (IOException e)
-        {
-            LOG.log(Level.WARNING, e.getMessage(), e);
-        }
-    }
-
     private static void replyJson(HttpExchange exchange, String json, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
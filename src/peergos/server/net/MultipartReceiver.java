@@ -2,83 +2,159 @@ package peergos.server.net;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
 
+/** A parser for multipart/form-data request bodies.
+ *
+ *  The body is read through a fixed size window which is scanned in bulk for the part delimiter, so each byte is only
+ *  copied into its part, and the size limits are checked before any part is allowed to grow beyond them.
+ */
 public class MultipartReceiver {
+    private static final byte[] NEW_LINE = "\r\n".getBytes();
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_SIZE = 1024;
+    private static final int MAX_HEADERS_SIZE = 8 * 1024;
 
-    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
-        try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
-            if (!first.substring(2).equals(boundary))
-                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
+    public static List<byte[]> extractFiles(InputStream in, String boundary) {
+        return extractFiles(in, boundary, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     *
+     * @param in
+     * @param boundary
+     * @param maxPartSize The maximum size of any single part
+     * @param maxTotalSize The maximum combined size of all the parts
+     * @return the contents of each part in order
+     */
+    public static List<byte[]> extractFiles(InputStream in, String boundary, int maxPartSize, long maxTotalSize) {
+        List<byte[]> files = new ArrayList<>();
+        extractFiles(in, boundary, maxPartSize, maxTotalSize, files::add);
+        return files;
+    }
 
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
+    /**
+     *
+     * @param in
+     * @param boundary
+     * @param maxPartSize The maximum size of any single part
+     * @param maxTotalSize The maximum combined size of all the parts
+     * @param onPart Called with the contents of each part as soon as it has been read
+     */
+    public static void extractFiles(InputStream in,
+                                    String boundary,
+                                    int maxPartSize,
+                                    long maxTotalSize,
+                                    Consumer<byte[]> onPart) {
+        try {
+            Window window = new Window(in);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            window.readUntil(NEW_LINE, MAX_LINE_SIZE, line);
+            String first = new String(line.toByteArray());
+            if (first.length() < 2 || !first.substring(2).equals(boundary))
+                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first);
+            window.readUntil(DOUBLE_NEW_LINE, MAX_HEADERS_SIZE, new ByteArrayOutputStream());
 
+            byte[] delimiter = ("\r\n--" + boundary).getBytes();
+            long total = 0;
             while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
-                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
+                ByteArrayOutputStream part = new ByteArrayOutputStream();
+                boolean foundDelimiter = window.readUntil(delimiter, (int) Math.min(maxPartSize, maxTotalSize - total), part);
+                total += part.size();
+                onPart.accept(part.toByteArray());
+                // the final delimiter is followed by "--"
+                if (! foundDelimiter || window.startsWith('-', '-'))
+                    return;
+                if (! window.readUntil(DOUBLE_NEW_LINE, MAX_HEADERS_SIZE, new ByteArrayOutputStream()))
+                    return;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    /**
-     *
-     * @param pattern the pattern of bytes to search until
-     * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
-     */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
-                } else
-                    prior.write(r);
+    private static final class Window {
+        private final InputStream in;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int pos, limit;
+        private boolean eof;
+
+        Window(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         *  Ensure at least n bytes are buffered, unless the end of the stream is reached first
+         * @return whether n bytes are available
+         */
+        private boolean fill(int n) throws IOException {
+            if (limit - pos >= n)
+                return true;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            while (limit < n && ! eof) {
+                int read = in.read(buf, limit, buf.length - limit);
+                if (read < 0)
+                    eof = true;
+                else
+                    limit += read;
             }
+            return limit >= n;
+        }
+
+        boolean startsWith(char a, char b) throws IOException {
+            return fill(2) && buf[pos] == a && buf[pos + 1] == b;
         }
-        return prior.toByteArray();
-    }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
+        /**
+         *
+         * @param pattern the pattern of bytes to search until
+         * @param maxSize the maximum number of bytes to read before the pattern
+         * @param out where to write the bytes preceding the pattern
+         * @return true if the pattern was found, false if the end of the stream was reached first
+         * @throws IOException
+         */
+        boolean readUntil(byte[] pattern, int maxSize, ByteArrayOutputStream out) throws IOException {
+            byte first = pattern[0];
+            int written = 0;
+            while (true) {
+                if (! fill(pattern.length)) {
+                    int remaining = limit - pos;
+                    if (written + remaining > maxSize)
+                        throw new IllegalStateException("Multipart section larger than " + maxSize + " bytes!");
+                    out.write(buf, pos, remaining);
+                    pos = limit;
+                    return false;
+                }
+                int lastStart = limit - pattern.length;
+                int i = pos;
+                for (; i <= lastStart; i++) {
+                    if (buf[i] == first && matches(i, pattern))
+                        break;
+                }
+                int length = i - pos;
+                if (written + length > maxSize)
+                    throw new IllegalStateException("Multipart section larger than " + maxSize + " bytes!");
+                out.write(buf, pos, length);
+                written += length;
+                if (i <= lastStart) {
+                    pos = i + pattern.length;
+                    return true;
+                }
+                // the last pattern.length - 1 bytes could be the start of the pattern, so keep them buffered
+                pos = i;
+            }
+        }
 
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
+        private boolean matches(int start, byte[] pattern) {
+            for (int j = 1; j < pattern.length; j++)
+                if (buf[start + j] != pattern[j])
+                    return false;
+            return true;
         }
-        return new String(bout.toByteArray());
     }
 }
@@ -2,7 +2,6 @@ package peergos.server.net;
 
 import com.sun.net.httpserver.*;
 import peergos.server.*;
-import peergos.server.mutable.*;
 import peergos.server.util.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
@@ -10,28 +9,29 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
-import java.util.logging.*;
+import java.util.concurrent.*;
 
 /** This is the http endpoint for MutablePointer calls
  *
  */
-public class MutationHandler implements HttpHandler {
-    private static final Logger LOG = Logging.LOG();
+public class MutationHandler extends AsyncHandler {
 
     private final MutablePointers mutable;
 
-    public MutationHandler(MutablePointers mutable) {
+    public MutationHandler(MutablePointers mutable, int maxInFlight) {
+        super("Mutable pointers server", maxInFlight);
         this.mutable = mutable;
     }
 
-    public void handle(HttpExchange exchange) throws IOException
+    public MutationHandler(MutablePointers mutable) {
+        this(mutable, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    @Override
+    protected CompletableFuture<?> handleAsync(HttpExchange exchange) throws IOException
     {
-        long t1 = System.currentTimeMillis();
         DataInputStream din = new DataInputStream(exchange.getRequestBody());
 
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(bout);
-
         String path = exchange.getRequestURI().getPath();
         if (path.startsWith("/"))
             path = path.substring(1);
@@ -42,33 +42,16 @@ public class MutationHandler implements HttpHandler {
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
         PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
         PublicKeyHash writer = PublicKeyHash.fromString(params.get("writer").get(0));
-        try {
-            switch (method) {
-                case "setPointer":
-                    byte[] signedPayload = Serialize.readFully(din, 1024);
-                    boolean isAdded = mutable.setPointer(owner, writer, signedPayload).get();
-                    dout.writeBoolean(isAdded);
-                    break;
-                case "getPointer":
-                    byte[] metadataBlob = mutable.getPointer(owner, writer).get().orElse(new byte[0]);
-                    dout.write(metadataBlob);
-                    break;
-                default:
-                    throw new IOException("Unknown method "+ method);
-            }
-
-            byte[] b = bout.toByteArray();
-            exchange.sendResponseHeaders(200, b.length);
-            exchange.getResponseBody().write(b);
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, e.getMessage(), e);
-            exchange.sendResponseHeaders(400, 0);
-            OutputStream body = exchange.getResponseBody();
-            body.write(e.getMessage().getBytes());
-        } finally {
-            exchange.close();
-            long t2 = System.currentTimeMillis();
-            LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
+        switch (method) {
+            case "setPointer":
+                byte[] signedPayload = Serialize.readFully(din, 1024);
+                return mutable.setPointer(owner, writer, signedPayload)
+                        .thenAccept(isAdded -> replyBytes(exchange, serialize(dout -> dout.writeBoolean(isAdded))));
+            case "getPointer":
+                return mutable.getPointer(owner, writer)
+                        .thenAccept(metadataBlob -> replyBytes(exchange, metadataBlob.orElse(new byte[0])));
+            default:
+                throw new IOException("Unknown method "+ method);
         }
     }
 }
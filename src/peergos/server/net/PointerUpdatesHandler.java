@@ -0,0 +1,59 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This is the http endpoint for PointerSubscriptions
+ *
+ *  Requests are held open until one of the writers is updated, without holding a thread, so by default this allows
+ *  many more requests in flight than the other endpoints. There will typically be one for every open client.
+ */
+public class PointerUpdatesHandler extends AsyncHandler {
+    public static final int DEFAULT_MAX_SUBSCRIBERS = 10_000;
+    private static final int MAX_REQUEST_BYTES = 1024 * 1024;
+
+    private final PointerSubscriptions updates;
+
+    public PointerUpdatesHandler(PointerSubscriptions updates, int maxInFlight) {
+        super("Pointer updates server", maxInFlight);
+        this.updates = updates;
+    }
+
+    public PointerUpdatesHandler(PointerSubscriptions updates) {
+        this(updates, DEFAULT_MAX_SUBSCRIBERS);
+    }
+
+    @Override
+    protected CompletableFuture<?> handleAsync(HttpExchange exchange) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/"))
+            path = path.substring(1);
+        String method = path.substring(Constants.POINTER_UPDATES_URL.length()).split("/")[0];
+        Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
+        switch (method) {
+            case "waitForUpdates":
+                long epoch = Long.parseLong(params.get("epoch").get(0));
+                byte[] body = Serialize.readFully(exchange.getRequestBody(), MAX_REQUEST_BYTES);
+                Map<PublicKeyHash, Pair<PublicKeyHash, Long>> writers = new HashMap<>();
+                for (Cborable watched : ((CborObject.CborList) CborObject.fromByteArray(body)).value) {
+                    List<? extends Cborable> ownerWriterAndSince = ((CborObject.CborList) watched).value;
+                    writers.put(PublicKeyHash.fromCbor(ownerWriterAndSince.get(1)),
+                            new Pair<>(PublicKeyHash.fromCbor(ownerWriterAndSince.get(0)),
+                                    ((CborObject.CborLong) ownerWriterAndSince.get(2)).value));
+                }
+                return updates.waitForUpdates(epoch, writers)
+                        .thenAccept(res -> replyBytes(exchange, res.serialize()));
+            default:
+                throw new IOException("Unknown method "+ method);
+        }
+    }
+}
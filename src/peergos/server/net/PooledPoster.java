@@ -0,0 +1,168 @@
+package peergos.server.net;
+
+import peergos.shared.io.ipfs.api.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/** An HttpPoster which reuses connections to the target, rather than opening a new one for every request.
+ *
+ *  Each request is made on one of a fixed pool of threads, using a keep-alive HttpURLConnection which is returned to
+ *  the JVM's connection cache once the response has been read. That cache only keeps http.maxConnections (default 5)
+ *  idle connections per destination, and a connection released beyond that is closed, so the pool is never larger than
+ *  the cache. Run with a higher -Dhttp.maxConnections to allow more requests in flight. Requests beyond the pool size
+ *  are queued until an earlier one completes, without blocking the calling thread.
+ */
+public class PooledPoster implements HttpPoster {
+    private static final int CONNECT_TIMEOUT_MILLIS = 15_000;
+    // longer than a server holds a request for pointer updates open
+    private static final int READ_TIMEOUT_MILLIS = 60_000;
+    private static final String LINE_FEED = "\r\n";
+
+    private final URL target;
+    private final ExecutorService connections;
+
+    /**
+     *
+     * @param maxConnections the maximum number of requests in flight at once, at most the keep-alive cache size
+     */
+    public PooledPoster(URL target, int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("Must allow at least one connection!");
+        this.target = target;
+        this.connections = Executors.newFixedThreadPool(Math.min(maxConnections, keepAliveConnections()), r -> {
+            Thread t = new Thread(r, "Pooled poster " + target);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public PooledPoster(URL target) {
+        this(target, keepAliveConnections());
+    }
+
+    /**
+     *
+     * @return the number of idle connections to each destination the JVM keeps alive
+     */
+    public static int keepAliveConnections() {
+        return Math.max(1, Integer.getInteger("http.maxConnections", 5));
+    }
+
+    private URL buildURL(String method) throws IOException {
+        return new URL(target, method);
+    }
+
+    private static byte[] maybeUnzip(byte[] body, Optional<String> contentEncoding, boolean unzip) {
+        if (! unzip || ! contentEncoding.equals(Optional.of("gzip")))
+            return body;
+        try {
+            return Serialize.readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     *
+     * @param body the parts of the request body, or null for a GET
+     */
+    private CompletableFuture<byte[]> send(String url, List<byte[]> body, Optional<String> contentType, boolean unzip) {
+        CompletableFuture<byte[]> res = new CompletableFuture<>();
+        connections.execute(() -> {
+            try {
+                res.complete(sendBlocking(url, body, contentType, unzip));
+            } catch (Throwable t) {
+                res.completeExceptionally(t);
+            }
+        });
+        return res;
+    }
+
+    private byte[] sendBlocking(String url, List<byte[]> body, Optional<String> contentType, boolean unzip) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) buildURL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        // a stalled server would otherwise hold one of our threads forever
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        conn.setDoInput(true);
+        contentType.ifPresent(type -> conn.setRequestProperty("Content-Type", type));
+        if (body != null) {
+            long length = 0;
+            for (byte[] part : body)
+                length += part.length;
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(length);
+            try (OutputStream out = conn.getOutputStream()) {
+                for (byte[] part : body)
+                    out.write(part);
+            }
+        }
+        int status = conn.getResponseCode();
+        if (status >= 400) {
+            // read the error so the connection can be reused
+            InputStream err = conn.getErrorStream();
+            if (err != null)
+                try (InputStream in = err) {
+                    Serialize.readFully(in);
+                }
+            String trailer = conn.getHeaderField("Trailer");
+            throw new RuntimeException(trailer != null ? trailer : "Server returned status: " + status);
+        }
+        // Closing the stream, rather than disconnecting, returns the connection to the keep-alive cache
+        byte[] resp;
+        try (InputStream in = conn.getInputStream()) {
+            resp = Serialize.readFully(in);
+        }
+        return maybeUnzip(resp, Optional.ofNullable(conn.getContentEncoding()), unzip);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+        return post(url, payload, true);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+        return send(url, Collections.singletonList(payload), Optional.empty(), unzip);
+    }
+
+    /** The parts are streamed to the connection in turn, rather than being concatenated into a single request body.
+     */
+    @Override
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+        try {
+            String boundary = Multipart.createBoundary();
+            byte[] partHeader = ("--" + boundary + LINE_FEED
+                    + "Content-Disposition: file; name=\"file\";" + LINE_FEED
+                    + "Content-Type: application/octet-stream" + LINE_FEED
+                    + "Content-Transfer-Encoding: binary" + LINE_FEED
+                    + LINE_FEED).getBytes("UTF-8");
+            byte[] lineFeed = LINE_FEED.getBytes("UTF-8");
+            List<byte[]> parts = new ArrayList<>(files.size() * 3 + 1);
+            for (byte[] file : files) {
+                parts.add(partHeader);
+                parts.add(file);
+                parts.add(lineFeed);
+            }
+            parts.add(("--" + boundary + "--" + LINE_FEED).getBytes("UTF-8"));
+            return send(url, parts, Optional.of("multipart/form-data; boundary=" + boundary), false);
+        } catch (IOException e) {
+            return Futures.errored(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url) {
+        return send(url, null, Optional.empty(), true);
+    }
+
+    @Override
+    public String toString() {
+        return target.toString();
+    }
+}
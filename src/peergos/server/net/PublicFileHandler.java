@@ -1,7 +1,6 @@
 package peergos.server.net;
 
 import com.sun.net.httpserver.*;
-import peergos.server.util.Logging;
 import peergos.shared.*;
 import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
@@ -16,13 +15,10 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
-import java.util.logging.*;
 
-public class PublicFileHandler implements HttpHandler {
-	private static final Logger LOG = Logging.LOG();
-
-    private static final boolean LOGGING = true;
+public class PublicFileHandler extends AsyncHandler {
 
     private final CoreNode core;
     private final MutablePointers mutable;
@@ -30,7 +26,8 @@ public class PublicFileHandler implements HttpHandler {
     private final NetworkAccess network;
     private static final String PATH_PREFIX = "/public/";
 
-    public PublicFileHandler(CoreNode core, MutablePointers mutable, ContentAddressedStorage dht) {
+    public PublicFileHandler(CoreNode core, MutablePointers mutable, ContentAddressedStorage dht, int maxInFlight) {
+        super("Public file Handler", maxInFlight);
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
@@ -39,104 +36,105 @@ public class PublicFileHandler implements HttpHandler {
         this.network = new NetworkAccess(core, null, dht, mutable, mutableTree, synchronizer, null, Collections.emptyList());
     }
 
+    public PublicFileHandler(CoreNode core, MutablePointers mutable, ContentAddressedStorage dht) {
+        this(core, mutable, dht, DEFAULT_MAX_IN_FLIGHT);
+    }
+
     @Override
-    public void handle(HttpExchange httpExchange) {
-        long t1 = System.currentTimeMillis();
-        String path = httpExchange.getRequestURI().getPath();
-        try {
-            if (! path.startsWith(PATH_PREFIX))
-                throw new IllegalStateException("Public file urls must start with /public/");
-            path = path.substring(PATH_PREFIX.length());
-            String originalPath = path;
+    protected CompletableFuture<?> handleAsync(HttpExchange httpExchange) {
+        String fullPath = httpExchange.getRequestURI().getPath();
+        if (! fullPath.startsWith(PATH_PREFIX))
+            throw new IllegalStateException("Public file urls must start with /public/");
+        String originalPath = fullPath.substring(PATH_PREFIX.length());
 
-            String ownerName = path.substring(0, path.indexOf("/"));
+        String ownerName = originalPath.substring(0, originalPath.indexOf("/"));
 
-            Optional<PublicKeyHash> ownerOpt = core.getPublicKeyHash(ownerName).get();
+        Function<ByteArrayWrapper, byte[]> hasher = x -> Hash.sha256(x.data);
+        return core.getPublicKeyHash(ownerName).thenCompose(ownerOpt -> {
             if (! ownerOpt.isPresent())
-                throw new IllegalStateException("Owner doesn't exist for path " + path);
+                throw new IllegalStateException("Owner doesn't exist for path " + originalPath);
             PublicKeyHash owner = ownerOpt.get();
-            CommittedWriterData userData = WriterData.getWriterData(owner, owner, mutable, dht).get();
+            return WriterData.getWriterData(owner, owner, mutable, dht);
+        }).thenCompose(userData -> {
             Optional<Multihash> publicData = userData.props.publicData;
             if (! publicData.isPresent())
                 throw new IllegalStateException("User " + ownerName + " has not made any files public.");
-
-            Function<ByteArrayWrapper, byte[]> hasher = x -> Hash.sha256(x.data);
-            ChampWrapper champ = ChampWrapper.create(publicData.get(), hasher, dht).get();
-
-            MaybeMultihash capHash = champ.get(("/" + path).getBytes()).get();
-            // The user might have published an ancestor directory of the requested path, so drop path elements until we
-            // either find a capability, or have none left
-            String subPath = "";
-            while (! capHash.isPresent() && path.length() > 0) {
-                String lastElement = path.substring(path.lastIndexOf("/"));
-                subPath = lastElement + subPath;
-                path = path.substring(0, path.length() - lastElement.length());
-                capHash = champ.get(("/" + path).getBytes()).get();
-            }
-            if (! capHash.isPresent())
-                throw new IllegalStateException("User " + ownerName + " has not published a file at " + originalPath);
-
-            Optional<CborObject> capCbor = dht.get(capHash.get()).get();
+            return ChampWrapper.create(publicData.get(), hasher, dht);
+        }).thenCompose(champ -> getPublishedCapability(champ, originalPath, ownerName, originalPath)
+        ).thenCompose(published -> dht.get(published.right).thenCompose(capCbor -> {
             AbsoluteCapability cap = AbsoluteCapability.fromCbor(capCbor.get());
-
-            TrieNodeImpl trieRoot = TrieNodeImpl.empty().put(path, new EntryPoint(cap, ownerName));
-            Optional<FileWrapper> fileOpt = trieRoot.getByPath(originalPath, network).get();
-
+            TrieNodeImpl trieRoot = TrieNodeImpl.empty().put(published.left, new EntryPoint(cap, ownerName));
+            return trieRoot.getByPath(originalPath, network);
+        })).thenCompose(fileOpt -> {
             if (! fileOpt.isPresent())
-                throw new IllegalStateException("Couldn't retrieve file: " + path);
+                throw new IllegalStateException("Couldn't retrieve file: " + originalPath);
 
             FileWrapper file = fileOpt.get();
 
             if (file.isDirectory()) {
-                String fullPath = httpExchange.getRequestURI().getPath();
                 String canonicalFullPath = fullPath + (! fullPath.endsWith("/") ? "/" : "");
-                Set<FileWrapper> children = file.getChildren(network).get();
-                StringBuilder resp = new StringBuilder();
-                resp.append("<!DOCTYPE html><html lang=\"en\">");
-                resp.append("<body>");
-                resp.append("<h1>Contents of directory " + originalPath + "</h1>");
-                children.forEach(child -> resp.append("<a href=\""+canonicalFullPath + child.getName()+"\">" + child.getName() + "</a><br/>"));
-                resp.append("</body>");
-                resp.append("</html>");
-
-                byte[] body = resp.toString().getBytes();
-                httpExchange.sendResponseHeaders(200, body.length);
-                OutputStream out = httpExchange.getResponseBody();
-                out.write(body);
-                out.close();
-            } else {
-                long fileSize = file.getSize();
-                httpExchange.sendResponseHeaders(200, fileSize);
-                AsyncReader reader = file.getInputStream(network, null, x -> {}).get();
-                byte[] buf = new byte[(int) Math.min(fileSize, 5 * 1024 * 1024)];
-                long read = 0;
-                OutputStream out = httpExchange.getResponseBody();
-                while (read < fileSize) {
-                    int r = reader.readIntoArray(buf, 0, (int) Math.min(buf.length, fileSize - read)).get();
-                    out.write(buf, 0, r);
-                    read += r;
-                }
-                out.close();
+                return file.getChildren(network).thenApply(children -> {
+                    StringBuilder resp = new StringBuilder();
+                    resp.append("<!DOCTYPE html><html lang=\"en\">");
+                    resp.append("<body>");
+                    resp.append("<h1>Contents of directory " + originalPath + "</h1>");
+                    children.forEach(child -> resp.append("<a href=\""+canonicalFullPath + child.getName()+"\">" + child.getName() + "</a><br/>"));
+                    resp.append("</body>");
+                    resp.append("</html>");
+
+                    replyBytes(httpExchange, resp.toString().getBytes());
+                    return true;
+                });
             }
-        } catch (Exception e) {
-            LOG.severe("Error handling " +httpExchange.getRequestURI());
-            LOG.log(Level.WARNING, e.getMessage(), e);
-            replyError(httpExchange, e);
-        } finally {
-            httpExchange.close();
-            long t2 = System.currentTimeMillis();
-            if (LOGGING)
-                LOG.info("Public file Handler returned " + path + " query in: " + (t2 - t1) + " mS");
-        }
+            long fileSize = file.getSize();
+            return file.getInputStream(network, null, x -> {}).thenCompose(reader -> {
+                try {
+                    httpExchange.sendResponseHeaders(200, fileSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                byte[] buf = new byte[(int) Math.min(fileSize, 5 * 1024 * 1024)];
+                return copy(reader, buf, 0, fileSize, httpExchange.getResponseBody());
+            });
+        });
     }
 
-    private static void replyError(HttpExchange exchange, Throwable t) {
+    /** The user might have published an ancestor directory of the requested path, so drop path elements until we
+     *  either find a capability, or have none left
+     *
+     * @return the published path and the hash of its capability
+     */
+    private static CompletableFuture<Pair<String, Multihash>> getPublishedCapability(ChampWrapper champ,
+                                                                                     String path,
+                                                                                     String ownerName,
+                                                                                     String originalPath) {
+        return champ.get(("/" + path).getBytes()).thenCompose(capHash -> {
+            if (capHash.isPresent())
+                return CompletableFuture.completedFuture(new Pair<>(path, capHash.get()));
+            if (path.length() == 0)
+                throw new IllegalStateException("User " + ownerName + " has not published a file at " + originalPath);
+            String lastElement = path.substring(path.lastIndexOf("/"));
+            return getPublishedCapability(champ, path.substring(0, path.length() - lastElement.length()),
+                    ownerName, originalPath);
+        });
+    }
+
+    private static CompletableFuture<Boolean> copy(AsyncReader reader, byte[] buf, long read, long size, OutputStream out) {
         try {
-            exchange.getResponseHeaders().set("Trailer", t.getMessage());
-            exchange.sendResponseHeaders(400, -1);
-        } catch (IOException e)
-        {
-            LOG.log(Level.WARNING, e.getMessage(), e);
+            if (read >= size) {
+                out.close();
+                return CompletableFuture.completedFuture(true);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return reader.readIntoArray(buf, 0, (int) Math.min(buf.length, size - read)).thenCompose(r -> {
+            try {
+                out.write(buf, 0, r);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return copy(reader, buf, read + r, size, out);
+        });
     }
 }
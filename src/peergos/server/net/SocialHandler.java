@@ -2,7 +2,6 @@ package peergos.server.net;
 
 import com.sun.net.httpserver.*;
 import peergos.server.*;
-import peergos.server.social.*;
 import peergos.server.util.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.social.*;
@@ -10,31 +9,32 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
-import java.util.logging.*;
 
 /** This is the http endpoint for SocialNetwork
  *
  * This receives calls to send, retrieve and remove follow requests.
  *
  */
-public class SocialHandler implements HttpHandler {
-    private static final Logger LOG = Logging.LOG();
+public class SocialHandler extends AsyncHandler {
 
     private final SocialNetwork social;
 
-    public SocialHandler(SocialNetwork social) {
+    public SocialHandler(SocialNetwork social, int maxInFlight) {
+        super("Social Network server", maxInFlight);
         this.social = social;
     }
 
-    public void handle(HttpExchange exchange) throws IOException
+    public SocialHandler(SocialNetwork social) {
+        this(social, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    @Override
+    protected CompletableFuture<?> handleAsync(HttpExchange exchange) throws IOException
     {
-        long t1 = System.currentTimeMillis();
         DataInputStream din = new DataInputStream(exchange.getRequestBody());
 
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(bout);
-
         String path = exchange.getRequestURI().getPath();
         if (path.startsWith("/"))
             path = path.substring(1);
@@ -45,45 +45,22 @@ public class SocialHandler implements HttpHandler {
 //            LOG.info("social method "+ method +" from path "+ path);
 
         PublicKeyHash owner = PublicKeyHash.fromString(last.apply("owner"));
-        try {
-            switch (method) {
-                case "followRequest":
-                    byte[] encryptedCap = Serialize.readFully(din, 1024);
-                    boolean followRequested = social.sendFollowRequest(owner, encryptedCap).get();
-                    dout.writeBoolean(followRequested);
-                    break;
-                case "getFollowRequests":
-                    byte[] signedTime = ArrayOps.hexToBytes(last.apply("auth"));
-                    byte[] res = social.getFollowRequests(owner, signedTime).get();
-                    Serialize.serialize(res, dout);
-                    break;
-                case "removeFollowRequest":
-                    byte[] signedFollowRequest = Serialize.readFully(din, 4096);
-                    boolean isRemoved = social.removeFollowRequest(owner, signedFollowRequest).get();
-                    dout.writeBoolean(isRemoved);
-                    break;
-                default:
-                    throw new IOException("Unknown method "+ method);
-            }
-
-            dout.flush();
-            dout.close();
-            byte[] b = bout.toByteArray();
-            exchange.sendResponseHeaders(200, b.length);
-            exchange.getResponseBody().write(b);
-        } catch (Exception e) {
-            Throwable cause = e.getCause();
-            if (cause != null)
-                exchange.getResponseHeaders().set("Trailer", cause.getMessage());
-            else
-                exchange.getResponseHeaders().set("Trailer", e.getMessage());
-
-            exchange.sendResponseHeaders(400, 0);
-        } finally {
-            exchange.close();
-            long t2 = System.currentTimeMillis();
-            LOG.info("Social Network server handled " + method + " request in: " + (t2 - t1) + " mS");
+        switch (method) {
+            case "followRequest":
+                byte[] encryptedCap = Serialize.readFully(din, 1024);
+                return social.sendFollowRequest(owner, encryptedCap)
+                        .thenAccept(followRequested -> replyBytes(exchange,
+                                serialize(dout -> dout.writeBoolean(followRequested))));
+            case "getFollowRequests":
+                byte[] signedTime = ArrayOps.hexToBytes(last.apply("auth"));
+                return social.getFollowRequests(owner, signedTime)
+                        .thenAccept(res -> replyBytes(exchange, serialize(dout -> Serialize.serialize(res, dout))));
+            case "removeFollowRequest":
+                byte[] signedFollowRequest = Serialize.readFully(din, 4096);
+                return social.removeFollowRequest(owner, signedFollowRequest)
+                        .thenAccept(isRemoved -> replyBytes(exchange, serialize(dout -> dout.writeBoolean(isRemoved))));
+            default:
+                throw new IOException("Unknown method "+ method);
         }
-
     }
 }
@@ -0,0 +1,225 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** A persistent index of the blocks in a local block store, recording the size and last access time of each block.
+ *
+ *  The index is an append-only log of put and delete records which is memory mapped and replayed on startup. The
+ *  current state is held in memory so that size and existence queries, and iteration for garbage collection, never
+ *  touch the filesystem. The log is compacted once it contains mostly superseded records.
+ *
+ *  Record format: [type: 1 byte][key length: 2 bytes][key: cid bytes][size: 4 bytes][last access millis: 8 bytes]
+ */
+public class BlockIndex {
+    private static final Logger LOG = Logging.LOG();
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int RECORD_OVERHEAD = 1 + 2 + 4 + 8;
+    private static final int MIN_RECORDS_TO_COMPACT = 10_000;
+    // Several storage instances in one process may share a block store, so they must share its index
+    private static final Map<Path, BlockIndex> open = new HashMap<>();
+
+    private static final class Entry {
+        final int size;
+        volatile long lastAccess;
+
+        Entry(int size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final Path file;
+    private final Map<ByteArrayWrapper, Entry> blocks = new ConcurrentHashMap<>();
+    private FileChannel log;
+    private long records;
+
+    private BlockIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     *
+     * @param file The index file
+     * @param rebuild Called to enumerate all stored blocks and their sizes if there is no existing index
+     * @return The index
+     * @throws IOException
+     */
+    public static synchronized BlockIndex open(Path file, Consumer<BiConsumer<Multihash, Integer>> rebuild) throws IOException {
+        Path canonical = file.toAbsolutePath().normalize();
+        BlockIndex existing = open.get(canonical);
+        if (existing != null)
+            return existing;
+        BlockIndex index = new BlockIndex(canonical);
+        if (canonical.toFile().exists()) {
+            index.load();
+        } else {
+            index.rebuild(rebuild);
+        }
+        open.put(canonical, index);
+        return index;
+    }
+
+    private static ByteArrayWrapper key(Multihash h) {
+        // the bytes of a v0 cid are its multihash, so this matches the naming of block files
+        return new ByteArrayWrapper(h.toBytes());
+    }
+
+    private synchronized void load() throws IOException {
+        long start = System.currentTimeMillis();
+        long validLength = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = in.size();
+            MappedByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            while (buf.remaining() >= RECORD_OVERHEAD) {
+                int recordStart = buf.position();
+                byte type = buf.get();
+                int keyLength = buf.getShort() & 0xffff;
+                if (buf.remaining() < keyLength + 12 || (type != PUT && type != DELETE)) {
+                    buf.position(recordStart);
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                buf.get(key);
+                int size = buf.getInt();
+                long lastAccess = buf.getLong();
+                if (type == PUT)
+                    blocks.put(new ByteArrayWrapper(key), new Entry(size, lastAccess));
+                else
+                    blocks.remove(new ByteArrayWrapper(key));
+                records++;
+            }
+            validLength = buf.position();
+            if (validLength < length)
+                LOG.warning("Truncating incomplete record at end of block index " + file);
+        }
+        log = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log.truncate(validLength);
+        LOG.info("Loaded " + blocks.size() + " blocks from index in " + (System.currentTimeMillis() - start) + " mS");
+    }
+
+    /**
+     * Discard the current index and rebuild it from the given enumeration of blocks
+     * @param enumerator
+     * @throws IOException
+     */
+    public synchronized void rebuild(Consumer<BiConsumer<Multihash, Integer>> enumerator) throws IOException {
+        long start = System.currentTimeMillis();
+        blocks.clear();
+        long now = System.currentTimeMillis();
+        enumerator.accept((h, size) -> blocks.put(key(h), new Entry(size, now)));
+        writeSnapshot();
+        LOG.info("Rebuilt block index of " + blocks.size() + " blocks in " + (System.currentTimeMillis() - start) + " mS");
+    }
+
+    /**
+     *  Atomically replace the log with one containing a single put record for every current block
+     */
+    private void writeSnapshot() throws IOException {
+        if (log != null)
+            log.close();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            for (Map.Entry<ByteArrayWrapper, Entry> e : blocks.entrySet())
+                writeRecord(dout, PUT, e.getKey().data, e.getValue().size, e.getValue().lastAccess);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = blocks.size();
+        log = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeRecord(DataOutput out, byte type, byte[] key, int size, long lastAccess) throws IOException {
+        out.writeByte(type);
+        out.writeShort(key.length);
+        out.write(key);
+        out.writeInt(size);
+        out.writeLong(lastAccess);
+    }
+
+    private void append(byte type, byte[] key, int size, long lastAccess) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + key.length);
+        record.put(type).putShort((short) key.length).put(key).putInt(size).putLong(lastAccess);
+        record.flip();
+        try {
+            while (record.hasRemaining())
+                log.write(record);
+            records++;
+            if (records > MIN_RECORDS_TO_COMPACT && records > 2 * blocks.size())
+                writeSnapshot();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public synchronized void add(Multihash h, int size) {
+        ByteArrayWrapper key = key(h);
+        long now = System.currentTimeMillis();
+        Entry existing = blocks.get(key);
+        if (existing != null) {
+            existing.lastAccess = now;
+            return;
+        }
+        blocks.put(key, new Entry(size, now));
+        append(PUT, key.data, size, now);
+    }
+
+    public synchronized boolean remove(Multihash h) {
+        ByteArrayWrapper key = key(h);
+        if (blocks.remove(key) == null)
+            return false;
+        append(DELETE, key.data, 0, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     *  Record a read of a block. Access times are only persisted when the index is next compacted.
+     * @param h
+     */
+    public void touch(Multihash h) {
+        Entry entry = blocks.get(key(h));
+        if (entry != null)
+            entry.lastAccess = System.currentTimeMillis();
+    }
+
+    public boolean contains(Multihash h) {
+        return blocks.containsKey(key(h));
+    }
+
+    public Optional<Integer> getSize(Multihash h) {
+        Entry entry = blocks.get(key(h));
+        return entry == null ? Optional.empty() : Optional.of(entry.size);
+    }
+
+    public Optional<Long> getLastAccessTimeMillis(Multihash h) {
+        Entry entry = blocks.get(key(h));
+        return entry == null ? Optional.empty() : Optional.of(entry.lastAccess);
+    }
+
+    public int size() {
+        return blocks.size();
+    }
+
+    public void applyToAll(Consumer<Multihash> processor) {
+        for (ByteArrayWrapper key : blocks.keySet())
+            processor.accept(Cid.cast(key.data));
+    }
+
+    public synchronized void close() throws IOException {
+        log.close();
+        synchronized (BlockIndex.class) {
+            open.remove(file);
+        }
+    }
+}
@@ -26,7 +26,9 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
     private static final Logger LOG = Logging.LOG();
     private static final int CID_V1 = 1;
     private static final int DIRECTORY_DEPTH = 5;
+    private static final String INDEX_FILENAME = "blocks.index";
     private final Path root;
+    private final BlockIndex index;
     private final Random r = new Random(1);
 
     public FileContentAddressedStorage(Path root) {
@@ -39,6 +41,11 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         }
         if (!rootDir.isDirectory())
             throw new IllegalStateException("File store path must be a directory! " + root);
+        try {
+            this.index = BlockIndex.open(root.resolve(INDEX_FILENAME), this::walkBlocks);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
     }
 
     @Override
@@ -99,8 +106,8 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return get(root).thenApply(opt -> opt
-                .map(cbor -> cbor.links())
+        return getRaw(root).thenApply(opt -> opt
+                .map(raw -> CborView.of(raw).links())
                 .orElse(Collections.emptyList())
         );
     }
@@ -140,7 +147,9 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                 return CompletableFuture.completedFuture(Optional.empty());
             }
             try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                return CompletableFuture.completedFuture(Optional.of(Serialize.readFully(din)));
+                byte[] block = Serialize.readFully(din);
+                index.touch(hash);
+                return CompletableFuture.completedFuture(Optional.of(block));
             }
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -156,7 +165,8 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
             Path parent = target.getParent();
             File parentDir = parent.toFile();
 
-            if (! parentDir.exists() && ! parentDir.mkdirs())
+            // another request can create the same directory concurrently
+            if (! parentDir.exists() && ! parentDir.mkdirs() && ! parentDir.isDirectory())
                 throw new IllegalStateException("Couldn't create directory: " + parent);
             for (Path someParent = parent; !someParent.equals(root); someParent = someParent.getParent()) {
                 File someParentFile = someParent.toFile();
@@ -192,6 +202,7 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                 if (tmpFile.exists())
                     tmpFile.delete();
             }
+            index.add(cid, data.length);
             return cid;
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -200,47 +211,78 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
 
     protected List<Multihash> getFiles() {
         List<Multihash> existing = new ArrayList<>();
-        getFilesRecursive(root, existing::add);
+        index.applyToAll(existing::add);
         return existing;
     }
 
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
-        Path path = getFilePath(h);
-        File file = root.resolve(path).toFile();
-        return CompletableFuture.completedFuture(file.exists() ? Optional.of((int) file.length()) : Optional.empty());
+        Optional<Integer> indexed = index.getSize(h);
+        if (indexed.isPresent())
+            return CompletableFuture.completedFuture(indexed);
+        return CompletableFuture.completedFuture(indexMissing(h) ? index.getSize(h) : Optional.empty());
+    }
+
+    /** Add a block written to disk without going through this store to the index
+     *
+     * @param h
+     * @return whether the block exists
+     */
+    private boolean indexMissing(Multihash h) {
+        File file = root.resolve(getFilePath(h)).toFile();
+        if (! file.exists()) // for backwards compatibility with existing data
+            file = root.resolve(getFilePath(h).getFileName()).toFile();
+        if (! file.exists())
+            return false;
+        index.add(h, (int) file.length());
+        return true;
     }
 
     protected boolean delete(Multihash h) {
         Path path = getFilePath(h);
         File file = root.resolve(path).toFile();
+        index.remove(h);
         return file.exists() && file.delete();
     }
 
     public Optional<Long> getLastAccessTimeMillis(Multihash h) {
-        Path path = getFilePath(h);
-        File file = root.resolve(path).toFile();
-        if (! file.exists())
-            return Optional.empty();
+        return index.getLastAccessTimeMillis(h);
+    }
+
+    public void applyToAll(Consumer<Multihash> processor) {
+        index.applyToAll(processor);
+    }
+
+    /**
+     * Release the block index, subsequent operations on this store are invalid.
+     */
+    public void close() {
         try {
-            BasicFileAttributes attrs = Files.readAttributes(root.resolve(path), BasicFileAttributes.class);
-            FileTime time = attrs.lastAccessTime();
-            return Optional.of(time.toMillis());
-        } catch (NoSuchFileException nope) {
-            return Optional.empty();
+            index.close();
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
-    public void applyToAll(Consumer<Multihash> processor) {
-        getFilesRecursive(root, processor);
+    /**
+     * Rebuild the block index from the files on disk, e.g. after blocks have been added or removed externally.
+     */
+    public void rebuildIndex() {
+        try {
+            index.rebuild(this::walkBlocks);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
     }
 
-    private void getFilesRecursive(Path path, Consumer<Multihash> accumulator) {
+    private void walkBlocks(BiConsumer<Multihash, Integer> accumulator) {
+        getFilesRecursive(root, (h, f) -> accumulator.accept(h, (int) f.length()));
+    }
+
+    private void getFilesRecursive(Path path, BiConsumer<Multihash, File> accumulator) {
         File pathFile = path.toFile();
         if (pathFile.isFile()) {
-            accumulator.accept(Multihash.fromBase58(pathFile.getName()));
+            accumulator.accept(Multihash.fromBase58(pathFile.getName()), pathFile);
             return;
         }
         else if (!  pathFile.isDirectory())
@@ -255,7 +297,8 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                 getFilesRecursive(child, accumulator);
             } else if (filename.startsWith("Q") || filename.startsWith("z")) { // tolerate non content addressed files in the same space
                 try {
-                    accumulator.accept(Cid.decode(child.toFile().getName()));
+                    File childFile = child.toFile();
+                    accumulator.accept(Cid.decode(childFile.getName()), childFile);
                 } catch (IllegalStateException e) {
                     // ignore files who's name isn't a valid multihash
                     LOG.info("Ignoring file "+ child +" since name is not a valid multihash");
@@ -270,6 +313,7 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         for (Multihash h : existing) {
             if (! pins.contains(h)) {
                 removed.add(h);
+                index.remove(h);
                 File file = root.resolve(getFilePath(h)).toFile();
                 if (file.exists() && !file.delete())
                     LOG.warning("Could not delete " + file);
@@ -282,12 +326,7 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
     }
 
     public boolean contains(Multihash multihash) {
-        Path path = getFilePath(multihash);
-        File file = root.resolve(path).toFile();
-        if (! file.exists()) { // for backwards compatibility with existing data
-            file = root.resolve(path.getFileName()).toFile();
-        }
-        return file.exists();
+        return index.contains(multihash) || indexMissing(multihash);
     }
 
     @Override
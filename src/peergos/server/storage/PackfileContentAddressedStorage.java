@@ -0,0 +1,478 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A local directory implementation of ContentAddressedStorage which appends blocks to large segment files.
+ *
+ *  Each segment is a sequence of records: [cid length: 2 bytes][block length: 4 bytes][cid bytes][block bytes].
+ *  When a segment reaches its maximum size it is sealed, which writes a sidecar index of the offsets of its blocks and
+ *  memory maps it for reading. The offsets of all blocks are held in memory and rebuilt on startup from the sidecar
+ *  indices, or by scanning the record headers of a segment without one.
+ *
+ *  Garbage collection drops unpinned blocks from the offset index and compacts sealed segments that are mostly
+ *  garbage by copying their live blocks to the active segment. Unreachable blocks left in segments that weren't
+ *  compacted reappear after a restart and are collected again by the next gc.
+ */
+public class PackfileContentAddressedStorage implements ContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private static final int HEADER_SIZE = 2 + 4;
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    private static final double COMPACTION_THRESHOLD = 0.25;
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final String INDEX_SUFFIX = ".idx";
+    // Several storage instances in one process may share a directory, so they must share the open segments
+    private static final Map<Path, PackfileContentAddressedStorage> open = new HashMap<>();
+
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path file;
+        final FileChannel channel;
+        volatile MappedByteBuffer mapped; // null until sealed
+
+        Segment(int id, Path file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        void seal() throws IOException {
+            channel.force(false);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        ByteBuffer read(long offset, int length) throws IOException {
+            MappedByteBuffer map = mapped;
+            if (map != null) {
+                ByteBuffer slice = map.duplicate();
+                slice.position((int) offset).limit((int) offset + length);
+                return slice.slice().asReadOnlyBuffer();
+            }
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0)
+                    throw new EOFException("Block extends beyond end of segment " + file);
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+
+    private final Path root;
+    private final long maxSegmentSize;
+    private final Map<ByteArrayWrapper, Location> index = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private Segment active;
+
+    private PackfileContentAddressedStorage(Path root, long maxSegmentSize) {
+        if (maxSegmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Segments must be smaller than 2 GiB to be memory mapped");
+        this.root = root;
+        this.maxSegmentSize = maxSegmentSize;
+        File rootDir = root.toFile();
+        if (!rootDir.exists() && !rootDir.mkdirs())
+            throw new IllegalStateException("Unable to create directory " + root);
+        if (!rootDir.isDirectory())
+            throw new IllegalStateException("Pack store path must be a directory! " + root);
+        try {
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public static synchronized PackfileContentAddressedStorage open(Path root, long maxSegmentSize) {
+        Path canonical = root.toAbsolutePath().normalize();
+        PackfileContentAddressedStorage existing = open.get(canonical);
+        if (existing != null)
+            return existing;
+        PackfileContentAddressedStorage store = new PackfileContentAddressedStorage(canonical, maxSegmentSize);
+        open.put(canonical, store);
+        return store;
+    }
+
+    public static PackfileContentAddressedStorage open(Path root) {
+        return open(root, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    private static ByteArrayWrapper key(Multihash h) {
+        return new ByteArrayWrapper(h.toBytes());
+    }
+
+    private Path segmentPath(int id) {
+        return root.resolve(String.format("%08d", id) + SEGMENT_SUFFIX);
+    }
+
+    private Path indexPath(int id) {
+        return root.resolve(String.format("%08d", id) + INDEX_SUFFIX);
+    }
+
+    private void load() throws IOException {
+        long start = System.currentTimeMillis();
+        String[] names = root.toFile().list();
+        List<Integer> ids = Stream.of(names == null ? new String[0] : names)
+                .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                .map(n -> Integer.parseInt(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .collect(Collectors.toList());
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            boolean isLast = i == ids.size() - 1;
+            Path file = segmentPath(id);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, file, channel);
+            segments.put(id, segment);
+            if (! isLast && indexPath(id).toFile().exists())
+                loadIndex(segment);
+            else
+                scan(segment);
+            if (isLast)
+                active = segment;
+            else
+                segment.seal();
+        }
+        if (active == null)
+            active = createSegment(0);
+        LOG.info("Loaded " + index.size() + " blocks from " + segments.size() + " segments in "
+                + (System.currentTimeMillis() - start) + " mS");
+    }
+
+    private void loadIndex(Segment segment) throws IOException {
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath(segment.id).toFile())))) {
+            while (true) {
+                int keyLength;
+                try {
+                    keyLength = din.readUnsignedShort();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                din.readFully(key);
+                long offset = din.readLong();
+                int length = din.readInt();
+                index.put(new ByteArrayWrapper(key), new Location(segment.id, offset, length));
+            }
+        }
+    }
+
+    /**
+     *  Index the records in a segment by reading their headers, and truncate any incomplete record at the end
+     */
+    private void scan(Segment segment) throws IOException {
+        FileChannel channel = segment.channel;
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int keyLength = header.getShort() & 0xffff;
+            int length = header.getInt();
+            if (length < 0 || position + HEADER_SIZE + keyLength + length > size)
+                break;
+            ByteBuffer key = ByteBuffer.allocate(keyLength);
+            channel.read(key, position + HEADER_SIZE);
+            long offset = position + HEADER_SIZE + keyLength;
+            index.put(new ByteArrayWrapper(key.array()), new Location(segment.id, offset, length));
+            position = offset + length;
+        }
+        if (position < size) {
+            LOG.warning("Truncating incomplete record at end of segment " + segment.file);
+            channel.truncate(position);
+        }
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Path file = segmentPath(id);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, file, channel);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     *  Seal the active segment, writing its sidecar index, and start a new one
+     */
+    private void rollSegment() throws IOException {
+        Segment sealed = active;
+        sealed.seal();
+        Path tmp = root.resolve(indexPath(sealed.id).getFileName() + ".tmp");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            for (Map.Entry<ByteArrayWrapper, Location> e : index.entrySet()) {
+                Location loc = e.getValue();
+                if (loc.segment != sealed.id)
+                    continue;
+                dout.writeShort(e.getKey().data.length);
+                dout.write(e.getKey().data);
+                dout.writeLong(loc.offset);
+                dout.writeInt(loc.length);
+            }
+        }
+        Files.move(tmp, indexPath(sealed.id), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        active = createSegment(sealed.id + 1);
+    }
+
+    private Location append(ByteArrayWrapper key, byte[] data) throws IOException {
+        long recordSize = HEADER_SIZE + key.data.length + data.length;
+        if (active.channel.size() > 0 && active.channel.size() + recordSize > maxSegmentSize)
+            rollSegment();
+        FileChannel channel = active.channel;
+        long position = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + key.data.length);
+        header.putShort((short) key.data.length).putInt(data.length).put(key.data);
+        header.flip();
+        ByteBuffer[] record = {header, ByteBuffer.wrap(data)};
+        channel.position(position);
+        long written = 0;
+        while (written < recordSize)
+            written += channel.write(record);
+        return new Location(active.id, position + HEADER_SIZE + key.data.length, data.length);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        // The node identity doesn't depend on the storage format
+        return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(new TransactionId(ArrayOps.bytesToHex(ArrayOps.random(8))));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signatures,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return CompletableFuture.completedFuture(put(blocks, false));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid) {
+        return CompletableFuture.completedFuture(put(blocks, true));
+    }
+
+    /**
+     *  Append a batch of blocks, with a single sync to disk for the whole batch
+     */
+    public synchronized List<Multihash> put(List<byte[]> blocks, boolean isRaw) {
+        try {
+            List<Multihash> res = new ArrayList<>();
+            boolean written = false;
+            for (byte[] block : blocks) {
+                Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                        Multihash.Type.sha2_256, RAMStorage.hash(block));
+                ByteArrayWrapper key = key(cid);
+                if (! index.containsKey(key)) {
+                    index.put(key, append(key, block));
+                    written = true;
+                }
+                res.add(cid);
+            }
+            if (written)
+                active.channel.force(false);
+            return res;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     *
+     * @param hash
+     * @return A read only view of the block, which for sealed segments is backed directly by the mapped file
+     */
+    public Optional<ByteBuffer> getBuffer(Multihash hash) {
+        Location loc = index.get(key(hash));
+        if (loc == null)
+            return Optional.empty();
+        Segment segment = segments.get(loc.segment);
+        if (segment == null) // moved by a concurrent compaction
+            return getBuffer(hash);
+        try {
+            return Optional.of(segment.read(loc.offset, loc.length));
+        } catch (ClosedChannelException e) {
+            return getBuffer(hash);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        return CompletableFuture.completedFuture(getBuffer(hash).map(buf -> {
+            byte[] res = new byte[buf.remaining()];
+            buf.get(res);
+            return res;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(new MultiAddress("/ipfs/"+existing), new MultiAddress("/ipfs/"+updated)));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return getRaw(root).thenApply(opt -> opt
+                .map(raw -> CborView.of(raw).links())
+                .orElse(Collections.emptyList())
+        );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        Location loc = index.get(key(h));
+        return CompletableFuture.completedFuture(loc == null ? Optional.empty() : Optional.of(loc.length));
+    }
+
+    public boolean contains(Multihash h) {
+        return index.containsKey(key(h));
+    }
+
+    public void applyToAll(Consumer<Multihash> processor) {
+        for (ByteArrayWrapper key : index.keySet())
+            processor.accept(Cid.cast(key.data));
+    }
+
+    /**
+     *  Remove all blocks which aren't in the given set from the index, and compact the segments which are then mostly
+     *  garbage
+     * @param pins
+     * @return The blocks removed
+     */
+    public synchronized Set<Multihash> retainOnly(Set<Multihash> pins) {
+        Set<Multihash> removed = new HashSet<>();
+        for (ByteArrayWrapper key : new ArrayList<>(index.keySet())) {
+            Multihash h = Cid.cast(key.data);
+            if (! pins.contains(h)) {
+                index.remove(key);
+                removed.add(h);
+            }
+        }
+        compact(COMPACTION_THRESHOLD);
+        return removed;
+    }
+
+    /**
+     *  Rewrite the live blocks from every sealed segment whose proportion of unreferenced bytes exceeds the threshold
+     *  into the active segment, and delete the old segment.
+     * @param garbageThreshold
+     */
+    public synchronized void compact(double garbageThreshold) {
+        try {
+            Map<Integer, Long> liveBytes = new HashMap<>();
+            for (Location loc : index.values())
+                liveBytes.merge(loc.segment, (long) loc.length, (a, b) -> a + b);
+
+            List<Segment> toCompact = segments.values().stream()
+                    .filter(s -> s != active)
+                    .filter(s -> {
+                        long size = s.mapped.capacity();
+                        return size > 0 && 1 - (double) liveBytes.getOrDefault(s.id, 0L) / size > garbageThreshold;
+                    })
+                    .sorted(Comparator.comparingInt(s -> s.id))
+                    .collect(Collectors.toList());
+            for (Segment segment : toCompact) {
+                long start = System.currentTimeMillis();
+                int moved = 0;
+                for (Map.Entry<ByteArrayWrapper, Location> e : index.entrySet()) {
+                    Location loc = e.getValue();
+                    if (loc.segment != segment.id)
+                        continue;
+                    ByteBuffer block = segment.read(loc.offset, loc.length);
+                    byte[] data = new byte[block.remaining()];
+                    block.get(data);
+                    e.setValue(append(e.getKey(), data));
+                    moved++;
+                }
+                active.channel.force(false);
+                segments.remove(segment.id);
+                segment.channel.close();
+                Files.deleteIfExists(indexPath(segment.id));
+                Files.delete(segment.file);
+                LOG.info("Compacted segment " + segment.file.getFileName() + ", moving " + moved + " blocks in "
+                        + (System.currentTimeMillis() - start) + " mS");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            for (Segment segment : segments.values())
+                segment.channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        synchronized (PackfileContentAddressedStorage.class) {
+            open.remove(root);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PackfileContentAddressedStorage " + root;
+    }
+}
@@ -113,8 +113,8 @@ public class RAMStorage implements ContentAddressedStorage {
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return get(root).thenApply(opt -> opt
-                .map(cbor -> cbor.links())
+        return getRaw(root).thenApply(opt -> opt
+                .map(raw -> CborView.of(raw).links())
                 .orElse(Collections.emptyList())
         );
     }
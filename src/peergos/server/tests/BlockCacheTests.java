@@ -0,0 +1,101 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class BlockCacheTests {
+    private static final Random r = new Random(42);
+
+    private static Multihash randomHash() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new Multihash(Multihash.Type.sha2_256, hash);
+    }
+
+    @Test
+    public void boundedBySize() {
+        BlockCache cache = new BlockCache(64 * 1024, 4);
+        for (int i = 0; i < 1000; i++)
+            cache.put(randomHash(), new byte[1024]);
+        Assert.assertTrue("Within byte budget", cache.sizeInBytes() <= 64 * 1024);
+        Assert.assertTrue("Evicted old entries", cache.evictions() >= 1000 - 64);
+        Assert.assertEquals(cache.size() * 1024L, cache.sizeInBytes());
+    }
+
+    @Test
+    public void recentlyUsedSurvivesEviction() {
+        BlockCache cache = new BlockCache(16 * 1024, 1);
+        Multihash hot = randomHash();
+        cache.put(hot, new byte[1024]);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull("Hot entry retained", cache.get(hot));
+            cache.put(randomHash(), new byte[1024]);
+        }
+        Assert.assertEquals(100, cache.hits());
+    }
+
+    @Test
+    public void oversizedValueIsNotCached() {
+        BlockCache cache = new BlockCache(1024, 1);
+        Multihash key = randomHash();
+        cache.put(key, new byte[2048]);
+        Assert.assertNull(cache.get(key));
+        Assert.assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void concurrentGetsAreCoalesced() throws Exception {
+        AtomicInteger targetCalls = new AtomicInteger(0);
+        CompletableFuture<Optional<byte[]>> response = new CompletableFuture<>();
+        ContentAddressedStorage target = new RAMStorage() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+                targetCalls.incrementAndGet();
+                return response;
+            }
+        };
+        CachingStorage storage = new CachingStorage(target, 1024 * 1024, 50 * 1024);
+        Multihash key = randomHash();
+        List<CompletableFuture<Optional<byte[]>>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            results.add(storage.getRaw(key));
+        byte[] value = new CborObject.CborNull().toByteArray();
+        response.complete(Optional.of(value));
+        for (CompletableFuture<Optional<byte[]>> result : results)
+            Assert.assertArrayEquals(value, result.get().get());
+        Assert.assertEquals(1, targetCalls.get());
+
+        storage.getRaw(key).get();
+        Assert.assertEquals("Served from cache", 1, targetCalls.get());
+    }
+
+    @Test
+    public void decodedBlocksAreReused() throws Exception {
+        AtomicInteger targetCalls = new AtomicInteger(0);
+        RAMStorage target = new RAMStorage() {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+                targetCalls.incrementAndGet();
+                return super.get(hash);
+            }
+        };
+        SortedMap<String, Cborable> state = new TreeMap<>();
+        state.put("n", new CborObject.CborLong(7));
+        CborObject value = CborObject.CborMap.build(state);
+        Multihash key = target.put(null, null, new byte[0], value.toByteArray(), null).get();
+        CachingStorage storage = new CachingStorage(target, 1024 * 1024, 50 * 1024);
+
+        CborObject first = storage.get(key).get().get();
+        Assert.assertEquals(value, first);
+        Assert.assertSame("Not decoded again", first, storage.get(key).get().get());
+        Assert.assertSame(first, storage.getAll(Collections.singletonList(key)).get().get(0).get());
+        Assert.assertEquals(1, targetCalls.get());
+    }
+}
@@ -0,0 +1,159 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.net.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class BlockGetAllTests {
+    private static final Random r = new Random(4);
+
+    private final Set<Multihash> failing = Collections.synchronizedSet(new HashSet<>());
+    private final RAMStorage storage = new RAMStorage() {
+        @Override
+        public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+            if (failing.contains(hash))
+                return Futures.errored(new IllegalStateException("Unreadable block " + hash));
+            return super.getRaw(hash);
+        }
+    };
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final HttpServer server;
+    private final JavaPoster poster;
+    private final ContentAddressedStorage client;
+
+    public BlockGetAllTests() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        DHTHandler handler = new DHTHandler(storage, (owner, writer, size) -> CompletableFuture.completedFuture(true));
+        server.createContext("/api/v0/", exchange -> {
+            requests.incrementAndGet();
+            handler.handle(exchange);
+        });
+        server.setExecutor(Executors.newFixedThreadPool(2));
+        server.start();
+        this.poster = new JavaPoster(new URL("http://localhost:" + server.getAddress().getPort() + "/"));
+        this.client = new ContentAddressedStorage.HTTP(poster, true);
+    }
+
+    @After
+    public void finish() {
+        server.stop(0);
+    }
+
+    private static byte[] randomBytes(int len) {
+        byte[] res = new byte[len];
+        r.nextBytes(res);
+        return res;
+    }
+
+    private static PublicKeyHash randomKey() {
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, randomBytes(32)));
+    }
+
+    private Multihash putCbor(byte[] block) throws Exception {
+        PublicKeyHash owner = randomKey();
+        TransactionId tid = storage.startTransaction(owner).get();
+        return storage.put(owner, owner, new byte[0], block, tid).get();
+    }
+
+    private Multihash putRaw(byte[] block) throws Exception {
+        PublicKeyHash owner = randomKey();
+        TransactionId tid = storage.startTransaction(owner).get();
+        return storage.putRaw(owner, owner, new byte[0], block, tid).get();
+    }
+
+    @Test
+    public void roundTripIncludingMissingBlocks() throws Exception {
+        Map<Multihash, Optional<byte[]>> expected = new LinkedHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            byte[] cbor = new CborObject.CborByteArray(randomBytes(100 + i)).serialize();
+            expected.put(putCbor(cbor), Optional.of(cbor));
+            byte[] raw = randomBytes(1000 * i);
+            expected.put(putRaw(raw), Optional.of(raw));
+            expected.put(RAMStorage.hashToCid(randomBytes(32), i % 2 == 0), Optional.empty());
+        }
+        byte[] inline = new CborObject.CborString("inline").serialize();
+        expected.put(new Multihash(Multihash.Type.id, inline), Optional.of(inline));
+
+        List<Multihash> hashes = new ArrayList<>(expected.keySet());
+        // duplicates are answered too
+        hashes.add(hashes.get(0));
+        List<Optional<byte[]>> blocks = client.getAllRaw(hashes).get();
+        Assert.assertEquals(hashes.size(), blocks.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            Optional<byte[]> block = expected.get(hashes.get(i));
+            Assert.assertEquals(block.isPresent(), blocks.get(i).isPresent());
+            if (block.isPresent())
+                Assert.assertArrayEquals(block.get(), blocks.get(i).get());
+        }
+        Assert.assertEquals("Identity hashes aren't requested", 1, requests.get());
+    }
+
+    @Test
+    public void largeRequestsAreSplitIntoBatches() throws Exception {
+        int count = 2 * ContentAddressedStorage.HTTP.MAX_BLOCKS_PER_GET_ALL + 50;
+        List<Multihash> hashes = new ArrayList<>();
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] block = randomBytes(32);
+            blocks.add(block);
+            hashes.add(putRaw(block));
+        }
+        List<Optional<byte[]>> result = client.getAllRaw(hashes).get();
+        for (int i = 0; i < count; i++)
+            Assert.assertArrayEquals(blocks.get(i), result.get(i).get());
+        Assert.assertEquals(3, requests.get());
+    }
+
+    private void assertFailsWith(List<Multihash> hashes, String message) {
+        try {
+            client.getAllRaw(hashes).join();
+            Assert.fail("Failure wasn't reported");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void failureOfFirstBlockIsAnErrorReply() throws Exception {
+        Multihash bad = putRaw(randomBytes(100));
+        failing.add(bad);
+        assertFailsWith(Arrays.asList(bad, putRaw(randomBytes(100))), "Unreadable block " + bad);
+    }
+
+    @Test
+    public void laterFailureIsReportedInTheBody() throws Exception {
+        Multihash bad = putRaw(randomBytes(100));
+        failing.add(bad);
+        assertFailsWith(Arrays.asList(putRaw(randomBytes(100)), bad, putRaw(randomBytes(100))), "Unreadable block " + bad);
+        // the connection is still usable afterwards
+        byte[] block = randomBytes(100);
+        Assert.assertArrayEquals(block, client.getAllRaw(Arrays.asList(putRaw(block))).join().get(0).get());
+    }
+
+    @Test
+    public void serverRejectsTooManyBlocks() {
+        byte[] request = new CborObject.CborList(IntStream.range(0, ContentAddressedStorage.HTTP.MAX_BLOCKS_PER_GET_ALL + 1)
+                .mapToObj(i -> new CborObject.CborByteArray(RAMStorage.hashToCid(randomBytes(32), true).toBytes()))
+                .collect(Collectors.toList())).serialize();
+        try {
+            poster.post("api/v0/" + ContentAddressedStorage.HTTP.BLOCK_GET_ALL, request, false).join();
+            Assert.fail("Oversized request was served");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("Too many blocks"));
+        }
+    }
+}
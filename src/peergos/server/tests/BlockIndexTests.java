@@ -0,0 +1,73 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+public class BlockIndexTests {
+    private static final Random r = new Random(7);
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        r.nextBytes(block);
+        return block;
+    }
+
+    @Test
+    public void indexSurvivesRestart() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-index");
+        FileContentAddressedStorage storage = new FileContentAddressedStorage(dir);
+        Multihash kept = storage.put(randomBlock(1000), true);
+        Multihash deleted = storage.put(randomBlock(2000), true);
+        Assert.assertTrue(storage.contains(deleted));
+        storage.retainOnly(Collections.singleton(kept));
+        storage.close();
+
+        FileContentAddressedStorage reopened = new FileContentAddressedStorage(dir);
+        Assert.assertTrue(reopened.contains(kept));
+        Assert.assertFalse(reopened.contains(deleted));
+        Assert.assertEquals(Optional.of(1000), reopened.getSize(kept).get());
+        Assert.assertEquals(Optional.empty(), reopened.getSize(deleted).get());
+    }
+
+    @Test
+    public void rebuildFromDisk() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-index");
+        FileContentAddressedStorage storage = new FileContentAddressedStorage(dir);
+        List<Multihash> hashes = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            hashes.add(storage.put(randomBlock(100 + i), false));
+        storage.close();
+        Files.delete(dir.resolve("blocks.index"));
+
+        FileContentAddressedStorage rebuilt = new FileContentAddressedStorage(dir);
+        Set<Multihash> all = new HashSet<>();
+        rebuilt.applyToAll(all::add);
+        Assert.assertEquals(new HashSet<>(hashes), all);
+        for (int i = 0; i < hashes.size(); i++)
+            Assert.assertEquals(Optional.of(100 + i), rebuilt.getSize(hashes.get(i)).get());
+    }
+
+    @Test
+    public void truncatedRecordIsIgnored() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-index");
+        FileContentAddressedStorage storage = new FileContentAddressedStorage(dir);
+        Multihash first = storage.put(randomBlock(10), true);
+        Multihash second = storage.put(randomBlock(10), true);
+        storage.close();
+        Path indexFile = dir.resolve("blocks.index");
+        byte[] raw = Files.readAllBytes(indexFile);
+        Files.write(indexFile, Arrays.copyOfRange(raw, 0, raw.length - 3));
+
+        FileContentAddressedStorage reopened = new FileContentAddressedStorage(dir);
+        Set<Multihash> indexed = new HashSet<>();
+        reopened.applyToAll(indexed::add);
+        Assert.assertEquals(Collections.singleton(first), indexed);
+        // the block itself is still on disk, so it is re-indexed when queried
+        Assert.assertEquals(Optional.of(10), reopened.getSize(second).get());
+        Assert.assertTrue(reopened.contains(second));
+    }
+}
@@ -106,6 +106,46 @@ public class CborObjects {
         compatibleAndIdempotentSerialization(cborList);
     }
 
+    @Test
+    public void lazyView() {
+        Multihash hash = Multihash.fromBase58("QmPZ9gcCEpqKTo6aq61g2nXGUhM4iCL3ewB6LDXZCtioEB");
+        SortedMap<CborObject, CborObject> inner = new TreeMap<>();
+        inner.put(new CborObject.CborString("l"), new CborObject.CborMerkleLink(hash));
+        inner.put(new CborObject.CborString("n"), new CborObject.CborLong(-300));
+        byte[] bytes = random(100);
+        SortedMap<CborObject, CborObject> map = new TreeMap<>();
+        map.put(new CborObject.CborString("b"), new CborObject.CborByteArray(bytes));
+        map.put(new CborObject.CborString("list"), new CborObject.CborList(Arrays.asList(
+                new CborObject.CborNull(), new CborObject.CborMap(inner), new CborObject.CborLong(1L << 40))));
+        map.put(new CborObject.CborString("t"), new CborObject.CborBoolean(true));
+        CborObject.CborMap value = new CborObject.CborMap(map);
+        byte[] raw = value.toByteArray();
+
+        CborView view = CborView.of(raw);
+        Assert.assertEquals(value, view.toCborObject());
+        Assert.assertEquals(raw.length, view.encodedLength());
+        Assert.assertEquals(value.links(), view.links());
+        Assert.assertEquals(3, view.size());
+        Assert.assertFalse(view.get("missing").isPresent());
+        Assert.assertTrue(view.get("t").get().getBoolean());
+
+        CborView b = view.get("b").get();
+        Assert.assertArrayEquals(bytes, Arrays.copyOfRange(b.data(), b.byteStringOffset(), b.byteStringOffset() + b.byteStringLength()));
+        CborView list = view.get("list").get();
+        Assert.assertTrue(list.get(0).isNull());
+        Assert.assertEquals(1L << 40, list.get(2).getLong());
+        Assert.assertEquals(hash, list.get(1).get("l").get().getLink());
+        Assert.assertEquals(-300, list.get(1).get("n").get().getLong());
+
+        // every truncation must be rejected rather than read out of bounds
+        for (int i = 1; i < raw.length; i++) {
+            try {
+                CborView.of(Arrays.copyOf(raw, i)).toCborObject();
+                Assert.fail("Accepted truncated cbor of length " + i);
+            } catch (IllegalStateException expected) {}
+        }
+    }
+
     public void compatibleAndIdempotentSerialization(CborObject value) {
         byte[] raw = value.toByteArray();
         CborObject deserialized = CborObject.fromByteArray(raw);
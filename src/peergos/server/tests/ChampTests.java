@@ -3,16 +3,21 @@ package peergos.server.tests;
 import org.junit.*;
 import peergos.server.storage.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
+import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampTests {
 
@@ -131,6 +136,122 @@ public class ChampTests {
         }
     }
 
+    @Test
+    public void lookupPath() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+
+        Champ current = Champ.empty();
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Multihash currentHash = storage.put(user.publicKeyHash, user, current.serialize(), tid).get();
+        int bitWidth = ChampWrapper.BIT_WIDTH;
+        int maxCollisions = ChampWrapper.MAX_HASH_COLLISIONS_PER_LEVEL;
+        Map<ByteArrayWrapper, MaybeMultihash> state = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            ByteArrayWrapper key = new ByteArrayWrapper(randomHash.get().getHash());
+            Multihash value = randomHash.get();
+            Pair<Champ, Multihash> updated = current.put(user.publicKeyHash, user, key, key.data, 0,
+                    MaybeMultihash.empty(), MaybeMultihash.of(value), bitWidth, maxCollisions, x -> x.data, tid, storage, currentHash).get();
+            current = updated.left;
+            currentHash = updated.right;
+            state.put(key, MaybeMultihash.of(value));
+        }
+
+        // every lookup, including of absent keys, must be answerable from the nodes on its path alone
+        List<ByteArrayWrapper> keys = new ArrayList<>(state.keySet());
+        for (int i = 0; i < 100; i++)
+            keys.add(new ByteArrayWrapper(randomHash.get().getHash()));
+        for (ByteArrayWrapper key : keys) {
+            List<Pair<Multihash, byte[]>> path = storage.getChampLookup(currentHash, key.data).get();
+            Assert.assertEquals("Path starts at root", currentHash, path.get(0).left);
+            Map<Multihash, byte[]> nodes = new HashMap<>();
+            for (Pair<Multihash, byte[]> node : path) {
+                nodes.put(node.left, node.right);
+                // decoding from a view must give the same node as decoding the cbor tree
+                Assert.assertArrayEquals(node.right, Champ.fromByteArray(node.right).serialize());
+                Assert.assertArrayEquals(node.right, Champ.fromCbor(CborObject.fromByteArray(node.right)).serialize());
+            }
+            MaybeMultihash res = current.get(key, key.data, 0, bitWidth, h -> {
+                if (! nodes.containsKey(h))
+                    throw new IllegalStateException("Node not on lookup path!");
+                return CompletableFuture.completedFuture(Optional.of(Champ.fromByteArray(nodes.get(h))));
+            }).get();
+            Assert.assertEquals("Correct value", state.getOrDefault(key, MaybeMultihash.empty()), res);
+        }
+    }
+
+    @Test
+    public void batchedMutations() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        Function<ByteArrayWrapper, byte[]> hasher = x -> x.data;
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        byte[] empty = Champ.empty().serialize();
+        Multihash emptyRoot = storage.put(user.publicKeyHash, user, empty, tid).get();
+        ChampWrapper sequential = ChampWrapper.create(emptyRoot, hasher, storage).get();
+
+        List<ImmutableTree.Mutation> mutations = new ArrayList<>();
+        Multihash expectedRoot = emptyRoot;
+        for (int i = 0; i < 200; i++) {
+            byte[] key = randomHash.get().getHash();
+            Multihash value = randomHash.get();
+            expectedRoot = sequential.put(user.publicKeyHash, user, key, MaybeMultihash.empty(), value, tid).get();
+            mutations.add(ImmutableTree.Mutation.put(key, MaybeMultihash.empty(), value));
+            if (i % 4 == 0) { // overwrite, then remove some
+                Multihash newValue = randomHash.get();
+                expectedRoot = sequential.put(user.publicKeyHash, user, key, MaybeMultihash.of(value), newValue, tid).get();
+                mutations.add(ImmutableTree.Mutation.put(key, MaybeMultihash.of(value), newValue));
+                if (i % 8 == 0) {
+                    expectedRoot = sequential.remove(user.publicKeyHash, user, key, MaybeMultihash.of(newValue), tid).get();
+                    mutations.add(ImmutableTree.Mutation.remove(key, MaybeMultihash.of(newValue)));
+                }
+            }
+        }
+
+        // apply the same mutations to the empty tree in a fresh store, recording what is written
+        List<Multihash> written = new ArrayList<>();
+        RAMStorage recording = new RAMStorage() {
+            @Override
+            public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer,
+                                                          List<byte[]> signatures, List<byte[]> blocks, TransactionId tid) {
+                return super.put(owner, writer, signatures, blocks, tid).thenApply(hashes -> {
+                    written.addAll(hashes);
+                    return hashes;
+                });
+            }
+        };
+        recording.put(user.publicKeyHash, user, empty, tid).get();
+        written.clear();
+        ChampWrapper batched = ChampWrapper.create(emptyRoot, hasher, recording).get();
+        Multihash batchedRoot = batched.applyAll(user.publicKeyHash, user, mutations, tid).get();
+        Assert.assertEquals("Same root as applying mutations sequentially", expectedRoot, batchedRoot);
+
+        Set<Multihash> reachable = new HashSet<>();
+        LinkedList<Multihash> toVisit = new LinkedList<>(Collections.singletonList(batchedRoot));
+        while (! toVisit.isEmpty()) {
+            Multihash next = toVisit.removeFirst();
+            Optional<CborObject> block = recording.get(next).get();
+            if (block.isPresent() && reachable.add(next))
+                toVisit.addAll(block.get().links());
+        }
+        Assert.assertTrue("Only reachable nodes written", reachable.containsAll(written));
+        Assert.assertEquals("Every node written once", new HashSet<>(written).size(), written.size());
+    }
+
     @Test
     public void canonicalDelete() throws Exception {
         RAMStorage storage = new RAMStorage();
@@ -164,6 +285,45 @@ public class ChampTests {
             }
     }
 
+    @Test
+    public void serializationRoundTrip() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        int bitWidth = Champ.MAX_BIT_WIDTH;
+        int maxCollisions = 3;
+
+        Champ current = Champ.empty();
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Multihash currentHash = storage.put(user.publicKeyHash, user, current.serialize(), tid).get();
+        for (int i = 0; i < 500; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            Pair<Champ, Multihash> updated = current.put(user.publicKeyHash, user, new ByteArrayWrapper(key), key, 0,
+                    MaybeMultihash.empty(), MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, value)),
+                    bitWidth, maxCollisions, x -> x.data, tid, storage, currentHash).get();
+            current = updated.left;
+            currentHash = updated.right;
+        }
+
+        LinkedList<Multihash> toVisit = new LinkedList<>(Collections.singletonList(currentHash));
+        while (! toVisit.isEmpty()) {
+            byte[] raw = storage.getRaw(toVisit.removeFirst()).get().get();
+            List<? extends Cborable> fields = ((CborObject.CborList) CborObject.fromByteArray(raw)).value;
+            // bitmaps must stay in the format of BitSet.toByteArray
+            for (int i = 0; i < 2; i++) {
+                byte[] bitmap = ((CborObject.CborByteArray) fields.get(i)).value;
+                Assert.assertArrayEquals(BitSet.valueOf(bitmap).toByteArray(), bitmap);
+            }
+            Assert.assertArrayEquals(raw, Champ.fromCbor(CborObject.fromByteArray(raw)).serialize());
+            for (Cborable child : ((CborObject.CborList) fields.get(2)).value)
+                if (child instanceof CborObject.CborMerkleLink)
+                    toVisit.add(((CborObject.CborMerkleLink) child).target);
+        }
+    }
+
     @Test
     public void correctDelete() throws Exception {
         ContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp"));
@@ -228,6 +388,109 @@ public class ChampTests {
         }
     }
 
+    @Test
+    public void batchedGet() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(7);
+        int bitWidth = 3, maxCollisions = 4;
+
+        Champ current = Champ.empty();
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Multihash currentHash = storage.put(user.publicKeyHash, user, current.serialize(), tid).get();
+        List<ByteArrayWrapper> keys = new ArrayList<>();
+        List<MaybeMultihash> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ByteArrayWrapper key = new ByteArrayWrapper(randomKey(new byte[0], 32, r));
+            MaybeMultihash value = MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, randomKey(new byte[0], 32, r)));
+            Pair<Champ, Multihash> updated = current.put(user.publicKeyHash, user, key, key.data, 0, MaybeMultihash.empty(),
+                    value, bitWidth, maxCollisions, x -> x.data, tid, storage, currentHash).get();
+            current = updated.left;
+            currentHash = updated.right;
+            keys.add(key);
+            values.add(value);
+        }
+        // and some keys which aren't present
+        for (int i = 0; i < 100; i++) {
+            keys.add(new ByteArrayWrapper(randomKey(new byte[0], 32, r)));
+            values.add(MaybeMultihash.empty());
+        }
+
+        AtomicInteger batches = new AtomicInteger(0);
+        List<MaybeMultihash> found = current.getAll(keys, keys.stream().map(k -> k.data).collect(Collectors.toList()),
+                bitWidth, hashes -> {
+                    batches.incrementAndGet();
+                    return storage.getAllRaw(hashes).thenApply(blocks -> blocks.stream()
+                            .map(rawOpt -> rawOpt.map(Champ::fromByteArray))
+                            .collect(Collectors.toList()));
+                }).get();
+        Assert.assertEquals(values, found);
+        // a batch per level below the root, rather than a retrieval per key
+        Assert.assertTrue("Too many batches: " + batches.get(), batches.get() <= 5);
+        for (int i = 0; i < keys.size(); i++)
+            Assert.assertEquals(current.get(keys.get(i), keys.get(i).data, 0, bitWidth, storage).get(), found.get(i));
+    }
+
+    @Test
+    public void diffFindsEveryChange() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(42);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        int bitWidth = 5, maxCollisions = 3;
+        // big enough that the diff has to descend several levels with more changed nodes than are fetched at once
+        Pair<Champ, Multihash> original = randomTree(user, r, 0, 32, 2000, bitWidth, maxCollisions, randomHash, storage);
+
+        Champ current = original.left;
+        Multihash currentHash = original.right;
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Map<ByteArrayWrapper, Pair<MaybeMultihash, MaybeMultihash>> expected = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            ByteArrayWrapper key = new ByteArrayWrapper(randomKey(new byte[0], 32, r));
+            MaybeMultihash value = MaybeMultihash.of(randomHash.get());
+            Pair<Champ, Multihash> updated = current.put(user.publicKeyHash, user, key, key.data, 0, MaybeMultihash.empty(),
+                    value, bitWidth, maxCollisions, x -> x.data, tid, storage, currentHash).get();
+            current = updated.left;
+            currentHash = updated.right;
+            expected.put(key, new Pair<>(MaybeMultihash.empty(), value));
+        }
+
+        Assert.assertEquals(expected, netDiff(MaybeMultihash.of(original.right), MaybeMultihash.of(currentHash), storage));
+        Map<ByteArrayWrapper, Pair<MaybeMultihash, MaybeMultihash>> reversed = new HashMap<>();
+        for (Map.Entry<ByteArrayWrapper, Pair<MaybeMultihash, MaybeMultihash>> e : expected.entrySet())
+            reversed.put(e.getKey(), new Pair<>(e.getValue().right, e.getValue().left));
+        Assert.assertEquals(reversed, netDiff(MaybeMultihash.of(currentHash), MaybeMultihash.of(original.right), storage));
+    }
+
+    /** A mapping which moves between nodes is reported as removed from one and added to the other, so combine
+     *  everything reported for each key.
+     */
+    private static Map<ByteArrayWrapper, Pair<MaybeMultihash, MaybeMultihash>> netDiff(MaybeMultihash original,
+                                                                                    MaybeMultihash updated,
+                                                                                    ContentAddressedStorage storage) throws Exception {
+        Map<ByteArrayWrapper, MaybeMultihash> before = new ConcurrentHashMap<>(), after = new ConcurrentHashMap<>();
+        Champ.applyToDiff(original, updated, t -> {
+            if (t.middle.isPresent())
+                before.put(t.left, t.middle);
+            if (t.right.isPresent())
+                after.put(t.left, t.right);
+        }, storage).get();
+        Map<ByteArrayWrapper, Pair<MaybeMultihash, MaybeMultihash>> res = new HashMap<>();
+        Set<ByteArrayWrapper> keys = new HashSet<>(before.keySet());
+        keys.addAll(after.keySet());
+        for (ByteArrayWrapper key : keys) {
+            MaybeMultihash from = before.getOrDefault(key, MaybeMultihash.empty());
+            MaybeMultihash to = after.getOrDefault(key, MaybeMultihash.empty());
+            if (! from.equals(to))
+                res.put(key, new Pair<>(from, to));
+        }
+        return res;
+    }
+
     private static byte[] randomKey(byte[] startingWith, int extraBytes, Random r) {
         byte[] suffix = new byte[extraBytes];
         r.nextBytes(suffix);
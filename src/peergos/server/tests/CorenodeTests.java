@@ -1,7 +1,7 @@
 package peergos.server.tests;
 
 import org.junit.*;
-import peergos.server.corenode.UsernameValidator;
+import peergos.server.corenode.*;
 
 import java.util.*;
 
@@ -46,4 +46,30 @@ public class CorenodeTests {
         areValid.forEach(username -> Assert.assertTrue(username + " is valid", UsernameValidator.isValidUsername(username)));
         areNotValid.forEach(username -> Assert.assertFalse(username +" is not valid", UsernameValidator.isValidUsername(username)));
     }
+
+    @Test
+    public void usernamePrefixes() {
+        UsernameIndex index = new UsernameIndex();
+        index.addAll(Arrays.asList("peter", "pete", "alice", "bob"));
+        index.add("peterpan");
+        index.addAll(Arrays.asList("alice", "petra"));
+
+        Assert.assertEquals(Arrays.asList("alice", "bob", "pete", "peter", "peterpan", "petra"), index.getByPrefix(""));
+        Assert.assertEquals(Arrays.asList("pete", "peter", "peterpan"), index.getByPrefix("pete"));
+        Assert.assertEquals(Arrays.asList("peter", "peterpan"), index.getByPrefix("peter"));
+        Assert.assertEquals(Collections.emptyList(), index.getByPrefix("peterq"));
+        Assert.assertEquals(Collections.emptyList(), index.getByPrefix("zed"));
+        Assert.assertTrue(index.contains("bob"));
+        Assert.assertFalse(index.contains("bo"));
+    }
+
+    @Test
+    public void usernameSnapshotsAreImmutable() {
+        UsernameIndex index = new UsernameIndex();
+        index.addAll(Arrays.asList("bob", "carol"));
+        List<String> before = index.getByPrefix("");
+        index.addAll(Arrays.asList("alice", "bobby"));
+        Assert.assertEquals(Arrays.asList("bob", "carol"), before);
+        Assert.assertEquals(4, index.size());
+    }
 }
@@ -0,0 +1,92 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.curve25519.*;
+
+import java.util.*;
+
+public class FastEd25519Tests {
+    private static final Random random = new Random(1729);
+    private static final Ed25519 reference = new Ed25519.Java();
+    private static final Ed25519 optimised = new Ed25519.OptimisedJava();
+
+    private static byte[] randomBytes(int length) {
+        byte[] res = new byte[length];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private static byte[][] keyPair() {
+        byte[] pk = new byte[32];
+        byte[] sk = randomBytes(64);
+        reference.crypto_sign_keypair(pk, sk);
+        return new byte[][]{pk, sk};
+    }
+
+    @Test
+    public void compatibleWithTweetNaCl() {
+        List<Integer> lengths = new ArrayList<>(Arrays.asList(0, 1, 32, 64, 111, 112, 127, 128, 129, 4096, 1024 * 1024));
+        for (int i = 0; i < 100; i++)
+            lengths.add(random.nextInt(1_000));
+        for (int length : lengths) {
+            byte[][] pair = keyPair();
+            byte[] message = randomBytes(length);
+
+            byte[] expected = reference.crypto_sign(message, pair[1]);
+            byte[] signed = optimised.crypto_sign(message, pair[1]);
+            Assert.assertArrayEquals("Signature for length " + length, expected, signed);
+            Assert.assertArrayEquals(Arrays.copyOf(expected, 64), optimised.crypto_sign_detached(message, pair[1]));
+            Assert.assertArrayEquals(message, optimised.crypto_sign_open(signed, pair[0]));
+            Assert.assertTrue(optimised.crypto_sign_verify_detached(Arrays.copyOf(signed, 64), message, pair[0]));
+        }
+    }
+
+    @Test
+    public void rejectModifiedSignatures() {
+        byte[][] pair = keyPair();
+        byte[] signed = reference.crypto_sign(randomBytes(100), pair[1]);
+        for (int i = 0; i < signed.length; i++) {
+            byte[] modified = signed.clone();
+            modified[i] ^= 1 << random.nextInt(8);
+            boolean referenceAccepts = accepts(reference, modified, pair[0]);
+            Assert.assertEquals("Modified signed message at " + i, referenceAccepts, accepts(optimised, modified, pair[0]));
+            Assert.assertFalse(referenceAccepts && i < 64);
+        }
+        byte[] otherKey = keyPair()[0];
+        Assert.assertFalse(accepts(optimised, signed, otherKey));
+        Assert.assertFalse(accepts(optimised, new byte[63], pair[0]));
+        // not a point on the curve
+        byte[] invalidKey = new byte[32];
+        invalidKey[0] = 2;
+        Assert.assertEquals(accepts(reference, signed, invalidKey), accepts(optimised, signed, invalidKey));
+    }
+
+    private static boolean accepts(Ed25519 signer, byte[] signed, byte[] publicKey) {
+        try {
+            signer.crypto_sign_open(signed, publicKey);
+            return true;
+        } catch (TweetNaCl.InvalidSignatureException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void verifyAll() {
+        byte[][] pair = keyPair();
+        List<byte[]> messages = new ArrayList<>();
+        List<byte[]> signatures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] message = randomBytes(random.nextInt(10_000));
+            messages.add(message);
+            signatures.add(reference.crypto_sign_detached(message, pair[1]));
+        }
+        Assert.assertTrue(reference.crypto_sign_verify_all(signatures, messages, pair[0]));
+        Assert.assertTrue(optimised.crypto_sign_verify_all(signatures, messages, pair[0]));
+
+        signatures.set(13, Arrays.copyOf(signatures.get(12), 64));
+        Assert.assertFalse(reference.crypto_sign_verify_all(signatures, messages, pair[0]));
+        Assert.assertFalse(optimised.crypto_sign_verify_all(signatures, messages, pair[0]));
+        Assert.assertFalse(optimised.crypto_sign_verify_all(signatures.subList(0, 5), messages, pair[0]));
+    }
+}
@@ -0,0 +1,94 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class FuturesTests {
+
+    @Test
+    public void mapAsyncPreservesOrder() throws Exception {
+        List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        Map<Integer, CompletableFuture<Integer>> pending = new ConcurrentHashMap<>();
+        CompletableFuture<List<Integer>> result = Futures.mapAsync(input, input.size(), i -> {
+            CompletableFuture<Integer> res = new CompletableFuture<>();
+            pending.put(i, res);
+            return res;
+        });
+        // complete them in reverse order
+        for (int i = input.size() - 1; i >= 0; i--)
+            pending.get(i).complete(i * 2);
+        Assert.assertEquals(input.stream().map(i -> i * 2).collect(Collectors.toList()), result.get());
+    }
+
+    @Test
+    public void concurrencyIsBounded() throws Exception {
+        int maxInFlight = 4;
+        AtomicInteger inFlight = new AtomicInteger(0), maxSeen = new AtomicInteger(0), started = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            List<Integer> input = IntStream.range(0, 200).boxed().collect(Collectors.toList());
+            List<Integer> result = Futures.mapAsync(input, maxInFlight, i -> {
+                started.incrementAndGet();
+                int current = inFlight.incrementAndGet();
+                maxSeen.accumulateAndGet(current, Math::max);
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {}
+                    inFlight.decrementAndGet();
+                    return i;
+                }, pool);
+            }).get();
+            Assert.assertEquals(input, result);
+            Assert.assertEquals(input.size(), started.get());
+            Assert.assertTrue("At most " + maxInFlight + " in flight, saw " + maxSeen.get(), maxSeen.get() <= maxInFlight);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void synchronousMappersDontOverflowTheStack() throws Exception {
+        List<Integer> input = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+        long sum = Futures.reduceAsync(input, 8, CompletableFuture::completedFuture, 0L, (a, b) -> a + b).get();
+        Assert.assertEquals(input.stream().mapToLong(i -> i).sum(), sum);
+    }
+
+    @Test
+    public void failureIsPropagatedAndStopsNewWork() {
+        AtomicInteger started = new AtomicInteger(0);
+        Map<Integer, CompletableFuture<Integer>> pending = new ConcurrentHashMap<>();
+        List<Integer> input = IntStream.range(0, 10).boxed().collect(Collectors.toList());
+        CompletableFuture<List<Integer>> result = Futures.mapAsync(input, 2, i -> {
+            started.incrementAndGet();
+            CompletableFuture<Integer> res = new CompletableFuture<>();
+            pending.put(i, res);
+            return res;
+        });
+        Assert.assertEquals(2, started.get());
+        pending.get(0).completeExceptionally(new IllegalStateException("Boom"));
+        pending.get(1).complete(1);
+        try {
+            result.join();
+            Assert.fail("Failure wasn't propagated");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals("Nothing started after the failure", 2, started.get());
+    }
+
+    @Test
+    public void mapperWhichThrowsFailsTheResult() {
+        CompletableFuture<List<Integer>> result = Futures.mapAsync(Arrays.asList(1, 2, 3), 2, i -> {
+            if (i == 2)
+                throw new IllegalStateException("Boom");
+            return CompletableFuture.completedFuture(i);
+        });
+        Assert.assertTrue(result.isCompletedExceptionally());
+    }
+}
@@ -74,6 +74,28 @@ public class MultipartTests {
         }
     }
 
+    @Test
+    public void partialDelimiterInData() throws IOException {
+        test(Arrays.asList("\r\n--".getBytes(), "a\r\n-".getBytes(), new byte[0], "\r".getBytes()));
+    }
+
+    @Test
+    public void sizeLimits() {
+        String boundary = "===boundary===";
+        byte[] body = ("--" + boundary + "\r\nContent-Type: application/octet-stream\r\n\r\n"
+                + "0123456789\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\n\r\n"
+                + "0123456789\r\n--" + boundary + "--\r\n").getBytes();
+        Assert.assertEquals(2, MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary, 10, 20).size());
+        try {
+            MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary, 9, 20);
+            Assert.fail("Part size limit not enforced");
+        } catch (IllegalStateException expected) {}
+        try {
+            MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary, 10, 19);
+            Assert.fail("Total size limit not enforced");
+        } catch (IllegalStateException expected) {}
+    }
+
     private void test(List<byte[]> input) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         for (byte[] in : input)
@@ -0,0 +1,91 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class PackfileStorageTests {
+    private static final Random r = new Random(3);
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        r.nextBytes(block);
+        return block;
+    }
+
+    private static long segmentBytes(Path dir) {
+        return Stream.of(dir.toFile().listFiles())
+                .filter(f -> f.getName().endsWith(".pack"))
+                .mapToLong(File::length)
+                .sum();
+    }
+
+    @Test
+    public void readBackAcrossSegmentsAndRestart() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        PackfileContentAddressedStorage storage = PackfileContentAddressedStorage.open(dir, 64 * 1024);
+        Map<Multihash, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] block = randomBlock(4096);
+            blocks.put(storage.put(Arrays.asList(block), true).get(0), block);
+        }
+        Assert.assertTrue("Rolled segments", dir.toFile().list().length > 2);
+        for (Map.Entry<Multihash, byte[]> e : blocks.entrySet())
+            Assert.assertArrayEquals(e.getValue(), storage.getRaw(e.getKey()).get().get());
+        storage.close();
+
+        PackfileContentAddressedStorage reopened = PackfileContentAddressedStorage.open(dir, 64 * 1024);
+        for (Map.Entry<Multihash, byte[]> e : blocks.entrySet()) {
+            Assert.assertArrayEquals(e.getValue(), reopened.getRaw(e.getKey()).get().get());
+            Assert.assertEquals(Optional.of(4096), reopened.getSize(e.getKey()).get());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void compactionReclaimsUnpinned() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        PackfileContentAddressedStorage storage = PackfileContentAddressedStorage.open(dir, 64 * 1024);
+        List<Multihash> hashes = storage.put(IntStream.range(0, 100)
+                .mapToObj(i -> randomBlock(4096))
+                .collect(Collectors.toList()), false);
+        long before = segmentBytes(dir);
+        Set<Multihash> pinned = new HashSet<>(hashes.subList(0, 10));
+        Set<Multihash> removed = storage.retainOnly(pinned);
+
+        Assert.assertEquals(90, removed.size());
+        Assert.assertTrue("Reclaimed space", segmentBytes(dir) < before / 2);
+        for (Multihash h : hashes)
+            Assert.assertEquals(pinned.contains(h), storage.contains(h));
+        storage.close();
+
+        PackfileContentAddressedStorage reopened = PackfileContentAddressedStorage.open(dir, 64 * 1024);
+        for (Multihash h : pinned)
+            Assert.assertTrue(reopened.getRaw(h).get().isPresent());
+        reopened.close();
+    }
+
+    @Test
+    public void truncatedRecordIsDiscarded() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        PackfileContentAddressedStorage storage = PackfileContentAddressedStorage.open(dir);
+        Multihash first = storage.put(Arrays.asList(randomBlock(100)), true).get(0);
+        Multihash second = storage.put(Arrays.asList(randomBlock(100)), true).get(0);
+        storage.close();
+        Path segment = dir.resolve("00000000.pack");
+        byte[] raw = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOfRange(raw, 0, raw.length - 10));
+
+        PackfileContentAddressedStorage reopened = PackfileContentAddressedStorage.open(dir);
+        Assert.assertTrue(reopened.contains(first));
+        Assert.assertFalse(reopened.contains(second));
+        Multihash third = reopened.put(Arrays.asList(randomBlock(100)), true).get(0);
+        Assert.assertTrue(reopened.getRaw(third).get().isPresent());
+        reopened.close();
+    }
+}
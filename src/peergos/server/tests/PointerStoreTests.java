@@ -0,0 +1,86 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PointerStoreTests {
+    private static final Random r = new Random(11);
+
+    private static PublicKeyHash randomWriter() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash));
+    }
+
+    private static byte[] randomRoot() {
+        byte[] root = new byte[64];
+        r.nextBytes(root);
+        return root;
+    }
+
+    @Test
+    public void onlyOneConcurrentUpdateWins() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pointers");
+        String db = dir.resolve("mutable.sql").toString();
+        JdbcPointerStore store = JdbcPointerStore.buildSqlLite(db);
+        PublicKeyHash writer = randomWriter();
+        byte[] initial = randomRoot();
+        Assert.assertTrue(store.setPointer(writer, Optional.empty(), initial).get());
+        Assert.assertFalse("Create twice", store.setPointer(writer, Optional.empty(), randomRoot()).get());
+
+        List<byte[]> candidates = new ArrayList<>();
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] candidate = randomRoot();
+            candidates.add(candidate);
+            results.add(store.setPointer(writer, Optional.of(initial), candidate));
+        }
+        byte[] winner = null;
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).get()) {
+                Assert.assertNull("Only one update can succeed", winner);
+                winner = candidates.get(i);
+            }
+        }
+        Assert.assertNotNull(winner);
+        Assert.assertArrayEquals(winner, store.getPointer(writer).get().get());
+        store.close();
+
+        JdbcPointerStore reopened = JdbcPointerStore.buildSqlLite(db);
+        Assert.assertArrayEquals(winner, reopened.getPointer(writer).get().get());
+        Assert.assertFalse(reopened.getPointer(randomWriter()).get().isPresent());
+        reopened.close();
+    }
+
+    @Test
+    public void cacheFollowsWrites() throws Exception {
+        JdbcPointerStore store = JdbcPointerStore.buildSqlLite(":memory:", 1, 2);
+        List<PublicKeyHash> writers = new ArrayList<>();
+        Map<PublicKeyHash, byte[]> current = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            PublicKeyHash writer = randomWriter();
+            writers.add(writer);
+            Assert.assertFalse(store.getPointer(writer).get().isPresent());
+            byte[] root = randomRoot();
+            Assert.assertTrue(store.setPointer(writer, Optional.empty(), root).get());
+            current.put(writer, root);
+        }
+        // the cache is smaller than the number of writers, so some of these are read from sqlite
+        for (int round = 0; round < 3; round++) {
+            for (PublicKeyHash writer : writers) {
+                byte[] existing = store.getPointer(writer).get().get();
+                Assert.assertArrayEquals(current.get(writer), existing);
+                byte[] updated = randomRoot();
+                Assert.assertTrue(store.setPointer(writer, Optional.of(existing), updated).get());
+                current.put(writer, updated);
+            }
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,138 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.mutable.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PointerUpdateTests {
+    private static final Random r = new Random(17);
+
+    /** Pointers in memory, without any signature checks
+     */
+    private static class RamPointers implements MutablePointers {
+        private final Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+        public int reads;
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+            pointers.put(writer, writerSignedBtreeRootHash);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+            reads++;
+            return CompletableFuture.completedFuture(Optional.ofNullable(pointers.get(writer)));
+        }
+    }
+
+    private static PublicKeyHash randomKey() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash));
+    }
+
+    private static byte[] randomRoot() {
+        byte[] root = new byte[64];
+        r.nextBytes(root);
+        return root;
+    }
+
+    @Test
+    public void updatesArePushedToCache() {
+        RamPointers store = new RamPointers();
+        MutableEventPropagator server = new MutableEventPropagator(store);
+        PointerUpdateStream stream = new PointerUpdateStream(store, owner -> CompletableFuture.completedFuture(true));
+        server.addListener(stream);
+        // with a ttl this long, only a pushed update can change a cached value
+        CachingPointers client = new CachingPointers(server, Integer.MAX_VALUE, stream);
+
+        PublicKeyHash owner = randomKey(), writer = randomKey();
+        byte[] v1 = randomRoot();
+        server.setPointer(owner, writer, v1).join();
+        Assert.assertArrayEquals(v1, client.getPointer(owner, writer).join().get());
+        // the first response of a new subscription resets the cache
+        Assert.assertArrayEquals(v1, client.getPointer(owner, writer).join().get());
+
+        int reads = store.reads;
+        for (int i = 0; i < 5; i++) {
+            byte[] updated = randomRoot();
+            server.setPointer(owner, writer, updated).join();
+            Assert.assertArrayEquals(updated, client.getPointer(owner, writer).join().get());
+        }
+        // each update is read once by the stream, and never by the client
+        Assert.assertEquals(reads + 5, store.reads);
+    }
+
+    @Test
+    public void remoteOwnersAreNotWatched() {
+        RamPointers store = new RamPointers();
+        PublicKeyHash remoteOwner = randomKey(), writer = randomKey();
+        PointerUpdateStream stream = new PointerUpdateStream(store,
+                owner -> CompletableFuture.completedFuture(! owner.equals(remoteOwner)));
+        PointerUpdates first = stream.waitForUpdates(PointerSubscriptions.NEW_EPOCH,
+                Collections.singletonMap(writer, new Pair<>(remoteOwner, 0L))).join();
+        Assert.assertTrue(first.reset);
+        PointerUpdates second = stream.waitForUpdates(first.epoch,
+                Collections.singletonMap(writer, new Pair<>(remoteOwner, first.sequence))).join();
+        Assert.assertFalse(second.reset);
+        Assert.assertEquals(Collections.singleton(writer), second.remote);
+    }
+
+    @Test
+    public void lateEventsPublishTheCurrentValue() {
+        RamPointers store = new RamPointers();
+        PointerUpdateStream stream = new PointerUpdateStream(store, owner -> CompletableFuture.completedFuture(true));
+        PublicKeyHash owner = randomKey(), writer = randomKey();
+        byte[] v1 = randomRoot(), v2 = randomRoot();
+        store.setPointer(owner, writer, v1).join();
+        store.setPointer(owner, writer, v2).join();
+
+        PointerUpdates start = stream.waitForUpdates(PointerSubscriptions.NEW_EPOCH,
+                Collections.singletonMap(writer, new Pair<>(owner, 0L))).join();
+        // the events for both updates arrive after the second was committed, in the wrong order
+        stream.accept(new MutableEvent(owner, writer, v2));
+        stream.accept(new MutableEvent(owner, writer, v1));
+
+        PointerUpdates updates = stream.waitForUpdates(start.epoch,
+                Collections.singletonMap(writer, new Pair<>(owner, start.sequence))).join();
+        Assert.assertArrayEquals(v2, updates.updated.get(writer));
+    }
+
+    @Test
+    public void readDuringAPollIsNotServedStale() throws Exception {
+        RamPointers store = new RamPointers();
+        MutableEventPropagator server = new MutableEventPropagator(store);
+        long timeout = 200;
+        PointerUpdateStream stream = new PointerUpdateStream(store, owner -> CompletableFuture.completedFuture(true),
+                PointerUpdateStream.DEFAULT_MAX_WRITERS, timeout);
+        server.addListener(stream);
+        CachingPointers client = new CachingPointers(server, Integer.MAX_VALUE, stream);
+
+        PublicKeyHash owner = randomKey(), watched = randomKey(), other = randomKey();
+        server.setPointer(owner, watched, randomRoot()).join();
+        client.getPointer(owner, watched).join();
+        // the first response resets the cache, after which the client is polling for updates to the watched writer
+        client.getPointer(owner, watched).join();
+
+        // read another writer while that poll is outstanding, then update it before the poll times out
+        byte[] v1 = randomRoot(), v2 = randomRoot();
+        server.setPointer(owner, other, v1).join();
+        Assert.assertArrayEquals(v1, client.getPointer(owner, other).join().get());
+        server.setPointer(owner, other, v2).join();
+        Thread.sleep(2 * timeout);
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (! Arrays.equals(v2, client.getPointer(owner, other).join().get())) {
+            if (System.currentTimeMillis() > deadline)
+                Assert.fail("Cached pointer was never updated");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+public class ReedSolomonTests {
+    private static final Random random = new Random(666);
+
+    private static byte[] randomBytes(int length) {
+        byte[] res = new byte[length];
+        random.nextBytes(res);
+        return res;
+    }
+
+    @Test
+    public void sameEncodingAsGaloisPolynomial() {
+        for (int original : ErasureFragmenter.ALLOWED_ORIGINAL) {
+            for (int allowedFailures : Arrays.asList(5, 10)) {
+                if (original + 2 * allowedFailures > 256)
+                    continue;
+                byte[] input = randomBytes(random.nextInt(100_000));
+                byte[][] expected = Erasure.split(input, original, allowedFailures);
+                byte[][] actual = new ReedSolomon(original, allowedFailures).encode(input);
+                Assert.assertEquals(expected.length, actual.length);
+                for (int i=0; i < expected.length; i++)
+                    Assert.assertArrayEquals("Fragment " + i + " for " + original + " + " + allowedFailures, expected[i], actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void recoverMissingFragments() {
+        int original = ErasureFragmenter.ERASURE_ORIGINAL, allowedFailures = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+        ErasureFragmenter fragmenter = new ErasureFragmenter(original, allowedFailures);
+        byte[] input = randomBytes(Chunk.MAX_SIZE / 4 + 17);
+        byte[][] encoded = fragmenter.split(input);
+        int nFragments = encoded.length;
+
+        for (int missing = 0; missing <= 2 * allowedFailures; missing++) {
+            byte[][] withLosses = encoded.clone();
+            List<Integer> indices = new ArrayList<>();
+            for (int i=0; i < nFragments; i++)
+                indices.add(i);
+            Collections.shuffle(indices, random);
+            for (int i=0; i < missing; i++)
+                withLosses[indices.get(i)] = i % 2 == 0 ? null : new byte[0];
+
+            byte[] recombined = fragmenter.recombine(withLosses, 3, input.length);
+            Assert.assertArrayEquals("Recovered with " + missing + " missing fragments",
+                    input, Arrays.copyOfRange(recombined, 3, recombined.length));
+        }
+
+        // losing all the parity is fine
+        byte[][] noParity = encoded.clone();
+        for (int i=original; i < nFragments; i++)
+            noParity[i] = null;
+        Assert.assertArrayEquals(input, fragmenter.recombine(noParity, 0, input.length));
+
+        byte[][] tooManyLosses = encoded.clone();
+        for (int i=0; i <= 2 * allowedFailures; i++)
+            tooManyLosses[i] = null;
+        try {
+            fragmenter.recombine(tooManyLosses, 0, input.length);
+            Assert.fail("Recovered more missing fragments than should be possible");
+        } catch (IllegalStateException expected) {}
+
+        byte[][] allMissing = new byte[nFragments][];
+        try {
+            fragmenter.recombine(allMissing, 0, input.length);
+            Assert.fail("Recovered data with every fragment missing");
+        } catch (IllegalStateException expected) {}
+    }
+}
@@ -9,10 +9,18 @@ import peergos.shared.crypto.hash.PublicKeyHash;
 import peergos.shared.crypto.hash.Sha256;
 import peergos.shared.io.ipfs.multihash.Multihash;
 
-import java.util.HashSet;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
+import peergos.server.mutable.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import static peergos.server.SpaceCheckingKeyFilter.*;
 
 public class SpaceCheckingKeyFilterTests {
@@ -43,4 +51,128 @@ public class SpaceCheckingKeyFilterTests {
         //check that deserialize(serialize(object)) == object
         Assert.assertEquals(deserialized, state);
     }
+
+    @Test
+    public void journalReplay() throws IOException {
+        ConcurrentHashMap<PublicKeyHash, SpaceCheckingKeyFilter.Stat> currentView = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, SpaceCheckingKeyFilter.Usage> usage = new ConcurrentHashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            String owner = "user" + i;
+            currentView.put(new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random())),
+                    new Stat(owner, MaybeMultihash.empty(), 0, new HashSet<>()));
+            usage.put(owner, new Usage(0));
+        }
+        State state = new State(currentView, usage);
+        Path file = Files.createTempFile("usage-state", ".cbor");
+        state.openJournal(file);
+
+        PublicKeyHash writer = currentView.keySet().iterator().next();
+        Stat stat = currentView.get(writer);
+        PublicKeyHash owned = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        currentView.put(writer, new Stat(stat.owner, MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, random())),
+                1234, Collections.singleton(owned)));
+        usage.put(stat.owner, new Usage(1234));
+        state.logUpdate(writer);
+
+        // simulate a crash part way through appending an update
+        Files.write(file, new byte[]{(byte) 0xa3, 0x66}, StandardOpenOption.APPEND);
+
+        State loaded = State.load(file);
+        Assert.assertEquals(currentView.get(writer), loaded.currentView.get(writer));
+        Assert.assertEquals(usage.get(stat.owner), loaded.getUsage().get(stat.owner));
+        Assert.assertTrue("Owned key has a view", loaded.currentView.containsKey(owned));
+        Assert.assertEquals(2001, loaded.currentView.size());
+    }
+
+    private static MutableEvent commit(WriterData wd,
+                                       MaybeMultihash current,
+                                       SigningPrivateKeyAndPublicHash signer,
+                                       MutablePointers mutable,
+                                       ContentAddressedStorage dht) throws Exception {
+        TransactionId tid = dht.startTransaction(signer.publicKeyHash).get();
+        CommittedWriterData committed = wd.commit(signer.publicKeyHash, signer, current, mutable, dht, tid).get();
+        return new MutableEvent(signer.publicKeyHash, signer.publicKeyHash, committed.signedPointer.get());
+    }
+
+    /**
+     *
+     * @return an owner whose events are processed on a different partition to owner's
+     */
+    private static PublicKeyHash otherPartition(PublicKeyHash owner, int partitions) {
+        while (true) {
+            PublicKeyHash candidate = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+            if (Math.floorMod(candidate.hashCode(), partitions) != Math.floorMod(owner.hashCode(), partitions))
+                return candidate;
+        }
+    }
+
+    @Test
+    public void eventsAreProcessedInOrderAndCoalesced() throws Exception {
+        CountDownLatch processing = new CountDownLatch(1);
+        List<Multihash> processedRoots = Collections.synchronizedList(new ArrayList<>());
+        RAMStorage dht = new RAMStorage() {
+            @Override
+            public CompletableFuture<Long> getChangeInContainedSize(MaybeMultihash original, Multihash updated) {
+                processedRoots.add(updated);
+                try {
+                    processing.await();
+                } catch (InterruptedException e) {}
+                return super.getChangeInContainedSize(original, updated);
+            }
+        };
+        WriteSynchronizerTests.RamPointers mutable = new WriteSynchronizerTests.RamPointers();
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        Path dir = Files.createTempDirectory("space-checking");
+        SpaceCheckingKeyFilter filter = new SpaceCheckingKeyFilter(null, mutable, dht,
+                new UserQuotas(dir.resolve("quotas"), 1024 * 1024, 10), dir.resolve("usage"), 2);
+        filter.processCorenodeEvent("alice", owner);
+
+        WriterData empty = WriterData.createEmpty(owner, signer, dht).get();
+        MutableEvent first = commit(empty, MaybeMultihash.empty(), signer, mutable, dht);
+        filter.accept(first);
+        // hold the worker in the first event while more arrive
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (processedRoots.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(1, processedRoots.size());
+
+        MaybeMultihash root1 = mutable.getPointerTarget(owner, owner, dht).get();
+        SigningPrivateKeyAndPublicHash sibling = ChampTests.createUser(dht, crypto);
+        WriterData withSibling = empty.addNamedKey("sibling", OwnerProof.build(sibling, owner));
+        MutableEvent second = commit(withSibling, root1, signer, mutable, dht);
+        MaybeMultihash root2 = mutable.getPointerTarget(owner, owner, dht).get();
+        SigningPrivateKeyAndPublicHash child = ChampTests.createUser(dht, crypto);
+        MutableEvent third = commit(withSibling.addNamedKey("child", OwnerProof.build(child, owner)), root2, signer, mutable, dht);
+        MaybeMultihash root3 = mutable.getPointerTarget(owner, owner, dht).get();
+        filter.accept(second);
+        filter.accept(third);
+        Assert.assertEquals(1, filter.getCoalescedEvents());
+        Assert.assertEquals(1, filter.getQueueDepth());
+
+        // a write by the newly owned key waits for the event adding it to be processed
+        CompletableFuture<Boolean> childWrite = filter.allowWrite(owner, child.publicKeyHash, 10);
+        Thread.sleep(200);
+        Assert.assertFalse(childWrite.isDone());
+
+        // but a write by an unknown key of another owner, whose partition has nothing pending, fails straight away
+        PublicKeyHash otherOwner = otherPartition(owner, 2);
+        CompletableFuture<Boolean> unknown = filter.allowWrite(otherOwner, ChampTests.createUser(dht, crypto).publicKeyHash, 10);
+        try {
+            unknown.get(1, TimeUnit.SECONDS);
+            Assert.fail("Unknown writer was allowed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("Unknown writing key"));
+        }
+
+        processing.countDown();
+        Assert.assertTrue(childWrite.get(10, TimeUnit.SECONDS));
+        deadline = System.currentTimeMillis() + 10_000;
+        while (filter.getProcessedEvents() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(2, filter.getProcessedEvents());
+        Assert.assertEquals(0, filter.getQueueDepth());
+        // the second event was superseded by the third, which was processed after the first
+        Assert.assertEquals(Arrays.asList(root1.get(), root3.get()), processedRoots);
+    }
 }
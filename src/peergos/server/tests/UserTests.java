@@ -17,7 +17,9 @@ import peergos.shared.crypto.asymmetric.curve25519.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.random.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.server.*;
+import peergos.shared.storage.*;
 import peergos.shared.storage.controller.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
@@ -287,9 +289,10 @@ public abstract class UserTests {
 
         //rename
         String newname = "newname.txt";
-        updatedRoot4.getDescendentByPath(otherName, context.network).get().get()
+        // children are looked up by name hash, so use the parent with the updated link
+        FileWrapper updatedRoot5 = updatedRoot4.getDescendentByPath(otherName, context.network).get().get()
                 .rename(newname, context.network, updatedRoot4, hasher).get();
-        checkFileContents(data3, updatedRoot4.getDescendentByPath(newname, context.network).get().get(), context);
+        checkFileContents(data3, updatedRoot5.getDescendentByPath(newname, context.network).get().get(), context);
         // check from the root as well
         checkFileContents(data3, context.getByPath(username + "/" + newname).get().get(), context);
         // check from a fresh log in too
@@ -570,7 +573,8 @@ public abstract class UserTests {
                     context.crypto.random, hasher, l -> {}, transaction.getLocations()).get();
         } catch (Exception e) {}
         int during = context.getTotalSpaceUsed(context.signer.publicKeyHash, context.signer.publicKeyHash).get().intValue();
-        Assert.assertTrue("One chunk uploaded", during > 5 * 1024*1024);
+        // chunks are only linked into the tree once they have all been written
+        Assert.assertTrue("No chunks committed", during < prior + 5000);
 
         Set<Transaction> pending = context.getTransactionService().getOpenTransactions().join();
         pending.forEach(t -> context.getTransactionService().clearAndClose(t).join());
@@ -773,6 +777,193 @@ public abstract class UserTests {
         FileWrapper renamed = theDir.rename("subdir2", network, userRoot2, hasher).get();
     }
 
+    @Test
+    public void childLookupByName() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        String dirName = "dir";
+        context.getUserRoot().get().mkdir(dirName, context.network, false, context.crypto.random, hasher).get();
+        String path = "/" + username + "/" + dirName;
+        List<String> names = IntStream.range(0, 10)
+                .mapToObj(i -> "child" + i)
+                .collect(Collectors.toList());
+        for (String name : names)
+            context.getByPath(path).get().get().mkdir(name, context.network, false, context.crypto.random, hasher).get();
+
+        FileWrapper dir = context.getByPath(path).get().get();
+        CryptreeNode.ChildrenLinks links = dir.getPointer().fileAccess
+                .getDirectChildrenLinks(dir.getKey(), context.network).get();
+        Assert.assertTrue("All links indexed", links.nameHashes.stream().allMatch(Optional::isPresent));
+        for (String name : names)
+            Assert.assertEquals(name, dir.getChild(name, context.network).get().get().getName());
+        Assert.assertFalse(dir.getChild("missing", context.network).get().isPresent());
+
+        // rewrite the links without name hashes, as an older client would
+        WritableAbsoluteCapability cap = dir.writableFilePointer();
+        IpfsTransaction.call(cap.owner, tid -> dir.getPointer().fileAccess
+                .withChildren(cap.rBaseKey, new CryptreeNode.ChildrenLinks(links.children), hasher)
+                .commit(cap, Optional.of(dir.signingPair()), context.network, tid), context.network.dhtClient).get();
+        FileWrapper legacyDir = context.getByPath(path).get().get();
+        for (String name : names)
+            Assert.assertEquals(name, legacyDir.getChild(name, context.network).get().get().getName());
+        Assert.assertFalse(legacyDir.getChild("missing", context.network).get().isPresent());
+
+        // a mix of indexed and unindexed links, as after an older client added children
+        List<Optional<ByteArrayWrapper>> someHashes = IntStream.range(0, links.children.size())
+                .mapToObj(i -> i % 2 == 0 ? links.nameHashes.get(i) : Optional.<ByteArrayWrapper>empty())
+                .collect(Collectors.toList());
+        IpfsTransaction.call(cap.owner, tid -> legacyDir.getPointer().fileAccess
+                .withChildren(cap.rBaseKey, new CryptreeNode.ChildrenLinks(links.children, someHashes), hasher)
+                .commit(cap, Optional.of(dir.signingPair()), context.network, tid), context.network.dhtClient).get();
+        FileWrapper mixedDir = context.getByPath(path).get().get();
+        for (String name : names)
+            Assert.assertEquals(name, mixedDir.getChild(name, context.network).get().get().getName());
+        Assert.assertFalse(mixedDir.getChild("missing", context.network).get().isPresent());
+
+        // the existing links are indexed when the directory is next modified
+        mixedDir.mkdir("another", context.network, false, context.crypto.random, hasher).get();
+        FileWrapper migrated = context.getByPath(path).get().get();
+        CryptreeNode.ChildrenLinks migratedLinks = migrated.getPointer().fileAccess
+                .getDirectChildrenLinks(migrated.getKey(), context.network).get();
+        Assert.assertEquals(names.size() + 1, migratedLinks.children.size());
+        Assert.assertTrue("All links indexed", migratedLinks.nameHashes.stream().allMatch(Optional::isPresent));
+
+        // renamed children are found under their new name only
+        FileWrapper child = migrated.getChild(names.get(0), context.network).get().get();
+        child.rename("renamed", context.network, migrated, hasher).get();
+        FileWrapper renamedParent = context.getByPath(path).get().get();
+        Assert.assertTrue(renamedParent.getChild("renamed", context.network).get().isPresent());
+        Assert.assertFalse(renamedParent.getChild(names.get(0), context.network).get().isPresent());
+        Assert.assertTrue(context.getByPath(path + "/renamed").get().isPresent());
+    }
+
+    @Test
+    public void seekDuringReadAhead() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "video.mp4";
+        byte[] data = new byte[Chunk.MAX_SIZE * 4 + 1000];
+        random.nextBytes(data);
+        uploadFileSection(userRoot, filename, new AsyncReader.ArrayBacked(data), 0, data.length, context.network,
+                context.crypto.random, hasher, l -> {}).get();
+        FileWrapper file = context.getByPath(username + "/" + filename).get().get();
+        AsyncReader in = file.getInputStream(context.network, context.crypto.random, data.length, l -> {}).get();
+
+        // reading across the first chunk boundary starts retrieving the following chunks
+        byte[] buf = new byte[Chunk.MAX_SIZE + 1000];
+        Serialize.readFullArray(in, buf).get();
+        Assert.assertTrue(Arrays.equals(buf, Arrays.copyOfRange(data, 0, buf.length)));
+
+        for (long offset : new long[] {10, 3L * Chunk.MAX_SIZE + 7, Chunk.MAX_SIZE - 3}) {
+            in.seek(offset).get();
+            byte[] read = new byte[1000];
+            Serialize.readFullArray(in, read).get();
+            Assert.assertTrue("Correct data after seek to " + offset,
+                    Arrays.equals(read, Arrays.copyOfRange(data, (int) offset, (int) offset + read.length)));
+        }
+    }
+
+    @Test
+    public void seekWithChunkIndex() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "movie.mkv";
+        byte[] data = new byte[Chunk.MAX_SIZE * 3 + 100];
+        random.nextBytes(data);
+        FileWrapper updatedRoot = uploadFileSection(userRoot, filename, new AsyncReader.ArrayBacked(data), 0, data.length,
+                context.network, context.crypto.random, hasher, l -> {}).get();
+        FileWrapper file = context.getByPath(username + "/" + filename).get().get();
+        Assert.assertTrue("Large file has a chunk index", file.getPointer().fileAccess.getChunkIndex().isPresent());
+        checkSeeks(file, data, context, new long[]{3L * Chunk.MAX_SIZE + 50, 2L * Chunk.MAX_SIZE + 1, 5});
+
+        // grow the file beyond the chunks covered by the index
+        byte[] extension = new byte[Chunk.MAX_SIZE * 3];
+        random.nextBytes(extension);
+        uploadFileSection(updatedRoot, filename, new AsyncReader.ArrayBacked(extension), data.length,
+                data.length + extension.length, context.network, context.crypto.random, hasher, l -> {}).get();
+        byte[] all = new byte[data.length + extension.length];
+        System.arraycopy(data, 0, all, 0, data.length);
+        System.arraycopy(extension, 0, all, data.length, extension.length);
+
+        FileWrapper grown = context.getByPath(username + "/" + filename).get().get();
+        Assert.assertTrue("Chunk index is kept", grown.getPointer().fileAccess.getChunkIndex().isPresent());
+        checkSeeks(grown, all, context, new long[]{6L * Chunk.MAX_SIZE + 10, 4L * Chunk.MAX_SIZE + 3, Chunk.MAX_SIZE + 5});
+    }
+
+    private static void checkSeeks(FileWrapper file, byte[] expected, UserContext context, long[] offsets) throws Exception {
+        AsyncReader in = file.getInputStream(context.network, context.crypto.random, expected.length, l -> {}).get();
+        for (long offset : offsets) {
+            in.seek(offset).get();
+            byte[] read = new byte[(int) Math.min(1000, expected.length - offset)];
+            Serialize.readFullArray(in, read).get();
+            Assert.assertTrue("Correct data after seek to " + offset,
+                    Arrays.equals(read, Arrays.copyOfRange(expected, (int) offset, (int) offset + read.length)));
+        }
+    }
+
+    @Test
+    public void chunksUploadedOutOfOrder() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+
+        // delay block writes so that later chunks finish uploading before earlier ones
+        ScheduledExecutorService delays = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger writes = new AtomicInteger(0);
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        ContentAddressedStorage delayed = new HashVerifyingStorage(network.dhtClient, crypto.hasher) {
+            @Override
+            public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                          PublicKeyHash writer,
+                                                          List<byte[]> signatures,
+                                                          List<byte[]> blocks,
+                                                          TransactionId tid) {
+                int write = writes.getAndIncrement();
+                CompletableFuture<List<Multihash>> res = new CompletableFuture<>();
+                super.put(owner, writer, signatures, blocks, tid)
+                        .thenAccept(hashes -> delays.schedule(() -> {
+                            completed.add(write);
+                            res.complete(hashes);
+                        }, 100 * (3 - write % 4), TimeUnit.MILLISECONDS))
+                        .exceptionally(t -> {
+                            res.completeExceptionally(t);
+                            return null;
+                        });
+                return res;
+            }
+        };
+        UploadBudget budget = new UploadBudget(4, 3 * Chunk.MAX_SIZE);
+        NetworkAccess delayedNetwork = NetworkAccess.build(delayed, network.coreNode, network.mutable, network.social,
+                network.instanceAdmin, network.usernames, false).withUploadBudget(budget);
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, delayedNetwork, crypto);
+
+        String filename = "outoforder.bin";
+        byte[] data = new byte[Chunk.MAX_SIZE * 5 + 1000];
+        random.nextBytes(data);
+        writes.set(0);
+        completed.clear();
+        uploadFileSection(context.getUserRoot().get(), filename, new AsyncReader.ArrayBacked(data), 0, data.length,
+                context.network, context.crypto.random, hasher, l -> {}).get();
+        delays.shutdown();
+        List<Integer> inOrder = new ArrayList<>(completed);
+        Collections.sort(inOrder);
+        Assert.assertNotEquals("Writes completed out of order", inOrder, completed);
+        Assert.assertEquals("Budget is released", 0, budget.reserved());
+
+        // the chunks are linked in order, so a fresh read of the whole file sees the original data
+        UserContext fresh = PeergosNetworkUtils.ensureSignedUp(username, password, network.clear(), crypto);
+        FileWrapper file = fresh.getByPath("/" + username + "/" + filename).get().get();
+        checkFileContents(data, file, fresh);
+        checkFileContentsChunked(data, file, fresh, 4);
+    }
+
     // This one takes a while, so disable most of the time
 //    @Test
     public void hugeFolder() throws Exception {
@@ -0,0 +1,179 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class WriteSynchronizerTests {
+    private static final Crypto crypto = Crypto.initJava();
+    private static final Random r = new Random(14);
+
+    /** Pointers in memory, without any signature or cas checks
+     */
+    static class RamPointers implements MutablePointers {
+        private final Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+        public final AtomicInteger reads = new AtomicInteger(0);
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+            pointers.put(writer, writerSignedBtreeRootHash);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+            reads.incrementAndGet();
+            return CompletableFuture.completedFuture(Optional.ofNullable(pointers.get(writer)));
+        }
+    }
+
+    /** Storage which counts how many times a pointer signature is checked
+     */
+    private static class CountingStorage extends RAMStorage {
+        public final AtomicInteger signingKeyLookups = new AtomicInteger(0);
+
+        @Override
+        public CompletableFuture<Optional<PublicSigningKey>> getSigningKey(PublicKeyHash hash) {
+            signingKeyLookups.incrementAndGet();
+            return super.getSigningKey(hash);
+        }
+    }
+
+    private static WriterData writerData(PublicKeyHash controller) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new WriterData(controller, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(),
+                Collections.emptyMap(), Optional.empty(), Optional.of(new Multihash(Multihash.Type.sha2_256, hash)));
+    }
+
+    private static CommittedWriterData commit(WriterData wd,
+                                              MaybeMultihash current,
+                                              SigningPrivateKeyAndPublicHash signer,
+                                              MutablePointers mutable,
+                                              ContentAddressedStorage dht) throws Exception {
+        TransactionId tid = dht.startTransaction(signer.publicKeyHash).get();
+        return wd.commit(signer.publicKeyHash, signer, current, mutable, dht, tid).get();
+    }
+
+    @Test
+    public void freshWriterDataIsServedFromCache() throws Exception {
+        CountingStorage dht = new CountingStorage();
+        RamPointers mutable = new RamPointers();
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        CommittedWriterData committed = commit(writerData(owner), MaybeMultihash.empty(), signer, mutable, dht);
+
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, 60_000);
+        Assert.assertEquals(committed.hash, synchronizer.getWriterData(owner, owner).get().hash);
+        int reads = mutable.reads.get();
+        for (int i = 0; i < 5; i++)
+            Assert.assertEquals(committed.hash, synchronizer.getWriterData(owner, owner).get().hash);
+        Assert.assertEquals("Pointer not read again", reads, mutable.reads.get());
+
+        synchronizer.invalidate(owner);
+        synchronizer.getWriterData(owner, owner).get();
+        Assert.assertEquals("Invalidated entry is revalidated", reads + 1, mutable.reads.get());
+    }
+
+    @Test
+    public void unchangedPointerIsNotVerifiedAgain() throws Exception {
+        CountingStorage dht = new CountingStorage();
+        RamPointers mutable = new RamPointers();
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        commit(writerData(owner), MaybeMultihash.empty(), signer, mutable, dht);
+
+        // with no staleness allowed every read checks the pointer, but only a changed pointer is verified
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, 0);
+        synchronizer.getWriterData(owner, owner).get();
+        int lookups = dht.signingKeyLookups.get();
+        synchronizer.getWriterData(owner, owner).get();
+        Assert.assertEquals(lookups, dht.signingKeyLookups.get());
+
+        // nor is a pointer we signed ourselves
+        CommittedWriterData updated = synchronizer.applyUpdate(owner, owner,
+                current -> {
+                    try {
+                        return CompletableFuture.completedFuture(commit(writerData(owner), current.hash, signer, mutable, dht));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }).get();
+        Assert.assertTrue(updated.signedPointer.isPresent());
+        int reads = mutable.reads.get();
+        Assert.assertEquals(updated.hash, synchronizer.getWriterData(owner, owner).get().hash);
+        Assert.assertEquals(reads + 1, mutable.reads.get());
+        Assert.assertEquals(lookups, dht.signingKeyLookups.get());
+
+        // but an update from elsewhere is
+        CommittedWriterData external = commit(writerData(owner), updated.hash, signer, mutable, dht);
+        Assert.assertEquals(external.hash, synchronizer.getWriterData(owner, owner).get().hash);
+        Assert.assertEquals(lookups + 1, dht.signingKeyLookups.get());
+    }
+
+    @Test
+    public void concurrentRevalidationsAreCoalesced() throws Exception {
+        CountingStorage dht = new CountingStorage();
+        RamPointers store = new RamPointers();
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        CommittedWriterData committed = commit(writerData(owner), MaybeMultihash.empty(), signer, store, dht);
+
+        AtomicInteger reads = new AtomicInteger(0);
+        CompletableFuture<Optional<byte[]>> response = new CompletableFuture<>();
+        MutablePointers slow = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+                return store.setPointer(owner, writer, writerSignedBtreeRootHash);
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+                reads.incrementAndGet();
+                return response;
+            }
+        };
+        WriteSynchronizer synchronizer = new WriteSynchronizer(slow, dht, 0);
+        List<CompletableFuture<CommittedWriterData>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            results.add(synchronizer.getWriterData(owner, owner));
+        response.complete(store.getPointer(owner, owner).get());
+        for (CompletableFuture<CommittedWriterData> result : results)
+            Assert.assertEquals(committed.hash, result.get().hash);
+        Assert.assertEquals(1, reads.get());
+        Assert.assertEquals(1, dht.signingKeyLookups.get());
+    }
+
+    @Test
+    public void latestIncludesPendingUpdates() throws Exception {
+        CountingStorage dht = new CountingStorage();
+        RamPointers mutable = new RamPointers();
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        commit(writerData(owner), MaybeMultihash.empty(), signer, mutable, dht);
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, 60_000);
+        synchronizer.getWriterData(owner, owner).get();
+
+        CompletableFuture<CommittedWriterData> update = new CompletableFuture<>();
+        CompletableFuture<CommittedWriterData> applied = synchronizer.applyUpdate(owner, owner, current -> update);
+        CompletableFuture<CommittedWriterData> latest = synchronizer.getLatest(owner, owner);
+        Assert.assertFalse("Waits for the pending update", latest.isDone());
+
+        CommittedWriterData current = synchronizer.getWriterData(owner, owner).get();
+        CommittedWriterData updated = commit(writerData(owner), current.hash, signer, mutable, dht);
+        update.complete(updated);
+        Assert.assertEquals(updated.hash, applied.get().hash);
+        Assert.assertEquals(updated.hash, latest.get().hash);
+    }
+}
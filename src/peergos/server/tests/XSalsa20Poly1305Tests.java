@@ -0,0 +1,71 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.*;
+
+public class XSalsa20Poly1305Tests {
+    private static final Random random = new Random(1729);
+    private static final Salsa20Poly1305 reference = new Salsa20Poly1305.Java();
+    private static final Salsa20Poly1305 optimised = new Salsa20Poly1305.OptimisedJava();
+
+    private static byte[] randomBytes(int length) {
+        byte[] res = new byte[length];
+        random.nextBytes(res);
+        return res;
+    }
+
+    @Test
+    public void compatibleWithTweetNaCl() {
+        List<Integer> lengths = new ArrayList<>(Arrays.asList(0, 1, 15, 16, 17, 31, 32, 33, 63, 64, 65, 95, 96, 97, 128, 4096, 5 * 1024 * 1024));
+        for (int i = 0; i < 200; i++)
+            lengths.add(random.nextInt(10_000));
+        for (int length : lengths) {
+            byte[] message = randomBytes(length);
+            byte[] nonce = randomBytes(XSalsa20Poly1305.NONCE_BYTES);
+            byte[] key = randomBytes(XSalsa20Poly1305.KEY_BYTES);
+
+            byte[] expected = reference.secretbox(message, nonce, key);
+            byte[] cipherText = optimised.secretbox(message, nonce, key);
+            Assert.assertArrayEquals("Cipher text for length " + length, expected, cipherText);
+            Assert.assertArrayEquals("Decrypt length " + length, message, optimised.secretbox_open(cipherText, nonce, key));
+        }
+    }
+
+    @Test
+    public void offsets() {
+        byte[] message = randomBytes(1000);
+        byte[] nonce = randomBytes(XSalsa20Poly1305.NONCE_BYTES);
+        byte[] key = randomBytes(XSalsa20Poly1305.KEY_BYTES);
+        byte[] expected = reference.secretbox(Arrays.copyOfRange(message, 7, 907), nonce, key);
+
+        byte[] out = new byte[1000];
+        XSalsa20Poly1305.secretbox(message, 7, 900, nonce, key, out, 11);
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(out, 11, 11 + 916));
+
+        byte[] decrypted = new byte[1000];
+        Assert.assertTrue(XSalsa20Poly1305.secretbox_open(out, 11, 916, nonce, key, decrypted, 3));
+        Assert.assertArrayEquals(Arrays.copyOfRange(message, 7, 907), Arrays.copyOfRange(decrypted, 3, 903));
+    }
+
+    @Test
+    public void rejectModifiedCipherText() {
+        byte[] nonce = randomBytes(XSalsa20Poly1305.NONCE_BYTES);
+        byte[] key = randomBytes(XSalsa20Poly1305.KEY_BYTES);
+        byte[] cipherText = optimised.secretbox(randomBytes(100), nonce, key);
+        for (int i = 0; i < cipherText.length; i++) {
+            byte[] modified = cipherText.clone();
+            modified[i] ^= 1 << random.nextInt(8);
+            try {
+                optimised.secretbox_open(modified, nonce, key);
+                Assert.fail("Accepted modified cipher text at " + i);
+            } catch (TweetNaCl.InvalidCipherTextException expected) {}
+        }
+        try {
+            optimised.secretbox_open(new byte[15], nonce, key);
+            Assert.fail("Accepted truncated cipher text");
+        } catch (TweetNaCl.InvalidCipherTextException expected) {}
+    }
+}
@@ -0,0 +1,99 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Compare the throughput of the sharded BlockCache against a synchronized LRUCache under a mixed read/write load
+ */
+public class BlockCacheProfiling {
+    private static final int KEYS = 20_000;
+    private static final int OPS_PER_THREAD = 1_000_000;
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private static final long CACHE_BYTES = 32 * 1024 * 1024;
+
+    private interface Cache {
+        byte[] get(Multihash key);
+        void put(Multihash key, byte[] value);
+    }
+
+    private static Cache lru() {
+        LRUCache<Multihash, byte[]> lru = new LRUCache<>((int) (CACHE_BYTES / BLOCK_SIZE));
+        return new Cache() {
+            @Override
+            public synchronized byte[] get(Multihash key) {
+                return lru.get(key);
+            }
+
+            @Override
+            public synchronized void put(Multihash key, byte[] value) {
+                lru.put(key, value);
+            }
+        };
+    }
+
+    private static Cache sharded() {
+        BlockCache cache = new BlockCache(CACHE_BYTES);
+        return new Cache() {
+            @Override
+            public byte[] get(Multihash key) {
+                return cache.get(key);
+            }
+
+            @Override
+            public void put(Multihash key, byte[] value) {
+                cache.put(key, value);
+            }
+        };
+    }
+
+    private static long opsPerSecond(Supplier<Cache> builder, List<Multihash> keys, int threads) throws Exception {
+        Cache cache = builder.get();
+        byte[] block = new byte[BLOCK_SIZE];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Random r = new Random(t);
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    // skew access towards a hot subset of keys
+                    int index = r.nextInt(4) == 0 ? r.nextInt(KEYS) : r.nextInt(KEYS / 10);
+                    Multihash key = keys.get(index);
+                    if (cache.get(key) == null)
+                        cache.put(key, block);
+                }
+            }));
+        }
+        for (Future<?> f : done)
+            f.get();
+        long t1 = System.nanoTime();
+        pool.shutdown();
+        return (long) threads * OPS_PER_THREAD * 1_000_000_000L / (t1 - t0);
+    }
+
+    @Test
+    public void compare() throws Exception {
+        Random r = new Random(1);
+        List<Multihash> keys = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            keys.add(new Multihash(Multihash.Type.sha2_256, hash));
+        }
+        for (int threads : new int[]{1, 8, 32}) {
+            // warm up
+            opsPerSecond(BlockCacheProfiling::lru, keys, threads);
+            opsPerSecond(BlockCacheProfiling::sharded, keys, threads);
+
+            long lru = opsPerSecond(BlockCacheProfiling::lru, keys, threads);
+            long sharded = opsPerSecond(BlockCacheProfiling::sharded, keys, threads);
+            System.out.printf("%d threads: LRUCache %d ops/s, BlockCache %d ops/s\n", threads, lru, sharded);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.cryptree.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/** Compare decoding and encoding of real champ and cryptree blocks through the stream based CborDecoder, against the
+ *  array based CborView, and decoding champ nodes from a CborView rather than a tree of CborObjects
+ */
+public class CborProfiling {
+    private static final Crypto crypto = Crypto.initJava();
+    private static final int RUNS = 20;
+
+    private static double bestMillis(Runnable r) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            r.run();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        return best / 1_000_000.0;
+    }
+
+    private static List<byte[]> champBlocks() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        Random r = new Random(28);
+        Champ current = Champ.empty();
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Multihash currentHash = storage.put(user.publicKeyHash, user, current.serialize(), tid).get();
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            Pair<Champ, Multihash> updated = current.put(user.publicKeyHash, user, new ByteArrayWrapper(key), key, 0,
+                    MaybeMultihash.empty(), MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, value)),
+                    3, 3, x -> x.data, tid, storage, currentHash).get();
+            current = updated.left;
+            currentHash = updated.right;
+        }
+        List<byte[]> blocks = new ArrayList<>();
+        LinkedList<Multihash> toVisit = new LinkedList<>(Collections.singletonList(currentHash));
+        while (! toVisit.isEmpty()) {
+            Multihash next = toVisit.removeFirst();
+            byte[] raw = storage.getRaw(next).get().get();
+            blocks.add(raw);
+            // only follow links to other champ nodes
+            CborView contents = CborView.of(raw).get(2);
+            for (int i = 0; i < contents.size(); i++)
+                if (contents.get(i).isLink())
+                    toVisit.add(contents.get(i).getLink());
+        }
+        return blocks;
+    }
+
+    private static List<byte[]> cryptreeBlocks() {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            RelativeCapability nextChunk = new RelativeCapability(Optional.empty(), crypto.random.randomBytes(32),
+                    SymmetricKey.random(), Optional.empty());
+            CryptreeNode dir = CryptreeNode.createDir(MaybeMultihash.empty(), SymmetricKey.random(), SymmetricKey.random(),
+                    Optional.empty(), FileProperties.EMPTY, Optional.empty(), SymmetricKey.random(), nextChunk,
+                    crypto.hasher).dir;
+            blocks.add(dir.serialize());
+        }
+        return blocks;
+    }
+
+    private static void compare(String name, List<byte[]> blocks) {
+        double stream = bestMillis(() -> blocks.forEach(b ->
+                CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(b)), b.length)));
+        double view = bestMillis(() -> blocks.forEach(CborObject::fromByteArray));
+        double links = bestMillis(() -> blocks.forEach(b -> CborView.of(b).links()));
+        List<CborObject> decoded = new ArrayList<>();
+        blocks.forEach(b -> decoded.add(CborObject.fromByteArray(b)));
+        double encode = bestMillis(() -> decoded.forEach(CborObject::toByteArray));
+        System.out.printf("%d %s blocks: CborDecoder %.2f mS, CborView %.2f mS, links only %.2f mS, encode %.2f mS\n",
+                blocks.size(), name, stream, view, links, encode);
+    }
+
+    @Test
+    public void decodeRealBlocks() throws Exception {
+        List<byte[]> champs = champBlocks();
+        compare("champ", champs);
+        // alternate the two so that neither is measured before it has been compiled
+        double tree = Double.MAX_VALUE, view = Double.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            tree = Math.min(tree, bestMillis(() -> champs.forEach(b -> Champ.fromCbor(CborObject.fromByteArray(b)))));
+            view = Math.min(view, bestMillis(() -> champs.forEach(Champ::fromByteArray)));
+        }
+        System.out.printf("%d champ nodes: via CborObject %.2f mS, via CborView %.2f mS\n", champs.size(), tree, view);
+        compare("cryptree", cryptreeBlocks());
+        byte[] chunk = new byte[5 * 1024 * 1024];
+        new Random(1).nextBytes(chunk);
+        compare("5 MiB byte array", Collections.singletonList(new CborObject.CborByteArray(chunk).toByteArray()));
+    }
+}
@@ -0,0 +1,97 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Measure the latency and allocation of champ gets, puts and removes against an in memory store. Blocks are not
+ *  signed, so that the numbers are dominated by the champ itself rather than by Ed25519.
+ */
+public class ChampProfiling {
+    private static final Crypto crypto = Crypto.initJava();
+    private static final int KEYS = 5000;
+    private static final int RUNS = 5;
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void profile(String name, int ops, Op op) throws Exception {
+        long best = Long.MAX_VALUE, allocated = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long a0 = allocatedBytes();
+            long t0 = System.nanoTime();
+            op.run();
+            best = Math.min(best, System.nanoTime() - t0);
+            allocated = allocatedBytes() - a0;
+        }
+        System.out.printf("%s: %.2f uS/op, %d bytes/op\n", name, best / 1000.0 / ops, allocated / ops);
+    }
+
+    @Test
+    public void getPutRemove() throws Exception {
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public CompletableFuture<Multihash> put(PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    byte[] block,
+                                                    TransactionId tid) {
+                return put(owner, writer.publicKeyHash, new byte[0], block, tid);
+            }
+        };
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Random r = new Random(28);
+        List<ByteArrayWrapper> keys = new ArrayList<>();
+        List<MaybeMultihash> values = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            keys.add(new ByteArrayWrapper(key));
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            values.add(MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, value)));
+        }
+        int bitWidth = ChampWrapper.BIT_WIDTH;
+        int maxCollisions = ChampWrapper.MAX_HASH_COLLISIONS_PER_LEVEL;
+        Multihash emptyHash = storage.put(user.publicKeyHash, user, Champ.empty().serialize(), tid).get();
+        AtomicReference<Pair<Champ, Multihash>> root = new AtomicReference<>();
+
+        profile("put", KEYS, () -> {
+            Pair<Champ, Multihash> current = new Pair<>(Champ.empty(), emptyHash);
+            for (int i = 0; i < KEYS; i++)
+                current = current.left.put(user.publicKeyHash, user, keys.get(i), keys.get(i).data, 0,
+                        MaybeMultihash.empty(), values.get(i), bitWidth, maxCollisions, x -> x.data, tid, storage,
+                        current.right).get();
+            root.set(current);
+        });
+        profile("get", KEYS, () -> {
+            for (int i = 0; i < KEYS; i++)
+                root.get().left.get(keys.get(i), keys.get(i).data, 0, bitWidth, storage).get();
+        });
+        profile("remove", KEYS, () -> {
+            Pair<Champ, Multihash> current = root.get();
+            for (int i = 0; i < KEYS; i++)
+                current = current.left.remove(user.publicKeyHash, user, keys.get(i), keys.get(i).data, 0,
+                        values.get(i), bitWidth, maxCollisions, tid, storage, current.right).get();
+            Assert.assertEquals(emptyHash, current.right);
+        });
+    }
+}
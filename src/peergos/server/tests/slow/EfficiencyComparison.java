@@ -40,7 +40,7 @@ public class EfficiencyComparison {
     }
 
     public static void calculateChampOverhead(Map<ByteArrayWrapper, MaybeMultihash> state) throws Exception {
-        for (int bitWidth = 2; bitWidth <= 8; bitWidth++) {
+        for (int bitWidth = 2; bitWidth <= Champ.MAX_BIT_WIDTH; bitWidth++) {
             for (int maxCollisions = 1; maxCollisions <= 6; maxCollisions++) {
                 RAMStorage champStorage = new RAMStorage();
                 SigningPrivateKeyAndPublicHash champUser = ChampTests.createUser(champStorage, crypto);
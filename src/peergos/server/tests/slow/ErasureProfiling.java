@@ -0,0 +1,50 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+/** Compare the table driven Reed-Solomon coder against the GaloisPolynomial based one it replaced, on a full chunk
+ */
+public class ErasureProfiling {
+    private static final int ORIGINAL = ErasureFragmenter.ERASURE_ORIGINAL;
+    private static final int ALLOWED_FAILURES = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+    private static final int RUNS = 5;
+
+    private static long millis(Runnable r) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            r.run();
+            best = Math.min(best, (System.nanoTime() - t0) / 1_000_000);
+        }
+        return best;
+    }
+
+    @Test
+    public void chunk() {
+        byte[] input = new byte[Chunk.MAX_SIZE];
+        new Random(1).nextBytes(input);
+        ReedSolomon coder = new ReedSolomon(ORIGINAL, ALLOWED_FAILURES);
+
+        long legacyEncode = millis(() -> Erasure.split(input, ORIGINAL, ALLOWED_FAILURES));
+        long encode = millis(() -> coder.encode(input));
+        byte[][] encoded = coder.encode(input);
+        long legacyDecode = millis(() -> Erasure.recombine(encoded, input.length, ORIGINAL, ALLOWED_FAILURES));
+        byte[] out = new byte[input.length];
+        long decode = millis(() -> coder.decode(encoded, out, 0, input.length));
+
+        // the legacy decoder can't handle missing fragments, so only the new one is timed with losses
+        byte[][] lossy = encoded.clone();
+        for (int i = 0; i < 2 * ALLOWED_FAILURES; i++)
+            lossy[i * 2] = null;
+        long recover = millis(() -> coder.decode(lossy, out, 0, input.length));
+        Assert.assertArrayEquals(input, out);
+
+        System.out.printf("Encode %d MiB: GaloisPolynomial %d mS, ReedSolomon %d mS\n", input.length >> 20, legacyEncode, encode);
+        System.out.printf("Decode, no losses: GaloisPolynomial %d mS, ReedSolomon %d mS\n", legacyDecode, decode);
+        System.out.printf("Decode, %d data fragments missing: ReedSolomon %d mS\n", 2 * ALLOWED_FAILURES, recover);
+    }
+}
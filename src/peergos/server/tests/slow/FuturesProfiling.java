@@ -0,0 +1,55 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Compare combining futures with Futures against the previous pairwise reduction, which copies the partial result at
+ *  every step
+ */
+public class FuturesProfiling {
+    // the pairwise reduction takes minutes at 100k futures, so stop it before then
+    private static final int MAX_PAIRWISE = 10_000;
+
+    private static <T> CompletableFuture<List<T>> pairwiseCombine(Collection<CompletableFuture<T>> futures) {
+        CompletableFuture<List<T>> identity = CompletableFuture.completedFuture(Collections.emptyList());
+        return futures.stream().reduce(identity,
+                (a, b) -> b.thenCompose(opt ->
+                        a.thenApply(set -> Stream.concat(set.stream(), Stream.of(opt))
+                                .collect(Collectors.toList()))),
+                (a, b) -> b.thenCompose(setb ->
+                        a.thenApply(seta -> Stream.concat(seta.stream(), setb.stream()).collect(Collectors.toList()))));
+    }
+
+    private static List<CompletableFuture<Integer>> completed(int n) {
+        return IntStream.range(0, n)
+                .mapToObj(CompletableFuture::completedFuture)
+                .collect(Collectors.toList());
+    }
+
+    private static long micros(Runnable r) {
+        long t0 = System.nanoTime();
+        r.run();
+        return (System.nanoTime() - t0) / 1000;
+    }
+
+    @Test
+    public void combine() throws Exception {
+        for (int n : new int[]{10, 1_000, 10_000, 100_000}) {
+            for (int i = 0; i < 5; i++) { // warm up
+                Futures.combineAllInOrder(completed(n)).join();
+                if (n <= MAX_PAIRWISE)
+                    pairwiseCombine(completed(n)).join();
+            }
+            long linear = micros(() -> Futures.combineAllInOrder(completed(n)).join());
+            long pairwise = n <= MAX_PAIRWISE ? micros(() -> pairwiseCombine(completed(n)).join()) : -1;
+            long mapped = micros(() -> Futures.mapAsync(IntStream.range(0, n).boxed().collect(Collectors.toList()), 32,
+                    CompletableFuture::completedFuture).join());
+            System.out.printf("%d futures: combineAllInOrder %d uS, pairwise %s, mapAsync(32) %d uS\n",
+                    n, linear, pairwise < 0 ? "skipped" : pairwise + " uS", mapped);
+        }
+    }
+}
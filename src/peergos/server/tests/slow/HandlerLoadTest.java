@@ -0,0 +1,104 @@
+package peergos.server.tests.slow;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.net.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Compare the latency of fast requests to a server which is also handling slow requests, when the handlers block a
+ *  thread on each request, and when they reply asynchronously.
+ */
+public class HandlerLoadTest {
+    private static final int HANDLER_THREADS = 10;
+    private static final int SLOW_MILLIS = 1_000;
+    private static final int SLOW_REQUESTS = 50, FAST_REQUESTS = 500;
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    private static CompletableFuture<byte[]> backend(boolean slow) {
+        CompletableFuture<byte[]> res = new CompletableFuture<>();
+        if (slow)
+            timer.schedule(() -> res.complete(new byte[1]), SLOW_MILLIS, TimeUnit.MILLISECONDS);
+        else
+            res.complete(new byte[1]);
+        return res;
+    }
+
+    private static class Blocking implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] body = backend(exchange.getRequestURI().getPath().endsWith("slow")).get();
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(400, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static class Async extends AsyncHandler {
+        Async() {
+            super("Load test", DEFAULT_MAX_IN_FLIGHT);
+        }
+
+        @Override
+        protected CompletableFuture<?> handleAsync(HttpExchange exchange) {
+            return backend(exchange.getRequestURI().getPath().endsWith("slow"))
+                    .thenAccept(body -> replyBytes(exchange, body));
+        }
+    }
+
+    private static long request(URL url) {
+        long t0 = System.nanoTime();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            Serialize.readFully(conn.getInputStream());
+            conn.disconnect();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return System.nanoTime() - t0;
+    }
+
+    private static void run(String name, HttpHandler handler, int port) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 1000);
+        server.createContext("/", handler);
+        server.setExecutor(Executors.newFixedThreadPool(HANDLER_THREADS));
+        server.start();
+        ExecutorService clients = Executors.newFixedThreadPool(SLOW_REQUESTS + 20);
+        try {
+            URL slow = new URL("http://localhost:" + port + "/slow");
+            URL fast = new URL("http://localhost:" + port + "/fast");
+            List<Future<Long>> slowTimes = new ArrayList<>();
+            for (int i = 0; i < SLOW_REQUESTS; i++)
+                slowTimes.add(clients.submit(() -> request(slow)));
+            List<Future<Long>> fastTimes = new ArrayList<>();
+            for (int i = 0; i < FAST_REQUESTS; i++)
+                fastTimes.add(clients.submit(() -> request(fast)));
+            long[] fastMillis = new long[FAST_REQUESTS];
+            for (int i = 0; i < FAST_REQUESTS; i++)
+                fastMillis[i] = fastTimes.get(i).get() / 1_000_000;
+            for (Future<Long> f : slowTimes)
+                f.get();
+            Arrays.sort(fastMillis);
+            System.out.printf("%s handlers: fast request p50 %d mS, p99 %d mS, max %d mS\n", name,
+                    fastMillis[FAST_REQUESTS / 2], fastMillis[FAST_REQUESTS * 99 / 100], fastMillis[FAST_REQUESTS - 1]);
+        } finally {
+            clients.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void mixedSlowAndFastRequests() throws Exception {
+        run("Blocking", new Blocking(), 9871);
+        run("Async", new Async(), 9872);
+    }
+}
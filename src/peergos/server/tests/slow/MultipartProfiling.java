@@ -71,6 +71,46 @@ public class MultipartProfiling {
         System.out.printf("Did %d multipart requests, averaging %d mS each.\n", requests, (t2 - t1) / requests);
     }
 
+    @Test
+    public void profileParsing() {
+        // the same part sizes as MultipartTests, without the http overhead
+        for (int power = 10; power < 21; power += 2) {
+            int size = 1 << power;
+            int count = Math.max(1, (8 * 1024 * 1024) / size);
+            String boundary = "===" + System.currentTimeMillis() + "===";
+            byte[] body = multipartBody(boundary, count, size);
+            int iterations = 20;
+            for (int i = 0; i < iterations; i++) // warm up
+                MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary);
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                List<byte[]> parts = MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary);
+                Assert.assertTrue("Correct parts", parts.size() == count && parts.get(0).length == size);
+            }
+            long t2 = System.nanoTime();
+            double mbPerSec = (double) body.length * iterations / (1024 * 1024) / ((t2 - t1) / 1_000_000_000.0);
+            System.out.printf("Parsed %d parts of %d bytes at %.1f MiB/s\n", count, size, mbPerSec);
+        }
+    }
+
+    private byte[] multipartBody(String boundary, int count, int size) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            for (int i = 0; i < count; i++) {
+                bout.write(("--" + boundary + "\r\n"
+                        + "Content-Disposition: file; name=\"file\";\r\n"
+                        + "Content-Type: application/octet-stream\r\n"
+                        + "Content-Transfer-Encoding: binary\r\n\r\n").getBytes());
+                bout.write(randomArray(size));
+                bout.write("\r\n".getBytes());
+            }
+            bout.write(("--" + boundary + "--\r\n").getBytes());
+            return bout.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void profile(int size, int count) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         byte[] data = randomArray(size);
@@ -0,0 +1,46 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+/** Compare writing and reading small blocks with a file per block against appending them to segment files
+ */
+public class PackfileProfiling {
+    private static final int BLOCKS = 20_000;
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private static final int BATCH = 10;
+
+    private static void profile(String name, Function<List<byte[]>, List<?>> put, List<byte[]> blocks) {
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < blocks.size(); i += BATCH)
+            put.apply(blocks.subList(i, Math.min(blocks.size(), i + BATCH)));
+        long t1 = System.currentTimeMillis();
+        System.out.printf("%s: wrote %d blocks of %d bytes in %d mS, %d blocks/s\n", name, blocks.size(), BLOCK_SIZE,
+                t1 - t0, blocks.size() * 1000L / Math.max(1, t1 - t0));
+    }
+
+    @Test
+    public void compare() throws Exception {
+        Random r = new Random(1);
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < BLOCKS; i++) {
+            byte[] block = new byte[BLOCK_SIZE];
+            r.nextBytes(block);
+            blocks.add(block);
+        }
+        FileContentAddressedStorage files = new FileContentAddressedStorage(Files.createTempDirectory("peergos-files"));
+        PackfileContentAddressedStorage packs = PackfileContentAddressedStorage.open(Files.createTempDirectory("peergos-packs"));
+
+        profile("File per block", batch -> {
+            List<Object> res = new ArrayList<>();
+            for (byte[] block : batch)
+                res.add(files.put(block, true));
+            return res;
+        }, blocks);
+        profile("Packfile", batch -> packs.put(batch, true), blocks);
+    }
+}
@@ -0,0 +1,92 @@
+package peergos.server.tests.slow;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.net.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Measure how many blocks per second a client can retrieve from a local server, and how many connections it opens to
+ *  do so, with JavaPoster, which makes each request on the calling thread, and with PooledPoster.
+ *
+ *  Connecting to localhost without TLS is cheap, so the difference in throughput here is a lower bound on what it will
+ *  be against a remote https server.
+ */
+public class PosterThroughput {
+    private static final int PORT = 9873;
+    private static final int BLOCKS = 2_000, BLOCK_SIZE = 4096;
+
+    private static final Set<InetSocketAddress> clients = ConcurrentHashMap.newKeySet();
+
+    /**
+     *
+     * @param concurrent whether to request all the blocks before waiting for any of them, as our async code does,
+     *                   or to wait for each before requesting the next
+     */
+    private static double blocksPerSecond(HttpPoster poster, List<Multihash> blocks, boolean concurrent) {
+        ContentAddressedStorage dht = new ContentAddressedStorage.HTTP(poster, true);
+        clients.clear();
+        long t0 = System.nanoTime();
+        List<CompletableFuture<Optional<byte[]>>> results = new ArrayList<>();
+        for (Multihash block : blocks) {
+            CompletableFuture<Optional<byte[]>> result = dht.getRaw(block);
+            if (! concurrent)
+                result.join();
+            results.add(result);
+        }
+        for (CompletableFuture<Optional<byte[]>> result : results)
+            Assert.assertTrue(result.join().isPresent());
+        return blocks.size() * 1e9 / (System.nanoTime() - t0);
+    }
+
+    @Test
+    public void blockRetrieval() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        Random r = new Random(42);
+        List<byte[]> raw = new ArrayList<>();
+        for (int i = 0; i < BLOCKS; i++) {
+            byte[] block = new byte[BLOCK_SIZE];
+            r.nextBytes(block);
+            raw.add(block);
+        }
+        List<Multihash> blocks = new ArrayList<>(storage.putRaw(null, null, Collections.emptyList(), raw, null).join());
+
+        // otherwise small responses are delayed by Nagle's algorithm, which swamps the cost of connecting
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", PORT), 1000);
+        DHTHandler dhtHandler = new DHTHandler(storage, (o, w, i) -> CompletableFuture.completedFuture(true));
+        // each client connection has a distinct remote address
+        server.createContext(Constants.DHT_URL, exchange -> {
+            clients.add(exchange.getRemoteAddress());
+            dhtHandler.handle(exchange);
+        });
+        server.setExecutor(Executors.newFixedThreadPool(20));
+        server.start();
+        try {
+            URL target = new URL("http://localhost:" + PORT + "/");
+            for (boolean concurrent : new boolean[]{false, true}) {
+                // warm up
+                blocksPerSecond(new JavaPoster(target), blocks, concurrent);
+                blocksPerSecond(new PooledPoster(target), blocks, concurrent);
+
+                double perRequest = blocksPerSecond(new JavaPoster(target), blocks, concurrent);
+                int perRequestConnections = clients.size();
+                double pooled = blocksPerSecond(new PooledPoster(target), blocks, concurrent);
+                int pooledConnections = clients.size();
+                System.out.printf("%s: JavaPoster %.0f blocks/S (%d connections), " +
+                                "PooledPoster %.0f blocks/S (%d connections)\n",
+                        concurrent ? "Concurrent" : "Sequential",
+                        perRequest, perRequestConnections, pooled, pooledConnections);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+}
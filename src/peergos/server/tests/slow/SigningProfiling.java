@@ -0,0 +1,57 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.crypto.asymmetric.curve25519.*;
+
+import java.util.*;
+
+/** Compare TweetNaCl's Ed25519 against the optimised one, for a pointer update sized message up to a full block put
+ */
+public class SigningProfiling {
+    private static final int RUNS = 10;
+
+    private static double bestMillis(Runnable r) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            r.run();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        return best / 1_000_000.0;
+    }
+
+    @Test
+    public void signAndVerify() {
+        Ed25519 reference = new Ed25519.Java();
+        Ed25519 optimised = new Ed25519.OptimisedJava();
+        Random r = new Random(1);
+        byte[] pk = new byte[32];
+        byte[] sk = new byte[64];
+        r.nextBytes(sk);
+        reference.crypto_sign_keypair(pk, sk);
+        for (int size : new int[]{100, 4 * 1024, 1024 * 1024}) {
+            byte[] message = new byte[size];
+            r.nextBytes(message);
+            byte[] signed = reference.crypto_sign(message, sk);
+            double refSign = bestMillis(() -> reference.crypto_sign(message, sk));
+            double sign = bestMillis(() -> optimised.crypto_sign(message, sk));
+            double refVerify = bestMillis(() -> reference.crypto_sign_open(signed, pk));
+            double verify = bestMillis(() -> optimised.crypto_sign_open(signed, pk));
+            System.out.printf("%d bytes: sign TweetNaCl %.2f mS, optimised %.2f mS; verify TweetNaCl %.2f mS, optimised %.2f mS\n",
+                    size, refSign, sign, refVerify, verify);
+        }
+
+        // a block put of 50 small blocks
+        List<byte[]> messages = new ArrayList<>();
+        List<byte[]> signatures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] message = new byte[4 * 1024];
+            r.nextBytes(message);
+            messages.add(message);
+            signatures.add(reference.crypto_sign_detached(message, sk));
+        }
+        double refAll = bestMillis(() -> reference.crypto_sign_verify_all(signatures, messages, pk));
+        double all = bestMillis(() -> optimised.crypto_sign_verify_all(signatures, messages, pk));
+        System.out.printf("Verify 50 blocks: TweetNaCl %.2f mS, optimised %.2f mS\n", refAll, all);
+    }
+}
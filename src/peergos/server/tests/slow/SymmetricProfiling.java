@@ -0,0 +1,44 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.*;
+
+/** Compare the TweetNaCl based secretbox against the optimised one, for sizes from a small metadata blob to a chunk
+ */
+public class SymmetricProfiling {
+    private static final int RUNS = 10;
+
+    private static double bestMillis(Runnable r) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            r.run();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        return best / 1_000_000.0;
+    }
+
+    @Test
+    public void secretbox() {
+        Salsa20Poly1305 reference = new Salsa20Poly1305.Java();
+        Salsa20Poly1305 optimised = new Salsa20Poly1305.OptimisedJava();
+        Random r = new Random(1);
+        byte[] nonce = new byte[XSalsa20Poly1305.NONCE_BYTES];
+        byte[] key = new byte[XSalsa20Poly1305.KEY_BYTES];
+        r.nextBytes(nonce);
+        r.nextBytes(key);
+        for (int size : new int[]{4 * 1024, 64 * 1024, 1024 * 1024, 5 * 1024 * 1024}) {
+            byte[] message = new byte[size];
+            r.nextBytes(message);
+            byte[] cipherText = reference.secretbox(message, nonce, key);
+            double refEncrypt = bestMillis(() -> reference.secretbox(message, nonce, key));
+            double encrypt = bestMillis(() -> optimised.secretbox(message, nonce, key));
+            double refDecrypt = bestMillis(() -> reference.secretbox_open(cipherText, nonce, key));
+            double decrypt = bestMillis(() -> optimised.secretbox_open(cipherText, nonce, key));
+            System.out.printf("%d KiB: encrypt TweetNaCl %.2f mS, optimised %.2f mS; decrypt TweetNaCl %.2f mS, optimised %.2f mS\n",
+                    size / 1024, refEncrypt, encrypt, refDecrypt, decrypt);
+        }
+    }
+}
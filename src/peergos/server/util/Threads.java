@@ -0,0 +1,37 @@
+package peergos.server.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+public class Threads {
+    private static final Logger LOG = Logging.LOG();
+
+    /**
+     *
+     * @return An executor which runs each task in a new virtual thread, if this runtime has them
+     */
+    public static Optional<ExecutorService> virtualThreadPerTask() {
+        try {
+            return Optional.of((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (ReflectiveOperationException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     *
+     * @param threads The number of threads if using a fixed pool
+     * @param preferVirtual Whether to use virtual threads, if this runtime has them
+     * @return An executor to run http handlers
+     */
+    public static ExecutorService handlerPool(int threads, boolean preferVirtual) {
+        if (preferVirtual) {
+            Optional<ExecutorService> virtual = virtualThreadPerTask();
+            if (virtual.isPresent())
+                return virtual.get();
+            LOG.info("Virtual threads are not supported by this runtime, using " + threads + " handler threads");
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+}
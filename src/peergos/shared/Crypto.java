@@ -56,8 +56,8 @@ public class Crypto {
 
     public static Crypto initJava() {
         SafeRandom.Java random = new SafeRandom.Java();
-        Salsa20Poly1305.Java symmetricProvider = new Salsa20Poly1305.Java();
-        Ed25519.Java signer = new Ed25519.Java();
+        Salsa20Poly1305.OptimisedJava symmetricProvider = new Salsa20Poly1305.OptimisedJava();
+        Ed25519.OptimisedJava signer = new Ed25519.OptimisedJava();
         Curve25519 boxer = new Curve25519.Java();
         return init(() -> new Crypto(random, new ScryptJava(), symmetricProvider, signer, boxer), true);
     }
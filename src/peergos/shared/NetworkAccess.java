@@ -29,6 +29,7 @@ import java.util.stream.*;
  */
 public class NetworkAccess {
     private static final Logger LOG = Logger.getGlobal();
+    private static final int MAX_CONCURRENT_LOOKUPS = 32;
 
     public final CoreNode coreNode;
     public final SocialNetwork social;
@@ -37,6 +38,7 @@ public class NetworkAccess {
     public final MutableTree tree;
     public final WriteSynchronizer synchronizer;
     public final InstanceAdmin instanceAdmin;
+    public final UploadBudget uploadBudget;
     @JsProperty
     public final List<String> usernames;
     private final LocalDateTime creationTime;
@@ -62,6 +64,20 @@ public class NetworkAccess {
                          InstanceAdmin instanceAdmin,
                          List<String> usernames,
                          boolean isJavascript) {
+        this(coreNode, social, dhtClient, mutable, tree, synchronizer, instanceAdmin, UploadBudget.defaultBudget(),
+                usernames, isJavascript);
+    }
+
+    public NetworkAccess(CoreNode coreNode,
+                         SocialNetwork social,
+                         ContentAddressedStorage dhtClient,
+                         MutablePointers mutable,
+                         MutableTree tree,
+                         WriteSynchronizer synchronizer,
+                         InstanceAdmin instanceAdmin,
+                         UploadBudget uploadBudget,
+                         List<String> usernames,
+                         boolean isJavascript) {
         this.coreNode = coreNode;
         this.social = social;
         this.dhtClient = new HashVerifyingStorage(dhtClient, isJavascript ? new ScryptJS() : new ScryptJava());
@@ -69,6 +85,7 @@ public class NetworkAccess {
         this.tree = tree;
         this.synchronizer = synchronizer;
         this.instanceAdmin = instanceAdmin;
+        this.uploadBudget = uploadBudget;
         this.usernames = usernames;
         this.creationTime = LocalDateTime.now();
         this.isJavascript = isJavascript;
@@ -79,7 +96,15 @@ public class NetworkAccess {
     }
 
     public NetworkAccess withCorenode(CoreNode newCore) {
-        return new NetworkAccess(newCore, social, dhtClient, mutable, tree, synchronizer, instanceAdmin, usernames, isJavascript);
+        return new NetworkAccess(newCore, social, dhtClient, mutable, tree, synchronizer, instanceAdmin, uploadBudget, usernames, isJavascript);
+    }
+
+    /**
+     *
+     * @param budget The limits on parallelism and memory shared by all file uploads through the returned network
+     */
+    public NetworkAccess withUploadBudget(UploadBudget budget) {
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, tree, synchronizer, instanceAdmin, budget, usernames, isJavascript);
     }
 
     @JsMethod
@@ -90,16 +115,21 @@ public class NetworkAccess {
     }
 
     public NetworkAccess clear() {
-        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dhtClient);
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dhtClient, this.synchronizer.getMaxStalenessMillis());
         MutableTree mutableTree = new MutableTreeImpl(mutable, dhtClient, synchronizer);
-        return new NetworkAccess(coreNode, social, dhtClient, mutable, mutableTree, synchronizer, instanceAdmin, usernames, isJavascript);
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, mutableTree, synchronizer, instanceAdmin, uploadBudget, usernames, isJavascript);
     }
 
     public NetworkAccess withMutablePointerCache(int ttl) {
-        CachingPointers mutable = new CachingPointers(this.mutable, ttl);
-        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dhtClient);
+        boolean pushed = this.mutable instanceof PointerSubscriptions;
+        CachingPointers mutable = pushed ?
+                new CachingPointers(this.mutable, ttl, (PointerSubscriptions) this.mutable) :
+                new CachingPointers(this.mutable, ttl);
+        // Pointers can already be ttl out of date, so writer data can be too. Pushed pointers are kept current, and
+        // checking one against our verified copy is only a cache lookup, so then writer data is always revalidated.
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dhtClient, pushed ? 0 : ttl);
         MutableTree mutableTree = new MutableTreeImpl(mutable, dhtClient, synchronizer);
-        return new NetworkAccess(coreNode, social, dhtClient, mutable, mutableTree, synchronizer, instanceAdmin, usernames, isJavascript);
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, mutableTree, synchronizer, instanceAdmin, uploadBudget, usernames, isJavascript);
     }
 
     public static CoreNode buildProxyingCorenode(HttpPoster poster, Multihash pkiServerNodeId) {
@@ -111,7 +141,7 @@ public class NetworkAccess {
     }
 
     public static ContentAddressedStorage buildLocalDht(HttpPoster apiPoster, boolean isPeergosServer) {
-        return new CachingStorage(new ContentAddressedStorage.HTTP(apiPoster, isPeergosServer), 10_000, 50 * 1024);
+        return new CachingStorage(new ContentAddressedStorage.HTTP(apiPoster, isPeergosServer), 20 * 1024 * 1024, 50 * 1024);
     }
 
     @JsMethod
@@ -211,13 +241,19 @@ public class NetworkAccess {
                                       InstanceAdmin instanceAdmin,
                                       List<String> usernames,
                                       boolean isJavascript) {
-        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht);
+        // without a pointer cache, every read must see the latest pointer
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, 0);
         MutableTree btree = new MutableTreeImpl(mutable, dht, synchronizer);
         return new NetworkAccess(coreNode, social, dht, mutable, btree, synchronizer, instanceAdmin, usernames, isJavascript);
     }
 
     public static CompletableFuture<NetworkAccess> buildJava(URL target) {
-        JavaPoster poster = new JavaPoster(target);
+        return buildJava(new JavaPoster(target));
+    }
+
+    /** Connect directly to a Peergos server, sending all requests through the given poster
+     */
+    public static CompletableFuture<NetworkAccess> buildJava(HttpPoster poster) {
         CoreNode direct = buildDirectCorenode(poster);
         try {
             List<String> usernames = direct.getUsernames("").get();
@@ -243,38 +279,53 @@ public class NetworkAccess {
     }
 
     public CompletableFuture<List<RetrievedCapability>> retrieveAllMetadata(List<AbsoluteCapability> links) {
-        List<CompletableFuture<Optional<RetrievedCapability>>> all = links.stream()
-                .map(link -> {
-                    PublicKeyHash owner = link.owner;
-                    PublicKeyHash writer = link.writer;
-                    byte[] mapKey = link.getMapKey();
-                    return tree.get(owner, writer, mapKey)
-                            .thenCompose(key -> {
-                                if (key.isPresent())
-                                    return dhtClient.get(key.get())
-                                            .thenApply(dataOpt ->  dataOpt
-                                                    .map(cbor -> new RetrievedCapability(
-                                                            link,
-                                                            CryptreeNode.fromCbor(cbor, link.rBaseKey, key.get()))));
-                                LOG.severe("Couldn't download link at: " + new Location(owner, writer, mapKey));
-                                Optional<RetrievedCapability> result = Optional.empty();
-                                return CompletableFuture.completedFuture(result);
-                            });
-                }).collect(Collectors.toList());
-
-        return Futures.combineAll(all).thenApply(optSet -> optSet.stream()
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList()));
+        // resolve the champ lookups first, a batch for each writer, then retrieve the cryptree nodes in a single batch
+        Map<Pair<PublicKeyHash, PublicKeyHash>, List<Integer>> byWriter = new LinkedHashMap<>();
+        for (int i = 0; i < links.size(); i++)
+            byWriter.computeIfAbsent(new Pair<>(links.get(i).owner, links.get(i).writer), w -> new ArrayList<>()).add(i);
+        MaybeMultihash[] found = new MaybeMultihash[links.size()];
+        return Futures.mapAsync(byWriter.entrySet(), MAX_CONCURRENT_LOOKUPS,
+                e -> tree.getAll(e.getKey().left, e.getKey().right, e.getValue().stream()
+                        .map(i -> links.get(i).getMapKey())
+                        .collect(Collectors.toList()))
+                        .thenApply(values -> {
+                            for (int i = 0; i < values.size(); i++)
+                                found[e.getValue().get(i)] = values.get(i);
+                            return true;
+                        }))
+                .thenApply(done -> Arrays.asList(found))
+                .thenCompose(hashes -> {
+            List<Multihash> present = hashes.stream()
+                    .filter(MaybeMultihash::isPresent)
+                    .map(MaybeMultihash::get)
+                    .collect(Collectors.toList());
+            return dhtClient.getAll(present).thenApply(blocks -> {
+                Map<Multihash, Optional<CborObject>> fetched = new HashMap<>();
+                for (int i = 0; i < present.size(); i++)
+                    fetched.put(present.get(i), blocks.get(i));
+                List<RetrievedCapability> res = new ArrayList<>();
+                for (int i = 0; i < links.size(); i++) {
+                    AbsoluteCapability link = links.get(i);
+                    MaybeMultihash key = hashes.get(i);
+                    if (! key.isPresent()) {
+                        LOG.severe("Couldn't download link at: " + new Location(link.owner, link.writer, link.getMapKey()));
+                        continue;
+                    }
+                    fetched.get(key.get())
+                            .map(cbor -> new RetrievedCapability(link, CryptreeNode.fromCbor(cbor, link.rBaseKey, key.get())))
+                            .ifPresent(res::add);
+                }
+                return res;
+            });
+        });
     }
 
     public CompletableFuture<Set<FileWrapper>> retrieveAll(List<EntryPoint> entries) {
-        return Futures.reduceAll(entries, Collections.emptySet(),
-                (set, entry) -> retrieveEntryPoint(entry)
-                        .thenApply(opt ->
-                                opt.map(f -> Stream.concat(set.stream(), Stream.of(f)).collect(Collectors.toSet()))
-                                        .orElse(set)),
-                (a, b) -> Stream.concat(a.stream(), b.stream()).collect(Collectors.toSet()));
+        return Futures.reduceAsync(entries, MAX_CONCURRENT_LOOKUPS, this::retrieveEntryPoint, new HashSet<>(),
+                (set, opt) -> {
+                    opt.ifPresent(set::add);
+                    return set;
+                });
     }
 
     public CompletableFuture<Optional<FileWrapper>> retrieveEntryPoint(EntryPoint e) {
@@ -356,16 +407,41 @@ public class NetworkAccess {
             System.out.println("Uploading chunk: " + (metadata.isDirectory() ? "dir" : "file")
                     + " at " + ArrayOps.bytesToHex(mapKey)
                     + " with " + metadata.toCbor().links().size() + " fragments");
-            byte[] metaBlob = metadata.serialize();
-            return dhtClient.put(owner, writer.publicKeyHash, writer.secret.signatureOnly(metaBlob), metaBlob, tid)
-                    .thenCompose(blobHash -> tree.put(owner, writer, mapKey, metadata.committedHash(), blobHash, tid)
-                            .thenApply(res -> blobHash));
+            return writeChunk(metadata, owner, mapKey, writer, tid)
+                    .thenCompose(mutation -> tree.put(owner, writer, mapKey, metadata.committedHash(), mutation.updated.get(), tid)
+                            .thenApply(res -> mutation.updated.get()));
         } catch (Exception e) {
             LOG.severe(e.getMessage());
             throw new RuntimeException(e);
         }
     }
 
+    /** Write the metadata blob of a chunk without linking it into the tree
+     *
+     * @return the tree mutation that will link the chunk at mapKey, to be passed to commitChunks
+     */
+    public CompletableFuture<ImmutableTree.Mutation> writeChunk(CryptreeNode metadata,
+                                                                PublicKeyHash owner,
+                                                                byte[] mapKey,
+                                                                SigningPrivateKeyAndPublicHash writer,
+                                                                TransactionId tid) {
+        byte[] metaBlob = metadata.serialize();
+        return dhtClient.put(owner, writer.publicKeyHash, writer.secret.signatureOnly(metaBlob), metaBlob, tid)
+                .thenApply(blobHash -> ImmutableTree.Mutation.put(mapKey, metadata.committedHash(), blobHash));
+    }
+
+    /** Link many written chunks into the tree with a single commit of the writer data
+     *
+     * @param mutations the results of writeChunk
+     * @return true when committed
+     */
+    public CompletableFuture<Boolean> commitChunks(PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   List<ImmutableTree.Mutation> mutations,
+                                                   TransactionId tid) {
+        return tree.applyAll(owner, writer, mutations, tid);
+    }
+
     public CompletableFuture<Multihash> addPreexistingChunk(CryptreeNode metadata,
                                                             PublicKeyHash owner,
                                                             byte[] mapKey,
@@ -404,21 +480,29 @@ public class NetworkAccess {
     public CompletableFuture<List<FragmentWithHash>> downloadFragments(List<Multihash> hashes,
                                                                        ProgressConsumer<Long> monitor,
                                                                        double spaceIncreaseFactor) {
-        List<CompletableFuture<Optional<FragmentWithHash>>> futures = hashes.stream().parallel()
-                .map(h -> (h.isIdentity() ?
-                        CompletableFuture.completedFuture(Optional.of(h.getHash())) :
-                        (h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
-                                dhtClient.getRaw(h) :
-                                dhtClient.get(h)
-                                        .thenApply(cborOpt -> cborOpt.map(cbor -> ((CborObject.CborByteArray) cbor).value))) // for backwards compatibility
-                        .thenApply(dataOpt -> {
-                            Optional<byte[]> bytes = dataOpt;
-                            bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
-                            return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
-                        }))
+        List<Multihash> raw = hashes.stream()
+                .filter(h -> ! h.isIdentity() && h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw)
+                .collect(Collectors.toList());
+        // for backwards compatibility
+        List<Multihash> cbor = hashes.stream()
+                .filter(h -> ! h.isIdentity() && ! (h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw))
                 .collect(Collectors.toList());
 
-        return Futures.combineAllInOrder(futures)
-                .thenApply(optList -> optList.stream().filter(Optional::isPresent).map(Optional::get).collect(Collectors.toList()));
+        return dhtClient.getAllRaw(raw).thenCombine(dhtClient.getAll(cbor), (rawBlocks, cborBlocks) -> {
+            Map<Multihash, Optional<byte[]>> fetched = new HashMap<>();
+            for (int i = 0; i < raw.size(); i++)
+                fetched.put(raw.get(i), rawBlocks.get(i));
+            for (int i = 0; i < cbor.size(); i++)
+                fetched.put(cbor.get(i), cborBlocks.get(i).map(c -> ((CborObject.CborByteArray) c).value));
+            return hashes.stream()
+                    .map(h -> {
+                        Optional<byte[]> bytes = h.isIdentity() ? Optional.of(h.getHash()) : fetched.get(h);
+                        bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
+                        return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
+                    })
+                    .filter(Optional::isPresent)
+                    .map(Optional::get)
+                    .collect(Collectors.toList());
+        });
     }
 }
@@ -0,0 +1,54 @@
+package peergos.shared.cbor;
+
+import java.io.*;
+import java.util.*;
+
+/** An unsynchronized, growable output buffer for encoding cbor, which can be reset and reused for many objects.
+ *
+ *  Unlike ByteArrayOutputStream, every write is a plain array store or copy, rather than a synchronized call.
+ */
+public class CborBuffer extends OutputStream {
+    private byte[] buf;
+    private int count;
+
+    public CborBuffer(int initialCapacity) {
+        this.buf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public CborBuffer() {
+        this(256);
+    }
+
+    private void ensureCapacity(int required) {
+        if (required - buf.length > 0)
+            buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     *  Discard the contents, keeping the allocated capacity
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+}
@@ -392,9 +392,8 @@ public class CborEncoder {
     protected void writeString(int majorType, byte[] bytes) throws IOException {
         int len = (bytes == null) ? 0 : bytes.length;
         writeType(majorType, len);
-        for (int i = 0; i < len; i++) {
-            m_os.write(bytes[i]);
-        }
+        if (len > 0)
+            m_os.write(bytes, 0, len);
     }
 
     /**
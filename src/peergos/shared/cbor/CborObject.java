@@ -18,10 +18,9 @@ public interface CborObject extends Cborable {
     List<Multihash> links();
 
     default byte[] toByteArray() {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        CborEncoder encoder = new CborEncoder(bout);
-        serialize(encoder);
-        return bout.toByteArray();
+        CborBuffer out = new CborBuffer();
+        serialize(new CborEncoder(out));
+        return out.toByteArray();
     }
 
     @Override
@@ -32,7 +31,7 @@ public interface CborObject extends Cborable {
     int LINK_TAG = 42;
 
     static CborObject fromByteArray(byte[] cbor) {
-        return deserialize(new CborDecoder(new ByteArrayInputStream(cbor)), cbor.length);
+        return CborView.of(cbor).toCborObject();
     }
 
     static CborObject read(InputStream in, int maxBytes) {
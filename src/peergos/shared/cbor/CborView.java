@@ -0,0 +1,384 @@
+package peergos.shared.cbor;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.util.*;
+
+import static peergos.shared.cbor.CborConstants.*;
+
+/** A read only view of an encoded cbor value in a byte array, which decodes nothing until it is asked for.
+ *
+ *  The elements of arrays and maps are found by skipping over the encoded values before them, and their offsets are
+ *  indexed the first time one is needed. Byte strings can be read in place without copying. This lets a typed reader
+ *  pull out the fields it needs without building a tree of CborObjects, and toCborObject() materialises the value for
+ *  everything else.
+ */
+public final class CborView {
+    private static final int NULL_BYTE = (TYPE_FLOAT_SIMPLE << 5) | NULL;
+    private static final int FALSE_BYTE = (TYPE_FLOAT_SIMPLE << 5) | FALSE;
+    private static final int TRUE_BYTE = (TYPE_FLOAT_SIMPLE << 5) | TRUE;
+
+    private final byte[] data;
+    private final int offset, limit;
+    // the offsets of the elements of an array, or the alternating keys and values of a map
+    private int[] elements;
+
+    private CborView(byte[] data, int offset, int limit) {
+        if (offset >= limit)
+            throw new IllegalStateException("Invalid cbor: truncated value!");
+        this.data = data;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    public static CborView of(byte[] data) {
+        return new CborView(data, 0, data.length);
+    }
+
+    public static CborView of(byte[] data, int offset, int length) {
+        return new CborView(data, offset, offset + length);
+    }
+
+    /**
+     *
+     * @return the array this is a view of, for reading byte strings in place
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    public int majorType() {
+        return (data[offset] & 0xFF) >>> 5;
+    }
+
+    public boolean isNull() {
+        return (data[offset] & 0xFF) == NULL_BYTE;
+    }
+
+    public boolean isList() {
+        return majorType() == TYPE_ARRAY;
+    }
+
+    public boolean isMap() {
+        return majorType() == TYPE_MAP;
+    }
+
+    public boolean isByteString() {
+        return majorType() == TYPE_BYTE_STRING;
+    }
+
+    public boolean isLink() {
+        return majorType() == TYPE_TAG && argument(offset) == CborObject.LINK_TAG;
+    }
+
+    /**
+     *
+     * @return the number of bytes in the encoding of this value
+     */
+    public int encodedLength() {
+        return skip(offset) - offset;
+    }
+
+    public long getLong() {
+        int type = majorType();
+        if (type == TYPE_UNSIGNED_INTEGER)
+            return argument(offset);
+        if (type == TYPE_NEGATIVE_INTEGER)
+            return -1 - argument(offset);
+        throw new IllegalStateException("Not an integer: " + type);
+    }
+
+    public boolean getBoolean() {
+        int b = data[offset] & 0xFF;
+        if (b != TRUE_BYTE && b != FALSE_BYTE)
+            throw new IllegalStateException("Not a boolean: " + b);
+        return b == TRUE_BYTE;
+    }
+
+    public String getString() {
+        expect(TYPE_TEXT_STRING);
+        try {
+            return new String(data, stringStart(offset), stringLength(offset), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *
+     * @return the offset in data() of the contents of this byte string
+     */
+    public int byteStringOffset() {
+        expect(TYPE_BYTE_STRING);
+        return stringStart(offset);
+    }
+
+    public int byteStringLength() {
+        expect(TYPE_BYTE_STRING);
+        return stringLength(offset);
+    }
+
+    public byte[] getByteArray() {
+        int start = byteStringOffset();
+        return Arrays.copyOfRange(data, start, start + stringLength(offset));
+    }
+
+    public Multihash getLink() {
+        if (! isLink())
+            throw new IllegalStateException("Not a merkle link!");
+        CborView value = new CborView(data, offset + headerLength(offset), limit);
+        if (value.majorType() == TYPE_TEXT_STRING)
+            return Cid.decode(value.getString());
+        if (value.majorType() == TYPE_BYTE_STRING) {
+            int start = value.byteStringOffset();
+            int length = value.byteStringLength();
+            if (data[start] == 0) // multibase for binary
+                return Cid.cast(Arrays.copyOfRange(data, start + 1, start + length));
+            throw new IllegalStateException("Unknown Multibase decoding Merkle link: " + data[start]);
+        }
+        throw new IllegalStateException("Invalid type for merkle link: " + value.majorType());
+    }
+
+    /**
+     *
+     * @return the number of elements in an array, or entries in a map
+     */
+    public int size() {
+        int type = majorType();
+        if (type != TYPE_ARRAY && type != TYPE_MAP)
+            throw new IllegalStateException("Not an array or map: " + type);
+        return count(offset);
+    }
+
+    /**
+     *
+     * @param index
+     * @return the element at index in an array
+     */
+    public CborView get(int index) {
+        expect(TYPE_ARRAY);
+        return new CborView(data, elements()[index], limit);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the value for a text string key in a map, comparing the encoded keys without decoding them
+     */
+    public Optional<CborView> get(String key) {
+        expect(TYPE_MAP);
+        byte[] keyBytes;
+        try {
+            keyBytes = key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        int[] offsets = elements();
+        for (int i = 0; i < offsets.length; i += 2) {
+            int keyOffset = offsets[i];
+            if (((data[keyOffset] & 0xFF) >>> 5) != TYPE_TEXT_STRING || stringLength(keyOffset) != keyBytes.length)
+                continue;
+            int start = stringStart(keyOffset);
+            boolean equal = true;
+            for (int j = 0; j < keyBytes.length && equal; j++)
+                equal = data[start + j] == keyBytes[j];
+            if (equal)
+                return Optional.of(new CborView(data, offsets[i + 1], limit));
+        }
+        return Optional.empty();
+    }
+
+    public CborView key(int index) {
+        expect(TYPE_MAP);
+        return new CborView(data, elements()[2 * index], limit);
+    }
+
+    public CborView value(int index) {
+        expect(TYPE_MAP);
+        return new CborView(data, elements()[2 * index + 1], limit);
+    }
+
+    /**
+     *
+     * @return the merkle links in this value, as CborObject.links() would give, without decoding anything else
+     */
+    public List<Multihash> links() {
+        List<Multihash> res = new ArrayList<>();
+        addLinks(res);
+        return res;
+    }
+
+    private void addLinks(List<Multihash> res) {
+        switch (majorType()) {
+            case TYPE_ARRAY: {
+                for (int element : elements())
+                    new CborView(data, element, limit).addLinks(res);
+                return;
+            }
+            case TYPE_MAP: {
+                int[] offsets = elements();
+                for (int i = 1; i < offsets.length; i += 2)
+                    new CborView(data, offsets[i], limit).addLinks(res);
+                return;
+            }
+            case TYPE_TAG:
+                res.add(getLink());
+                return;
+            default:
+        }
+    }
+
+    /**
+     *
+     * @return this value decoded as a tree of CborObjects, equal to what CborObject.deserialize gives
+     */
+    public CborObject toCborObject() {
+        switch (majorType()) {
+            case TYPE_TEXT_STRING:
+                return new CborObject.CborString(getString());
+            case TYPE_BYTE_STRING:
+                return new CborObject.CborByteArray(getByteArray());
+            case TYPE_UNSIGNED_INTEGER:
+            case TYPE_NEGATIVE_INTEGER:
+                return new CborObject.CborLong(getLong());
+            case TYPE_FLOAT_SIMPLE:
+                if (isNull())
+                    return new CborObject.CborNull();
+                int ai = data[offset] & 0x1F;
+                if (ai == TRUE || ai == FALSE)
+                    return new CborObject.CborBoolean(ai == TRUE);
+                throw new IllegalStateException("Unimplemented simple type! " + ai);
+            case TYPE_MAP: {
+                SortedMap<CborObject, Cborable> result = new TreeMap<>();
+                int[] offsets = elements();
+                for (int i = 0; i < offsets.length; i += 2)
+                    result.put(new CborView(data, offsets[i], limit).toCborObject(),
+                            new CborView(data, offsets[i + 1], limit).toCborObject());
+                return new CborObject.CborMap(result);
+            }
+            case TYPE_ARRAY: {
+                int[] offsets = elements();
+                List<CborObject> res = new ArrayList<>(offsets.length);
+                for (int element : offsets)
+                    res.add(new CborView(data, element, limit).toCborObject());
+                return new CborObject.CborList(res);
+            }
+            case TYPE_TAG:
+                if (isLink())
+                    return new CborObject.CborMerkleLink(getLink());
+                throw new IllegalStateException("Unknown TAG in CBOR: " + argument(offset));
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + majorType());
+        }
+    }
+
+    private void expect(int majorType) {
+        if (majorType() != majorType)
+            throw new IllegalStateException("Unexpected cbor type: " + majorType() + ", expected: " + majorType);
+    }
+
+    private int[] elements() {
+        if (elements != null)
+            return elements;
+        int n = count(offset);
+        int[] res = new int[majorType() == TYPE_MAP ? 2 * n : n];
+        int pos = offset + headerLength(offset);
+        for (int i = 0; i < res.length; i++) {
+            res[i] = pos;
+            pos = skip(pos);
+        }
+        elements = res;
+        return res;
+    }
+
+    private int count(int pos) {
+        long n = argument(pos);
+        // every element takes at least one byte
+        if (n > limit - pos)
+            throw new IllegalStateException("Invalid cbor: more " +
+                    (majorType() == TYPE_MAP ? "map" : "array") + " elements than original bytes!");
+        return (int) n;
+    }
+
+    private int stringStart(int pos) {
+        return pos + headerLength(pos);
+    }
+
+    private int stringLength(int pos) {
+        long len = argument(pos);
+        if (len > limit - stringStart(pos))
+            throw new IllegalStateException("Invalid cbor: string longer than original bytes!");
+        return (int) len;
+    }
+
+    /**
+     *
+     * @param pos the start of an encoded value
+     * @return the offset of the first byte after the value
+     */
+    private int skip(int pos) {
+        if (pos >= limit)
+            throw new IllegalStateException("Invalid cbor: truncated value!");
+        int type = (data[pos] & 0xFF) >>> 5;
+        int header = headerLength(pos);
+        switch (type) {
+            case TYPE_UNSIGNED_INTEGER:
+            case TYPE_NEGATIVE_INTEGER:
+            case TYPE_FLOAT_SIMPLE:
+                return pos + header;
+            case TYPE_BYTE_STRING:
+            case TYPE_TEXT_STRING:
+                return stringStart(pos) + stringLength(pos);
+            case TYPE_ARRAY:
+            case TYPE_MAP: {
+                long n = argument(pos);
+                if (n > limit - pos)
+                    throw new IllegalStateException("Invalid cbor: more elements than original bytes!");
+                long items = type == TYPE_MAP ? 2 * n : n;
+                int next = pos + header;
+                for (long i = 0; i < items; i++)
+                    next = skip(next);
+                return next;
+            }
+            case TYPE_TAG:
+                return skip(pos + header);
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + type);
+        }
+    }
+
+    private int headerLength(int pos) {
+        int ai = data[pos] & 0x1F;
+        if (ai < ONE_BYTE)
+            return 1;
+        switch (ai) {
+            case ONE_BYTE: return 2;
+            case TWO_BYTES: return 3;
+            case FOUR_BYTES: return 5;
+            case EIGHT_BYTES: return 9;
+            default:
+                throw new IllegalStateException("Not well-formed CBOR, invalid length: " + ai);
+        }
+    }
+
+    /**
+     *
+     * @param pos the start of an encoded value
+     * @return the integer, length or tag in the header of the value
+     */
+    private long argument(int pos) {
+        int length = headerLength(pos);
+        if (pos + length > limit)
+            throw new IllegalStateException("Invalid cbor: truncated value!");
+        if (length == 1)
+            return data[pos] & 0x1F;
+        long res = 0;
+        for (int i = 1; i < length; i++)
+            res = (res << 8) | (data[pos + i] & 0xFF);
+        if (res < 0)
+            throw new IllegalStateException("Not well-formed CBOR integer found, invalid length: " + res);
+        return res;
+    }
+}
@@ -0,0 +1,280 @@
+package peergos.shared.crypto;
+
+import peergos.shared.util.*;
+
+import java.security.*;
+import java.util.*;
+import java.util.stream.*;
+
+import static peergos.shared.crypto.TweetNaCl.*;
+
+/** An implementation of Ed25519 which is bit for bit compatible with TweetNaCl, and uses its field arithmetic, but
+ *  avoids most of the work in its scalar multiplications:
+ *   - multiples of the base point are sums of entries from a precomputed table of j * 16^i * B, so need no doublings
+ *   - multiples of a public key use 4 bit windows over its first 16 multiples, which are cached along with the
+ *     decompressed key
+ *  Messages are hashed in place with the platform SHA-512, rather than copied into a signed message first.
+ */
+public class FastEd25519 {
+    public static final int SIGNATURE_BYTES = 64;
+    public static final int PUBLIC_KEY_BYTES = 32;
+    // the number of 4 bit windows in a 256 bit scalar
+    private static final int WINDOWS = 64;
+    private static final int MAX_CACHED_KEYS = 1024;
+
+    private static final Map<ByteArrayWrapper, PreparedKey> preparedKeys =
+            Collections.synchronizedMap(new LRUCache<>(MAX_CACHED_KEYS));
+
+    /** The table is 512 KiB, so only build it when it is first used.
+     */
+    private static class BaseTable {
+        // MULTIPLES[i][j] = j * 16^i * B
+        static final long[][][][] MULTIPLES = build();
+
+        private static long[][][][] build() {
+            long[][][][] table = new long[WINDOWS][16][][];
+            long[][] base = new long[4][GF_LEN];
+            set25519(base[0], X);
+            set25519(base[1], Y);
+            set25519(base[2], gf1);
+            M(base[3], 0, X, 0, Y, 0);
+            for (int i = 0; i < WINDOWS; i++) {
+                table[i][0] = identity();
+                for (int j = 1; j < 16; j++) {
+                    table[i][j] = copy(table[i][j - 1]);
+                    add(table[i][j], base);
+                }
+                long[][] next = copy(table[i][15]);
+                add(next, base);
+                base = next;
+            }
+            return table;
+        }
+    }
+
+    /** A decompressed public key, negated as TweetNaCl does, with its first 16 multiples
+     */
+    private static class PreparedKey {
+        final long[][][] multiples = new long[16][][];
+
+        PreparedKey(long[][] negA) {
+            multiples[0] = identity();
+            for (int j = 1; j < 16; j++) {
+                multiples[j] = copy(multiples[j - 1]);
+                add(multiples[j], negA);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param message
+     * @param secretKey the 64 byte secret key
+     * @return The 64 byte signature of the message, as in the first 64 bytes of TweetNaCl.crypto_sign
+     */
+    public static byte[] sign(byte[] message, byte[] secretKey) {
+        byte[] signature = new byte[SIGNATURE_BYTES];
+        sign(message, 0, message.length, secretKey, signature, 0);
+        return signature;
+    }
+
+    public static void sign(byte[] message, int mOff, int len, byte[] secretKey, byte[] signature, int sigOff) {
+        MessageDigest sha512 = sha512();
+        sha512.update(secretKey, 0, 32);
+        byte[] d = sha512.digest();
+        d[0] &= 248;
+        d[31] &= 127;
+        d[31] |= 64;
+
+        sha512.update(d, 32, 32);
+        sha512.update(message, mOff, len);
+        byte[] r = sha512.digest();
+        reduce(r);
+        long[][] p = identity();
+        scalarbase(p, r);
+        byte[] R = new byte[32];
+        pack(R, p);
+
+        sha512.update(R);
+        sha512.update(secretKey, 32, 32);
+        sha512.update(message, mOff, len);
+        byte[] h = sha512.digest();
+        reduce(h);
+
+        long[] x = new long[64];
+        for (int i = 0; i < 32; i++)
+            x[i] = 0xff & r[i];
+        for (int i = 0; i < 32; i++)
+            for (int j = 0; j < 32; j++)
+                x[i + j] += (0xff & h[i]) * (0xff & d[j]);
+        System.arraycopy(R, 0, signature, sigOff, 32);
+        modL(signature, sigOff + 32, x);
+    }
+
+    /**
+     *
+     * @param signature
+     * @param message
+     * @param publicKey
+     * @return whether this is a valid signature of the message, accepting exactly what TweetNaCl.crypto_sign_open does
+     */
+    public static boolean verify(byte[] signature, byte[] message, byte[] publicKey) {
+        return signature.length == SIGNATURE_BYTES && verify(signature, message, 0, message.length, publicKey);
+    }
+
+    /**
+     *
+     * @param signature an array starting with the 64 byte signature
+     * @param message
+     * @param mOff
+     * @param len
+     * @param publicKey
+     * @return whether this is a valid signature of the message
+     */
+    public static boolean verify(byte[] signature, byte[] message, int mOff, int len, byte[] publicKey) {
+        if (signature.length < SIGNATURE_BYTES)
+            return false;
+        Optional<PreparedKey> key = prepare(publicKey);
+        return key.isPresent() && verify(signature, message, mOff, len, publicKey, key.get());
+    }
+
+    /**
+     *
+     * @param signatures
+     * @param messages
+     * @param publicKey
+     * @return whether every signature is valid for the corresponding message, checked in parallel
+     */
+    public static boolean verifyAll(List<byte[]> signatures, List<byte[]> messages, byte[] publicKey) {
+        if (signatures.size() != messages.size())
+            return false;
+        Optional<PreparedKey> key = prepare(publicKey);
+        if (! key.isPresent())
+            return false;
+        return IntStream.range(0, signatures.size())
+                .parallel()
+                .allMatch(i -> signatures.get(i).length == SIGNATURE_BYTES &&
+                        verify(signatures.get(i), messages.get(i), 0, messages.get(i).length, publicKey, key.get()));
+    }
+
+    private static boolean verify(byte[] signature,
+                                  byte[] message,
+                                  int mOff,
+                                  int len,
+                                  byte[] publicKey,
+                                  PreparedKey key) {
+        MessageDigest sha512 = sha512();
+        sha512.update(signature, 0, 32);
+        sha512.update(publicKey, 0, 32);
+        sha512.update(message, mOff, len);
+        byte[] h = sha512.digest();
+        reduce(h);
+
+        // h * -A + s * B, which is R for a valid signature
+        long[][] p = identity();
+        for (int i = WINDOWS - 1; i >= 0; i--) {
+            if (i < WINDOWS - 1)
+                for (int k = 0; k < 4; k++)
+                    dbl(p);
+            int window = nibble(h, 0, i);
+            if (window != 0)
+                add(p, key.multiples[window]);
+        }
+        for (int i = 0; i < WINDOWS; i++) {
+            int window = nibble(signature, 32, i);
+            if (window != 0)
+                add(p, BaseTable.MULTIPLES[i][window]);
+        }
+        byte[] t = new byte[32];
+        pack(t, p);
+        int diff = 0;
+        for (int i = 0; i < 32; i++)
+            diff |= t[i] ^ signature[i];
+        return diff == 0;
+    }
+
+    private static Optional<PreparedKey> prepare(byte[] publicKey) {
+        if (publicKey.length != PUBLIC_KEY_BYTES)
+            return Optional.empty();
+        ByteArrayWrapper cacheKey = new ByteArrayWrapper(Arrays.copyOf(publicKey, PUBLIC_KEY_BYTES));
+        PreparedKey cached = preparedKeys.get(cacheKey);
+        if (cached != null)
+            return Optional.of(cached);
+        long[][] negA = new long[4][GF_LEN];
+        if (unpackneg(negA, publicKey) != 0)
+            return Optional.empty();
+        PreparedKey prepared = new PreparedKey(negA);
+        preparedKeys.put(cacheKey, prepared);
+        return Optional.of(prepared);
+    }
+
+    /** p = s * B, in time independent of s
+     */
+    private static void scalarbase(long[][] p, byte[] s) {
+        long[][] t = new long[4][GF_LEN];
+        for (int i = 0; i < WINDOWS; i++) {
+            select(t, BaseTable.MULTIPLES[i], nibble(s, 0, i));
+            add(p, t);
+        }
+    }
+
+    /** t = table[index], reading every entry of the table
+     */
+    private static void select(long[][] t, long[][][] table, int index) {
+        for (int j = 0; j < table.length; j++) {
+            long mask = -(long)(((j ^ index) - 1) >>> 31);
+            long[][] entry = table[j];
+            for (int c = 0; c < 4; c++)
+                for (int k = 0; k < GF_LEN; k++)
+                    t[c][k] ^= mask & (t[c][k] ^ entry[c][k]);
+        }
+    }
+
+    /** p = 2 * p, with 4 squarings and 4 multiplications rather than the 9 multiplications of add(p, p)
+     */
+    private static void dbl(long[][] p) {
+        long[] xx = new long[GF_LEN], yy = new long[GF_LEN], zz2 = new long[GF_LEN], sum = new long[GF_LEN],
+                diff = new long[GF_LEN], e = new long[GF_LEN], f = new long[GF_LEN];
+        S(xx, p[0]);
+        S(yy, p[1]);
+        S(zz2, p[2]);
+        A(zz2, zz2, zz2);
+        A(e, p[0], p[1]);
+        S(e, e);
+        A(sum, yy, xx);
+        Z(diff, yy, xx);
+        Z(e, e, sum);
+        Z(f, zz2, diff);
+
+        M(p[0], 0, e, 0, f, 0);
+        M(p[1], 0, sum, 0, diff, 0);
+        M(p[2], 0, diff, 0, f, 0);
+        M(p[3], 0, e, 0, sum, 0);
+    }
+
+    private static int nibble(byte[] s, int sOff, int i) {
+        return ((s[sOff + i / 2] & 0xff) >> (4 * (i & 1))) & 15;
+    }
+
+    private static long[][] identity() {
+        long[][] p = new long[4][GF_LEN];
+        set25519(p[1], gf1);
+        set25519(p[2], gf1);
+        return p;
+    }
+
+    private static long[][] copy(long[][] p) {
+        long[][] res = new long[4][];
+        for (int c = 0; c < 4; c++)
+            res[c] = Arrays.copyOf(p[c], GF_LEN);
+        return res;
+    }
+
+    private static MessageDigest sha512() {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
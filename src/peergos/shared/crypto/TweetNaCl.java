@@ -32,7 +32,7 @@ public class TweetNaCl {
     public static class InvalidSignatureException extends RuntimeException {}
     public static class InvalidCipherTextException extends IllegalStateException {
         InvalidCipherTextException() {}
-        InvalidCipherTextException(String msg) {
+        public InvalidCipherTextException(String msg) {
             super(msg);
         }
     }
@@ -134,11 +134,11 @@ public class TweetNaCl {
     static {
         _9[0] = 9;
     }
-    private static final int GF_LEN = 16;
-    private static long[]  gf0 = new long[GF_LEN];
-    private static long[] gf1 = new long[GF_LEN]; static{gf1[0] = 1;}
+    static final int GF_LEN = 16;
+    static long[]  gf0 = new long[GF_LEN];
+    static long[] gf1 = new long[GF_LEN]; static{gf1[0] = 1;}
     private static long[]  _121665 = new long[GF_LEN]; static{_121665[0] = 0xDB41; _121665[1] =1;}
-    private static long[]  D = new long[]{0x78a3, 0x1359, 0x4dca, 0x75eb, 0xd8ab, 0x4141, 0x0a4d, 0x0070, 0xe898, 0x7779, 0x4079, 0x8cc7, 0xfe73, 0x2b6f, 0x6cee, 0x5203},
+    static long[]  D = new long[]{0x78a3, 0x1359, 0x4dca, 0x75eb, 0xd8ab, 0x4141, 0x0a4d, 0x0070, 0xe898, 0x7779, 0x4079, 0x8cc7, 0xfe73, 0x2b6f, 0x6cee, 0x5203},
             D2 = new long[]{0xf159, 0x26b2, 0x9b94, 0xebd6, 0xb156, 0x8283, 0x149a, 0x00e0, 0xd130, 0xeef3, 0x80f2, 0x198e, 0xfce7, 0x56df, 0xd9dc, 0x2406},
             X = new long[]{0xd51a, 0x8f25, 0x2d60, 0xc956, 0xa7b2, 0x9525, 0xc760, 0x692c, 0xdc5c, 0xfdd6, 0xe231, 0xc0a4, 0x53fe, 0xcd6e, 0x36d3, 0x2169},
             Y = new long[]{0x6658, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666},
@@ -383,7 +383,7 @@ public class TweetNaCl {
         return 0;
     }
 
-    private static void set25519(long[] /*gf*/ r, long[] /*gf*/ a)
+    static void set25519(long[] /*gf*/ r, long[] /*gf*/ a)
     {
         int i;
         for (i=0;i < 16;++i)r[i]=a[i];
@@ -458,19 +458,19 @@ public class TweetNaCl {
         o[15]&=0x7fff;
     }
 
-    private static void A(long[] /*gf*/ o,long[] /*gf*/ a,long[] /*gf*/ b)
+    static void A(long[] /*gf*/ o,long[] /*gf*/ a,long[] /*gf*/ b)
     {
         int i;
         for (i=0;i < 16;++i)o[i]=a[i]+b[i];
     }
 
-    private static void Z(long[] /*gf*/ o,long[] /*gf*/ a,long[] /*gf*/ b)
+    static void Z(long[] /*gf*/ o,long[] /*gf*/ a,long[] /*gf*/ b)
     {
         int i;
         for (i=0;i < 16;++i)o[i]=a[i]-b[i];
     }
 
-    private static void M(long[] /*gf*/ o, int oOff, long[] /*gf*/ a, int aOff, long[] /*gf*/ b, int bOff)
+    static void M(long[] /*gf*/ o, int oOff, long[] /*gf*/ a, int aOff, long[] /*gf*/ b, int bOff)
     {
         long[] t = new long[31];
         for (int i=0;i < 31;++i)t[i]=0;
@@ -481,7 +481,7 @@ public class TweetNaCl {
         car25519(o, oOff);
     }
 
-    private static void S(long[] /*gf*/ o,long[] /*gf*/ a)
+    static void S(long[] /*gf*/ o,long[] /*gf*/ a)
     {
         M(o, 0, a, 0, a, 0);
     }
@@ -1054,7 +1054,7 @@ public class TweetNaCl {
         return n;
     }
 
-    private static void add(long[][] /*gf*/ p/*[4]*/,long[][] /*gf*/ q/*[4]*/)
+    static void add(long[][] /*gf*/ p/*[4]*/,long[][] /*gf*/ q/*[4]*/)
     {
         long[] /*gf*/ a=new long[GF_LEN],b=new long[GF_LEN],c=new long[GF_LEN],
                 d=new long[GF_LEN],t=new long[GF_LEN],e=new long[GF_LEN],
@@ -1088,7 +1088,7 @@ public class TweetNaCl {
         sel25519(p[i],q[i],b & 0xff);
     }
 
-    private static void pack(byte[] r,long[][] /*gf*/ p/*[4]*/)
+    static void pack(byte[] r,long[][] /*gf*/ p/*[4]*/)
     {
         long[] /*gf*/ tx = new long[GF_LEN], ty = new long[GF_LEN], zi = new long[GF_LEN];
         inv25519(zi, 0, p[2], 0);
@@ -1129,7 +1129,7 @@ public class TweetNaCl {
             0, 0, 0, 0, 0, 0, 0, 0,
             0, 0, 0, 0, 0, 0, 0, 0x10};
 
-    private static void modL(byte[] r, int rOff, long[] x/*[64]*/)
+    static void modL(byte[] r, int rOff, long[] x/*[64]*/)
     {
         long carry;
         int i,j;
@@ -1156,7 +1156,7 @@ public class TweetNaCl {
     }
     }
 
-    private static void reduce(byte[] r)
+    static void reduce(byte[] r)
     {
         long[] x = new long[64];
         for (int i=0;i < 64; i++) x[i] = 0xff & r[i];
@@ -1195,7 +1195,7 @@ public class TweetNaCl {
         return 0;
     }
 
-    private static int unpackneg(long[][] /*gf*/ r/*[4]*/,byte[] p/*[32]*/)
+    static int unpackneg(long[][] /*gf*/ r/*[4]*/,byte[] p/*[32]*/)
     {
         long[] /*gf*/ t = new long[GF_LEN], chk = new long[GF_LEN], num = new long[GF_LEN], den = new long[GF_LEN],
                 den2 = new long[GF_LEN], den4 = new long[GF_LEN], den6 = new long[GF_LEN];
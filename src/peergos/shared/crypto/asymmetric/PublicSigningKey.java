@@ -39,6 +39,22 @@ public interface PublicSigningKey extends Cborable {
     @JsMethod
     byte[] unsignMessage(byte[] signed);
 
+    /**
+     *
+     * @param signature
+     * @param message
+     * @return whether signature is a valid signature of message, without needing them concatenated
+     */
+    boolean isValidSignature(byte[] signature, byte[] message);
+
+    /**
+     *
+     * @param signatures
+     * @param messages
+     * @return whether every signature is a valid signature of the corresponding message
+     */
+    boolean isValidSignatures(List<byte[]> signatures, List<byte[]> messages);
+
     static PublicSigningKey fromString(String b64) {
         return fromByteArray(Base64.getDecoder().decode(b64));
     }
@@ -51,6 +51,20 @@ public class Ed25519PublicKey implements PublicSigningKey {
         return implementation.crypto_sign_open(signed, publicKey);
     }
 
+    @Override
+    public boolean isValidSignature(byte[] signature, byte[] message) {
+        if (implementation == null)
+            throw new IllegalStateException("Uninitialized crypto-implementation: call peergos.shared.Crypto::init");
+        return implementation.crypto_sign_verify_detached(signature, message, publicKey);
+    }
+
+    @Override
+    public boolean isValidSignatures(List<byte[]> signatures, List<byte[]> messages) {
+        if (implementation == null)
+            throw new IllegalStateException("Uninitialized crypto-implementation: call peergos.shared.Crypto::init");
+        return implementation.crypto_sign_verify_all(signatures, messages, publicKey);
+    }
+
     public static Ed25519PublicKey fromCbor(Cborable cbor, Ed25519 provider) {
         if (! (cbor instanceof CborObject.CborList))
             throw new IllegalStateException("Invalid cbor for Ed25519 public key! " + cbor);
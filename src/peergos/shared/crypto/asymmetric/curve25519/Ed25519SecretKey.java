@@ -51,7 +51,7 @@ public class Ed25519SecretKey implements SecretSigningKey {
 
     @Override
     public byte[] signatureOnly(byte[] message) {
-        return Arrays.copyOf(implementation.crypto_sign(message, secretKey), TweetNaCl.SIGNATURE_SIZE_BYTES);
+        return implementation.crypto_sign_detached(message, secretKey);
     }
 
     public static SecretSigningKey fromCbor(Cborable cbor, Ed25519 provider) {
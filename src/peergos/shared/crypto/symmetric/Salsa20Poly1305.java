@@ -69,4 +69,33 @@ public interface Salsa20Poly1305 {
         }
     }
 
+    /** Bit for bit compatible with Java, but faster, and without the intermediate copies TweetNaCl needs
+     */
+    class OptimisedJava implements Salsa20Poly1305 {
+
+        @Override
+        public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
+            byte[] res = new byte[data.length + XSalsa20Poly1305.TAG_BYTES];
+            XSalsa20Poly1305.secretbox(data, 0, data.length, nonce, key, res, 0);
+            return res;
+        }
+
+        @Override
+        public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+            byte[] res = new byte[Math.max(0, cipher.length - XSalsa20Poly1305.TAG_BYTES)];
+            if (! XSalsa20Poly1305.secretbox_open(cipher, 0, cipher.length, nonce, key, res, 0))
+                throw new TweetNaCl.InvalidCipherTextException("Invalid encryption! [" + cipher.length + "]");
+            return res;
+        }
+
+        @Override
+        public CompletableFuture<byte[]> secretboxAsync(byte[] data, byte[] nonce, byte[] key) {
+            return CompletableFuture.completedFuture(secretbox(data, nonce, key));
+        }
+
+        @Override
+        public CompletableFuture<byte[]> secretbox_openAsync(byte[] cipher, byte[] nonce, byte[] key) {
+            return CompletableFuture.completedFuture(secretbox_open(cipher, nonce, key));
+        }
+    }
 }
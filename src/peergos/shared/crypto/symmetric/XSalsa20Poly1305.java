@@ -0,0 +1,278 @@
+package peergos.shared.crypto.symmetric;
+
+/** An implementation of NaCl's crypto_secretbox (XSalsa20 and Poly1305) which works on 32 bit words and writes directly
+ *  into the caller's arrays. The output is identical to TweetNaCl, without the leading zero bytes: a 16 byte
+ *  authenticator followed by the cipher text.
+ *
+ */
+public class XSalsa20Poly1305 {
+    public static final int KEY_BYTES = 32;
+    public static final int NONCE_BYTES = 24;
+    public static final int TAG_BYTES = 16;
+
+    // "expand 32-byte k"
+    private static final int SIGMA0 = 0x61707865, SIGMA1 = 0x3320646e, SIGMA2 = 0x79622d32, SIGMA3 = 0x6b206574;
+
+    /**
+     *
+     * @param m the message
+     * @param mOff
+     * @param len the length of the message
+     * @param nonce
+     * @param key
+     * @param out where to write the authenticator and cipher text, len + TAG_BYTES bytes
+     * @param outOff
+     */
+    public static void secretbox(byte[] m, int mOff, int len, byte[] nonce, byte[] key, byte[] out, int outOff) {
+        checkArgs(nonce, key);
+        int[] state = initialState(nonce, key);
+        byte[] polyKey = new byte[32];
+        xorStream(state, m, mOff, out, outOff + TAG_BYTES, len, polyKey);
+        Poly1305.mac(out, outOff + TAG_BYTES, len, polyKey, out, outOff);
+    }
+
+    /**
+     *
+     * @param c the authenticator followed by the cipher text
+     * @param cOff
+     * @param len the length of the authenticator and cipher text
+     * @param nonce
+     * @param key
+     * @param out where to write the message, len - TAG_BYTES bytes, which is untouched if authentication fails
+     * @param outOff
+     * @return whether the cipher text is authentic
+     */
+    public static boolean secretbox_open(byte[] c, int cOff, int len, byte[] nonce, byte[] key, byte[] out, int outOff) {
+        checkArgs(nonce, key);
+        if (len < TAG_BYTES)
+            return false;
+        int[] state = initialState(nonce, key);
+        byte[] polyKey = new byte[32];
+        xorStream(state, null, 0, null, 0, 0, polyKey);
+        byte[] tag = new byte[TAG_BYTES];
+        Poly1305.mac(c, cOff + TAG_BYTES, len - TAG_BYTES, polyKey, tag, 0);
+        int diff = 0;
+        for (int i = 0; i < TAG_BYTES; i++)
+            diff |= tag[i] ^ c[cOff + i];
+        if (diff != 0)
+            return false;
+        state = initialState(nonce, key);
+        xorStream(state, c, cOff + TAG_BYTES, out, outOff, len - TAG_BYTES, polyKey);
+        return true;
+    }
+
+    private static void checkArgs(byte[] nonce, byte[] key) {
+        if (nonce.length != NONCE_BYTES)
+            throw new IllegalArgumentException("Nonce must be " + NONCE_BYTES + " bytes!");
+        if (key.length != KEY_BYTES)
+            throw new IllegalArgumentException("Key must be " + KEY_BYTES + " bytes!");
+    }
+
+    private static int ld32(byte[] x, int off) {
+        return (x[off] & 0xff) | (x[off + 1] & 0xff) << 8 | (x[off + 2] & 0xff) << 16 | (x[off + 3] & 0xff) << 24;
+    }
+
+    private static void st32(byte[] x, int off, int u) {
+        x[off] = (byte) u;
+        x[off + 1] = (byte) (u >>> 8);
+        x[off + 2] = (byte) (u >>> 16);
+        x[off + 3] = (byte) (u >>> 24);
+    }
+
+    /**
+     *
+     * @return the Salsa20 input block for the HSalsa20 subkey of key and the first 16 bytes of nonce, using the last 8
+     * bytes of nonce, with a block counter of zero
+     */
+    private static int[] initialState(byte[] nonce, byte[] key) {
+        int[] h = new int[16];
+        h[0] = SIGMA0; h[5] = SIGMA1; h[10] = SIGMA2; h[15] = SIGMA3;
+        for (int i = 0; i < 4; i++) {
+            h[1 + i] = ld32(key, 4 * i);
+            h[11 + i] = ld32(key, 16 + 4 * i);
+            h[6 + i] = ld32(nonce, 4 * i);
+        }
+        int[] x = new int[16];
+        rounds(h, x);
+        // HSalsa20 outputs the diagonal and the nonce positions, without the feed forward
+        int[] state = new int[16];
+        state[0] = SIGMA0; state[5] = SIGMA1; state[10] = SIGMA2; state[15] = SIGMA3;
+        state[1] = x[0]; state[2] = x[5]; state[3] = x[10]; state[4] = x[15];
+        state[11] = x[6]; state[12] = x[7]; state[13] = x[8]; state[14] = x[9];
+        state[6] = ld32(nonce, 16);
+        state[7] = ld32(nonce, 20);
+        return state;
+    }
+
+    /**
+     *  Apply the 20 Salsa20 rounds to in, writing the result to out, without the feed forward
+     */
+    private static void rounds(int[] in, int[] out) {
+        int x0 = in[0], x1 = in[1], x2 = in[2], x3 = in[3], x4 = in[4], x5 = in[5], x6 = in[6], x7 = in[7],
+                x8 = in[8], x9 = in[9], x10 = in[10], x11 = in[11], x12 = in[12], x13 = in[13], x14 = in[14], x15 = in[15];
+        for (int i = 0; i < 20; i += 2) {
+            // columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        out[0] = x0; out[1] = x1; out[2] = x2; out[3] = x3; out[4] = x4; out[5] = x5; out[6] = x6; out[7] = x7;
+        out[8] = x8; out[9] = x9; out[10] = x10; out[11] = x11; out[12] = x12; out[13] = x13; out[14] = x14; out[15] = x15;
+    }
+
+    /**
+     *  Write the first 32 bytes of the key stream to polyKey, and xor the rest of the key stream with len bytes of in
+     *  into out
+     */
+    private static void xorStream(int[] state, byte[] in, int inOff, byte[] out, int outOff, int len, byte[] polyKey) {
+        int[] x = new int[16];
+        byte[] block = new byte[64];
+        // the first block provides the Poly1305 key and the key stream for the first 32 bytes
+        nextBlock(state, x, block);
+        System.arraycopy(block, 0, polyKey, 0, 32);
+        int done = Math.min(len, 32);
+        xor(in, inOff, block, 32, out, outOff, done);
+        while (done < len) {
+            nextBlock(state, x, block);
+            int n = Math.min(64, len - done);
+            xor(in, inOff + done, block, 0, out, outOff + done, n);
+            done += n;
+        }
+    }
+
+    private static void xor(byte[] in, int inOff, byte[] stream, int streamOff, byte[] out, int outOff, int n) {
+        for (int i = 0; i < n; i++)
+            out[outOff + i] = (byte) (in[inOff + i] ^ stream[streamOff + i]);
+    }
+
+    private static void nextBlock(int[] state, int[] x, byte[] block) {
+        rounds(state, x);
+        for (int i = 0; i < 16; i++)
+            st32(block, 4 * i, x[i] + state[i]);
+        // 64 bit block counter in words 8 and 9
+        if (++state[8] == 0)
+            state[9]++;
+    }
+
+    /** Poly1305 with 26 bit limbs, following poly1305-donna
+     */
+    private static class Poly1305 {
+        private static final int MASK = 0x3ffffff;
+
+        static void mac(byte[] m, int mOff, int len, byte[] key, byte[] out, int outOff) {
+            int t0 = ld32(key, 0), t1 = ld32(key, 4), t2 = ld32(key, 8), t3 = ld32(key, 12);
+            long r0 = t0 & 0x3ffffff;
+            long r1 = ((t0 >>> 26) | (t1 << 6)) & 0x3ffff03;
+            long r2 = ((t1 >>> 20) | (t2 << 12)) & 0x3ffc0ff;
+            long r3 = ((t2 >>> 14) | (t3 << 18)) & 0x3f03fff;
+            long r4 = (t3 >>> 8) & 0x00fffff;
+            long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+
+            int h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+            byte[] last = new byte[16];
+            for (int off = 0; off < len; off += 16) {
+                int hibit;
+                byte[] src;
+                int srcOff;
+                if (len - off >= 16) {
+                    hibit = 1 << 24;
+                    src = m;
+                    srcOff = mOff + off;
+                } else {
+                    // pad the final partial block with a one byte, then zeros
+                    int n = len - off;
+                    System.arraycopy(m, mOff + off, last, 0, n);
+                    last[n] = 1;
+                    hibit = 0;
+                    src = last;
+                    srcOff = 0;
+                }
+                int b0 = ld32(src, srcOff), b1 = ld32(src, srcOff + 4), b2 = ld32(src, srcOff + 8), b3 = ld32(src, srcOff + 12);
+                h0 += b0 & MASK;
+                h1 += ((b0 >>> 26) | (b1 << 6)) & MASK;
+                h2 += ((b1 >>> 20) | (b2 << 12)) & MASK;
+                h3 += ((b2 >>> 14) | (b3 << 18)) & MASK;
+                h4 += (b3 >>> 8) | hibit;
+
+                long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+                long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+                long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+                long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+                long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+                long c = d0 >>> 26; h0 = (int) d0 & MASK;
+                d1 += c; c = d1 >>> 26; h1 = (int) d1 & MASK;
+                d2 += c; c = d2 >>> 26; h2 = (int) d2 & MASK;
+                d3 += c; c = d3 >>> 26; h3 = (int) d3 & MASK;
+                d4 += c; c = d4 >>> 26; h4 = (int) d4 & MASK;
+                h0 += (int) c * 5;
+                h1 += h0 >>> 26; h0 &= MASK;
+            }
+
+            // fully carry h
+            int c = h1 >>> 26; h1 &= MASK;
+            h2 += c; c = h2 >>> 26; h2 &= MASK;
+            h3 += c; c = h3 >>> 26; h3 &= MASK;
+            h4 += c; c = h4 >>> 26; h4 &= MASK;
+            h0 += c * 5; c = h0 >>> 26; h0 &= MASK;
+            h1 += c;
+
+            // compute h - p, and select it if it is not negative
+            int g0 = h0 + 5; c = g0 >>> 26; g0 &= MASK;
+            int g1 = h1 + c; c = g1 >>> 26; g1 &= MASK;
+            int g2 = h2 + c; c = g2 >>> 26; g2 &= MASK;
+            int g3 = h3 + c; c = g3 >>> 26; g3 &= MASK;
+            int g4 = h4 + c - (1 << 26);
+            int select = (g4 >>> 31) - 1;
+            int keep = ~select;
+            h0 = (h0 & keep) | (g0 & select);
+            h1 = (h1 & keep) | (g1 & select);
+            h2 = (h2 & keep) | (g2 & select);
+            h3 = (h3 & keep) | (g3 & select);
+            h4 = (h4 & keep) | (g4 & select);
+
+            // h = (h + s) mod 2^128
+            long f0 = ((h0 | (h1 << 26)) & 0xffffffffL) + (ld32(key, 16) & 0xffffffffL);
+            long f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + (ld32(key, 20) & 0xffffffffL);
+            long f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + (ld32(key, 24) & 0xffffffffL);
+            long f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + (ld32(key, 28) & 0xffffffffL);
+            st32(out, outOff, (int) f0);
+            f1 += f0 >>> 32;
+            st32(out, outOff + 4, (int) f1);
+            f2 += f1 >>> 32;
+            st32(out, outOff + 8, (int) f2);
+            f3 += f2 >>> 32;
+            st32(out, outOff + 12, (int) f3);
+        }
+    }
+}
@@ -20,34 +20,32 @@ import java.util.stream.*;
 public class Champ implements Cborable {
 
     private static final int HASH_CODE_LENGTH = 32;
+    // the bitmaps are ints, so a node can have at most 2^5 children
+    public static final int MAX_BIT_WIDTH = 5;
 
-    private static class KeyElement {
-        public final ByteArrayWrapper key;
-        public final MaybeMultihash valueHash;
-
-        public KeyElement(ByteArrayWrapper key, MaybeMultihash valueHash) {
-            this.key = key;
-            this.valueHash = valueHash;
-        }
-    }
-
+    /** Either the sorted mappings for a hash prefix, as parallel arrays of keys and values, or a link to a child node
+     */
     private static class HashPrefixPayload {
-        public final KeyElement[] mappings;
+        public final ByteArrayWrapper[] keys;
+        public final MaybeMultihash[] values;
         public final MaybeMultihash link;
 
-        public HashPrefixPayload(KeyElement[] mappings, MaybeMultihash link) {
-            this.mappings = mappings;
+        public HashPrefixPayload(ByteArrayWrapper[] keys, MaybeMultihash[] values, MaybeMultihash link) {
+            this.keys = keys;
+            this.values = values;
             this.link = link;
-            if ((mappings == null) ^ (link != null))
+            if ((keys == null) ^ (link != null))
                 throw new IllegalStateException("Payload can either be mappings or a link, not both!");
+            if (keys != null && keys.length != values.length)
+                throw new IllegalStateException("Every key in a payload must have a value!");
         }
 
-        public HashPrefixPayload(KeyElement[] mappings) {
-            this(mappings, null);
+        public HashPrefixPayload(ByteArrayWrapper[] keys, MaybeMultihash[] values) {
+            this(keys, values, null);
         }
 
         public HashPrefixPayload(MaybeMultihash link) {
-            this(null, link);
+            this(null, null, link);
         }
 
         public boolean isShard() {
@@ -55,20 +53,21 @@ public class Champ implements Cborable {
         }
 
         public int keyCount() {
-            return mappings.length;
+            return keys.length;
         }
     }
 
-    private static final Champ EMPTY = new Champ(new BitSet(), new BitSet(), new HashPrefixPayload[0]);
+    private static final Champ EMPTY = new Champ(0, 0, new HashPrefixPayload[0]);
 
     public static Champ empty() {
         return EMPTY;
     }
 
-    private final BitSet dataMap, nodeMap;
+    // bit i is set if hash prefix i has mappings in this node (dataMap) or a child node (nodeMap)
+    private final int dataMap, nodeMap;
     private final HashPrefixPayload[] contents;
 
-    public Champ(BitSet dataMap, BitSet nodeMap, HashPrefixPayload[] contents) {
+    private Champ(int dataMap, int nodeMap, HashPrefixPayload[] contents) {
         this.dataMap = dataMap;
         this.nodeMap = nodeMap;
         this.contents = contents;
@@ -79,20 +78,14 @@ public class Champ implements Cborable {
 
     private int keyCount() {
         int count = 0;
-        for (HashPrefixPayload payload : contents) {
-            if (! payload.isShard())
-                    count += payload.keyCount();
-        }
+        int dataCount = Integer.bitCount(dataMap);
+        for (int i = 0; i < dataCount; i++)
+            count += contents[i].keyCount();
         return count;
     }
 
     private int nodeCount() {
-        int count = 0;
-        for (HashPrefixPayload payload : contents)
-            if (payload.isShard())
-                count++;
-
-        return count;
+        return Integer.bitCount(nodeMap);
     }
 
     private static int mask(byte[] hash, int depth, int nbits) {
@@ -104,16 +97,34 @@ public class Champ implements Cborable {
                 ((hash[index + 1] & ((1 << hiBits) - 1)) << lowBits);
     }
 
-    private static int getIndex(BitSet bitmap, int bitpos) {
-        int total = 0;
-        for (int i = 0; i < bitpos;) {
-            int next = bitmap.nextSetBit(i);
-            if (next == -1 || next >= bitpos)
-                return total;
-            total++;
-            i = next + 1;
+    private static boolean isSet(int bitmap, int bitpos) {
+        return (bitmap & (1 << bitpos)) != 0;
+    }
+
+    /**
+     *
+     * @param bitmap
+     * @param bitpos
+     * @return the number of bits set in bitmap below bitpos
+     */
+    private static int getIndex(int bitmap, int bitpos) {
+        return Integer.bitCount(bitmap & ((1 << bitpos) - 1));
+    }
+
+    /** Sort parallel arrays of keys and values by key, in place. They are at most maxCollisions + 1 long.
+     */
+    private static void sortMappings(ByteArrayWrapper[] keys, MaybeMultihash[] values) {
+        for (int i = 1; i < keys.length; i++) {
+            ByteArrayWrapper key = keys[i];
+            MaybeMultihash value = values[i];
+            int j = i - 1;
+            for (; j >= 0 && keys[j].compareTo(key) > 0; j--) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
         }
-        return total;
     }
 
     CompletableFuture<Pair<Multihash, Optional<Champ>>> getChild(byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
@@ -156,29 +167,153 @@ public class Champ implements Cborable {
      * @return The value, if any, that this key maps to
      */
     public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key, byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
+        return get(key, hash, depth, bitWidth, h -> storage.getRaw(h).thenApply(rawOpt -> rawOpt.map(Champ::fromByteArray)));
+    }
+
+    /**
+     *
+     * @param key The key to get the value for
+     * @param hash The hash of the key
+     * @param depth The current depth in the champ (top = 0)
+     * @param bitWidth The champ bitwidth
+     * @param getter The function to retrieve and decode child nodes
+     * @return The value, if any, that this key maps to
+     */
+    public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key,
+                                                 byte[] hash,
+                                                 int depth,
+                                                 int bitWidth,
+                                                 Function<Multihash, CompletableFuture<Optional<Champ>>> getter) {
         final int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // local value
+        if (isSet(dataMap, bitpos)) { // local value
             int index = getIndex(this.dataMap, bitpos);
             HashPrefixPayload payload = contents[index];
-            for (KeyElement candidate : payload.mappings) {
-                if (candidate.key.equals(key)) {
-                    return CompletableFuture.completedFuture(candidate.valueHash);
+            for (int i = 0; i < payload.keys.length; i++) {
+                if (payload.keys[i].equals(key)) {
+                    return CompletableFuture.completedFuture(payload.values[i]);
                 }
             }
 
             return CompletableFuture.completedFuture(MaybeMultihash.empty());
         }
 
-        if (nodeMap.get(bitpos)) { // child node
-            return getChild(hash, depth, bitWidth, storage)
-                    .thenCompose(child -> child.right.map(c -> c.get(key, hash, depth + 1, bitWidth, storage))
+        if (isSet(nodeMap, bitpos)) { // child node
+            int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
+            return getter.apply(contents[index].link.get())
+                    .thenCompose(child -> child.map(c -> c.get(key, hash, depth + 1, bitWidth, getter))
                             .orElse(CompletableFuture.completedFuture(MaybeMultihash.empty())));
         }
 
         return CompletableFuture.completedFuture(MaybeMultihash.empty());
     }
 
+    /** Look up many keys at once. Each level of the tree is retrieved for all the keys which reach it in a single
+     *  call to the getter, so the number of calls is bounded by the depth of the tree rather than the number of keys.
+     *
+     * @param keys The keys to get the values for
+     * @param hashes The hashes of the keys
+     * @param bitWidth The champ bitwidth
+     * @param getter The function to retrieve and decode a batch of child nodes, in order
+     * @return The values, in the same order as the keys
+     */
+    public CompletableFuture<List<MaybeMultihash>> getAll(List<ByteArrayWrapper> keys,
+                                                          List<byte[]> hashes,
+                                                          int bitWidth,
+                                                          Function<List<Multihash>, CompletableFuture<List<Optional<Champ>>>> getter) {
+        MaybeMultihash[] results = new MaybeMultihash[keys.size()];
+        List<Integer> indices = IntStream.range(0, keys.size()).boxed().collect(Collectors.toList());
+        return getAll(Collections.nCopies(keys.size(), this), indices, keys, hashes, 0, bitWidth, getter, results)
+                .thenApply(done -> Arrays.asList(results));
+    }
+
+    /**
+     *
+     * @param nodes The node at this depth for each of the remaining keys
+     * @param indices The indices of the remaining keys
+     */
+    private static CompletableFuture<Boolean> getAll(List<Champ> nodes,
+                                                     List<Integer> indices,
+                                                     List<ByteArrayWrapper> keys,
+                                                     List<byte[]> hashes,
+                                                     int depth,
+                                                     int bitWidth,
+                                                     Function<List<Multihash>, CompletableFuture<List<Optional<Champ>>>> getter,
+                                                     MaybeMultihash[] results) {
+        List<Integer> descending = new ArrayList<>();
+        List<Multihash> children = new ArrayList<>();
+        for (int i = 0; i < indices.size(); i++) {
+            int index = indices.get(i);
+            Champ node = nodes.get(i);
+            ByteArrayWrapper key = keys.get(index);
+            final int bitpos = mask(hashes.get(index), depth, bitWidth);
+            results[index] = MaybeMultihash.empty();
+
+            if (isSet(node.dataMap, bitpos)) { // local value
+                HashPrefixPayload payload = node.contents[getIndex(node.dataMap, bitpos)];
+                for (int j = 0; j < payload.keys.length; j++)
+                    if (payload.keys[j].equals(key))
+                        results[index] = payload.values[j];
+            } else if (isSet(node.nodeMap, bitpos)) { // child node
+                descending.add(index);
+                children.add(node.contents[node.contents.length - 1 - getIndex(node.nodeMap, bitpos)].link.get());
+            }
+        }
+        if (descending.isEmpty())
+            return CompletableFuture.completedFuture(true);
+
+        List<Multihash> distinct = children.stream().distinct().collect(Collectors.toList());
+        return getter.apply(distinct).thenCompose(fetched -> {
+            Map<Multihash, Optional<Champ>> byHash = new HashMap<>();
+            for (int i = 0; i < distinct.size(); i++)
+                byHash.put(distinct.get(i), fetched.get(i));
+            List<Champ> nextNodes = new ArrayList<>();
+            List<Integer> nextIndices = new ArrayList<>();
+            for (int i = 0; i < descending.size(); i++) {
+                Optional<Champ> child = byHash.get(children.get(i));
+                if (child.isPresent()) {
+                    nextNodes.add(child.get());
+                    nextIndices.add(descending.get(i));
+                }
+            }
+            return getAll(nextNodes, nextIndices, keys, hashes, depth + 1, bitWidth, getter, results);
+        });
+    }
+
+    /**
+     *
+     * @param root The hash of the champ root
+     * @param hash The hash of the key
+     * @param bitWidth The champ bitwidth
+     * @param getter The function to retrieve nodes
+     * @return The hash and serialization of every node that a lookup of the key visits, starting with the root
+     */
+    public static CompletableFuture<List<Pair<Multihash, byte[]>>> getLookupPath(Multihash root,
+                                                                                byte[] hash,
+                                                                                int bitWidth,
+                                                                                Function<Multihash, CompletableFuture<Optional<byte[]>>> getter) {
+        return addToLookupPath(root, hash, 0, bitWidth, getter, new ArrayList<>());
+    }
+
+    private static CompletableFuture<List<Pair<Multihash, byte[]>>> addToLookupPath(Multihash node,
+                                                                                   byte[] hash,
+                                                                                   int depth,
+                                                                                   int bitWidth,
+                                                                                   Function<Multihash, CompletableFuture<Optional<byte[]>>> getter,
+                                                                                   List<Pair<Multihash, byte[]>> path) {
+        return getter.apply(node).thenCompose(rawOpt -> {
+            if (! rawOpt.isPresent())
+                return CompletableFuture.completedFuture(path);
+            path.add(new Pair<>(node, rawOpt.get()));
+            Champ champ = Champ.fromByteArray(rawOpt.get());
+            int bitpos = mask(hash, depth, bitWidth);
+            if (! isSet(champ.nodeMap, bitpos))
+                return CompletableFuture.completedFuture(path);
+            int index = champ.contents.length - 1 - getIndex(champ.nodeMap, bitpos);
+            return addToLookupPath(champ.contents[index].link.get(), hash, depth + 1, bitWidth, getter, path);
+        });
+    }
+
     /**
      *
      * @param writer The writer key with permission to write
@@ -208,16 +343,17 @@ public class Champ implements Cborable {
                                                          TransactionId tid,
                                                          ContentAddressedStorage storage,
                                                          Multihash ourHash) {
+        if (bitWidth > MAX_BIT_WIDTH)
+            throw new IllegalStateException("Champ bit width must be at most " + MAX_BIT_WIDTH);
         int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // local value
+        if (isSet(dataMap, bitpos)) { // local value
             int index = getIndex(this.dataMap, bitpos);
             HashPrefixPayload payload = contents[index];
-            KeyElement[] mappings = payload.mappings;
-            for (int payloadIndex = 0; payloadIndex < mappings.length; payloadIndex++) {
-                KeyElement mapping = mappings[payloadIndex];
-                final ByteArrayWrapper currentKey = mapping.key;
-                final MaybeMultihash currentVal = mapping.valueHash;
+            ByteArrayWrapper[] keys = payload.keys;
+            for (int payloadIndex = 0; payloadIndex < keys.length; payloadIndex++) {
+                final ByteArrayWrapper currentKey = keys[payloadIndex];
+                final MaybeMultihash currentVal = payload.values[payloadIndex];
                 if (currentKey.equals(key)) {
                     if (! currentVal.equals(expected)) {
                         CompletableFuture<Pair<Champ, Multihash>> err = new CompletableFuture<>();
@@ -230,18 +366,18 @@ public class Champ implements Cborable {
                     return storage.put(owner, writer, champ.serialize(), tid).thenApply(h -> new Pair<>(champ, h));
                 }
             }
-            if (mappings.length < maxCollisions) {
+            if (keys.length < maxCollisions) {
                 Champ champ = insertIntoPrefix(index, key, value);
                 return storage.put(owner, writer, champ.serialize(), tid).thenApply(h -> new Pair<>(champ, h));
             }
 
-            return pushMappingsDownALevel(owner, writer, mappings,
+            return pushMappingsDownALevel(owner, writer, payload,
                     key, hash, value, depth + 1, bitWidth, maxCollisions, hasher, tid, storage)
                     .thenCompose(p -> {
                         Champ champ = copyAndMigrateFromInlineToNode(bitpos, p);
                         return storage.put(owner, writer, champ.serialize(), tid).thenApply(h -> new Pair<>(champ, h));
                     });
-        } else if (nodeMap.get(bitpos)) { // child node
+        } else if (isSet(nodeMap, bitpos)) { // child node
             return getChild(hash, depth, bitWidth, storage)
                     .thenCompose(child -> child.right.get().put(owner, writer, key, hash, depth + 1, expected, value,
                             bitWidth, maxCollisions, hasher, tid, storage, child.left)
@@ -260,7 +396,7 @@ public class Champ implements Cborable {
 
     private CompletableFuture<Pair<Champ, Multihash>> pushMappingsDownALevel(PublicKeyHash owner,
                                                                              SigningPrivateKeyAndPublicHash writer,
-                                                                             KeyElement[] mappings,
+                                                                             HashPrefixPayload mappings,
                                                                              ByteArrayWrapper key1,
                                                                              byte[] hash1,
                                                                              MaybeMultihash val1,
@@ -280,10 +416,10 @@ public class Champ implements Cborable {
                 .thenCompose(p -> p.left.put(owner, writer, key1, hash1, depth, MaybeMultihash.empty(), val1,
                         bitWidth, maxCollisions, hasher, tid, storage, p.right))
                 .thenCompose(one -> Futures.reduceAll(
-                        Arrays.stream(mappings).collect(Collectors.toList()),
+                        IntStream.range(0, mappings.keys.length).mapToObj(i -> i).collect(Collectors.toList()),
                         one,
-                        (p, e) -> p.left.put(owner, writer, e.key, hasher.apply(e.key), depth, MaybeMultihash.empty(), e.valueHash,
-                                bitWidth, maxCollisions, hasher, tid, storage, p.right),
+                        (p, i) -> p.left.put(owner, writer, mappings.keys[i], hasher.apply(mappings.keys[i]), depth,
+                                MaybeMultihash.empty(), mappings.values[i], bitWidth, maxCollisions, hasher, tid, storage, p.right),
                         (a, b) -> a)
                 );
     }
@@ -293,10 +429,9 @@ public class Champ implements Cborable {
         final HashPrefixPayload[] dst = Arrays.copyOf(src, src.length);
 
         HashPrefixPayload existing = dst[setIndex];
-        KeyElement[] updated = new KeyElement[existing.mappings.length];
-        System.arraycopy(existing.mappings, 0, updated, 0, existing.mappings.length);
-        updated[payloadIndex] = new KeyElement(existing.mappings[payloadIndex].key, val);
-        dst[setIndex] = new HashPrefixPayload(updated);
+        MaybeMultihash[] updated = Arrays.copyOf(existing.values, existing.values.length);
+        updated[payloadIndex] = val;
+        dst[setIndex] = new HashPrefixPayload(existing.keys, updated);
 
         return new Champ(dataMap, nodeMap, dst);
     }
@@ -305,12 +440,13 @@ public class Champ implements Cborable {
         final HashPrefixPayload[] src = this.contents;
         final HashPrefixPayload[] result = Arrays.copyOf(src, src.length);
 
-        KeyElement[] prefix = new KeyElement[src[index].mappings.length + 1];
-        System.arraycopy(src[index].mappings, 0, prefix, 0, src[index].mappings.length);
-        prefix[prefix.length - 1] = new KeyElement(key, val);
+        ByteArrayWrapper[] keys = Arrays.copyOf(src[index].keys, src[index].keys.length + 1);
+        MaybeMultihash[] values = Arrays.copyOf(src[index].values, keys.length);
+        keys[keys.length - 1] = key;
+        values[values.length - 1] = val;
         // ensure canonical structure
-        Arrays.sort(prefix, Comparator.comparing(m -> m.key));
-        result[index] = new HashPrefixPayload(prefix);
+        sortMappings(keys, values);
+        result[index] = new HashPrefixPayload(keys, values);
 
         return new Champ(dataMap, nodeMap, result);
     }
@@ -323,11 +459,9 @@ public class Champ implements Cborable {
 
         System.arraycopy(src, 0, result, 0, insertIndex);
         System.arraycopy(src, insertIndex, result, insertIndex + 1, src.length - insertIndex);
-        result[insertIndex] = new HashPrefixPayload(new KeyElement[]{new KeyElement(key, val)});
+        result[insertIndex] = new HashPrefixPayload(new ByteArrayWrapper[]{key}, new MaybeMultihash[]{val});
 
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos);
-        return new Champ(newDataMap, nodeMap, result);
+        return new Champ(dataMap | (1 << bitpos), nodeMap, result);
     }
 
     private Champ copyAndMigrateFromInlineToNode(final int bitpos, final Pair<Champ, Multihash> node) {
@@ -346,11 +480,7 @@ public class Champ implements Cborable {
         dst[newIndex] = new HashPrefixPayload(MaybeMultihash.of(node.right));
         System.arraycopy(src, newIndex + 1, dst, newIndex + 1, src.length - newIndex - 1);
 
-        BitSet newNodeMap = BitSet.valueOf(nodeMap.toByteArray());
-        newNodeMap.set(bitpos);
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos, false);
-        return new Champ(newDataMap, newNodeMap, dst);
+        return new Champ(dataMap & ~(1 << bitpos), nodeMap | (1 << bitpos), dst);
     }
 
     private Champ overwriteChildLink(final int bitpos, final Pair<Champ, Multihash> node) {
@@ -391,15 +521,14 @@ public class Champ implements Cborable {
                                                             Multihash ourHash) {
         int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // in place value
+        if (isSet(dataMap, bitpos)) { // in place value
             final int dataIndex = getIndex(dataMap, bitpos);
 
             HashPrefixPayload payload = contents[dataIndex];
-            KeyElement[] mappings = payload.mappings;
-            for (int payloadIndex = 0; payloadIndex < mappings.length; payloadIndex++) {
-                KeyElement mapping = mappings[payloadIndex];
-                final ByteArrayWrapper currentKey = mapping.key;
-                final MaybeMultihash currentVal = mapping.valueHash;
+            ByteArrayWrapper[] keys = payload.keys;
+            for (int payloadIndex = 0; payloadIndex < keys.length; payloadIndex++) {
+                final ByteArrayWrapper currentKey = keys[payloadIndex];
+                final MaybeMultihash currentVal = payload.values[payloadIndex];
                 if (Objects.equals(currentKey, key)) {
                     if (!currentVal.equals(expected)) {
                         CompletableFuture<Pair<Champ, Multihash>> err = new CompletableFuture<>();
@@ -418,41 +547,37 @@ public class Champ implements Cborable {
                         if (depth > 0) {
                             // inline all mappings into a single node because at a higher level, all mappings have the
                             // same hash prefix
-                            final BitSet newDataMap = new BitSet();
-                            newDataMap.set(mask(hash, 0, bitWidth));
+                            final int newDataMap = 1 << mask(hash, 0, bitWidth);
 
-                            KeyElement[] remainingMappings = new KeyElement[maxCollisions];
+                            ByteArrayWrapper[] remainingKeys = new ByteArrayWrapper[maxCollisions];
+                            MaybeMultihash[] remainingValues = new MaybeMultihash[maxCollisions];
                             int nextIndex = 0;
                             for (HashPrefixPayload grouped : contents) {
-                                for (KeyElement pair : grouped.mappings) {
-                                    if (!pair.key.equals(key))
-                                        remainingMappings[nextIndex++] = pair;
+                                for (int i = 0; i < grouped.keys.length; i++) {
+                                    if (!grouped.keys[i].equals(key)) {
+                                        remainingKeys[nextIndex] = grouped.keys[i];
+                                        remainingValues[nextIndex++] = grouped.values[i];
+                                    }
                                 }
                             }
-                            Arrays.sort(remainingMappings, Comparator.comparing(x -> x.key));
-                            HashPrefixPayload[] oneBucket = new HashPrefixPayload[]{new HashPrefixPayload(remainingMappings)};
+                            sortMappings(remainingKeys, remainingValues);
+                            HashPrefixPayload[] oneBucket = new HashPrefixPayload[]{new HashPrefixPayload(remainingKeys, remainingValues)};
 
-                            champ = new Champ(newDataMap, new BitSet(), oneBucket);
+                            champ = new Champ(newDataMap, 0, oneBucket);
                         } else {
-                            final BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-                            boolean lastInPrefix = mappings.length == 1;
-                            if (lastInPrefix)
-                                newDataMap.clear(bitpos);
-                            else
-                                newDataMap.set(mask(hash, 0, bitWidth));
+                            boolean lastInPrefix = keys.length == 1;
+                            final int newDataMap = lastInPrefix ?
+                                    dataMap & ~(1 << bitpos) :
+                                    dataMap | (1 << mask(hash, 0, bitWidth));
 
                             HashPrefixPayload[] src = this.contents;
                             HashPrefixPayload[] dst = new HashPrefixPayload[src.length - (lastInPrefix ? 1 : 0)];
                             System.arraycopy(src, 0, dst, 0, dataIndex);
                             System.arraycopy(src, dataIndex + 1, dst, dataIndex + (lastInPrefix ? 0 : 1), src.length - dataIndex - 1);
-                            if (! lastInPrefix) {
-                                KeyElement[] remaining = new KeyElement[mappings.length - 1];
-                                System.arraycopy(mappings, 0, remaining, 0, payloadIndex);
-                                System.arraycopy(mappings, payloadIndex + 1, remaining, payloadIndex, mappings.length - payloadIndex - 1);
-                                dst[dataIndex] = new HashPrefixPayload(remaining);
-                            }
+                            if (! lastInPrefix)
+                                dst[dataIndex] = withoutMapping(payload, payloadIndex);
 
-                            champ = new Champ(newDataMap, new BitSet(), dst);
+                            champ = new Champ(newDataMap, 0, dst);
                         }
                         return storage.put(owner, writer, champ.serialize(), tid).thenApply(h -> new Pair<>(champ, h));
                     } else {
@@ -462,7 +587,7 @@ public class Champ implements Cborable {
                 }
             }
             return CompletableFuture.completedFuture(new Pair<>(this, ourHash));
-        } else if (nodeMap.get(bitpos)) { // node (not value)
+        } else if (isSet(nodeMap, bitpos)) { // node (not value)
             return getChild(hash, depth, bitWidth, storage)
                     .thenCompose(child -> child.right.get().remove(owner, writer, key, hash, depth + 1, expected, bitWidth, maxCollisions, tid, storage, child.left)
                             .thenCompose(newChild -> {
@@ -503,46 +628,48 @@ public class Champ implements Cborable {
         if (oldIndex < newIndex)
             throw new IllegalStateException("Invalid champ!");
         System.arraycopy(src, 0, dst, 0, newIndex);
-        KeyElement[] merged = new KeyElement[node.keyCount()];
+        ByteArrayWrapper[] mergedKeys = new ByteArrayWrapper[node.keyCount()];
+        MaybeMultihash[] mergedValues = new MaybeMultihash[mergedKeys.length];
         int count = 0;
         for (int i=0; i < node.contents.length; i++) {
-            KeyElement[] toAdd = node.contents[i].mappings;
-            System.arraycopy(toAdd, 0, merged, count, toAdd.length);
-            count += toAdd.length;
+            HashPrefixPayload toAdd = node.contents[i];
+            System.arraycopy(toAdd.keys, 0, mergedKeys, count, toAdd.keys.length);
+            System.arraycopy(toAdd.values, 0, mergedValues, count, toAdd.values.length);
+            count += toAdd.keys.length;
         }
-        Arrays.sort(merged, Comparator.comparing(x -> x.key));
-        dst[newIndex] = new HashPrefixPayload(merged);
+        sortMappings(mergedKeys, mergedValues);
+        dst[newIndex] = new HashPrefixPayload(mergedKeys, mergedValues);
         System.arraycopy(src, newIndex, dst, newIndex + 1, oldIndex - newIndex);
         System.arraycopy(src, oldIndex + 1, dst, oldIndex + 1, src.length - oldIndex - 1);
 
-        BitSet newNodeMap = BitSet.valueOf(nodeMap.toByteArray());
-        newNodeMap.set(bitpos, false);
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos, true);
-        return new Champ(newDataMap, newNodeMap, dst);
+        return new Champ(dataMap | (1 << bitpos), nodeMap & ~(1 << bitpos), dst);
     }
 
     private Champ removeMapping(final int bitpos, final int payloadIndex) {
         final int index = getIndex(dataMap, bitpos);
         final HashPrefixPayload[] src = this.contents;
-        KeyElement[] existing = src[index].mappings;
-        boolean lastInPrefix = existing.length == 1;
+        HashPrefixPayload existing = src[index];
+        boolean lastInPrefix = existing.keyCount() == 1;
         final HashPrefixPayload[] dst = new HashPrefixPayload[src.length - (lastInPrefix ? 1 : 0)];
 
         // copy src and remove element at position index
         System.arraycopy(src, 0, dst, 0, index);
         System.arraycopy(src, index + 1, dst, lastInPrefix ? index : index + 1, src.length - index - 1);
-        if (! lastInPrefix) {
-            KeyElement[] remaining = new KeyElement[existing.length - 1];
-            System.arraycopy(existing, 0, remaining, 0, payloadIndex);
-            System.arraycopy(existing, payloadIndex + 1, remaining, payloadIndex, existing.length - payloadIndex - 1);
-            dst[index] = new HashPrefixPayload(remaining);
-        }
+        if (! lastInPrefix)
+            dst[index] = withoutMapping(existing, payloadIndex);
+
+        return new Champ(lastInPrefix ? dataMap & ~(1 << bitpos) : dataMap, nodeMap, dst);
+    }
 
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        if (lastInPrefix)
-            newDataMap.clear(bitpos);
-        return new Champ(newDataMap, nodeMap, dst);
+    private static HashPrefixPayload withoutMapping(HashPrefixPayload payload, int payloadIndex) {
+        int remaining = payload.keys.length - 1;
+        ByteArrayWrapper[] keys = new ByteArrayWrapper[remaining];
+        MaybeMultihash[] values = new MaybeMultihash[remaining];
+        System.arraycopy(payload.keys, 0, keys, 0, payloadIndex);
+        System.arraycopy(payload.keys, payloadIndex + 1, keys, payloadIndex, remaining - payloadIndex);
+        System.arraycopy(payload.values, 0, values, 0, payloadIndex);
+        System.arraycopy(payload.values, payloadIndex + 1, values, payloadIndex, remaining - payloadIndex);
+        return new HashPrefixPayload(keys, values);
     }
 
     public <T> CompletableFuture<T> applyToAllMappings(T identity,
@@ -551,9 +678,9 @@ public class Champ implements Cborable {
         return Futures.reduceAll(Arrays.stream(contents).collect(Collectors.toList()), identity, (res, payload) ->
                 (! payload.isShard() ?
                         Futures.reduceAll(
-                                Arrays.stream(payload.mappings).collect(Collectors.toList()),
+                                IntStream.range(0, payload.keys.length).mapToObj(i -> i).collect(Collectors.toList()),
                                 res,
-                                (x, mapping) -> consumer.apply(x, new Pair<>(mapping.key, mapping.valueHash)),
+                                (x, i) -> consumer.apply(x, new Pair<>(payload.keys[i], payload.values[i])),
                                 (a, b) ->  a) :
                         CompletableFuture.completedFuture(res)
                 ).thenCompose(newRes ->
@@ -565,11 +692,13 @@ public class Champ implements Cborable {
                 ), (a, b) -> a);
     }
 
-    private List<KeyElement> getMappings() {
-        return Arrays.stream(contents)
-                .filter(p -> !p.isShard())
-                .flatMap(p -> Arrays.stream(p.mappings))
-                .collect(Collectors.toList());
+    private Map<ByteArrayWrapper, MaybeMultihash> getMappings() {
+        Map<ByteArrayWrapper, MaybeMultihash> res = new HashMap<>();
+        int dataCount = Integer.bitCount(dataMap);
+        for (int i = 0; i < dataCount; i++)
+            for (int j = 0; j < contents[i].keys.length; j++)
+                res.put(contents[i].keys[j], contents[i].values[j]);
+        return res;
     }
 
     private List<HashPrefixPayload> getLinks() {
@@ -578,25 +707,50 @@ public class Champ implements Cborable {
                 .collect(Collectors.toList());
     }
 
+    /** Call the consumer with every mapping which differs between two trees. The trees are compared a level at a
+     *  time, so at most ContentAddressedStorage.MAX_CONCURRENT_GETS pairs of nodes are retrieved at once however
+     *  large the difference.
+     */
     public static CompletableFuture<Boolean> applyToDiff(
             MaybeMultihash original,
             MaybeMultihash updated,
             Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer,
             ContentAddressedStorage storage) {
+        return applyToDiff(Collections.singletonList(new Pair<>(original, updated)), consumer, storage);
+    }
 
-        if (updated.equals(original))
+    private static CompletableFuture<Boolean> applyToDiff(
+            List<Pair<MaybeMultihash, MaybeMultihash>> level,
+            Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer,
+            ContentAddressedStorage storage) {
+        List<Pair<MaybeMultihash, MaybeMultihash>> changed = level.stream()
+                .filter(p -> ! p.right.equals(p.left))
+                .collect(Collectors.toList());
+        if (changed.isEmpty())
             return CompletableFuture.completedFuture(true);
+        return Futures.mapAsync(changed, ContentAddressedStorage.MAX_CONCURRENT_GETS,
+                p -> applyToNodeDiff(p.left, p.right, consumer, storage))
+                .thenCompose(children -> applyToDiff(children.stream()
+                        .flatMap(List::stream)
+                        .collect(Collectors.toList()), consumer, storage));
+    }
+
+    /** Call the consumer with the differing mappings stored directly in a pair of nodes
+     *
+     * @return the pairs of links to descend into next
+     */
+    private static CompletableFuture<List<Pair<MaybeMultihash, MaybeMultihash>>> applyToNodeDiff(
+            MaybeMultihash original,
+            MaybeMultihash updated,
+            Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer,
+            ContentAddressedStorage storage) {
         return original.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
                 .thenApply(rawOpt -> rawOpt.map(Champ::fromCbor))
                 .thenCompose(left -> updated.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
                         .thenApply(rawOpt -> rawOpt.map(Champ::fromCbor))
-                        .thenCompose(right -> {
-                            List<KeyElement> leftMappings = left.map(Champ::getMappings).orElseGet(Collections::emptyList);
-                            List<KeyElement> rightMappings = right.map(Champ::getMappings).orElseGet(Collections::emptyList);
-                            Map<ByteArrayWrapper, MaybeMultihash> leftMap = leftMappings.stream()
-                                    .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
-                            Map<ByteArrayWrapper, MaybeMultihash> rightMap = rightMappings.stream()
-                                    .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
+                        .thenApply(right -> {
+                            Map<ByteArrayWrapper, MaybeMultihash> leftMap = left.map(Champ::getMappings).orElseGet(Collections::emptyMap);
+                            Map<ByteArrayWrapper, MaybeMultihash> rightMap = right.map(Champ::getMappings).orElseGet(Collections::emptyMap);
 
                             HashSet<ByteArrayWrapper> both = new HashSet<>(leftMap.keySet());
                             both.retainAll(rightMap.keySet());
@@ -611,7 +765,7 @@ public class Champ implements Cborable {
                                     consumer.accept(new Triple<>(entry.getKey(), MaybeMultihash.empty(), entry.getValue()));
                             }
 
-                            // Now descend recursively, diffing equal indexed elements
+                            // Now pair up equal indexed links, to be diffed with the rest of the next level
                             List<HashPrefixPayload> leftLinks = left.map(Champ::getLinks).orElseGet(Collections::emptyList);
                             List<HashPrefixPayload> rightLinks = right.map(Champ::getLinks).orElseGet(Collections::emptyList);
 
@@ -620,32 +774,55 @@ public class Champ implements Cborable {
                                 linkPairs.add(new Pair<>(i < leftLinks.size() ? leftLinks.get(i).link : MaybeMultihash.empty(),
                                         i < rightLinks.size() ? rightLinks.get(i).link : MaybeMultihash.empty()));
                             }
-
-                            return Futures.combineAll(linkPairs.stream()
-                                    .map(p -> applyToDiff(p.left, p.right, consumer, storage))
-                                    .collect(Collectors.toList()))
-                                    .thenApply(x -> true);
+                            return linkPairs;
                         })
         );
     }
 
+    /**
+     *
+     * @param bitmap
+     * @return the bitmap in the form of BitSet.toByteArray(), which is the serialized format
+     */
+    private static byte[] bitmapBytes(int bitmap) {
+        byte[] res = new byte[(32 - Integer.numberOfLeadingZeros(bitmap) + 7) / 8];
+        for (int i = 0; i < res.length; i++)
+            res[i] = (byte) (bitmap >>> (8 * i));
+        return res;
+    }
+
+    private static int bitmap(byte[] bytes) {
+        int res = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (i < 4)
+                res |= (bytes[i] & 0xFF) << (8 * i);
+            else if (bytes[i] != 0)
+                throw new IllegalStateException("Champ bit width must be at most " + MAX_BIT_WIDTH);
+        }
+        return res;
+    }
+
     @Override
     public CborObject toCbor() {
+        List<CborObject> contentsCbor = new ArrayList<>(contents.length);
+        for (HashPrefixPayload payload : contents) {
+            if (payload.isShard()) {
+                contentsCbor.add(new CborObject.CborMerkleLink(payload.link.get()));
+                continue;
+            }
+            List<CborObject> mappings = new ArrayList<>(2 * payload.keys.length);
+            for (int i = 0; i < payload.keys.length; i++) {
+                mappings.add(new CborObject.CborByteArray(payload.keys[i].data));
+                mappings.add(payload.values[i].isPresent() ?
+                        new CborObject.CborMerkleLink(payload.values[i].get()) :
+                        new CborObject.CborNull());
+            }
+            contentsCbor.add(new CborObject.CborList(mappings));
+        }
         return new CborObject.CborList(Arrays.asList(
-                new CborObject.CborByteArray(dataMap.toByteArray()),
-                new CborObject.CborByteArray(nodeMap.toByteArray()),
-                new CborObject.CborList(Arrays.stream(contents)
-                        .flatMap(e -> e.link != null ?
-                                Stream.of(new CborObject.CborMerkleLink(e.link.get())) :
-                                Stream.of(new CborObject.CborList(Arrays.stream(e.mappings)
-                                        .flatMap(m -> Stream.of(
-                                                new CborObject.CborByteArray(m.key.data),
-                                                m.valueHash.isPresent() ?
-                                                        new CborObject.CborMerkleLink(m.valueHash.get()) :
-                                                        new CborObject.CborNull()
-                                        ))
-                                        .collect(Collectors.toList()))))
-                        .collect(Collectors.toList()))
+                new CborObject.CborByteArray(bitmapBytes(dataMap)),
+                new CborObject.CborByteArray(bitmapBytes(nodeMap)),
+                new CborObject.CborList(contentsCbor)
         ));
     }
 
@@ -656,29 +833,68 @@ public class Champ implements Cborable {
 
         if (! (list.get(0) instanceof CborObject.CborByteArray))
             throw new IllegalStateException("Invalid cbor for a champ, is this a btree?");
-        BitSet dataMap = BitSet.valueOf(((CborObject.CborByteArray)list.get(0)).value);
-        BitSet nodeMap = BitSet.valueOf(((CborObject.CborByteArray)list.get(1)).value);
+        int dataMap = bitmap(((CborObject.CborByteArray)list.get(0)).value);
+        int nodeMap = bitmap(((CborObject.CborByteArray)list.get(1)).value);
         List<? extends Cborable> contentsCbor = ((CborObject.CborList) list.get(2)).value;
 
-        List<HashPrefixPayload> contents = new ArrayList<>();
+        HashPrefixPayload[] contents = new HashPrefixPayload[contentsCbor.size()];
         for (int i=0; i < contentsCbor.size(); i++) {
             Cborable keyOrHash = contentsCbor.get(i);
             if (keyOrHash instanceof CborObject.CborList) {
-                List<KeyElement> mappings = new ArrayList<>();
                 List<? extends Cborable> mappingsCbor = ((CborObject.CborList) keyOrHash).value;
-                for (int j=0; j < mappingsCbor.size(); j += 2) {
-                    byte[] key = ((CborObject.CborByteArray) mappingsCbor.get(j)).value;
-                    Cborable value = mappingsCbor.get(j + 1);
-                    mappings.add(new KeyElement(new ByteArrayWrapper(key),
-                        value instanceof CborObject.CborNull ?
-                                MaybeMultihash.empty() :
-                                MaybeMultihash.of(((CborObject.CborMerkleLink) value).target)));
+                ByteArrayWrapper[] keys = new ByteArrayWrapper[mappingsCbor.size() / 2];
+                MaybeMultihash[] values = new MaybeMultihash[keys.length];
+                for (int j=0; j < keys.length; j++) {
+                    keys[j] = new ByteArrayWrapper(((CborObject.CborByteArray) mappingsCbor.get(2 * j)).value);
+                    Cborable value = mappingsCbor.get(2 * j + 1);
+                    values[j] = value instanceof CborObject.CborNull ?
+                            MaybeMultihash.empty() :
+                            MaybeMultihash.of(((CborObject.CborMerkleLink) value).target);
+                }
+                contents[i] = new HashPrefixPayload(keys, values);
+            } else {
+                contents[i] = new HashPrefixPayload(MaybeMultihash.of(((CborObject.CborMerkleLink)keyOrHash).target));
+            }
+        }
+        return new Champ(dataMap, nodeMap, contents);
+    }
+
+    /**
+     *
+     * @param raw The serialization of a champ node
+     * @return the node, decoded without building a tree of CborObjects
+     */
+    public static Champ fromByteArray(byte[] raw) {
+        return fromCbor(CborView.of(raw));
+    }
+
+    public static Champ fromCbor(CborView cbor) {
+        if (! cbor.isList())
+            throw new IllegalStateException("Invalid cbor for CHAMP! " + cbor.majorType());
+        if (! cbor.get(0).isByteString())
+            throw new IllegalStateException("Invalid cbor for a champ, is this a btree?");
+        int dataMap = bitmap(cbor.get(0).getByteArray());
+        int nodeMap = bitmap(cbor.get(1).getByteArray());
+        CborView contentsCbor = cbor.get(2);
+
+        HashPrefixPayload[] contents = new HashPrefixPayload[contentsCbor.size()];
+        for (int i=0; i < contents.length; i++) {
+            CborView keyOrHash = contentsCbor.get(i);
+            if (keyOrHash.isList()) {
+                ByteArrayWrapper[] keys = new ByteArrayWrapper[keyOrHash.size() / 2];
+                MaybeMultihash[] values = new MaybeMultihash[keys.length];
+                for (int j=0; j < keys.length; j++) {
+                    keys[j] = new ByteArrayWrapper(keyOrHash.get(2 * j).getByteArray());
+                    CborView value = keyOrHash.get(2 * j + 1);
+                    values[j] = value.isNull() ?
+                            MaybeMultihash.empty() :
+                            MaybeMultihash.of(value.getLink());
                 }
-                contents.add(new HashPrefixPayload(mappings.toArray(new KeyElement[0])));
+                contents[i] = new HashPrefixPayload(keys, values);
             } else {
-                contents.add(new HashPrefixPayload(MaybeMultihash.of(((CborObject.CborMerkleLink)keyOrHash).target)));
+                contents[i] = new HashPrefixPayload(MaybeMultihash.of(keyOrHash.getLink()));
             }
         }
-        return new Champ(dataMap, nodeMap, contents.toArray(new HashPrefixPayload[contents.size()]));
+        return new Champ(dataMap, nodeMap, contents);
     }
 }
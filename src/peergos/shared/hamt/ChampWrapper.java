@@ -1,6 +1,7 @@
 package peergos.shared.hamt;
 
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -9,8 +10,10 @@ import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper implements ImmutableTree
 {
@@ -59,7 +62,34 @@ public class ChampWrapper implements ImmutableTree
     @Override
     public CompletableFuture<MaybeMultihash> get(byte[] rawKey) {
         ByteArrayWrapper key = new ByteArrayWrapper(rawKey);
-        return root.left.get(key, hasher.apply(key), 0, BIT_WIDTH, storage);
+        byte[] hash = hasher.apply(key);
+        // retrieve the whole lookup path at once rather than a level at a time
+        return storage.getChampLookup(root.right, hash).thenCompose(path -> {
+            Map<Multihash, byte[]> nodes = new HashMap<>();
+            for (Pair<Multihash, byte[]> node : path)
+                nodes.put(node.left, node.right);
+            return root.left.get(key, hash, 0, BIT_WIDTH, h -> (nodes.containsKey(h) ?
+                    CompletableFuture.completedFuture(Optional.of(nodes.get(h))) :
+                    storage.getRaw(h)).thenApply(rawOpt -> rawOpt.map(Champ::fromByteArray)));
+        });
+    }
+
+    /**
+     *
+     * @param rawKeys
+     * @return the values stored under each of rawKeys, in order
+     */
+    public CompletableFuture<List<MaybeMultihash>> getAll(List<byte[]> rawKeys) {
+        List<ByteArrayWrapper> keys = rawKeys.stream()
+                .map(ByteArrayWrapper::new)
+                .collect(Collectors.toList());
+        List<byte[]> hashes = keys.stream()
+                .map(hasher)
+                .collect(Collectors.toList());
+        return root.left.getAll(keys, hashes, BIT_WIDTH, h -> storage.getAllRaw(h)
+                .thenApply(blocks -> blocks.stream()
+                        .map(rawOpt -> rawOpt.map(Champ::fromByteArray))
+                        .collect(Collectors.toList())));
     }
 
     /**
@@ -100,6 +130,27 @@ public class ChampWrapper implements ImmutableTree
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /**
+     *  The intermediate champ nodes are held in memory, and only those reachable from the final root are written, in a
+     *  single request
+     * @param mutations
+     * @return hash of new tree root
+     */
+    @Override
+    public CompletableFuture<Multihash> applyAll(PublicKeyHash owner,
+                                                 SigningPrivateKeyAndPublicHash writer,
+                                                 List<Mutation> mutations,
+                                                 TransactionId tid) {
+        BufferedStorage buffer = new BufferedStorage(storage);
+        return Futures.reduceAll(mutations, root, (current, m) -> {
+            ByteArrayWrapper key = new ByteArrayWrapper(m.mapKey);
+            return current.left.put(owner, writer, key, hasher.apply(key), 0, m.existing, m.updated,
+                    BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid, buffer, current.right);
+        }, (a, b) -> b)
+                .thenCompose(newRoot -> buffer.commit(newRoot.right, tid)
+                        .thenCompose(written -> commit(writer, newRoot)));
+    }
+
     private CompletableFuture<Multihash> commit(SigningPrivateKeyAndPublicHash writer, Pair<Champ, Multihash> newRoot) {
         root = newRoot;
         return CompletableFuture.completedFuture(newRoot.right);
@@ -8,29 +8,71 @@ import java.util.concurrent.*;
 
 /*
  * A CoreNode that caches previous metadata blob reads for a certain time
+ *
+ * If the server can push updates, cached pointers are instead kept until the server says they have changed, for as
+ * long as a request for updates covering them is outstanding.
  */
 public class CachingPointers implements MutablePointers {
 
     private final MutablePointers target;
     private final int cacheTTL;
+    private final Optional<PointerSubscriptions> subscriptions;
     private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new HashMap<>();
+    private final Map<PublicKeyHash, PublicKeyHash> owners = new HashMap<>(); // guarded by cache
+    // the position in the server's stream that each cached value is known to be current as of
+    private final Map<PublicKeyHash, Long> currentAsOf = new HashMap<>(); // guarded by cache
+    // the writers in the outstanding request for updates, whose cached values are current until it completes
+    private Set<PublicKeyHash> watched = Collections.emptySet(); // guarded by cache
+    // writers the server can't send updates for
+    private final Set<PublicKeyHash> unwatchable = new HashSet<>(); // guarded by cache
+    private long epoch = PointerSubscriptions.NEW_EPOCH, sequence; // guarded by cache
+    // incremented whenever the cache is changed by an update from the server
+    private long generation; // guarded by cache
+    private boolean subscribed; // guarded by cache
+    private long lastFailure; // guarded by cache
 
-    public CachingPointers(MutablePointers target, int cacheTTL) {
+    private CachingPointers(MutablePointers target, int cacheTTL, Optional<PointerSubscriptions> subscriptions) {
         this.target = target;
         this.cacheTTL = cacheTTL;
+        this.subscriptions = subscriptions;
+    }
+
+    public CachingPointers(MutablePointers target, int cacheTTL) {
+        this(target, cacheTTL, Optional.empty());
+    }
+
+    /**
+     *
+     * @param cacheTTL how long to cache pointers for when updates can't be pushed
+     * @param subscriptions where to get pushed updates from
+     */
+    public CachingPointers(MutablePointers target, int cacheTTL, PointerSubscriptions subscriptions) {
+        this(target, cacheTTL, Optional.of(subscriptions));
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+        long startGeneration, startEpoch, startSequence;
         synchronized (cache) {
             Pair<Optional<byte[]>, Long> cached = cache.get(writer);
-            if (cached != null && System.currentTimeMillis() - cached.right < cacheTTL)
+            if (cached != null && (watched.contains(writer) || System.currentTimeMillis() - cached.right < cacheTTL))
                 return CompletableFuture.completedFuture(cached.left);
+            startGeneration = generation;
+            startEpoch = epoch;
+            startSequence = sequence;
         }
         return target.getPointer(owner, writer).thenApply(m -> {
             synchronized (cache) {
-                cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
+                // an update from the server could have made what we read stale
+                if (generation == startGeneration) {
+                    cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
+                    owners.put(writer, owner);
+                    // we started reading after the last response, so saw every update it covered
+                    if (startEpoch != PointerSubscriptions.NEW_EPOCH)
+                        currentAsOf.put(writer, startSequence);
+                }
             }
+            subscribe();
             return m;
         });
     }
@@ -39,7 +81,77 @@ public class CachingPointers implements MutablePointers {
     public CompletableFuture<Boolean> setPointer(PublicKeyHash ownerPublicKey, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         synchronized (cache) {
             cache.remove(writer);
+            currentAsOf.remove(writer);
         }
         return target.setPointer(ownerPublicKey, writer, writerSignedBtreeRootHash);
     }
+
+    private void subscribe() {
+        if (! subscriptions.isPresent())
+            return;
+        synchronized (cache) {
+            if (subscribed || System.currentTimeMillis() - lastFailure < cacheTTL)
+                return;
+            subscribed = true;
+        }
+        waitForUpdates();
+    }
+
+    private void waitForUpdates() {
+        long requestEpoch;
+        Map<PublicKeyHash, Pair<PublicKeyHash, Long>> writers = new HashMap<>();
+        synchronized (cache) {
+            requestEpoch = epoch;
+            for (PublicKeyHash writer : cache.keySet()) {
+                if (unwatchable.contains(writer))
+                    continue;
+                Long asOf = currentAsOf.get(writer);
+                // a value we don't have a position for can't be watched, unless the server is about to reset us
+                if (asOf == null && requestEpoch != PointerSubscriptions.NEW_EPOCH)
+                    continue;
+                writers.put(writer, new Pair<>(owners.get(writer), asOf == null ? 0L : asOf));
+            }
+            if (writers.isEmpty()) {
+                subscribed = false;
+                return;
+            }
+            watched = requestEpoch == PointerSubscriptions.NEW_EPOCH ?
+                    Collections.emptySet() :
+                    new HashSet<>(writers.keySet());
+        }
+        subscriptions.get().waitForUpdates(requestEpoch, writers).thenAccept(updates -> {
+            synchronized (cache) {
+                generation++;
+                unwatchable.addAll(updates.remote);
+                if (updates.reset) {
+                    cache.clear();
+                    currentAsOf.clear();
+                } else {
+                    // the response covers every update to the watched writers up to its sequence
+                    for (PublicKeyHash writer : watched)
+                        if (cache.containsKey(writer))
+                            currentAsOf.put(writer, updates.sequence);
+                    long now = System.currentTimeMillis();
+                    for (Map.Entry<PublicKeyHash, byte[]> e : updates.updated.entrySet()) {
+                        cache.put(e.getKey(), new Pair<>(Optional.of(e.getValue()), now));
+                        currentAsOf.put(e.getKey(), updates.sequence);
+                    }
+                }
+                watched = Collections.emptySet();
+                epoch = updates.epoch;
+                sequence = updates.sequence;
+            }
+            waitForUpdates();
+        }).exceptionally(t -> {
+            synchronized (cache) {
+                // fall back to expiring cached values until we can subscribe again
+                watched = Collections.emptySet();
+                currentAsOf.clear();
+                epoch = PointerSubscriptions.NEW_EPOCH;
+                subscribed = false;
+                lastFailure = System.currentTimeMillis();
+            }
+            return null;
+        });
+    }
 }
@@ -2,6 +2,7 @@
 package peergos.shared.mutable;
 import java.util.logging.*;
 
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.*;
@@ -11,8 +12,9 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
-public class HttpMutablePointers implements MutablePointersProxy {
+public class HttpMutablePointers implements MutablePointersProxy, PointerSubscriptions {
 	private static final Logger LOG = Logger.getGlobal();
 	private static final String P2P_PROXY_PROTOCOL = "/http";
 
@@ -107,4 +109,15 @@ public class HttpMutablePointers implements MutablePointersProxy {
                 LOG.info("HttpMutablePointers.get took " + (t2 -t1) + "mS");
         }
     }
+
+    @Override
+    public CompletableFuture<PointerUpdates> waitForUpdates(long epoch, Map<PublicKeyHash, Pair<PublicKeyHash, Long>> writers) {
+        CborObject.CborList watched = new CborObject.CborList(writers.entrySet().stream()
+                .map(e -> new CborObject.CborList(Arrays.asList(e.getValue().left, e.getKey(),
+                        new CborObject.CborLong(e.getValue().right))))
+                .collect(Collectors.toList()));
+        return direct.postUnzip(directUrlPrefix + Constants.POINTER_UPDATES_URL + "waitForUpdates?epoch=" + epoch,
+                watched.serialize())
+                .thenApply(res -> PointerUpdates.fromCbor(CborObject.fromByteArray(res)));
+    }
 }
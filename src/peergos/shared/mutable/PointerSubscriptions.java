@@ -0,0 +1,26 @@
+package peergos.shared.mutable;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A source of mutable pointer updates that are pushed as they are committed, rather than polled for
+ *
+ */
+public interface PointerSubscriptions {
+
+    /** Start a new subscription, rather than continuing from a previous response
+     */
+    long NEW_EPOCH = 0;
+
+    /** Wait until any of the given writers' pointers are updated after the position in the server's stream of updates
+     *  that the subscriber's value of it is current as of, or until the server times out the request
+     *
+     * @param epoch the epoch of the previous response, or NEW_EPOCH
+     * @param writers each writer to watch, mapped to its owner and the sequence its value is current as of
+     * @return the updates, which are empty if the request timed out
+     */
+    CompletableFuture<PointerUpdates> waitForUpdates(long epoch, Map<PublicKeyHash, Pair<PublicKeyHash, Long>> writers);
+}
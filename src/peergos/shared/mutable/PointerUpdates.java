@@ -0,0 +1,65 @@
+package peergos.shared.mutable;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** The new signed roots of a set of writers since a given position in a server's stream of pointer updates
+ *
+ */
+public class PointerUpdates implements Cborable {
+
+    // identifies one run of the server, positions from any other run are meaningless
+    public final long epoch;
+    // the position in the stream these updates bring the subscriber up to
+    public final long sequence;
+    // true if updates may have been missed, so every cached pointer must be discarded
+    public final boolean reset;
+    public final Map<PublicKeyHash, byte[]> updated;
+    // writers this server doesn't store, so it will never see their updates
+    public final Set<PublicKeyHash> remote;
+
+    public PointerUpdates(long epoch,
+                          long sequence,
+                          boolean reset,
+                          Map<PublicKeyHash, byte[]> updated,
+                          Set<PublicKeyHash> remote) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.reset = reset;
+        this.updated = updated;
+        this.remote = remote;
+    }
+
+    public boolean isEmpty() {
+        return ! reset && updated.isEmpty() && remote.isEmpty();
+    }
+
+    @Override
+    public CborObject toCbor() {
+        Map<String, Cborable> state = new TreeMap<>();
+        state.put("e", new CborObject.CborLong(epoch));
+        state.put("s", new CborObject.CborLong(sequence));
+        state.put("r", new CborObject.CborBoolean(reset));
+        state.put("u", new CborObject.CborList(updated.entrySet().stream()
+                .map(e -> new CborObject.CborList(Arrays.asList(e.getKey(), new CborObject.CborByteArray(e.getValue()))))
+                .collect(Collectors.toList())));
+        state.put("x", new CborObject.CborList(new ArrayList<>(remote)));
+        return CborObject.CborMap.build(state);
+    }
+
+    public static PointerUpdates fromCbor(Cborable cbor) {
+        if (! (cbor instanceof CborObject.CborMap))
+            throw new IllegalStateException("Incorrect cbor for PointerUpdates: " + cbor);
+        CborObject.CborMap map = (CborObject.CborMap) cbor;
+        Map<PublicKeyHash, byte[]> updated = new HashMap<>();
+        for (Cborable pair : map.getList("u").value) {
+            List<? extends Cborable> value = ((CborObject.CborList) pair).value;
+            updated.put(PublicKeyHash.fromCbor(value.get(0)), ((CborObject.CborByteArray) value.get(1)).value);
+        }
+        Set<PublicKeyHash> remote = new HashSet<>(map.getList("x", PublicKeyHash::fromCbor));
+        return new PointerUpdates(map.getLong("e"), map.getLong("s"), map.getBoolean("r"), updated, remote);
+    }
+}
@@ -0,0 +1,180 @@
+package peergos.shared.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** A concurrent cache of blocks bounded by the total size of the cached values rather than the number of entries.
+ *
+ *  The key space is split across a number of independent shards, each with its own byte budget. Reads are lock free,
+ *  they only mark an entry as recently used. Writes lock a single shard, and evict using the CLOCK (second chance)
+ *  approximation of LRU.
+ */
+public class BlockCache {
+    private final Shard[] shards;
+    private final int shardMask;
+    private final long maxSizeBytes;
+
+    /**
+     *
+     * @param maxSizeBytes The maximum total size of all cached values
+     * @param nShards The number of independently locked shards, this is rounded up to a power of 2
+     */
+    public BlockCache(long maxSizeBytes, int nShards) {
+        if (maxSizeBytes <= 0)
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSizeBytes);
+        int shardCount = 1;
+        while (shardCount < nShards)
+            shardCount <<= 1;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            shards[i] = new Shard(Math.max(1, maxSizeBytes / shardCount));
+        this.shardMask = shardCount - 1;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    public BlockCache(long maxSizeBytes) {
+        this(maxSizeBytes, 16);
+    }
+
+    private Shard shard(Multihash key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & shardMask];
+    }
+
+    /**
+     *
+     * @param key
+     * @return The cached value, or null if it isn't present
+     */
+    public byte[] get(Multihash key) {
+        Shard shard = shard(key);
+        Entry entry = shard.map.get(key);
+        if (entry == null) {
+            shard.misses.incrementAndGet();
+            return null;
+        }
+        // A lost update here only costs the entry its second chance
+        if (! entry.referenced)
+            entry.referenced = true;
+        shard.hits.incrementAndGet();
+        return entry.value;
+    }
+
+    public boolean containsKey(Multihash key) {
+        return shard(key).map.containsKey(key);
+    }
+
+    public void put(Multihash key, byte[] value) {
+        shard(key).put(key, value);
+    }
+
+    public void clear() {
+        for (Shard shard : shards)
+            shard.clear();
+    }
+
+    public int size() {
+        int total = 0;
+        for (Shard shard : shards)
+            total += shard.map.size();
+        return total;
+    }
+
+    public long sizeInBytes() {
+        long total = 0;
+        for (Shard shard : shards)
+            total += shard.sizeInBytes();
+        return total;
+    }
+
+    public long maxSizeInBytes() {
+        return maxSizeBytes;
+    }
+
+    public long hits() {
+        long total = 0;
+        for (Shard shard : shards)
+            total += shard.hits.get();
+        return total;
+    }
+
+    public long misses() {
+        long total = 0;
+        for (Shard shard : shards)
+            total += shard.misses.get();
+        return total;
+    }
+
+    public long evictions() {
+        long total = 0;
+        for (Shard shard : shards)
+            total += shard.evictions.get();
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockCache{entries=" + size() + ", bytes=" + sizeInBytes() + "/" + maxSizeBytes + ", hits=" + hits()
+                + ", misses=" + misses() + ", evictions=" + evictions() + "}";
+    }
+
+    private static final class Entry {
+        final Multihash key;
+        final byte[] value;
+        boolean referenced;
+
+        Entry(Multihash key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Shard {
+        private final Map<Multihash, Entry> map = new ConcurrentHashMap<>();
+        private final Deque<Entry> clock = new ArrayDeque<>();
+        private final AtomicLong hits = new AtomicLong(0);
+        private final AtomicLong misses = new AtomicLong(0);
+        private final AtomicLong evictions = new AtomicLong(0);
+        private final long maxBytes;
+        private long bytes;
+
+        Shard(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized void put(Multihash key, byte[] value) {
+            if (value.length > maxBytes || map.containsKey(key))
+                return;
+            Entry entry = new Entry(key, value);
+            map.put(key, entry);
+            clock.addLast(entry);
+            bytes += value.length;
+
+            while (bytes > maxBytes) {
+                Entry head = clock.pollFirst();
+                if (head.referenced) {
+                    head.referenced = false;
+                    clock.addLast(head);
+                    continue;
+                }
+                map.remove(head.key);
+                bytes -= head.value.length;
+                evictions.incrementAndGet();
+            }
+        }
+
+        synchronized long sizeInBytes() {
+            return bytes;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            clock.clear();
+            bytes = 0;
+        }
+    }
+}
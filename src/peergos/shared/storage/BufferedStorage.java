@@ -0,0 +1,168 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** This class holds writes of cbor blocks in memory, so that a sequence of modifications to a merkle tree only needs to
+ *  write the blocks that are reachable from the final root, in a single request.
+ *
+ */
+public class BufferedStorage implements ContentAddressedStorage {
+    private final ContentAddressedStorage target;
+    private final Map<Multihash, BufferedBlock> buffered = new HashMap<>();
+
+    private static class BufferedBlock {
+        public final PublicKeyHash owner, writer;
+        public final byte[] signature, block;
+
+        public BufferedBlock(PublicKeyHash owner, PublicKeyHash writer, byte[] signature, byte[] block) {
+            this.owner = owner;
+            this.writer = writer;
+            this.signature = signature;
+            this.block = block;
+        }
+    }
+
+    public BufferedStorage(ContentAddressedStorage target) {
+        this.target = target;
+    }
+
+    private static Multihash hashOf(byte[] block) {
+        return new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(block));
+    }
+
+    /**
+     *  Write the buffered blocks that are reachable from root to the target, and discard the rest
+     * @param root
+     * @param tid
+     * @return the hashes of the blocks written
+     */
+    public synchronized CompletableFuture<List<Multihash>> commit(Multihash root, TransactionId tid) {
+        List<Multihash> reachable = new ArrayList<>();
+        LinkedList<Multihash> toVisit = new LinkedList<>();
+        Set<Multihash> seen = new HashSet<>();
+        toVisit.add(root);
+        while (! toVisit.isEmpty()) {
+            Multihash next = toVisit.removeFirst();
+            BufferedBlock block = buffered.get(next);
+            if (block == null || ! seen.add(next))
+                continue;
+            reachable.add(next);
+            toVisit.addAll(CborView.of(block.block).links());
+        }
+        Map<Multihash, BufferedBlock> toWrite = reachable.stream()
+                .collect(Collectors.toMap(h -> h, buffered::get));
+        buffered.clear();
+        if (reachable.isEmpty())
+            return CompletableFuture.completedFuture(Collections.emptyList());
+
+        BufferedBlock first = toWrite.get(reachable.get(0));
+        if (reachable.stream().anyMatch(h -> ! toWrite.get(h).writer.equals(first.writer)))
+            return Futures.errored(new IllegalStateException("Buffered blocks must all have the same writer!"));
+        List<byte[]> signatures = reachable.stream().map(h -> toWrite.get(h).signature).collect(Collectors.toList());
+        List<byte[]> blocks = reachable.stream().map(h -> toWrite.get(h).block).collect(Collectors.toList());
+        return target.put(first.owner, first.writer, signatures, blocks, tid).thenApply(hashes -> {
+            if (! hashes.equals(reachable))
+                throw new IllegalStateException("Incorrect hashes returned writing buffered blocks!");
+            return hashes;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return target.id();
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return target.startTransaction(owner);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return target.closeTransaction(owner, tid);
+    }
+
+    @Override
+    public synchronized CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                               PublicKeyHash writer,
+                                                               List<byte[]> signatures,
+                                                               List<byte[]> blocks,
+                                                               TransactionId tid) {
+        List<Multihash> hashes = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            Multihash hash = hashOf(blocks.get(i));
+            buffered.put(hash, new BufferedBlock(owner, writer, signatures.get(i), blocks.get(i)));
+            hashes.add(hash);
+        }
+        return CompletableFuture.completedFuture(hashes);
+    }
+
+    private synchronized BufferedBlock getBuffered(Multihash hash) {
+        return buffered.get(hash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        BufferedBlock block = getBuffered(hash);
+        if (block != null)
+            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(block.block)));
+        return target.get(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid) {
+        return target.putRaw(owner, writer, signatures, blocks, tid);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        BufferedBlock block = getBuffered(hash);
+        if (block != null)
+            return CompletableFuture.completedFuture(Optional.of(block.block));
+        return target.getRaw(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return target.pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
+        return target.recursivePin(owner, hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash hash) {
+        return target.recursiveUnpin(owner, hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        BufferedBlock block = getBuffered(root);
+        if (block != null)
+            return CompletableFuture.completedFuture(CborView.of(block.block).links());
+        return target.getLinks(root);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        BufferedBlock buffer = getBuffered(block);
+        if (buffer != null)
+            return CompletableFuture.completedFuture(Optional.of(buffer.block.length));
+        return target.getSize(block);
+    }
+}
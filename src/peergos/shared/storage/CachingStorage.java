@@ -2,26 +2,48 @@ package peergos.shared.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
+/** Caches the blocks retrieved from a target storage, up to a maximum total size.
+ *
+ *  Blocks retrieved with get are also kept decoded, in a smaller cache, so that repeatedly reading a champ, cryptree or
+ *  writer data node doesn't decode it every time. CborObjects are immutable, so the same decoded value is safely
+ *  returned to every caller.
+ */
 public class CachingStorage implements ContentAddressedStorage {
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final BlockCache cache;
+    // decoded blocks and the size of their encoding, least recently used first
+    private final LinkedHashMap<Multihash, Pair<CborObject, Integer>> decoded = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxDecodedSize;
+    private long decodedSize; // guarded by decoded
+    private final Map<Multihash, CompletableFuture<Optional<CborObject>>> pending = new ConcurrentHashMap<>();
+    private final Map<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw = new ConcurrentHashMap<>();
     private final int maxValueSize;
 
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    /**
+     *
+     * @param target
+     * @param cacheSizeBytes The maximum total size of cached blocks
+     * @param maxValueSize The largest block that will be cached
+     */
+    public CachingStorage(ContentAddressedStorage target, long cacheSizeBytes, int maxValueSize) {
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = new BlockCache(cacheSizeBytes);
         this.maxValueSize = maxValueSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        // a decoded block takes several times the memory of its encoding
+        this.maxDecodedSize = cacheSizeBytes / 8;
+    }
+
+    public BlockCache getCache() {
+        return cache;
     }
 
     @Override
@@ -48,34 +70,70 @@ public class CachingStorage implements ContentAddressedStorage {
         return target.put(owner, writer, signatures, blocks, tid);
     }
 
+    private CborObject getDecoded(Multihash key) {
+        synchronized (decoded) {
+            Pair<CborObject, Integer> res = decoded.get(key);
+            return res == null ? null : res.left;
+        }
+    }
+
+    private void putDecoded(Multihash key, CborObject value, int encodedSize) {
+        if (encodedSize > maxDecodedSize)
+            return;
+        synchronized (decoded) {
+            Pair<CborObject, Integer> previous = decoded.put(key, new Pair<>(value, encodedSize));
+            decodedSize += encodedSize - (previous == null ? 0 : previous.right);
+            Iterator<Pair<CborObject, Integer>> lru = decoded.values().iterator();
+            while (decodedSize > maxDecodedSize && lru.hasNext()) {
+                decodedSize -= lru.next().right;
+                lru.remove();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the cached block, decoded, or null if it isn't cached
+     */
+    private CborObject getCached(Multihash key) {
+        CborObject res = getDecoded(key);
+        if (res != null)
+            return res;
+        byte[] cached = cache.get(key);
+        if (cached == null)
+            return null;
+        res = CborObject.fromByteArray(cached);
+        putDecoded(key, res, cached.length);
+        return res;
+    }
+
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
+        CborObject cached = getCached(key);
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(cached));
 
         CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
+        CompletableFuture<Optional<CborObject>> existing = pending.putIfAbsent(key, pipe);
+        if (existing != null)
+            return existing;
 
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
         target.get(key).thenAccept(cborOpt -> {
             if (cborOpt.isPresent()) {
                 byte[] value = cborOpt.get().toByteArray();
-                if (value.length > 0 && value.length < maxValueSize)
+                if (value.length > 0 && value.length < maxValueSize) {
                     cache.put(key, value);
+                    putDecoded(key, cborOpt.get(), value.length);
+                }
             }
             pending.remove(key);
             pipe.complete(cborOpt);
-            result.complete(cborOpt);
         }).exceptionally(t -> {
             pending.remove(key);
             pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
             return null;
         });
-        return result;
+        return pipe;
     }
 
     @Override
@@ -89,15 +147,16 @@ public class CachingStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
-
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
+        byte[] cached = cache.get(key);
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(cached));
 
         CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
+        CompletableFuture<Optional<byte[]>> existing = pendingRaw.putIfAbsent(key, pipe);
+        if (existing != null)
+            return existing;
+
+        target.getRaw(key).thenAccept(rawOpt -> {
             if (rawOpt.isPresent()) {
                 byte[] value = rawOpt.get();
                 if (value.length > 0 && value.length < maxValueSize)
@@ -105,12 +164,123 @@ public class CachingStorage implements ContentAddressedStorage {
             }
             pendingRaw.remove(key);
             pipe.complete(rawOpt);
-            return rawOpt;
         }).exceptionally(t -> {
-            pending.remove(key);
+            pendingRaw.remove(key);
             pipe.completeExceptionally(t);
             return null;
         });
+        return pipe;
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<CborObject>>> getAll(List<Multihash> hashes) {
+        Map<Multihash, CompletableFuture<Optional<CborObject>>> results = new HashMap<>();
+        List<Multihash> toFetch = new ArrayList<>();
+        for (Multihash key : hashes) {
+            if (results.containsKey(key))
+                continue;
+            CborObject cached = getCached(key);
+            if (cached != null) {
+                results.put(key, CompletableFuture.completedFuture(Optional.of(cached)));
+                continue;
+            }
+            CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
+            CompletableFuture<Optional<CborObject>> existing = pending.putIfAbsent(key, pipe);
+            results.put(key, existing != null ? existing : pipe);
+            if (existing == null)
+                toFetch.add(key);
+        }
+        if (! toFetch.isEmpty()) {
+            target.getAll(toFetch).thenAccept(blocks -> {
+                for (int i = 0; i < toFetch.size(); i++) {
+                    Multihash key = toFetch.get(i);
+                    Optional<CborObject> cborOpt = blocks.get(i);
+                    if (cborOpt.isPresent()) {
+                        byte[] value = cborOpt.get().toByteArray();
+                        if (value.length > 0 && value.length < maxValueSize) {
+                            cache.put(key, value);
+                            putDecoded(key, cborOpt.get(), value.length);
+                        }
+                    }
+                    pending.remove(key);
+                    results.get(key).complete(cborOpt);
+                }
+            }).exceptionally(t -> {
+                for (Multihash key : toFetch) {
+                    pending.remove(key);
+                    results.get(key).completeExceptionally(t);
+                }
+                return null;
+            });
+        }
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(results::get)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        Map<Multihash, CompletableFuture<Optional<byte[]>>> results = new HashMap<>();
+        List<Multihash> toFetch = new ArrayList<>();
+        for (Multihash key : hashes) {
+            if (results.containsKey(key))
+                continue;
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                results.put(key, CompletableFuture.completedFuture(Optional.of(cached)));
+                continue;
+            }
+            CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
+            CompletableFuture<Optional<byte[]>> existing = pendingRaw.putIfAbsent(key, pipe);
+            results.put(key, existing != null ? existing : pipe);
+            if (existing == null)
+                toFetch.add(key);
+        }
+        if (! toFetch.isEmpty()) {
+            target.getAllRaw(toFetch).thenAccept(blocks -> {
+                for (int i = 0; i < toFetch.size(); i++) {
+                    Multihash key = toFetch.get(i);
+                    Optional<byte[]> rawOpt = blocks.get(i);
+                    if (rawOpt.isPresent()) {
+                        byte[] value = rawOpt.get();
+                        if (value.length > 0 && value.length < maxValueSize)
+                            cache.put(key, value);
+                    }
+                    pendingRaw.remove(key);
+                    results.get(key).complete(rawOpt);
+                }
+            }).exceptionally(t -> {
+                for (Multihash key : toFetch) {
+                    pendingRaw.remove(key);
+                    results.get(key).completeExceptionally(t);
+                }
+                return null;
+            });
+        }
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(results::get)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Pair<Multihash, byte[]>>> getChampLookup(Multihash root, byte[] champKey) {
+        // Only make a request if some node on the path isn't cached
+        boolean[] incomplete = new boolean[1];
+        return Champ.getLookupPath(root, champKey, ChampWrapper.BIT_WIDTH, h -> {
+            byte[] cached = cache.get(h);
+            if (cached == null)
+                incomplete[0] = true;
+            return CompletableFuture.completedFuture(Optional.ofNullable(cached));
+        }).thenCompose(path -> {
+            if (! incomplete[0])
+                return CompletableFuture.completedFuture(path);
+            return target.getChampLookup(root, champKey).thenApply(blocks -> {
+                for (Pair<Multihash, byte[]> block : blocks)
+                    if (block.right.length < maxValueSize)
+                        cache.put(block.left, block.right);
+                return blocks;
+            });
+        });
     }
 
     @Override
@@ -6,6 +6,7 @@ import peergos.shared.corenode.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.api.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multiaddr.*;
@@ -23,6 +24,8 @@ import java.util.stream.*;
 public interface ContentAddressedStorage {
 
     int MAX_BLOCK_SIZE  = 2*1024*1024;
+    // The maximum number of individual block gets to have in flight when there is no batched get
+    int MAX_CONCURRENT_GETS = 32;
 
     default CompletableFuture<Multihash> put(PublicKeyHash owner,
                                              SigningPrivateKeyAndPublicHash writer,
@@ -108,6 +111,34 @@ public interface ContentAddressedStorage {
      */
     CompletableFuture<Optional<byte[]>> getRaw(Multihash hash);
 
+    /**
+     * Get many ipld cbor blocks, in as few requests as possible
+     * @param hashes
+     * @return The blocks in the same order as the requested hashes, with Optional.empty() for any that can't be found
+     */
+    default CompletableFuture<List<Optional<CborObject>>> getAll(List<Multihash> hashes) {
+        return Futures.mapAsync(hashes, MAX_CONCURRENT_GETS, this::get);
+    }
+
+    /**
+     * Get many raw blocks, in as few requests as possible
+     * @param hashes
+     * @return The blocks in the same order as the requested hashes, with Optional.empty() for any that can't be found
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return Futures.mapAsync(hashes, MAX_CONCURRENT_GETS, this::getRaw);
+    }
+
+    /**
+     * Get all the champ nodes that a lookup of a key visits, in a single request
+     * @param root The hash of the champ root
+     * @param champKey The hash of the key being looked up
+     * @return The hash and serialization of every node on the lookup path, starting with the root
+     */
+    default CompletableFuture<List<Pair<Multihash, byte[]>>> getChampLookup(Multihash root, byte[] champKey) {
+        return Champ.getLookupPath(root, champKey, ChampWrapper.BIT_WIDTH, this::getRaw);
+    }
+
     /**
      * Update an existing pin with a new root. This is useful when modifying a tree of ipld objects where only a small
      * number of components are changed
@@ -258,7 +289,14 @@ public interface ContentAddressedStorage {
         public static final String TRANSACTION_CLOSE = "transaction/close";
         public static final String BLOCK_PUT = "block/put";
         public static final String BLOCK_GET = "block/get";
+        public static final String BLOCK_GET_ALL = "block/get-all";
+        public static final int MAX_BLOCKS_PER_GET_ALL = 100;
+        // in a get-all response, the length prefix of a block which couldn't be found
+        public static final int GET_ALL_MISSING = -1;
+        // in a get-all response, the length prefix of an error message, after which the response ends
+        public static final int GET_ALL_ERROR = -2;
         public static final String BLOCK_STAT = "block/stat";
+        public static final String CHAMP_GET = "champ/get";
         public static final String PIN_ADD = "pin/add";
         public static final String PIN_RM = "pin/rm";
         public static final String PIN_UPDATE = "pin/update";
@@ -365,6 +403,87 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        @Override
+        public CompletableFuture<List<Optional<CborObject>>> getAll(List<Multihash> hashes) {
+            return getAllRaw(hashes)
+                    .thenApply(blocks -> blocks.stream()
+                            .map(opt -> opt.map(CborObject::fromByteArray))
+                            .collect(Collectors.toList()));
+        }
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+            if (! isPeergosServer) // IPFS doesn't have a batched block get
+                return ContentAddressedStorage.super.getAllRaw(hashes);
+            List<Multihash> toFetch = hashes.stream()
+                    .filter(h -> ! h.isIdentity())
+                    .distinct()
+                    .collect(Collectors.toList());
+            List<CompletableFuture<List<Optional<byte[]>>>> batches = IntStream.range(0, (toFetch.size() + MAX_BLOCKS_PER_GET_ALL - 1) / MAX_BLOCKS_PER_GET_ALL)
+                    .mapToObj(i -> toFetch.subList(i * MAX_BLOCKS_PER_GET_ALL, Math.min(toFetch.size(), (i + 1) * MAX_BLOCKS_PER_GET_ALL)))
+                    .map(this::getBatch)
+                    .collect(Collectors.toList());
+            return Futures.combineAllInOrder(batches).thenApply(results -> {
+                Map<Multihash, Optional<byte[]>> fetched = new HashMap<>();
+                int index = 0;
+                for (List<Optional<byte[]>> batch : results)
+                    for (Optional<byte[]> block : batch)
+                        fetched.put(toFetch.get(index++), block);
+                return hashes.stream()
+                        .map(h -> h.isIdentity() ? Optional.of(h.getHash()) : fetched.get(h))
+                        .collect(Collectors.toList());
+            });
+        }
+
+        /**
+         * The response is a sequence of blocks in the requested order, each prefixed by its length as a 4 byte int, or
+         * by GET_ALL_MISSING if the block couldn't be found. A failure after the first block has been retrieved is
+         * reported as GET_ALL_ERROR followed by a length prefixed utf8 message, which ends the response.
+         */
+        private CompletableFuture<List<Optional<byte[]>>> getBatch(List<Multihash> hashes) {
+            byte[] request = new CborObject.CborList(hashes.stream()
+                    .map(h -> new CborObject.CborByteArray(h.toBytes()))
+                    .collect(Collectors.toList())).serialize();
+            return poster.post(apiPrefix + BLOCK_GET_ALL, request, false)
+                    .thenApply(raw -> {
+                        DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+                        List<Optional<byte[]>> res = new ArrayList<>();
+                        try {
+                            for (int i = 0; i < hashes.size(); i++) {
+                                int length = din.readInt();
+                                if (length == GET_ALL_ERROR) {
+                                    byte[] message = new byte[din.readInt()];
+                                    din.readFully(message);
+                                    throw new IllegalStateException(new String(message, "UTF-8"));
+                                }
+                                if (length < 0) {
+                                    res.add(Optional.empty());
+                                    continue;
+                                }
+                                byte[] block = new byte[length];
+                                din.readFully(block);
+                                res.add(Optional.of(block));
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e.getMessage(), e);
+                        }
+                        return res;
+                    });
+        }
+
+        @Override
+        public CompletableFuture<List<Pair<Multihash, byte[]>>> getChampLookup(Multihash root, byte[] champKey) {
+            if (! isPeergosServer) // IPFS doesn't have a champ endpoint
+                return ContentAddressedStorage.super.getChampLookup(root, champKey);
+            return poster.get(apiPrefix + CHAMP_GET + "?arg=" + root.toString() + "&arg=" + ArrayOps.bytesToHex(champKey))
+                    .thenApply(raw -> ((CborObject.CborList) CborObject.fromByteArray(raw)).value.stream()
+                            .map(cbor -> ((CborObject.CborList) cbor).value)
+                            .map(pair -> new Pair<Multihash, byte[]>(
+                                    Cid.cast(((CborObject.CborByteArray) pair.get(0)).value),
+                                    ((CborObject.CborByteArray) pair.get(1)).value))
+                            .collect(Collectors.toList()));
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
             return poster.get(apiPrefix + PIN_ADD + "?stream-channels=true&arg=" + hash.toString()
@@ -455,6 +574,21 @@ public interface ContentAddressedStorage {
             return local.getRaw(object);
         }
 
+        @Override
+        public CompletableFuture<List<Optional<CborObject>>> getAll(List<Multihash> hashes) {
+            return local.getAll(hashes);
+        }
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+            return local.getAllRaw(hashes);
+        }
+
+        @Override
+        public CompletableFuture<List<Pair<Multihash, byte[]>>> getChampLookup(Multihash root, byte[] champKey) {
+            return local.getChampLookup(root, champKey);
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
             return local.getLinks(root);
@@ -5,6 +5,7 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -91,6 +92,30 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
                 .thenApply(arrOpt -> arrOpt.map(bytes -> verify(bytes, hash, () -> bytes)));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<CborObject>>> getAll(List<Multihash> hashes) {
+        return source.getAll(hashes)
+                .thenApply(blocks -> IntStream.range(0, hashes.size())
+                        .mapToObj(i -> blocks.get(i).map(cbor -> verify(cbor.toByteArray(), hashes.get(i), () -> cbor)))
+                        .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return source.getAllRaw(hashes)
+                .thenApply(blocks -> IntStream.range(0, hashes.size())
+                        .mapToObj(i -> blocks.get(i).map(bytes -> verify(bytes, hashes.get(i), () -> bytes)))
+                        .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Pair<Multihash, byte[]>>> getChampLookup(Multihash root, byte[] champKey) {
+        return source.getChampLookup(root, champKey)
+                .thenApply(blocks -> blocks.stream()
+                        .map(p -> verify(p.right, p.left, () -> p))
+                        .collect(Collectors.toList()));
+    }
+
     @Override
     public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
         return source.pinUpdate(owner, existing, updated);
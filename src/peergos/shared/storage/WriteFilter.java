@@ -4,17 +4,19 @@ import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.*;
 
 public class WriteFilter implements ContentAddressedStorage {
 
     private final ContentAddressedStorage dht;
-    private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
+    // (owner, writer, size) -> whether the write is allowed
+    private final TriFunction<PublicKeyHash, PublicKeyHash, Integer, CompletableFuture<Boolean>> keyFilter;
 
-    public WriteFilter(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter) {
+    public WriteFilter(ContentAddressedStorage dht,
+                       TriFunction<PublicKeyHash, PublicKeyHash, Integer, CompletableFuture<Boolean>> keyFilter) {
         this.dht = dht;
         this.keyFilter = keyFilter;
     }
@@ -44,6 +46,21 @@ public class WriteFilter implements ContentAddressedStorage {
         return dht.getRaw(object);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<CborObject>>> getAll(List<Multihash> hashes) {
+        return dht.getAll(hashes);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return dht.getAllRaw(hashes);
+    }
+
+    @Override
+    public CompletableFuture<List<Pair<Multihash, byte[]>>> getChampLookup(Multihash root, byte[] champKey) {
+        return dht.getChampLookup(root, champKey);
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         return dht.getLinks(root);
@@ -60,9 +77,11 @@ public class WriteFilter implements ContentAddressedStorage {
                                                   List<byte[]> signatures,
                                                   List<byte[]> blocks,
                                                   TransactionId tid) {
-        if (! keyFilter.apply(writer, blocks.stream().mapToInt(x -> x.length).sum()))
-            throw new IllegalStateException("Key not allowed to write to this server: " + writer);
-        return dht.put(owner, writer, signatures, blocks, tid);
+        return keyFilter.apply(owner, writer, blocks.stream().mapToInt(x -> x.length).sum()).thenCompose(allowed -> {
+            if (! allowed)
+                throw new IllegalStateException("Key not allowed to write to this server: " + writer);
+            return dht.put(owner, writer, signatures, blocks, tid);
+        });
     }
 
     @Override
@@ -71,9 +90,11 @@ public class WriteFilter implements ContentAddressedStorage {
                                                      List<byte[]> signatures,
                                                      List<byte[]> blocks,
                                                      TransactionId tid) {
-        if (! keyFilter.apply(writer, blocks.stream().mapToInt(x -> x.length).sum()))
-            throw new IllegalStateException("Key not allowed to write to this server: " + writer);
-        return dht.putRaw(owner, writer, signatures, blocks, tid);
+        return keyFilter.apply(owner, writer, blocks.stream().mapToInt(x -> x.length).sum()).thenCompose(allowed -> {
+            if (! allowed)
+                throw new IllegalStateException("Key not allowed to write to this server: " + writer);
+            return dht.putRaw(owner, writer, signatures, blocks, tid);
+        });
     }
 
     @Override
@@ -2,14 +2,23 @@ package peergos.shared.user;
 
 import peergos.shared.*;
 
+import java.util.*;
+
 public class CommittedWriterData {
 
     public final MaybeMultihash hash;
     public final WriterData props;
+    // the signed pointer to hash, if we committed it ourselves
+    public final Optional<byte[]> signedPointer;
 
-    public CommittedWriterData(MaybeMultihash hash, WriterData props) {
+    public CommittedWriterData(MaybeMultihash hash, WriterData props, Optional<byte[]> signedPointer) {
         this.hash = hash;
         this.props = props;
+        this.signedPointer = signedPointer;
+    }
+
+    public CommittedWriterData(MaybeMultihash hash, WriterData props) {
+        this(hash, props, Optional.empty());
     }
 
     @Override
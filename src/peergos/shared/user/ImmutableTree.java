@@ -7,6 +7,7 @@ import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
@@ -47,4 +48,36 @@ public interface ImmutableTree {
                                         byte[] rawKey,
                                         MaybeMultihash existing,
                                         TransactionId tid);
+
+    /** Apply a sequence of puts and removes, only writing the nodes of the final tree
+     *
+     * @param mutations
+     * @return hash of new tree root
+     */
+    CompletableFuture<Multihash> applyAll(PublicKeyHash owner,
+                                          SigningPrivateKeyAndPublicHash writer,
+                                          List<Mutation> mutations,
+                                          TransactionId tid);
+
+    /** A put, or a remove if the updated value is empty, for use in a batch
+     */
+    class Mutation {
+        public final byte[] mapKey;
+        public final MaybeMultihash existing;
+        public final MaybeMultihash updated;
+
+        public Mutation(byte[] mapKey, MaybeMultihash existing, MaybeMultihash updated) {
+            this.mapKey = mapKey;
+            this.existing = existing;
+            this.updated = updated;
+        }
+
+        public static Mutation put(byte[] mapKey, MaybeMultihash existing, Multihash value) {
+            return new Mutation(mapKey, existing, MaybeMultihash.of(value));
+        }
+
+        public static Mutation remove(byte[] mapKey, MaybeMultihash existing) {
+            return new Mutation(mapKey, existing, MaybeMultihash.empty());
+        }
+    }
 }
@@ -7,6 +7,7 @@ import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public interface MutableTree {
@@ -38,6 +39,15 @@ public interface MutableTree {
      */
     CompletableFuture<MaybeMultihash> get(PublicKeyHash owner, PublicKeyHash sharingKey, byte[] mapKey);
 
+    /** Look up many keys of the same tree, retrieving the tree a level at a time for all of them
+     *
+     * @param owner
+     * @param sharingKey
+     * @param mapKeys
+     * @return  the values stored under each of mapKeys for sharingKey, in order
+     */
+    CompletableFuture<List<MaybeMultihash>> getAll(PublicKeyHash owner, PublicKeyHash sharingKey, List<byte[]> mapKeys);
+
     /**
      *
      * @param owner
@@ -52,6 +62,19 @@ public interface MutableTree {
                                       MaybeMultihash existing,
                                       TransactionId tid);
 
+    /** Apply many puts and removes in order, and commit the result with a single update of the writer data
+     *
+     * @param owner
+     * @param sharingKey
+     * @param mutations
+     * @param tid
+     * @return true when the new tree root has been committed
+     */
+    CompletableFuture<Boolean> applyAll(PublicKeyHash owner,
+                                        SigningPrivateKeyAndPublicHash sharingKey,
+                                        List<ImmutableTree.Mutation> mutations,
+                                        TransactionId tid);
+
 
     class CasException extends RuntimeException {
         public CasException(MaybeMultihash actualExisting, MaybeMultihash claimedExisting) {
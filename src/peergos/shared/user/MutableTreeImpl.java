@@ -10,6 +10,7 @@ import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
@@ -54,18 +55,54 @@ public class MutableTreeImpl implements MutableTree {
         }).thenApply(x -> true);
     }
 
+    @Override
+    public CompletableFuture<Boolean> applyAll(PublicKeyHash owner,
+                                               SigningPrivateKeyAndPublicHash writer,
+                                               List<ImmutableTree.Mutation> mutations,
+                                               TransactionId tid) {
+        if (mutations.isEmpty())
+            return CompletableFuture.completedFuture(true);
+        PublicKeyHash publicWriterKey = writer.publicKeyHash;
+        return synchronizer.applyUpdate(owner, publicWriterKey, committed -> {
+            WriterData holder = committed.props;
+            return (holder.tree.isPresent() ?
+                    ChampWrapper.create(holder.tree.get(), hasher, dht) :
+                    ChampWrapper.create(owner, writer, x -> x.data, tid, dht)
+            ).thenCompose(tree -> tree.applyAll(owner, writer, mutations, tid))
+                    .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.applyAll (" + mutations.size()
+                            + " mutations) => CAS(" + holder.tree + ", " + newRoot + ")") : newRoot)
+                    .thenCompose(newTreeRoot -> holder.withChamp(newTreeRoot)
+                            .commit(owner, writer, committed.hash, mutable, dht, tid));
+        }).thenApply(x -> true);
+    }
+
     @Override
     public CompletableFuture<MaybeMultihash> get(PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
-        return synchronizer.applyUpdate(owner, writer, x -> CompletableFuture.completedFuture(x))
-                .thenCompose(old -> synchronizer.getWriterData(owner, writer).thenCompose(committed -> {
-                    WriterData holder = committed.props;
-                    if (! holder.tree.isPresent())
-                        throw new IllegalStateException("Tree root not present for " + writer);
-                    return ChampWrapper.create(holder.tree.get(), hasher, dht).thenCompose(tree -> tree.get(mapKey))
-                            .thenApply(maybe -> LOGGING ?
-                                    log(maybe, "TREE.get (" + ArrayOps.bytesToHex(mapKey)
-                                            + ", root="+holder.tree.get()+" => " + maybe) : maybe);
-                }));
+        return synchronizer.getLatest(owner, writer).thenCompose(committed -> {
+            WriterData holder = committed.props;
+            if (! holder.tree.isPresent())
+                throw new IllegalStateException("Tree root not present for " + writer);
+            return ChampWrapper.create(holder.tree.get(), hasher, dht).thenCompose(tree -> tree.get(mapKey))
+                    .thenApply(maybe -> LOGGING ?
+                            log(maybe, "TREE.get (" + ArrayOps.bytesToHex(mapKey)
+                                    + ", root="+holder.tree.get()+" => " + maybe) : maybe);
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<MaybeMultihash>> getAll(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> mapKeys) {
+        // a single key's whole lookup path can be retrieved in one request
+        if (mapKeys.size() == 1)
+            return get(owner, writer, mapKeys.get(0)).thenApply(Collections::singletonList);
+        return synchronizer.getLatest(owner, writer).thenCompose(committed -> {
+            WriterData holder = committed.props;
+            if (! holder.tree.isPresent())
+                throw new IllegalStateException("Tree root not present for " + writer);
+            return ChampWrapper.create(holder.tree.get(), hasher, dht).thenCompose(tree -> tree.getAll(mapKeys))
+                    .thenApply(values -> LOGGING ?
+                            log(values, "TREE.getAll (" + mapKeys.size()
+                                    + " keys, root="+holder.tree.get()+" => " + values) : values);
+        });
     }
 
     @Override
@@ -8,6 +8,7 @@ import peergos.shared.mutable.MutablePointers;
 import peergos.shared.storage.ContentAddressedStorage;
 import peergos.shared.util.AsyncLock;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
@@ -19,14 +20,64 @@ public class WriteSynchronizer {
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private final Map<PublicKeyHash, AsyncLock<CommittedWriterData>> pending = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, VerifiedWriterData> verified = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, CompletableFuture<CommittedWriterData>> revalidating = new ConcurrentHashMap<>();
+    private final long maxStalenessMillis;
 
-    public WriteSynchronizer(MutablePointers mutable, ContentAddressedStorage dht) {
+    /**
+     *
+     * @param mutable
+     * @param dht
+     * @param maxStalenessMillis how long a verified writer data can be served without checking the pointer again
+     */
+    public WriteSynchronizer(MutablePointers mutable, ContentAddressedStorage dht, long maxStalenessMillis) {
         this.mutable = mutable;
         this.dht = dht;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    public WriteSynchronizer(MutablePointers mutable, ContentAddressedStorage dht) {
+        this(mutable, dht, 0);
+    }
+
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    /** A writer data whose pointer signature has been checked, along with the signed pointer it came from
+     */
+    private static class VerifiedWriterData {
+        // absent for writer data we didn't get a signed pointer for
+        public final Optional<byte[]> signedPointer;
+        public final CommittedWriterData value;
+        public final long verifiedAt;
+
+        public VerifiedWriterData(Optional<byte[]> signedPointer, CommittedWriterData value, long verifiedAt) {
+            this.signedPointer = signedPointer;
+            this.value = value;
+            this.verifiedAt = verifiedAt;
+        }
+
+        public boolean isFresh(long maxStalenessMillis) {
+            return System.currentTimeMillis() - verifiedAt < maxStalenessMillis;
+        }
+
+        public boolean matches(byte[] pointer) {
+            return signedPointer.isPresent() && Arrays.equals(signedPointer.get(), pointer);
+        }
     }
 
     public void put(PublicKeyHash writer, CommittedWriterData val) {
         pending.put(writer, new AsyncLock<>(CompletableFuture.completedFuture(val)));
+        verified.put(writer, new VerifiedWriterData(val.signedPointer, val, System.currentTimeMillis()));
+    }
+
+    /**
+     *  Drop any cached writer data for this writer, so the next retrieval checks the pointer signature again
+     * @param writer
+     */
+    public void invalidate(PublicKeyHash writer) {
+        verified.remove(writer);
     }
 
     public void putEmpty(PublicKeyHash writer) {
@@ -42,13 +93,69 @@ public class WriteSynchronizer {
         put(writer, emptyUserData);
     }
 
+    /**
+     *
+     * @param owner
+     * @param writer
+     * @return The latest writer data for this writer. The pointer is only re-read if our copy is older than the staleness
+     * bound, and the signature is only checked again if the pointer has changed. Concurrent calls share one retrieval.
+     */
     public CompletableFuture<CommittedWriterData> getWriterData(PublicKeyHash owner, PublicKeyHash writer) {
-        return mutable.getPointer(owner, writer)
-                .thenCompose(dataOpt -> dht.getSigningKey(writer)
-                        .thenApply(signer -> dataOpt.isPresent() ?
-                                HashCasPair.fromCbor(CborObject.fromByteArray(signer.get().unsignMessage(dataOpt.get()))).updated :
-                                MaybeMultihash.empty())
-                        .thenCompose(x -> WriterData.getWriterData(x.get(), dht)));
+        VerifiedWriterData cached = verified.get(writer);
+        if (cached != null && cached.isFresh(maxStalenessMillis))
+            return CompletableFuture.completedFuture(cached.value);
+        CompletableFuture<CommittedWriterData> res = new CompletableFuture<>();
+        CompletableFuture<CommittedWriterData> existing = revalidating.putIfAbsent(writer, res);
+        if (existing != null)
+            return existing;
+        revalidate(owner, writer)
+                .thenAccept(wd -> {
+                    revalidating.remove(writer, res);
+                    res.complete(wd);
+                }).exceptionally(t -> {
+                    revalidating.remove(writer, res);
+                    res.completeExceptionally(t);
+                    return null;
+                });
+        return res;
+    }
+
+    private CompletableFuture<CommittedWriterData> revalidate(PublicKeyHash owner, PublicKeyHash writer) {
+        VerifiedWriterData cached = verified.get(writer);
+        long now = System.currentTimeMillis();
+        return mutable.getPointer(owner, writer).thenCompose(dataOpt -> {
+            if (cached != null && dataOpt.isPresent() && cached.matches(dataOpt.get())) {
+                verified.replace(writer, cached, new VerifiedWriterData(cached.signedPointer, cached.value, now));
+                return CompletableFuture.completedFuture(cached.value);
+            }
+            return dht.getSigningKey(writer)
+                    .thenApply(signer -> dataOpt.isPresent() ?
+                            HashCasPair.fromCbor(CborObject.fromByteArray(signer.get().unsignMessage(dataOpt.get()))).updated :
+                            MaybeMultihash.empty())
+                    .thenCompose(x -> WriterData.getWriterData(x.get(), dht))
+                    .thenApply(wd -> {
+                        // don't overwrite a local commit that happened while we were retrieving this
+                        VerifiedWriterData latest = new VerifiedWriterData(dataOpt, wd, now);
+                        if (cached == null)
+                            verified.putIfAbsent(writer, latest);
+                        else
+                            verified.replace(writer, cached, latest);
+                        return wd;
+                    });
+        });
+    }
+
+    /**
+     *
+     * @param owner
+     * @param writer
+     * @return The latest writer data for this writer, after any pending local updates have been applied
+     */
+    public CompletableFuture<CommittedWriterData> getLatest(PublicKeyHash owner, PublicKeyHash writer) {
+        AsyncLock<CommittedWriterData> lock = pending.get(writer);
+        if (lock == null)
+            return getWriterData(owner, writer);
+        return lock.getValue().thenCompose(x -> getWriterData(owner, writer));
     }
 
     public CompletableFuture<CommittedWriterData> applyUpdate(PublicKeyHash owner,
@@ -59,7 +166,15 @@ public class WriteSynchronizer {
         // and whoever commits first will win. We also need to retrieve the writer data again from the network after
         // a previous transaction has completed (another node/user may have updated the mapping)
         return pending.computeIfAbsent(writer, w -> new AsyncLock<>(getWriterData(owner, w)))
-                .runWithLock(current -> updater.apply(current), () -> getWriterData(owner, writer));
+                .runWithLock(current -> updater.apply(current).thenApply(updated -> {
+                    // we signed the new pointer ourselves, so it won't need verifying when it is read back
+                    if (! updated.hash.equals(current.hash))
+                        verified.put(writer, new VerifiedWriterData(updated.signedPointer, updated, System.currentTimeMillis()));
+                    return updated;
+                }), () -> {
+                    invalidate(writer);
+                    return getWriterData(owner, writer);
+                });
     }
 
 }
@@ -222,8 +222,7 @@ public class WriterData implements Cborable {
                             .thenApply(res -> {
                                 if (!res)
                                     throw new IllegalStateException("Corenode Crypto CAS failed!");
-                                CommittedWriterData committed = committed(newHash);
-                                return committed;
+                                return new CommittedWriterData(newHash, this, Optional.of(signed));
                             });
                 });
     }
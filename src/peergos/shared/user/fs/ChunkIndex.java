@@ -0,0 +1,57 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** The map keys of every chunk of a file, in order, so that any chunk can be located without walking the linked list
+ *  of chunks. This is stored, encrypted with the data key, in the first chunk of large files.
+ *
+ *  The final map key is the location the last chunk links to, which has not been written yet.
+ */
+public class ChunkIndex implements Cborable {
+    // Files with fewer chunks than this can be walked in a couple of fetches anyway
+    public static final int MIN_CHUNKS = 3;
+    private static final int PADDING_BLOCKSIZE = 4096;
+
+    public final List<byte[]> mapKeys;
+
+    public ChunkIndex(List<byte[]> mapKeys) {
+        this.mapKeys = mapKeys;
+    }
+
+    /**
+     *
+     * @param chunk
+     * @return The map key of the chunk with the given index, if it is covered by this index
+     */
+    public Optional<byte[]> getMapKey(long chunk) {
+        if (chunk < 0 || chunk >= mapKeys.size())
+            return Optional.empty();
+        return Optional.of(mapKeys.get((int) chunk));
+    }
+
+    public Pair<FragmentedPaddedCipherText, List<FragmentWithHash>> encrypt(SymmetricKey dataKey, Hasher hasher) {
+        return FragmentedPaddedCipherText.build(dataKey, this, PADDING_BLOCKSIZE, Fragment.MAX_LENGTH, hasher);
+    }
+
+    @Override
+    public CborObject toCbor() {
+        return new CborObject.CborList(mapKeys.stream()
+                .map(CborObject.CborByteArray::new)
+                .collect(Collectors.toList()));
+    }
+
+    public static ChunkIndex fromCbor(CborObject cbor) {
+        if (! (cbor instanceof CborObject.CborList))
+            throw new IllegalStateException("Incorrect cbor for ChunkIndex: " + cbor);
+        return new ChunkIndex(((CborObject.CborList) cbor).value.stream()
+                .map(c -> ((CborObject.CborByteArray) c).value)
+                .collect(Collectors.toList()));
+    }
+}
@@ -19,13 +19,29 @@ public class EncryptedChunkRetriever implements FileRetriever {
     private final FragmentedPaddedCipherText linksToData;
     private final byte[] nextChunkLabel;
     private final SymmetricKey dataKey;
+    private final Optional<FragmentedPaddedCipherText> chunkIndex;
+    private CompletableFuture<ChunkIndex> decryptedIndex;
 
     public EncryptedChunkRetriever(FragmentedPaddedCipherText linksToData,
                                    byte[] nextChunkLabel,
-                                   SymmetricKey dataKey) {
+                                   SymmetricKey dataKey,
+                                   Optional<FragmentedPaddedCipherText> chunkIndex) {
         this.linksToData = linksToData;
         this.nextChunkLabel = nextChunkLabel;
         this.dataKey = dataKey;
+        this.chunkIndex = chunkIndex;
+    }
+
+    public EncryptedChunkRetriever(FragmentedPaddedCipherText linksToData,
+                                   byte[] nextChunkLabel,
+                                   SymmetricKey dataKey) {
+        this(linksToData, nextChunkLabel, dataKey, Optional.empty());
+    }
+
+    private synchronized CompletableFuture<ChunkIndex> getChunkIndex(NetworkAccess network) {
+        if (decryptedIndex == null)
+            decryptedIndex = chunkIndex.get().getAndDecrypt(dataKey, ChunkIndex::fromCbor, network, x -> {});
+        return decryptedIndex;
     }
 
     @Override
@@ -41,7 +57,7 @@ public class EncryptedChunkRetriever implements FileRetriever {
                     return new LazyInputStreamCombiner(0,
                             chunk.get().chunk.data(), nextChunkPointer,
                             chunk.get().chunk.data(), nextChunkPointer,
-                            network, random, ourCap.rBaseKey, fileSize, monitor);
+                            network, random, ourCap, this, fileSize, monitor);
                 });
     }
 
@@ -50,6 +66,21 @@ public class EncryptedChunkRetriever implements FileRetriever {
             return CompletableFuture.completedFuture(Optional.of(startCap.getMapKey()));
         if (offset < 2*Chunk.MAX_SIZE)
             return CompletableFuture.completedFuture(Optional.of(nextChunkLabel)); // chunk at this location hasn't been written yet, only referenced by previous chunk
+        if (chunkIndex.isPresent())
+            return getChunkIndex(network).thenCompose(index -> {
+                long chunk = offset / Chunk.MAX_SIZE;
+                Optional<byte[]> indexed = index.getMapKey(chunk);
+                if (indexed.isPresent())
+                    return CompletableFuture.completedFuture(indexed);
+                // the file has grown past the end of the index, so walk on from the last chunk it covers
+                long lastIndexed = index.mapKeys.size() - 1;
+                AbsoluteCapability lastCap = startCap.withMapKey(index.mapKeys.get((int) lastIndexed));
+                return network.getMetadata(lastCap)
+                        .thenCompose(meta -> meta.isPresent() ?
+                                meta.get().retriever(startCap.rBaseKey)
+                                        .getMapLabelAt(lastCap, offset - lastIndexed * Chunk.MAX_SIZE, network) :
+                                CompletableFuture.completedFuture(Optional.empty()));
+            });
         return network.getMetadata(startCap.withMapKey(nextChunkLabel))
                 .thenCompose(meta -> meta.isPresent() ?
                         meta.get().retriever(startCap.rBaseKey).getMapLabelAt(startCap.withMapKey(nextChunkLabel), offset - Chunk.MAX_SIZE, network) :
@@ -64,6 +95,25 @@ public class EncryptedChunkRetriever implements FileRetriever {
                                                               AbsoluteCapability ourCap,
                                                               MaybeMultihash ourExistingHash,
                                                               ProgressConsumer<Long> monitor) {
+        if (startIndex >= 2 * Chunk.MAX_SIZE && chunkIndex.isPresent()) {
+            long chunkStart = startIndex - (startIndex % Chunk.MAX_SIZE);
+            return getMapLabelAt(ourCap, startIndex, network).thenCompose(label -> {
+                if (! label.isPresent())
+                    return CompletableFuture.completedFuture(Optional.empty());
+                AbsoluteCapability chunkCap = ourCap.withMapKey(label.get());
+                return network.getMetadata(chunkCap)
+                        .thenCompose(meta -> {
+                            if (meta.isPresent())
+                                return meta.get().retriever(ourCap.rBaseKey)
+                                        .getChunk(network, random, startIndex - chunkStart, truncateTo - chunkStart,
+                                                chunkCap, meta.get().committedHash(), l -> {});
+                            Chunk newEmptyChunk = new Chunk(new byte[0], dataKey, label.get(), dataKey.createNonce());
+                            LocatedChunk withLocation = new LocatedChunk(chunkCap.getLocation(),
+                                    MaybeMultihash.empty(), newEmptyChunk);
+                            return CompletableFuture.completedFuture(Optional.of(withLocation));
+                        });
+            });
+        }
         if (startIndex >= Chunk.MAX_SIZE) {
             AbsoluteCapability nextChunkCap = ourCap.withMapKey(nextChunkLabel);
             return network.getMetadata(nextChunkCap)
@@ -2,7 +2,7 @@ package peergos.shared.user.fs;
 
 
 import peergos.shared.cbor.*;
-import peergos.shared.user.fs.erasure.Erasure;
+import peergos.shared.user.fs.erasure.*;
 import peergos.shared.util.*;
 
 import java.util.*;
@@ -12,10 +12,12 @@ public class ErasureFragmenter implements Fragmenter {
 
     private final int nOriginalFragments;
     private final int nAllowedFailures;
+    private final ReedSolomon coder;
 
     public ErasureFragmenter(int nOriginalFragments, int nAllowedFailures) {
         this.nOriginalFragments = nOriginalFragments;
         this.nAllowedFailures = nAllowedFailures;
+        this.coder = new ReedSolomon(nOriginalFragments, nAllowedFailures);
     }
 
     @Override
@@ -24,14 +26,19 @@ public class ErasureFragmenter implements Fragmenter {
     }
 
     public byte[][] split(byte[] input) {
-        return Erasure.split(input, nOriginalFragments, nAllowedFailures);
+        return coder.encode(input);
     }
 
+    /**
+     *
+     * @param encoded the fragments, with null or empty arrays for any which are missing
+     * @param startOffset
+     * @param truncateLength the length of the original input
+     * @return the original input, after startOffset bytes of padding
+     */
     public byte[] recombine(byte[][] encoded, int startOffset, int truncateLength) {
-        // truncateTo should be  input.length
-        byte[] withoutPrefix = Erasure.recombine(encoded, truncateLength, nOriginalFragments, nAllowedFailures);
-        byte[] withPrefix = new byte[startOffset + withoutPrefix.length];
-        System.arraycopy(withoutPrefix, 0, withPrefix, startOffset, withoutPrefix.length);
+        byte[] withPrefix = new byte[startOffset + truncateLength];
+        coder.decode(encoded, withPrefix, startOffset, truncateLength);
         return withPrefix;
     }
 
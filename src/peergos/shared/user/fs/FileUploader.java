@@ -10,6 +10,7 @@ import peergos.shared.crypto.random.*;
 import peergos.shared.crypto.symmetric.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
+import peergos.shared.user.*;
 import peergos.shared.user.fs.cryptree.*;
 import peergos.shared.util.*;
 
@@ -78,35 +79,151 @@ public class FileUploader implements AutoCloseable {
                                                   SigningPrivateKeyAndPublicHash writer,
                                                   long chunkIndex,
                                                   MaybeMultihash ourExistingHash,
+                                                  Optional<FragmentedPaddedCipherText> index,
                                                   ProgressConsumer<Long> monitor,
                                                   Hasher hasher) {
-        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+        return readChunk(owner, writer, chunkIndex, ourExistingHash)
+                .thenCompose(chunk -> uploadChunk(network, owner, writer, chunkIndex, chunk, index, monitor, hasher));
+    }
+
+    private int chunkLength(long chunkIndex) {
         long position = chunkIndex * Chunk.MAX_SIZE;
+        boolean isLastChunk = length < position + Chunk.MAX_SIZE;
+        return isLastChunk ? (int)(length -  position) : Chunk.MAX_SIZE;
+    }
 
-        long fileLength = length;
-        boolean isLastChunk = fileLength < position + Chunk.MAX_SIZE;
-        int length =  isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
-        byte[] data = new byte[length];
-        return reader.readIntoArray(data, 0, data.length).thenCompose(b -> {
+    /**
+     *  Read the next chunk from the input, which must be done in order
+     */
+    private CompletableFuture<LocatedChunk> readChunk(PublicKeyHash owner,
+                                                      SigningPrivateKeyAndPublicHash writer,
+                                                      long chunkIndex,
+                                                      MaybeMultihash ourExistingHash) {
+        byte[] data = new byte[chunkLength(chunkIndex)];
+        return reader.readIntoArray(data, 0, data.length).thenApply(b -> {
             byte[] nonce = baseKey.createNonce();
             byte[] mapKey = locations.get((int) chunkIndex).getMapKey();
             Chunk chunk = new Chunk(data, dataKey, mapKey, nonce);
-            LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
-            Location nextLocation = new Location(owner, writer.publicKeyHash, locations.get((int) chunkIndex + 1).getMapKey());
-            return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
-                    nextLocation, Optional.empty(), hasher, network, monitor).thenApply(c -> true);
+            return new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
         });
     }
 
+    /**
+     *  Encrypt and upload a chunk that has been read, which can be done in any order because the locations of all the
+     *  chunks are known in advance
+     */
+    private CompletableFuture<Boolean> uploadChunk(NetworkAccess network,
+                                                   PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   long chunkIndex,
+                                                   LocatedChunk locatedChunk,
+                                                   Optional<FragmentedPaddedCipherText> index,
+                                                   ProgressConsumer<Long> monitor,
+                                                   Hasher hasher) {
+        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+        Location nextLocation = new Location(owner, writer.publicKeyHash, locations.get((int) chunkIndex + 1).getMapKey());
+        return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
+                nextLocation, Optional.empty(), chunkIndex == 0 ? index : Optional.empty(), hasher, network, monitor)
+                .thenApply(c -> true);
+    }
+
+    /**
+     *  Encrypt and write a chunk that has been read, without linking it into the tree
+     */
+    private CompletableFuture<ImmutableTree.Mutation> writeChunk(NetworkAccess network,
+                                                                 PublicKeyHash owner,
+                                                                 SigningPrivateKeyAndPublicHash writer,
+                                                                 long chunkIndex,
+                                                                 LocatedChunk locatedChunk,
+                                                                 Optional<FragmentedPaddedCipherText> index,
+                                                                 Hasher hasher,
+                                                                 TransactionId tid) {
+        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+        Location nextLocation = new Location(owner, writer.publicKeyHash, locations.get((int) chunkIndex + 1).getMapKey());
+        return writeChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
+                nextLocation, Optional.empty(), chunkIndex == 0 ? index : Optional.empty(), hasher, network, monitor, tid);
+    }
+
+    /**
+     *  Read chunks in order, starting at the given one, while keeping up to maxInFlight chunks encrypting and uploading
+     *  in parallel. Each chunk's size is reserved from the network's upload budget before it is read, and released once
+     *  it has been written.
+     *
+     * @return the tree mutations linking every chunk, in order
+     */
+    private CompletableFuture<List<ImmutableTree.Mutation>> uploadFrom(long chunkIndex,
+                                                                       LinkedList<CompletableFuture<ImmutableTree.Mutation>> inFlight,
+                                                                       List<CompletableFuture<ImmutableTree.Mutation>> all,
+                                                                       int maxInFlight,
+                                                                       NetworkAccess network,
+                                                                       PublicKeyHash owner,
+                                                                       SigningPrivateKeyAndPublicHash writer,
+                                                                       Optional<FragmentedPaddedCipherText> index,
+                                                                       Hasher hasher,
+                                                                       TransactionId tid) {
+        if (chunkIndex == nchunks)
+            return Futures.combineAllInOrder(all);
+        if (inFlight.size() >= maxInFlight)
+            return inFlight.removeFirst()
+                    .thenCompose(done -> uploadFrom(chunkIndex, inFlight, all, maxInFlight, network, owner, writer, index, hasher, tid));
+        UploadBudget budget = network.uploadBudget;
+        int size = chunkLength(chunkIndex);
+        CompletableFuture<LocatedChunk> read = budget.reserve(size)
+                .thenCompose(reserved -> readChunk(owner, writer, chunkIndex, MaybeMultihash.empty()));
+        CompletableFuture<ImmutableTree.Mutation> written = read
+                .thenCompose(chunk -> writeChunk(network, owner, writer, chunkIndex, chunk, index, hasher, tid));
+        written.whenComplete((mutation, t) -> budget.release(size));
+        return read
+                .thenCompose(chunk -> {
+                    inFlight.add(written);
+                    all.add(written);
+                    return uploadFrom(chunkIndex + 1, inFlight, all, maxInFlight, network, owner, writer, index, hasher, tid);
+                });
+    }
+
+    /**
+     *
+     * @param network
+     * @param owner
+     * @param writer
+     * @param hasher
+     * @return The encrypted chunk index for this file, after uploading any fragments it doesn't inline, if the file is
+     * large enough to need one
+     */
+    private CompletableFuture<Optional<FragmentedPaddedCipherText>> uploadChunkIndex(NetworkAccess network,
+                                                                                     PublicKeyHash owner,
+                                                                                     SigningPrivateKeyAndPublicHash writer,
+                                                                                     Hasher hasher,
+                                                                                     TransactionId tid) {
+        if (nchunks < ChunkIndex.MIN_CHUNKS)
+            return CompletableFuture.completedFuture(Optional.empty());
+        ChunkIndex index = new ChunkIndex(locations.stream()
+                .map(Location::getMapKey)
+                .collect(Collectors.toList()));
+        Pair<FragmentedPaddedCipherText, List<FragmentWithHash>> encrypted = index.encrypt(dataKey, hasher);
+        List<Fragment> fragments = encrypted.right.stream()
+                .filter(f -> ! f.hash.isIdentity())
+                .map(f -> f.fragment)
+                .collect(Collectors.toList());
+        if (fragments.isEmpty())
+            return CompletableFuture.completedFuture(Optional.of(encrypted.left));
+        return network.uploadFragments(fragments, owner, writer, x -> {}, tid)
+                .thenApply(hashes -> Optional.of(encrypted.left));
+    }
+
     public CompletableFuture<Boolean> upload(NetworkAccess network,
                                              PublicKeyHash owner,
                                              SigningPrivateKeyAndPublicHash writer,
                                              Hasher hasher) {
         long t1 = System.currentTimeMillis();
 
-        List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
-        return Futures.reduceAll(input, true, (loc, i) -> uploadChunk(network, owner, writer, i,
-                MaybeMultihash.empty(), monitor, hasher), (a, b) -> a && b)
+        // All the chunks are written in one transaction, then linked into the tree with a single commit
+        return IpfsTransaction.call(owner,
+                tid -> uploadChunkIndex(network, owner, writer, hasher, tid)
+                        .thenCompose(index -> uploadFrom(0, new LinkedList<>(), new ArrayList<>(), network.uploadBudget.maxParallelChunks,
+                                network, owner, writer, index, hasher, tid))
+                        .thenCompose(mutations -> network.commitChunks(owner, writer, mutations, tid)),
+                network.dhtClient)
                 .thenApply(x -> {
                     LOG.info("File encryption, upload took: " +(System.currentTimeMillis()-t1) + " mS");
                     return x;
@@ -121,16 +238,44 @@ public class FileUploader implements AutoCloseable {
                                                            LocatedChunk chunk,
                                                            Location nextChunkLocation,
                                                            Optional<SymmetricLinkToSigner> writerLink,
+                                                           Optional<FragmentedPaddedCipherText> chunkIndex,
                                                            Hasher hasher,
                                                            NetworkAccess network,
                                                            ProgressConsumer<Long> monitor) {
+        return IpfsTransaction.call(chunk.location.owner,
+                tid -> writeChunk(writer, props, parentLocation, parentparentKey, baseKey, chunk, nextChunkLocation,
+                        writerLink, chunkIndex, hasher, network, monitor, tid)
+                        .thenCompose(mutation -> network.commitChunks(chunk.location.owner, writer,
+                                Collections.singletonList(mutation), tid)
+                                .thenApply(done -> mutation.updated.get())),
+                network.dhtClient);
+    }
+
+    /**
+     *  Encrypt and write a chunk's fragments and metadata, without linking it into the tree
+     *
+     * @return the tree mutation to link the chunk, to be committed with NetworkAccess.commitChunks
+     */
+    public static CompletableFuture<ImmutableTree.Mutation> writeChunk(SigningPrivateKeyAndPublicHash writer,
+                                                                       FileProperties props,
+                                                                       Location parentLocation,
+                                                                       SymmetricKey parentparentKey,
+                                                                       SymmetricKey baseKey,
+                                                                       LocatedChunk chunk,
+                                                                       Location nextChunkLocation,
+                                                                       Optional<SymmetricLinkToSigner> writerLink,
+                                                                       Optional<FragmentedPaddedCipherText> chunkIndex,
+                                                                       Hasher hasher,
+                                                                       NetworkAccess network,
+                                                                       ProgressConsumer<Long> monitor,
+                                                                       TransactionId tid) {
         if (! writer.publicKeyHash.equals(chunk.location.writer))
             throw new IllegalStateException("Trying to write a chunk to the wrong signing key space!");
         RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(nextChunkLocation.getMapKey(), baseKey);
         Pair<CryptreeNode, List<FragmentWithHash>> file = CryptreeNode.createFile(chunk.existingHash, baseKey,
                 chunk.chunk.key(), props, chunk.chunk.data(), parentLocation, parentparentKey, nextChunk, hasher);
 
-        CryptreeNode metadata = file.left.withWriterLink(baseKey, writerLink);
+        CryptreeNode metadata = file.left.withWriterLink(baseKey, writerLink).withChunkIndex(chunkIndex);
 
         List<Fragment> fragments = file.right.stream()
                 .filter(f -> ! f.hash.isIdentity())
@@ -140,10 +285,8 @@ public class FileUploader implements AutoCloseable {
         if (fragments.size() < file.right.size())
             monitor.accept((long)chunk.chunk.data().length);
         LOG.info(StringUtils.format("Uploading chunk with %d fragments\n", fragments.size()));
-        return IpfsTransaction.call(chunk.location.owner,
-                tid -> network.uploadFragments(fragments, chunk.location.owner, writer, monitor, tid)
-                        .thenCompose(hashes -> network.uploadChunk(metadata, chunk.location.owner, chunk.chunk.mapKey(), writer, tid)),
-                network.dhtClient);
+        return network.uploadFragments(fragments, chunk.location.owner, writer, monitor, tid)
+                .thenCompose(hashes -> network.writeChunk(metadata, chunk.location.owner, chunk.chunk.mapKey(), writer, tid));
     }
 
     public void close() {
@@ -37,6 +37,8 @@ public class FileWrapper {
 	private static final Logger LOG = Logger.getGlobal();
 
     private final static int THUMBNAIL_SIZE = 100;
+    // each child rotates its own subtree, so this bounds the children of a directory being rotated at once
+    private static final int MAX_CONCURRENT_CHILD_UPDATES = 8;
     private static final NativeJSThumbnail thumbnail = new NativeJSThumbnail();
 
     private final RetrievedCapability pointer;
@@ -131,13 +133,9 @@ public class FileWrapper {
         int slash = path.indexOf("/");
         String prefix = slash > 0 ? path.substring(0, slash) : path;
         String suffix = slash > 0 ? path.substring(slash + 1) : "";
-        return getChildren(network).thenCompose(children -> {
-            for (FileWrapper child : children)
-                if (child.getFileProperties().name.equals(prefix)) {
-                    return child.getDescendentByPath(suffix, network);
-                }
-            return CompletableFuture.completedFuture(Optional.empty());
-        });
+        return getChild(prefix, network).thenCompose(child -> child.isPresent() ?
+                child.get().getDescendentByPath(suffix, network) :
+                CompletableFuture.completedFuture(Optional.empty()));
     }
 
     private void ensureUnmodified() {
@@ -176,7 +174,8 @@ public class FileWrapper {
                                                         Hasher hasher) {
         return pointer.fileAccess
                 .addChildrenAndCommit(children.stream()
-                                .map(p -> ((WritableAbsoluteCapability)pointer.capability).relativise(p.capability))
+                                .map(p -> new NamedRelativeCapability(p.getProperties().name,
+                                        ((WritableAbsoluteCapability)pointer.capability).relativise(p.capability)))
                                 .collect(Collectors.toList()), (WritableAbsoluteCapability) pointer.capability, entryWriter,
                         network, random, hasher)
                 .thenApply(committedCryptree ->
@@ -222,7 +221,8 @@ public class FileWrapper {
             Optional<SymmetricLinkToSigner> writerLink = existing.getWriterLink(cap.rBaseKey);
             Optional<SigningPrivateKeyAndPublicHash> signer = writerLink.map(link -> link.target(cap.wBaseKey.get()));
 
-            // re add children
+            // re add children, without name hashes as those are keyed by the old base key
+            // they are indexed again when the rotated children are re-linked below
             return existing.getDirectChildren(pointer.capability.rBaseKey, network)
                     .thenCompose(children ->  IpfsTransaction.call(owner(),
                             tid -> CryptreeNode.createDir(existing.committedHash(), newSubfoldersKey, cap.wBaseKey.get(),
@@ -234,15 +234,12 @@ public class FileWrapper {
                         FileWrapper theNewUs = new FileWrapper(ourNewRetrievedPointer, entryWriter, ownername);
 
                         // clean all subtree keys except file dataKeys (lazily re-key and re-encrypt them)
-                        return getDirectChildren(network).thenCompose(childFiles -> {
-                            List<CompletableFuture<Pair<RetrievedCapability, RetrievedCapability>>> cleanedChildren = childFiles.stream()
-                                    .map(child -> child.rotateReadKeys(false, network, random, hasher, theNewUs,
-                                            Optional.empty())
-                                            .thenApply(updated -> new Pair<>(child.pointer, updated.pointer)))
-                                    .collect(Collectors.toList());
-
-                            return Futures.combineAll(cleanedChildren);
-                        }).thenCompose(childrenCases -> theNewUs.updateChildLinks(childrenCases, network, random, hasher))
+                        return getDirectChildren(network).thenCompose(childFiles ->
+                                Futures.mapAsync(childFiles, MAX_CONCURRENT_CHILD_UPDATES,
+                                        child -> child.rotateReadKeys(false, network, random, hasher, theNewUs,
+                                                Optional.empty())
+                                                .thenApply(updated -> new Pair<>(child.pointer, updated.pointer))))
+                                .thenCompose(childrenCases -> theNewUs.updateChildLinks(childrenCases, network, random, hasher))
                                 .thenCompose(finished ->
                                         // update pointer from parent to us
                                         (updateParent ? parent.pointer.fileAccess
@@ -339,14 +336,10 @@ public class FileWrapper {
             return IpfsTransaction.call(owner(),
                     tid -> updatedDirAccess.commitChildrenLinks(ourNewPointer, entryWriter, network, tid), network.dhtClient)
                     .thenCompose(hashes -> getDirectChildren(network))
-                    .thenCompose(childFiles -> {
-                        List<CompletableFuture<Pair<RetrievedCapability, RetrievedCapability>>> cleanedChildren = childFiles.stream()
-                                .map(child -> child.rotateWriteKeys(false, theNewUs, Optional.empty(), network, random, hasher)
-                                        .thenApply(updated -> new Pair<>(child.pointer, updated.left.pointer)))
-                                .collect(Collectors.toList());
-
-                        return Futures.combineAll(cleanedChildren);
-                    }).thenCompose(childrenCases -> {
+                    .thenCompose(childFiles -> Futures.mapAsync(childFiles, MAX_CONCURRENT_CHILD_UPDATES,
+                            child -> child.rotateWriteKeys(false, theNewUs, Optional.empty(), network, random, hasher)
+                                    .thenApply(updated -> new Pair<>(child.pointer, updated.left.pointer))))
+                    .thenCompose(childrenCases -> {
 
                                 return theNewUs.addChildLinks(childrenCases.stream()
                                         .map(p -> p.left)
@@ -386,8 +379,8 @@ public class FileWrapper {
 
     public CompletableFuture<Boolean> hasChildWithName(String name, NetworkAccess network) {
         ensureUnmodified();
-        return getChildren(network)
-                .thenApply(children -> children.stream().anyMatch(c -> c.props.name.equals(name)));
+        return getChild(name, network)
+                .thenApply(Optional::isPresent);
     }
 
     /**
@@ -418,7 +411,7 @@ public class FileWrapper {
                 return error;
             }
             CryptreeNode toUpdate = pointer.fileAccess;
-            return toUpdate.addChildAndCommit(writableFilePointer().relativise(file.writableFilePointer()),
+            return toUpdate.addChildAndCommit(new NamedRelativeCapability(name, writableFilePointer().relativise(file.writableFilePointer())),
                     writableFilePointer(), entryWriter, network, random, hasher)
                     .thenApply(dirAccess -> new FileWrapper(this.pointer.withCryptree(dirAccess), entryWriter, ownername));
         });
@@ -527,8 +520,16 @@ public class FileWrapper {
     }
 
     public CompletableFuture<Optional<FileWrapper>> getChild(String name, NetworkAccess network) {
-        return getChildren(network)
-                .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
+        ensureUnmodified();
+        if (globalRoot.isPresent())
+            return getChildren(network)
+                    .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
+        if (! isReadable())
+            throw new IllegalStateException("Unreadable FileWrapper!");
+        Optional<SigningPrivateKeyAndPublicHash> childsEntryWriter = pointer.capability.wBaseKey
+                .map(wBase -> pointer.fileAccess.getSigner(pointer.capability.rBaseKey, wBase, entryWriter));
+        return pointer.fileAccess.getChild(name, pointer.capability, network)
+                .thenApply(child -> child.map(c -> new FileWrapper(c, childsEntryWriter, ownername)));
     }
 
     private CompletableFuture<Set<RetrievedCapability>> retrieveChildren(NetworkAccess network) {
@@ -757,7 +758,7 @@ public class FileWrapper {
                                                            Hasher hasher,
                                                            int retries) {
         CompletableFuture<FileWrapper> result = new CompletableFuture<>();
-        pointer.fileAccess.addChildAndCommit(writableFilePointer().relativise(childPointer),
+        pointer.fileAccess.addChildAndCommit(new NamedRelativeCapability(filename, writableFilePointer().relativise(childPointer)),
                 writableFilePointer(), entryWriter, network, random, hasher)
                 .thenAccept(uploadResult -> {
                     setModified();
@@ -905,6 +906,9 @@ public class FileWrapper {
                             Optional<SymmetricLinkToSigner> writerLink = startIndex < Chunk.MAX_SIZE ?
                                     child.pointer.fileAccess.getWriterLink(child.pointer.capability.rBaseKey) :
                                     Optional.empty();
+                            Optional<FragmentedPaddedCipherText> chunkIndex = startIndex < Chunk.MAX_SIZE ?
+                                    child.pointer.fileAccess.getChunkIndex() :
+                                    Optional.empty();
 
                             return fileData.readIntoArray(raw, internalStart, internalEnd - internalStart).thenCompose(read -> {
 
@@ -917,7 +921,7 @@ public class FileWrapper {
 
                                 CompletableFuture<Multihash> chunkUploaded = FileUploader.uploadChunk(child.signingPair(),
                                         newProps, getLocation(), us.getParentKey(), baseKey, located,
-                                        nextChunkLocation, writerLink, hasher, network, monitor);
+                                        nextChunkLocation, writerLink, chunkIndex, hasher, network, monitor);
 
                                 return chunkUploaded.thenCompose(isUploaded -> {
                                     //update indices to be relative to next chunk
@@ -1044,11 +1048,32 @@ public class FileWrapper {
                                 currentProps.modified, currentProps.isHidden, currentProps.thumbnail);
 
                         return fileAccess.updateProperties(writableFilePointer(), entryWriter, newProps, network)
-                                .thenApply(fa -> res);
+                                .thenCompose(fa -> res == null || ! res.isWritable() ?
+                                        CompletableFuture.completedFuture(res) :
+                                        res.updateChildName(getLocation(), newFilename, network, hasher));
                     });
                 });
     }
 
+    /**
+     *  Update the link to a renamed child so it can still be looked up directly by name
+     * @param child
+     * @param newName
+     * @param network
+     * @param hasher
+     * @return The updated version of this directory
+     */
+    private CompletableFuture<FileWrapper> updateChildName(Location child,
+                                                           String newName,
+                                                           NetworkAccess network,
+                                                           Hasher hasher) {
+        // use the latest version of this directory in case ours is stale
+        return network.getMetadata(pointer.capability)
+                .thenCompose(latest -> latest.get()
+                        .updateChildName(writableFilePointer(), entryWriter, child, newName, network, hasher))
+                .thenApply(updated -> new FileWrapper(pointer.withCryptree(updated), entryWriter, ownername));
+    }
+
     public CompletableFuture<Boolean> setProperties(FileProperties updatedProperties,
                                                     NetworkAccess network,
                                                     Optional<FileWrapper> parent) {
@@ -7,12 +7,60 @@ import peergos.shared.user.fs.cryptree.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
+/** An AsyncReader over the chunks of a file.
+ *
+ *  The location of each chunk is only known after retrieving the metadata of the chunk before it, so to avoid a round
+ *  trip per chunk when reading sequentially we keep a window of the following chunks in flight. Each pending chunk's
+ *  metadata retrieval starts as soon as its predecessor's metadata arrives, and its fragments are downloaded in
+ *  parallel with the rest of the window.
+ *
+ *  Seeks use the first chunk's retriever to locate the target chunk directly, which only takes a single metadata
+ *  retrieval for files with a chunk index.
+ */
 public class LazyInputStreamCombiner implements AsyncReader {
+    private static long MAX_READ_AHEAD_BYTES = 4 * Chunk.MAX_SIZE;
+
+    /**
+     *
+     * @param newValue The maximum number of bytes of chunks following the current one to retrieve in advance, per reader
+     */
+    public static synchronized void setMaxReadAheadBytes(long newValue) {
+        MAX_READ_AHEAD_BYTES = newValue;
+    }
+
+    private static synchronized int getMaxReadAheadChunks() {
+        return (int) Math.max(1, MAX_READ_AHEAD_BYTES / Chunk.MAX_SIZE);
+    }
+
+    private static final class PendingChunk {
+        public final CompletableFuture<byte[]> data;
+        public final CompletableFuture<AbsoluteCapability> nextPointer;
+        private final boolean[] cancelled;
+
+        public PendingChunk(CompletableFuture<byte[]> data,
+                            CompletableFuture<AbsoluteCapability> nextPointer,
+                            boolean[] cancelled) {
+            this.data = data;
+            this.nextPointer = nextPointer;
+            this.cancelled = cancelled;
+        }
+
+        /**
+         *  Stop any further retrievals for this chunk, and so for the chunks after it
+         */
+        public void cancel() {
+            cancelled[0] = true;
+        }
+    }
+
     private final NetworkAccess network;
     private final SafeRandom random;
     private final SymmetricKey baseKey;
+    private final AbsoluteCapability firstChunkCap;
+    private final FileRetriever firstChunkRetriever;
     private final ProgressConsumer<Long> monitor;
     private final long totalLength;
 
@@ -24,6 +72,8 @@ public class LazyInputStreamCombiner implements AsyncReader {
 
     private long globalIndex; // index of beginning of current chunk in file
     private int index; // index within current chunk
+    // the chunks following the current chunk, in order
+    private final LinkedList<PendingChunk> readAhead = new LinkedList<>();
 
     public LazyInputStreamCombiner(long globalIndex,
                                    byte[] chunk,
@@ -32,51 +82,90 @@ public class LazyInputStreamCombiner implements AsyncReader {
                                    Location originalNextChunkPointer,
                                    NetworkAccess network,
                                    SafeRandom random,
-                                   SymmetricKey baseKey,
+                                   AbsoluteCapability firstChunkCap,
+                                   FileRetriever firstChunkRetriever,
                                    long totalLength,
                                    ProgressConsumer<Long> monitor) {
         if (chunk == null)
             throw new IllegalStateException("Null initial chunk!");
         this.network = network;
         this.random = random;
-        this.baseKey = baseKey;
+        this.baseKey = firstChunkCap.rBaseKey;
+        this.firstChunkCap = firstChunkCap;
+        this.firstChunkRetriever = firstChunkRetriever;
         this.monitor = monitor;
         this.totalLength = totalLength;
         this.originalChunk = originalChunk;
-        this.originalNextPointer = AbsoluteCapability.build(originalNextChunkPointer, baseKey);
+        this.originalNextPointer = AbsoluteCapability.build(originalNextChunkPointer, this.baseKey);
         this.currentChunk = chunk;
-        this.nextChunkPointer = AbsoluteCapability.build(nextChunkPointer, baseKey);
+        this.nextChunkPointer = AbsoluteCapability.build(nextChunkPointer, this.baseKey);
         this.globalIndex = globalIndex;
         this.index = 0;
     }
 
     public CompletableFuture<Boolean> getNextStream(int len) {
         if (this.nextChunkPointer != null) {
-            AbsoluteCapability nextCap = this.nextChunkPointer;
-            return network.getMetadata(nextCap).thenCompose(meta -> {
-                if (!meta.isPresent()) {
-                    CompletableFuture<Boolean> err = new CompletableFuture<>();
-                    err.completeExceptionally(new EOFException());
-                    return err;
-                }
-                CryptreeNode access = meta.get();
-                if (access.isDirectory())
-                    throw new IllegalStateException("File linked to a directory for its next chunk!");
-                FileRetriever nextRet = access.retriever(baseKey);
-                AbsoluteCapability newNextChunkPointer = nextCap.withMapKey(access.getNextChunkLocation(baseKey));
-                return nextRet.getChunk(network, random, 0, len, nextCap, access.committedHash(), monitor)
-                        .thenApply(x -> {
-                            byte[] nextData = x.get().chunk.data();
-                            updateState(0,globalIndex + Chunk.MAX_SIZE, nextData, newNextChunkPointer);
-                            return true;
-                        });
-            });
+            if (readAhead.isEmpty()) {
+                // the first time we cross a chunk boundary, or after a seek
+                readAhead.add(retrieveChunk(CompletableFuture.completedFuture(nextChunkPointer), len));
+                fillReadAhead();
+            }
+            PendingChunk next = readAhead.removeFirst();
+            return next.data.thenCompose(nextData -> next.nextPointer.thenApply(newNextChunkPointer -> {
+                updateState(0, globalIndex + Chunk.MAX_SIZE, nextData, newNextChunkPointer);
+                fillReadAhead();
+                return true;
+            }));
         }
         CompletableFuture<Boolean> err = new CompletableFuture<>();
         err.completeExceptionally(new EOFException());
         return err;
     }
 
+    /**
+     *  Start retrieving the chunks following the current one, up to the read ahead limit or the end of the file
+     */
+    private void fillReadAhead() {
+        int maxChunks = getMaxReadAheadChunks();
+        while (readAhead.size() < maxChunks && nextChunkPointer != null) {
+            long chunkStart = globalIndex + (readAhead.size() + 1) * (long) Chunk.MAX_SIZE;
+            if (chunkStart >= totalLength)
+                return;
+            CompletableFuture<AbsoluteCapability> pointer = readAhead.isEmpty() ?
+                    CompletableFuture.completedFuture(nextChunkPointer) :
+                    readAhead.getLast().nextPointer;
+            readAhead.add(retrieveChunk(pointer, (int) Math.min(Chunk.MAX_SIZE, totalLength - chunkStart)));
+        }
+    }
+
+    private PendingChunk retrieveChunk(CompletableFuture<AbsoluteCapability> pointer, int len) {
+        boolean[] cancelled = {false};
+        CompletableFuture<Pair<AbsoluteCapability, CryptreeNode>> metadata = pointer.thenCompose(cap -> cancelled[0] ?
+                Futures.errored(new IllegalStateException("Read ahead cancelled")) :
+                network.getMetadata(cap).thenCompose(meta -> {
+                    if (!meta.isPresent())
+                        return Futures.errored(new EOFException());
+                    CryptreeNode access = meta.get();
+                    if (access.isDirectory())
+                        throw new IllegalStateException("File linked to a directory for its next chunk!");
+                    return CompletableFuture.completedFuture(new Pair<>(cap, access));
+                }));
+        CompletableFuture<AbsoluteCapability> nextPointer = metadata.thenApply(p ->
+                p.left.withMapKey(p.right.getNextChunkLocation(baseKey)));
+        CompletableFuture<byte[]> data = metadata.thenCompose(p -> cancelled[0] ?
+                Futures.errored(new IllegalStateException("Read ahead cancelled")) :
+                p.right.retriever(baseKey)
+                        .getChunk(network, random, 0, len, p.left, p.right.committedHash(), monitor)
+                        .thenApply(x -> x.get().chunk.data()));
+        return new PendingChunk(data, nextPointer, cancelled);
+    }
+
+    private void cancelReadAhead() {
+        for (PendingChunk pending : readAhead)
+            pending.cancel();
+        readAhead.clear();
+    }
+
     private CompletableFuture<AsyncReader> skip(long skip) {
         long available = (long) bytesReady();
 
@@ -98,16 +187,38 @@ public class LazyInputStreamCombiner implements AsyncReader {
 
         if (totalLength < seek)
             throw new IllegalStateException("Cannot seek to position "+ seek);
-        return reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek));
+        long chunkStart = seek - (seek % Chunk.MAX_SIZE);
+        if (chunkStart == globalIndex && seek - globalIndex <= currentChunk.length) {
+            index = (int) (seek - globalIndex);
+            return CompletableFuture.completedFuture(this);
+        }
+        if (chunkStart < 2 * Chunk.MAX_SIZE || chunkStart >= totalLength)
+            return reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek));
+
+        cancelReadAhead();
+        int len = (int) Math.min(Chunk.MAX_SIZE, totalLength - chunkStart);
+        return firstChunkRetriever.getMapLabelAt(firstChunkCap, chunkStart, network)
+                .thenCompose(label -> {
+                    if (! label.isPresent())
+                        return reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek));
+                    PendingChunk target = retrieveChunk(CompletableFuture.completedFuture(firstChunkCap.withMapKey(label.get())), len);
+                    return target.data.thenCompose(data -> target.nextPointer.thenApply(next -> {
+                        updateState((int) (seek - chunkStart), chunkStart, data, next);
+                        return this;
+                    }));
+                });
     }
 
     private int bytesReady() {
         return this.currentChunk.length - this.index;
     }
 
-    public void close() {}
+    public void close() {
+        cancelReadAhead();
+    }
 
     public CompletableFuture<AsyncReader> reset() {
+        cancelReadAhead();
         this.globalIndex = 0;
         this.currentChunk = originalChunk;
         this.nextChunkPointer = originalNextPointer;
@@ -0,0 +1,14 @@
+package peergos.shared.user.fs;
+
+/** A link to a child of a directory along with the child's name, which is used to index the link in the directory
+ *
+ */
+public class NamedRelativeCapability {
+    public final String name;
+    public final RelativeCapability cap;
+
+    public NamedRelativeCapability(String name, RelativeCapability cap) {
+        this.name = name;
+        this.cap = cap;
+    }
+}
@@ -22,6 +22,10 @@ public class RetrievedCapability {
         return capability.equals(((RetrievedCapability)that).capability);
     }
 
+    public FileProperties getProperties() {
+        return fileAccess.getProperties(fileAccess.getParentKey(capability.rBaseKey));
+    }
+
     public RetrievedCapability withCryptree(CryptreeNode fileAccess) {
         return new RetrievedCapability(capability, fileAccess);
     }
@@ -0,0 +1,86 @@
+package peergos.shared.user.fs;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Limits the file data held in memory by all the uploads using the same NetworkAccess.
+ *
+ *  Each upload keeps at most maxParallelChunks of its chunks encrypting and uploading at once, and reserves the size
+ *  of each chunk from a byte budget shared by every upload before reading it. Reservations are granted in the order
+ *  they were requested.
+ */
+public class UploadBudget {
+    public static final int DEFAULT_MAX_PARALLEL_CHUNKS = 4;
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 4L * Chunk.MAX_SIZE;
+
+    public final int maxParallelChunks;
+    public final long maxBufferedBytes;
+    private long reserved; // guarded by this
+    private final LinkedList<Reservation> waiting = new LinkedList<>(); // guarded by this
+
+    private static class Reservation {
+        public final long bytes;
+        public final CompletableFuture<Boolean> granted = new CompletableFuture<>();
+
+        public Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     *
+     * @param maxParallelChunks The maximum number of chunks of a file to be encrypting and uploading at once
+     * @param maxBufferedBytes The maximum number of bytes of file data to hold in memory, across all uploads
+     */
+    public UploadBudget(int maxParallelChunks, long maxBufferedBytes) {
+        if (maxParallelChunks < 1)
+            throw new IllegalArgumentException("At least one chunk must be uploaded at a time!");
+        this.maxParallelChunks = maxParallelChunks;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    public static UploadBudget defaultBudget() {
+        return new UploadBudget(DEFAULT_MAX_PARALLEL_CHUNKS, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /** A reservation larger than the whole budget is granted once nothing else is reserved, so it can't wait forever.
+     *
+     * @return a future which completes once the bytes have been reserved, which must later be released
+     */
+    public CompletableFuture<Boolean> reserve(long bytes) {
+        Reservation reservation = new Reservation(bytes);
+        synchronized (this) {
+            waiting.add(reservation);
+        }
+        grantWaiting();
+        return reservation.granted;
+    }
+
+    public void release(long bytes) {
+        synchronized (this) {
+            reserved -= bytes;
+        }
+        grantWaiting();
+    }
+
+    public synchronized long reserved() {
+        return reserved;
+    }
+
+    private void grantWaiting() {
+        List<Reservation> granted = new ArrayList<>();
+        synchronized (this) {
+            while (! waiting.isEmpty()) {
+                Reservation next = waiting.getFirst();
+                if (reserved > 0 && reserved + next.bytes > maxBufferedBytes)
+                    break;
+                waiting.removeFirst();
+                reserved += next.bytes;
+                granted.add(next);
+            }
+        }
+        // complete outside the lock, as the continuations read the next chunk
+        for (Reservation reservation : granted)
+            reservation.granted.complete(true);
+    }
+}
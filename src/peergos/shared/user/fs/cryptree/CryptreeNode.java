@@ -11,6 +11,7 @@ import peergos.shared.storage.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -49,17 +50,29 @@ public class CryptreeNode implements Cborable {
     protected final PaddedCipherText fromBaseKey;
     protected final FragmentedPaddedCipherText childrenOrData;
     protected final PaddedCipherText fromParentKey;
+    // Only present in the first chunk of large files, see ChunkIndex
+    protected final Optional<FragmentedPaddedCipherText> chunkIndex;
 
     public CryptreeNode(MaybeMultihash lastCommittedHash,
                         boolean isDirectory,
                         PaddedCipherText fromBaseKey,
                         FragmentedPaddedCipherText childrenOrData,
-                        PaddedCipherText fromParentKey) {
+                        PaddedCipherText fromParentKey,
+                        Optional<FragmentedPaddedCipherText> chunkIndex) {
         this.lastCommittedHash = lastCommittedHash;
         this.isDirectory = isDirectory;
         this.fromBaseKey = fromBaseKey;
         this.childrenOrData = childrenOrData;
         this.fromParentKey = fromParentKey;
+        this.chunkIndex = chunkIndex;
+    }
+
+    public CryptreeNode(MaybeMultihash lastCommittedHash,
+                        boolean isDirectory,
+                        PaddedCipherText fromBaseKey,
+                        FragmentedPaddedCipherText childrenOrData,
+                        PaddedCipherText fromParentKey) {
+        this(lastCommittedHash, isDirectory, fromBaseKey, childrenOrData, fromParentKey, Optional.empty());
     }
 
     public int getVersion() {
@@ -166,26 +179,94 @@ public class CryptreeNode implements Cborable {
         }
     }
 
+    /** The links to the children of a directory, encrypted with the directory's base key.
+     *
+     *  Each link may also carry a keyed hash of the child's name (see nameHash), which lets a single child be found
+     *  without retrieving every child. Links written before names were indexed have no hash, and are indexed the next
+     *  time the directory's links are written.
+     */
     public static class ChildrenLinks implements Cborable {
         public final List<RelativeCapability> children;
+        public final List<Optional<ByteArrayWrapper>> nameHashes;
 
-        public ChildrenLinks(List<RelativeCapability> children) {
+        public ChildrenLinks(List<RelativeCapability> children, List<Optional<ByteArrayWrapper>> nameHashes) {
+            if (children.size() != nameHashes.size())
+                throw new IllegalArgumentException("Every child link needs a name hash entry!");
             this.children = children;
+            this.nameHashes = nameHashes;
+        }
+
+        public ChildrenLinks(List<RelativeCapability> children) {
+            this(children, children.stream()
+                    .map(c -> Optional.<ByteArrayWrapper>empty())
+                    .collect(Collectors.toList()));
+        }
+
+        public Optional<RelativeCapability> getByNameHash(ByteArrayWrapper nameHash) {
+            for (int i = 0; i < children.size(); i++)
+                if (nameHashes.get(i).map(nameHash::equals).orElse(false))
+                    return Optional.of(children.get(i));
+            return Optional.empty();
+        }
+
+        public List<RelativeCapability> getUnindexed() {
+            List<RelativeCapability> res = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++)
+                if (! nameHashes.get(i).isPresent())
+                    res.add(children.get(i));
+            return res;
+        }
+
+        public ChildrenLinks filter(Predicate<RelativeCapability> keep) {
+            List<RelativeCapability> newChildren = new ArrayList<>();
+            List<Optional<ByteArrayWrapper>> newHashes = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++)
+                if (keep.test(children.get(i))) {
+                    newChildren.add(children.get(i));
+                    newHashes.add(nameHashes.get(i));
+                }
+            return new ChildrenLinks(newChildren, newHashes);
+        }
+
+        public ChildrenLinks add(List<NamedRelativeCapability> toAdd, SymmetricKey dirKey) {
+            List<RelativeCapability> newChildren = new ArrayList<>(children);
+            List<Optional<ByteArrayWrapper>> newHashes = new ArrayList<>(nameHashes);
+            for (NamedRelativeCapability child : toAdd) {
+                newChildren.add(child.cap);
+                newHashes.add(Optional.of(nameHash(dirKey, child.name)));
+            }
+            return new ChildrenLinks(newChildren, newHashes);
         }
 
         @Override
         public CborObject toCbor() {
-            return new CborObject.CborList(children);
+            List<CborObject> links = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++) {
+                CborObject link = children.get(i).toCbor();
+                if (nameHashes.get(i).isPresent()) {
+                    // older clients ignore the extra field when parsing the capability
+                    SortedMap<CborObject, Cborable> withName = new TreeMap<>(((CborObject.CborMap) link).values);
+                    withName.put(new CborObject.CborString("n"), new CborObject.CborByteArray(nameHashes.get(i).get().data));
+                    link = new CborObject.CborMap(withName);
+                }
+                links.add(link);
+            }
+            return new CborObject.CborList(links);
         }
 
         public static ChildrenLinks fromCbor(CborObject cbor) {
             if (! (cbor instanceof CborObject.CborList))
                 throw new IllegalStateException("Incorrect cbor for ChildrenLinks: " + cbor);
 
-            return new ChildrenLinks(((CborObject.CborList) cbor).value
-                    .stream()
-                    .map(RelativeCapability::fromCbor)
-                    .collect(Collectors.toList()));
+            List<? extends Cborable> links = ((CborObject.CborList) cbor).value;
+            List<RelativeCapability> children = new ArrayList<>();
+            List<Optional<ByteArrayWrapper>> nameHashes = new ArrayList<>();
+            for (Cborable link : links) {
+                children.add(RelativeCapability.fromCbor(link));
+                nameHashes.add(Optional.ofNullable(((CborObject.CborMap) link).get("n"))
+                        .map(h -> new ByteArrayWrapper(((CborObject.CborByteArray) h).value)));
+            }
+            return new ChildrenLinks(children, nameHashes);
         }
 
         public static ChildrenLinks empty() {
@@ -193,6 +274,20 @@ public class CryptreeNode implements Cborable {
         }
     }
 
+    /**
+     *
+     * @param dirKey The base key of the directory containing the child
+     * @param name
+     * @return A hash of the child's name keyed by the directory's base key, so it is only meaningful to readers of the directory
+     */
+    public static ByteArrayWrapper nameHash(SymmetricKey dirKey, String name) {
+        try {
+            return new ByteArrayWrapper(Hash.sha256(ArrayOps.concat(dirKey.getKey(), name.getBytes("UTF-8"))));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("Couldn't hash name");
+        }
+    }
+
     public MaybeMultihash committedHash() {
         return lastCommittedHash;
     }
@@ -243,16 +338,146 @@ public class CryptreeNode implements Cborable {
     }
 
     public FileRetriever retriever(SymmetricKey baseKey) {
-        return new EncryptedChunkRetriever(childrenOrData, getNextChunkLocation(baseKey), getDataKey(baseKey));
+        return new EncryptedChunkRetriever(childrenOrData, getNextChunkLocation(baseKey), getDataKey(baseKey), chunkIndex);
     }
 
     public CompletableFuture<List<RelativeCapability>> getDirectChildren(SymmetricKey baseKey, NetworkAccess network) {
-        if (! isDirectory)
-            return CompletableFuture.completedFuture(Collections.emptyList());
-        return getLinkedData(baseKey, ChildrenLinks::fromCbor, network, x -> {})
+        return getDirectChildrenLinks(baseKey, network)
                 .thenApply(c -> c.children);
     }
 
+    public CompletableFuture<ChildrenLinks> getDirectChildrenLinks(SymmetricKey baseKey, NetworkAccess network) {
+        if (! isDirectory)
+            return CompletableFuture.completedFuture(ChildrenLinks.empty());
+        return getLinkedData(baseKey, ChildrenLinks::fromCbor, network, x -> {});
+    }
+
+    /**
+     *  Links are retrieved directly by name hash. A client which doesn't index names writes links without a hash, so if
+     *  there is no matching hash we fall back to retrieving only the unindexed links in each chunk.
+     *
+     * @param name
+     * @param us
+     * @param network
+     * @return The child with the given name
+     */
+    public CompletableFuture<Optional<RetrievedCapability>> getChild(String name,
+                                                                     AbsoluteCapability us,
+                                                                     NetworkAccess network) {
+        if (! isDirectory)
+            return CompletableFuture.completedFuture(Optional.empty());
+        return getIndexedChild(name, us, network).thenCompose(child -> {
+            if (child.isPresent())
+                return CompletableFuture.completedFuture(child);
+            return getUnindexedChild(name, us, network);
+        });
+    }
+
+    private CompletableFuture<Optional<RetrievedCapability>> getIndexedChild(String name,
+                                                                             AbsoluteCapability us,
+                                                                             NetworkAccess network) {
+        ByteArrayWrapper nameHash = nameHash(us.rBaseKey, name);
+        return getDirectChildrenLinks(us.rBaseKey, network).thenCompose(links -> {
+            Optional<RelativeCapability> link = links.getByNameHash(nameHash);
+            if (link.isPresent())
+                return network.retrieveMetadata(link.get().toAbsolute(us))
+                        .thenApply(child -> child.filter(c -> c.getProperties().name.equals(name)));
+            return CompletableFuture.completedFuture(Optional.<RetrievedCapability>empty());
+        }).thenCompose(child -> {
+            if (child.isPresent())
+                return CompletableFuture.completedFuture(child);
+            return getNextChunk(us, network).thenCompose(nextChunk -> nextChunk
+                    .map(d -> d.fileAccess.getIndexedChild(name, d.capability, network))
+                    .orElse(CompletableFuture.completedFuture(Optional.empty())));
+        });
+    }
+
+    private CompletableFuture<Optional<RetrievedCapability>> getUnindexedChild(String name,
+                                                                               AbsoluteCapability us,
+                                                                               NetworkAccess network) {
+        return getDirectChildrenLinks(us.rBaseKey, network).thenCompose(links -> {
+            List<RelativeCapability> unindexed = links.getUnindexed();
+            if (unindexed.isEmpty())
+                return CompletableFuture.completedFuture(Optional.<RetrievedCapability>empty());
+            return network.retrieveAllMetadata(unindexed.stream()
+                    .map(c -> c.toAbsolute(us))
+                    .collect(Collectors.toList()))
+                    .thenApply(children -> children.stream()
+                            .filter(c -> c.getProperties().name.equals(name))
+                            .findFirst());
+        }).thenCompose(child -> {
+            if (child.isPresent())
+                return CompletableFuture.completedFuture(child);
+            return getNextChunk(us, network).thenCompose(nextChunk -> nextChunk
+                    .map(d -> d.fileAccess.getUnindexedChild(name, d.capability, network))
+                    .orElse(CompletableFuture.completedFuture(Optional.empty())));
+        });
+    }
+
+    /**
+     *  Update the name hash of the link to a child which has been renamed
+     *
+     * @param us
+     * @param entryWriter
+     * @param child
+     * @param newName
+     * @param network
+     * @param hasher
+     * @return The updated first chunk of this directory
+     */
+    public CompletableFuture<CryptreeNode> updateChildName(WritableAbsoluteCapability us,
+                                                           Optional<SigningPrivateKeyAndPublicHash> entryWriter,
+                                                           Location child,
+                                                           String newName,
+                                                           NetworkAccess network,
+                                                           Hasher hasher) {
+        return getDirectChildrenLinks(us.rBaseKey, network).thenCompose(links -> {
+            for (int i = 0; i < links.children.size(); i++) {
+                if (! links.children.get(i).toAbsolute(us).getLocation().equals(child))
+                    continue;
+                List<Optional<ByteArrayWrapper>> nameHashes = new ArrayList<>(links.nameHashes);
+                nameHashes.set(i, Optional.of(nameHash(us.rBaseKey, newName)));
+                return IpfsTransaction.call(us.owner,
+                        tid -> withChildren(us.rBaseKey, new ChildrenLinks(links.children, nameHashes), hasher)
+                                .commit(us, entryWriter, network, tid), network.dhtClient);
+            }
+            return getNextChunk(us, network).thenCompose(nextChunk -> {
+                if (! nextChunk.isPresent())
+                    return CompletableFuture.completedFuture(this);
+                return nextChunk.get().fileAccess.updateChildName(nextChunk.get().capability.toWritable(us.wBaseKey.get()),
+                        entryWriter, child, newName, network, hasher)
+                        .thenApply(x -> this);
+            });
+        });
+    }
+
+    /**
+     *  Add name hashes to any links which don't have one yet, by retrieving those children
+     */
+    private static CompletableFuture<ChildrenLinks> indexNames(ChildrenLinks links,
+                                                               AbsoluteCapability us,
+                                                               NetworkAccess network) {
+        List<RelativeCapability> unindexed = links.getUnindexed();
+        if (unindexed.isEmpty())
+            return CompletableFuture.completedFuture(links);
+        return network.retrieveAllMetadata(unindexed.stream()
+                .map(c -> c.toAbsolute(us))
+                .collect(Collectors.toList()))
+                .thenApply(retrieved -> {
+                    Map<Location, String> names = new HashMap<>();
+                    for (RetrievedCapability child : retrieved)
+                        names.put(child.capability.getLocation(), child.getProperties().name);
+                    List<Optional<ByteArrayWrapper>> nameHashes = new ArrayList<>();
+                    for (int i = 0; i < links.children.size(); i++) {
+                        Location loc = links.children.get(i).toAbsolute(us).getLocation();
+                        nameHashes.add(links.nameHashes.get(i).isPresent() ?
+                                links.nameHashes.get(i) :
+                                Optional.ofNullable(names.get(loc)).map(name -> nameHash(us.rBaseKey, name)));
+                    }
+                    return new ChildrenLinks(links.children, nameHashes);
+                });
+    }
+
     public CompletableFuture<Set<AbsoluteCapability>> getDirectChildrenCapabilities(AbsoluteCapability us, NetworkAccess network) {
         return getDirectChildren(us.rBaseKey, network)
                 .thenApply(c ->c.stream()
@@ -317,7 +542,7 @@ public class CryptreeNode implements Cborable {
         FromParent parentBlock = getParentBlock(parentKey);
         FromParent newParentBlock = new FromParent(parentBlock.parentLink, newProps);
         CryptreeNode updated = new CryptreeNode(lastCommittedHash, isDirectory, fromBaseKey, childrenOrData,
-                PaddedCipherText.build(parentKey, newParentBlock, META_DATA_PADDING_BLOCKSIZE));
+                PaddedCipherText.build(parentKey, newParentBlock, META_DATA_PADDING_BLOCKSIZE), chunkIndex);
         return IpfsTransaction.call(us.owner,
                 tid -> network.uploadChunk(updated, us.owner, us.getMapKey(), getSigner(us.rBaseKey, us.wBaseKey.get(), entryWriter), tid)
                         .thenApply(b -> updated),
@@ -332,7 +557,15 @@ public class CryptreeNode implements Cborable {
     }
 
     public CryptreeNode withHash(Multihash hash) {
-        return new CryptreeNode(MaybeMultihash.of(hash), isDirectory, fromBaseKey, childrenOrData, fromParentKey);
+        return new CryptreeNode(MaybeMultihash.of(hash), isDirectory, fromBaseKey, childrenOrData, fromParentKey, chunkIndex);
+    }
+
+    public Optional<FragmentedPaddedCipherText> getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public CryptreeNode withChunkIndex(Optional<FragmentedPaddedCipherText> chunkIndex) {
+        return new CryptreeNode(lastCommittedHash, isDirectory, fromBaseKey, childrenOrData, fromParentKey, chunkIndex);
     }
 
     public CryptreeNode withWriterLink(SymmetricKey baseKey, SymmetricLinkToSigner newWriterLink) {
@@ -343,12 +576,12 @@ public class CryptreeNode implements Cborable {
         FromBase baseBlock = getBaseBlock(baseKey);
         FromBase newBaseBlock = new FromBase(baseBlock.parentOrData, newWriterLink, baseBlock.nextChunk);
         PaddedCipherText encryptedBaseBlock = PaddedCipherText.build(baseKey, newBaseBlock, BASE_BLOCK_PADDING_BLOCKSIZE);
-        return new CryptreeNode(lastCommittedHash, isDirectory, encryptedBaseBlock, childrenOrData, fromParentKey);
+        return new CryptreeNode(lastCommittedHash, isDirectory, encryptedBaseBlock, childrenOrData, fromParentKey, chunkIndex);
     }
 
     public DirAndChildren withChildren(SymmetricKey baseKey, ChildrenLinks children, Hasher hasher) {
         Pair<FragmentedPaddedCipherText, List<FragmentWithHash>> encryptedChildren = buildChildren(children, baseKey, hasher);
-        CryptreeNode cryptreeNode = new CryptreeNode(lastCommittedHash, isDirectory, fromBaseKey, encryptedChildren.left, fromParentKey);
+        CryptreeNode cryptreeNode = new CryptreeNode(lastCommittedHash, isDirectory, fromBaseKey, encryptedChildren.left, fromParentKey, chunkIndex);
         return new DirAndChildren(cryptreeNode, encryptedChildren.right);
     }
 
@@ -367,7 +600,7 @@ public class CryptreeNode implements Cborable {
         FromParent parentBlock = getParentBlock(parentKey);
         FromParent newParentBlock = new FromParent(Optional.of(newParentLink), parentBlock.properties);
         return new CryptreeNode(lastCommittedHash, isDirectory, fromBaseKey, childrenOrData,
-                PaddedCipherText.build(parentKey, newParentBlock, META_DATA_PADDING_BLOCKSIZE));
+                PaddedCipherText.build(parentKey, newParentBlock, META_DATA_PADDING_BLOCKSIZE), chunkIndex);
     }
 
     /**
@@ -395,8 +628,9 @@ public class CryptreeNode implements Cborable {
 
         RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(getNextChunkLocation(us.rBaseKey), newBaseKey);
         Optional<SymmetricLinkToSigner> linkToSigner = getBaseBlock(us.rBaseKey).signer;
+        // the chunk index is encrypted with the data key, so it remains valid
         CryptreeNode fa = CryptreeNode.createFile(committedHash(), linkToSigner, newBaseKey, dataKey, getProperties(us.rBaseKey),
-                childrenOrData, toParent, nextChunk);
+                childrenOrData, toParent, nextChunk).withChunkIndex(chunkIndex);
         SigningPrivateKeyAndPublicHash signer = getSigner(us.rBaseKey, us.wBaseKey.get(), entryWriter);
         return IpfsTransaction.call(us.owner, tid -> network.uploadChunk(fa, us.owner, us.getMapKey(), signer, tid)
                         .thenApply(x -> fa),
@@ -441,7 +675,7 @@ public class CryptreeNode implements Cborable {
                                 Chunk chunk = new Chunk(chunkData, newDataKey, mapKey, nonce);
                                 LocatedChunk locatedChunk = new LocatedChunk(cap.getLocation(), lastCommittedHash, chunk);
                                 return FileUploader.uploadChunk(writer, props, parentLocation, parentParentKey, cap.rBaseKey, locatedChunk,
-                                        nextCap.getLocation(), getWriterLink(cap.rBaseKey), hasher, network, x -> {});
+                                        nextCap.getLocation(), getWriterLink(cap.rBaseKey), Optional.empty(), hasher, network, x -> {});
                             }).thenCompose(h -> network.getMetadata(nextCap));
                 }).thenCompose(mOpt -> {
                     if (! mOpt.isPresent())
@@ -452,7 +686,7 @@ public class CryptreeNode implements Cborable {
                 .thenApply(opt -> opt.get());
     }
 
-    public CompletableFuture<CryptreeNode> addChildAndCommit(RelativeCapability targetCAP,
+    public CompletableFuture<CryptreeNode> addChildAndCommit(NamedRelativeCapability targetCAP,
                                                           WritableAbsoluteCapability us,
                                                           Optional<SigningPrivateKeyAndPublicHash> entryWriter,
                                                           NetworkAccess network,
@@ -461,15 +695,15 @@ public class CryptreeNode implements Cborable {
         return addChildrenAndCommit(Arrays.asList(targetCAP), us, entryWriter, network, random, hasher);
     }
 
-    public CompletableFuture<CryptreeNode> addChildrenAndCommit(List<RelativeCapability> targetCAPs,
+    public CompletableFuture<CryptreeNode> addChildrenAndCommit(List<NamedRelativeCapability> targetCAPs,
                                                                 WritableAbsoluteCapability us,
                                                                 Optional<SigningPrivateKeyAndPublicHash> entryWriter,
                                                                 NetworkAccess network,
                                                                 SafeRandom random,
                                                                 Hasher hasher) {
         // Make sure subsequent blobs use a different transaction to obscure linkage of different parts of this dir
-        return getDirectChildren(us.rBaseKey, network).thenCompose(children -> {
-            if (children.size() + targetCAPs.size() > getMaxChildLinksPerBlob()) {
+        return getDirectChildrenLinks(us.rBaseKey, network).thenCompose(children -> {
+            if (children.children.size() + targetCAPs.size() > getMaxChildLinksPerBlob()) {
                 return getNextChunk(us, network).thenCompose(nextMetablob -> {
                     if (nextMetablob.isPresent()) {
                         AbsoluteCapability nextPointer = nextMetablob.get().capability;
@@ -478,9 +712,9 @@ public class CryptreeNode implements Cborable {
                                 nextPointer.toWritable(us.wBaseKey.get()), entryWriter, network, random, hasher);
                     } else {
                         // first fill this directory, then overflow into a new one
-                        int freeSlots = getMaxChildLinksPerBlob() - children.size();
-                        List<RelativeCapability> addToUs = targetCAPs.subList(0, freeSlots);
-                        List<RelativeCapability> addToNext = targetCAPs.subList(freeSlots, targetCAPs.size());
+                        int freeSlots = getMaxChildLinksPerBlob() - children.children.size();
+                        List<NamedRelativeCapability> addToUs = targetCAPs.subList(0, freeSlots);
+                        List<NamedRelativeCapability> addToNext = targetCAPs.subList(freeSlots, targetCAPs.size());
                         return addChildrenAndCommit(addToUs, us, entryWriter, network, random, hasher)
                                 .thenCompose(newUs -> {
                                     // create and upload new metadata blob
@@ -488,15 +722,15 @@ public class CryptreeNode implements Cborable {
                                     SymmetricKey ourParentKey = getParentKey(us.rBaseKey);
                                     Optional<RelativeCapability> parentCap = getParentBlock(ourParentKey).parentLink;
                                     RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(random.randomBytes(32), nextSubfoldersKey);
-                                    List<RelativeCapability> addToNextChunk = addToNext.stream()
+                                    List<NamedRelativeCapability> addToNextChunk = addToNext.stream()
                                             .limit(getMaxChildLinksPerBlob())
                                             .collect(Collectors.toList());
-                                    List<RelativeCapability> remaining = addToNext.stream()
+                                    List<NamedRelativeCapability> remaining = addToNext.stream()
                                             .skip(getMaxChildLinksPerBlob())
                                             .collect(Collectors.toList());
                                     DirAndChildren next = CryptreeNode.createDir(MaybeMultihash.empty(), nextSubfoldersKey,
                                             null, Optional.empty(), FileProperties.EMPTY, parentCap,
-                                            ourParentKey, nextChunk, new ChildrenLinks(addToNextChunk), hasher);
+                                            ourParentKey, nextChunk, ChildrenLinks.empty().add(addToNextChunk, nextSubfoldersKey), hasher);
                                     byte[] nextMapKey = getNextChunkLocation(us.rBaseKey);
                                     WritableAbsoluteCapability nextPointer = new WritableAbsoluteCapability(us.owner,
                                             us.writer, nextMapKey, nextSubfoldersKey, us.wBaseKey.get());
@@ -509,12 +743,9 @@ public class CryptreeNode implements Cborable {
                     }
                 });
             } else {
-                ArrayList<RelativeCapability> newFiles = new ArrayList<>(children);
-                newFiles.addAll(targetCAPs);
-
-                return IpfsTransaction.call(us.owner,
-                        tid -> withChildren(us.rBaseKey, new ChildrenLinks(newFiles), hasher)
-                                .commit(us, entryWriter, network, tid), network.dhtClient);
+                return indexNames(children, us, network).thenCompose(indexed -> IpfsTransaction.call(us.owner,
+                        tid -> withChildren(us.rBaseKey, indexed.add(targetCAPs, us.rBaseKey), hasher)
+                                .commit(us, entryWriter, network, tid), network.dhtClient));
             }
         });
     }
@@ -540,14 +771,37 @@ public class CryptreeNode implements Cborable {
                         Optional.empty()), Optional.of(ourCap), SymmetricKey.random(), nextChunk, hasher);
 
         SymmetricLink toChildWriteKey = SymmetricLink.fromPair(us.wBaseKey.get(), dirWriteKey);
-        // Use two transactions to not expose the child linkage
-        return IpfsTransaction.call(us.owner,
-                tid -> child.commit(childCap, entryWriter, network, tid), network.dhtClient)
-                .thenCompose(resultHash -> {
-                    RelativeCapability subdirPointer = new RelativeCapability(dirMapKey, dirReadKey, toChildWriteKey);
-                    return addChildAndCommit(subdirPointer, us, entryWriter, network, random, hasher)
-                            .thenApply(modified -> new RelativeCapability(dirMapKey, dirReadKey, toChildWriteKey));
-                });
+        RelativeCapability subdirPointer = new RelativeCapability(dirMapKey, dirReadKey, toChildWriteKey);
+        NamedRelativeCapability namedPointer = new NamedRelativeCapability(name, subdirPointer);
+        SigningPrivateKeyAndPublicHash childSigner = child.dir.getSigner(dirReadKey, dirWriteKey, entryWriter);
+        SigningPrivateKeyAndPublicHash ourSigner = getSigner(us.rBaseKey, us.wBaseKey.get(), entryWriter);
+        return getDirectChildrenLinks(us.rBaseKey, network).thenCompose(children -> {
+            boolean singleCommit = children.children.size() < getMaxChildLinksPerBlob() &&
+                    childSigner.publicKeyHash.equals(ourSigner.publicKeyHash);
+            if (! singleCommit) {
+                // Use two transactions to not expose the child linkage
+                return IpfsTransaction.call(us.owner,
+                        tid -> child.commit(childCap, entryWriter, network, tid), network.dhtClient)
+                        .thenCompose(resultHash -> addChildAndCommit(namedPointer, us, entryWriter, network, random, hasher))
+                        .thenApply(modified -> true);
+            }
+            // Write the new dir's blocks and our updated links under different transaction ids, to not expose the child
+            // linkage. Our transaction is nested inside the child's, so the child's blocks stay pinned until the single
+            // commit which links both into the tree.
+            return indexNames(children, us, network).thenCompose(indexed -> {
+                DirAndChildren updated = withChildren(us.rBaseKey, indexed.add(Arrays.asList(namedPointer), us.rBaseKey), hasher);
+                return IpfsTransaction.call(us.owner,
+                        childTid -> child.commitChildrenLinks(childCap, entryWriter, network, childTid)
+                                .thenCompose(hashes -> network.writeChunk(child.dir, us.owner, dirMapKey, childSigner, childTid))
+                                .thenCompose(childMutation -> IpfsTransaction.call(us.owner,
+                                        tid -> updated.commitChildrenLinks(us, entryWriter, network, tid)
+                                                .thenCompose(hashes -> network.writeChunk(updated.dir, us.owner, us.getMapKey(), ourSigner, tid))
+                                                .thenCompose(ourMutation -> network.commitChunks(us.owner, ourSigner,
+                                                        Arrays.asList(childMutation, ourMutation), tid)),
+                                        network.dhtClient)),
+                        network.dhtClient);
+            });
+        }).thenApply(done -> new RelativeCapability(dirMapKey, dirReadKey, toChildWriteKey));
     }
 
     public CompletableFuture<? extends CryptreeNode> copyTo(AbsoluteCapability us,
@@ -586,7 +840,8 @@ public class CryptreeNode implements Cborable {
                         ourNewCap, newEntryWriter, ourNewParentKey, newChildMapKey, network, random, hasher)
                         .thenCompose(newChildFileAccess -> {
                             return dirFuture.thenCompose(dirAccess ->
-                                    dirAccess.addChildAndCommit(ourNewCap.relativise(newChildCap), ourNewCap,
+                                    dirAccess.addChildAndCommit(new NamedRelativeCapability(rfp.getProperties().name,
+                                                    ourNewCap.relativise(newChildCap)), ourNewCap,
                                             newEntryWriter, network, random, hasher));
                         });
             }, (a, b) -> a.thenCompose(x -> b)); // TODO Think about this combiner function
@@ -607,7 +862,8 @@ public class CryptreeNode implements Cborable {
                                                            Hasher hasher) {
         return removeChildren(Arrays.asList(original), ourPointer, entryWriter, network, hasher)
                 .thenCompose(res ->
-                        res.addChildAndCommit(ourPointer.relativise(modified.capability), ourPointer, entryWriter,
+                        res.addChildAndCommit(new NamedRelativeCapability(modified.getProperties().name,
+                                        ourPointer.relativise(modified.capability)), ourPointer, entryWriter,
                                 network, random, hasher));
     }
 
@@ -621,7 +877,8 @@ public class CryptreeNode implements Cborable {
                 .map(p -> p.left)
                 .collect(Collectors.toList()), ourPointer, entryWriter, network, hasher)
                 .thenCompose(res -> res.addChildrenAndCommit(childCasPairs.stream()
-                        .map(p -> ourPointer.relativise(p.right.capability))
+                        .map(p -> new NamedRelativeCapability(p.right.getProperties().name,
+                                ourPointer.relativise(p.right.capability)))
                         .collect(Collectors.toList()), ourPointer, entryWriter, network, random, hasher));
     }
 
@@ -633,16 +890,13 @@ public class CryptreeNode implements Cborable {
         Set<Location> locsToRemove = childrenToRemove.stream()
                 .map(r -> r.capability.getLocation())
                 .collect(Collectors.toSet());
-        return getDirectChildren(ourPointer.rBaseKey, network).thenCompose(newSubfolders -> {
-            List<RelativeCapability> withRemoval = newSubfolders.stream()
-                    .filter(e -> !locsToRemove.contains(e.toAbsolute(ourPointer).getLocation()))
-                    .collect(Collectors.toList());
-
-            return IpfsTransaction.call(ourPointer.owner,
-                    tid -> withChildren(ourPointer.rBaseKey, new ChildrenLinks(withRemoval), hasher)
-                            .commit(ourPointer, entryWriter, network, tid),
-                    network.dhtClient);
-        });
+        return getDirectChildrenLinks(ourPointer.rBaseKey, network)
+                .thenApply(children -> children.filter(e -> !locsToRemove.contains(e.toAbsolute(ourPointer).getLocation())))
+                .thenCompose(withRemoval -> indexNames(withRemoval, ourPointer, network))
+                .thenCompose(withRemoval -> IpfsTransaction.call(ourPointer.owner,
+                        tid -> withChildren(ourPointer.rBaseKey, withRemoval, hasher)
+                                .commit(ourPointer, entryWriter, network, tid),
+                        network.dhtClient));
     }
 
     public CompletableFuture<CryptreeNode> commit(WritableAbsoluteCapability us,
@@ -763,6 +1017,7 @@ public class CryptreeNode implements Cborable {
         state.put("b", fromBaseKey);
         state.put("p", fromParentKey);
         state.put("d", childrenOrData);
+        chunkIndex.ifPresent(i -> state.put("i", i));
         return CborObject.CborMap.build(state);
     }
 
@@ -778,6 +1033,7 @@ public class CryptreeNode implements Cborable {
         PaddedCipherText fromBaseKey = m.get("b", PaddedCipherText::fromCbor);
         PaddedCipherText fromParentKey = m.get("p", PaddedCipherText::fromCbor);
         FragmentedPaddedCipherText childrenOrData = m.get("d", FragmentedPaddedCipherText::fromCbor);
+        Optional<FragmentedPaddedCipherText> chunkIndex = m.getOptional("i", FragmentedPaddedCipherText::fromCbor);
 
         boolean isDirectory;
         try {
@@ -786,6 +1042,6 @@ public class CryptreeNode implements Cborable {
         } catch (Throwable t) {
             isDirectory = true;
         }
-        return new CryptreeNode(MaybeMultihash.of(hash), isDirectory, fromBaseKey, childrenOrData, fromParentKey);
+        return new CryptreeNode(MaybeMultihash.of(hash), isDirectory, fromBaseKey, childrenOrData, fromParentKey, chunkIndex);
     }
 }
@@ -0,0 +1,328 @@
+package peergos.shared.user.fs.erasure;
+
+import peergos.shared.util.StringUtils;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A systematic Reed-Solomon erasure code over GF(256) which works directly on bytes using precomputed tables.
+ *
+ *  The output is identical to Erasure.split with GaloisField256: the input is split into blocks which are each encoded
+ *  as a codeword of (originalBlobs + 2*allowedFailures) symbols of symbolSize bytes, and symbol i of every codeword goes
+ *  to fragment i. The first originalBlobs fragments hold the input unchanged, so recombining only needs to decode when
+ *  one of them is missing. Missing fragments are erasures at known positions, so up to 2*allowedFailures of them can
+ *  be recovered.
+ *
+ *  Blocks are independent, so they are encoded and decoded in parallel.
+ */
+public class ReedSolomon
+{
+    private static final int SIZE = 256;
+    private static final int[] EXP = new int[2 * SIZE];
+    private static final int[] LOG = new int[SIZE];
+    private static final byte[][] MUL = new byte[SIZE][SIZE];
+    // the number of blocks to process in each parallel task
+    private static final int BLOCKS_PER_TASK = 256;
+
+    static {
+        // field generator polynomial is p(x) = x^8 + x^4 + x^3 + x^2 + 1, as in GaloisField256
+        int x = 1;
+        for (int i=0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & SIZE) != 0)
+                x ^= (SIZE | 0x1D);
+        }
+        for (int i=255; i < EXP.length; i++)
+            EXP[i] = EXP[i - 255];
+        for (int a=1; a < SIZE; a++)
+            for (int b=1; b < SIZE; b++)
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int mul(int a, int b)
+    {
+        return MUL[a][b] & 0xFF;
+    }
+
+    private static int inverse(int a)
+    {
+        if (a == 0)
+            throw new IllegalStateException("Zero has no inverse!");
+        return EXP[255 - LOG[a]];
+    }
+
+    private final int originalBlobs, nFragments, symbolSize;
+    // sizes in bytes of the input and the parity in each codeword
+    private final int inputSize, nec;
+    // for each value of the leading input byte, what to subtract from the following bytes when dividing by the generator
+    private final byte[][] remainderTerms;
+
+    public ReedSolomon(int originalBlobs, int allowedFailures)
+    {
+        this.originalBlobs = originalBlobs;
+        this.nFragments = originalBlobs + allowedFailures * 2;
+        int encodeSize = (SIZE / nFragments) * nFragments;
+        this.inputSize = encodeSize * originalBlobs / nFragments;
+        this.nec = encodeSize - inputSize;
+        this.symbolSize = inputSize / originalBlobs;
+        if (symbolSize == 0 || symbolSize * originalBlobs != inputSize)
+            throw new IllegalStateException(StringUtils.format("Bad alignment of bytes in chunking. %d != %d * %d", inputSize, symbolSize, originalBlobs));
+        int[] generator = generator(nec);
+        this.remainderTerms = new byte[SIZE][nec];
+        for (int c=1; c < SIZE; c++)
+            for (int j=0; j < nec; j++)
+                remainderTerms[c][j] = MUL[c][generator[j + 1]];
+    }
+
+    /**
+     *
+     * @param nec
+     * @return the coefficients, highest order first, of the polynomial with roots 1, a, a^2 .. a^(nec-1)
+     */
+    private static int[] generator(int nec)
+    {
+        int[] g = {1};
+        for (int i=0; i < nec; i++) {
+            int[] next = new int[g.length + 1];
+            for (int j=0; j < g.length; j++) {
+                next[j] ^= g[j];
+                next[j + 1] ^= mul(g[j], EXP[i]);
+            }
+            g = next;
+        }
+        return g;
+    }
+
+    private static void inParallel(int nBlocks, BlockRange task)
+    {
+        int nTasks = (nBlocks + BLOCKS_PER_TASK - 1) / BLOCKS_PER_TASK;
+        IntStream.range(0, nTasks).parallel()
+                .forEach(t -> task.apply(t * BLOCKS_PER_TASK, Math.min(nBlocks, (t + 1) * BLOCKS_PER_TASK)));
+    }
+
+    private interface BlockRange {
+        void apply(int startBlock, int endBlock);
+    }
+
+    /**
+     *
+     * @param input
+     * @return originalBlobs data fragments followed by 2*allowedFailures parity fragments
+     */
+    public byte[][] encode(byte[] input)
+    {
+        int nBlocks = (input.length + inputSize - 1) / inputSize;
+        byte[][] res = new byte[nFragments][nBlocks * symbolSize];
+        inParallel(nBlocks, (start, end) -> encodeBlocks(input, res, start, end));
+        return res;
+    }
+
+    private void encodeBlocks(byte[] input, byte[][] res, int startBlock, int endBlock)
+    {
+        byte[] codeword = new byte[inputSize + nec];
+        for (int b = startBlock; b < endBlock; b++) {
+            int blockStart = b * inputSize;
+            int toCopy = Math.min(inputSize, input.length - blockStart);
+            System.arraycopy(input, blockStart, codeword, 0, toCopy);
+            Arrays.fill(codeword, toCopy, codeword.length, (byte) 0);
+
+            // the parity is the remainder of dividing the input by the generator polynomial
+            for (int i=0; i < inputSize; i++) {
+                int c = codeword[i] & 0xFF;
+                if (c == 0)
+                    continue;
+                byte[] terms = remainderTerms[c];
+                for (int j=0; j < nec; j++)
+                    codeword[i + 1 + j] ^= terms[j];
+            }
+            System.arraycopy(input, blockStart, codeword, 0, toCopy);
+            Arrays.fill(codeword, toCopy, inputSize, (byte) 0);
+
+            for (int f=0; f < nFragments; f++)
+                System.arraycopy(codeword, f * symbolSize, res[f], b * symbolSize, symbolSize);
+        }
+    }
+
+    /**
+     *
+     * @param fragments the encoded fragments, with null or empty arrays for missing ones
+     * @param out where to write the original input
+     * @param outOffset
+     * @param length the length of the original input
+     */
+    public void decode(byte[][] fragments, byte[] out, int outOffset, int length)
+    {
+        boolean[] present = new boolean[nFragments];
+        int fragmentSize = -1;
+        for (int f=0; f < nFragments && f < fragments.length; f++) {
+            present[f] = fragments[f] != null && fragments[f].length > 0;
+            if (present[f])
+                fragmentSize = fragments[f].length;
+        }
+        if (fragmentSize < 0) {
+            // an empty input encodes to empty fragments
+            if (length == 0)
+                return;
+            throw new IllegalStateException(StringUtils.format("Too many missing fragments to recover! (%d)", nFragments));
+        }
+        int nBlocks = fragmentSize / symbolSize;
+
+        List<Integer> erased = new ArrayList<>();
+        for (int f=0; f < nFragments; f++)
+            if (! present[f])
+                for (int s=0; s < symbolSize; s++)
+                    erased.add(f * symbolSize + s);
+        if (erased.size() > nec)
+            throw new IllegalStateException(StringUtils.format("Too many missing fragments to recover! (%d)", erased.size() / symbolSize));
+
+        Recovery recovery = erased.isEmpty() || erased.get(0) >= inputSize ? null : new Recovery(erased, present, fragments);
+        inParallel(nBlocks, (start, end) -> decodeBlocks(fragments, present, recovery, out, outOffset, length, start, end));
+    }
+
+    private void decodeBlocks(byte[][] fragments,
+                              boolean[] present,
+                              Recovery recovery,
+                              byte[] out,
+                              int outOffset,
+                              int length,
+                              int startBlock,
+                              int endBlock)
+    {
+        byte[] known = recovery == null ? null : new byte[recovery.knownFragment.length];
+        for (int b = startBlock; b < endBlock; b++) {
+            int blockStart = b * inputSize;
+            if (blockStart >= length)
+                return;
+            if (recovery != null)
+                recovery.gather(b, known);
+            for (int f=0; f < originalBlobs; f++) {
+                int start = blockStart + f * symbolSize;
+                int toCopy = Math.min(symbolSize, length - start);
+                if (toCopy <= 0)
+                    break;
+                if (present[f])
+                    System.arraycopy(fragments[f], b * symbolSize, out, outOffset + start, toCopy);
+                else
+                    recovery.recover(f, known, out, outOffset + start, toCopy);
+            }
+        }
+    }
+
+    /** The linear combinations of the known symbols of a codeword which give each missing input symbol.
+     *
+     *  With X_k = a^(L-1-k) for position k in a codeword of length L, every codeword c satisfies
+     *  sum_k c_k X_k^i = 0 for i < nec. Taking the first e of these equations, the e erased symbols are the solution of
+     *  a Vandermonde system, whose inverse is combined with the known X_k^i here once for all blocks.
+     */
+    private class Recovery {
+        private final int[] knownFragment, knownOffset;
+        private final byte[][] fragments;
+        // for each missing input position, the multiplication table rows of the coefficient for each known symbol
+        private final byte[][][] coefficientRows;
+
+        Recovery(List<Integer> erased, boolean[] present, byte[][] fragments) {
+            this.fragments = fragments;
+            int codewordLength = inputSize + nec;
+            int e = erased.size();
+            int nKnown = codewordLength - e;
+            knownFragment = new int[nKnown];
+            knownOffset = new int[nKnown];
+            int[] knownLog = new int[nKnown];
+            int kk = 0;
+            for (int k=0; k < codewordLength; k++) {
+                if (! present[k / symbolSize])
+                    continue;
+                knownFragment[kk] = k / symbolSize;
+                knownOffset[kk] = k % symbolSize;
+                knownLog[kk] = codewordLength - 1 - k;
+                kk++;
+            }
+
+            int[][] inverse = invert(vandermonde(erased, codewordLength));
+            coefficientRows = new byte[originalBlobs * symbolSize][][];
+            for (int r=0; r < e; r++) {
+                int position = erased.get(r);
+                if (position >= inputSize)
+                    break;
+                byte[][] rows = new byte[nKnown][];
+                for (int k=0; k < nKnown; k++) {
+                    int coefficient = 0;
+                    for (int i=0; i < e; i++)
+                        coefficient ^= mul(inverse[r][i], EXP[(i * knownLog[k]) % 255]);
+                    rows[k] = MUL[coefficient];
+                }
+                coefficientRows[position] = rows;
+            }
+        }
+
+        private int[][] vandermonde(List<Integer> erased, int codewordLength) {
+            int e = erased.size();
+            int[][] a = new int[e][e];
+            for (int i=0; i < e; i++)
+                for (int j=0; j < e; j++)
+                    a[i][j] = EXP[(i * (codewordLength - 1 - erased.get(j))) % 255];
+            return a;
+        }
+
+        /**
+         *  Copy the known symbols of a codeword into a contiguous array
+         */
+        void gather(int block, byte[] known) {
+            int blockOffset = block * symbolSize;
+            for (int k=0; k < known.length; k++)
+                known[k] = fragments[knownFragment[k]][blockOffset + knownOffset[k]];
+        }
+
+        void recover(int fragment, byte[] known, byte[] out, int outStart, int toCopy) {
+            for (int s=0; s < toCopy; s++) {
+                byte[][] rows = coefficientRows[fragment * symbolSize + s];
+                int acc = 0;
+                for (int k=0; k < known.length; k++)
+                    acc ^= rows[k][known[k] & 0xFF];
+                out[outStart + s] = (byte) acc;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param m a square matrix over GF(256)
+     * @return the inverse of m, by Gauss-Jordan elimination
+     */
+    private static int[][] invert(int[][] m)
+    {
+        int n = m.length;
+        int[][] a = new int[n][2 * n];
+        for (int i=0; i < n; i++) {
+            System.arraycopy(m[i], 0, a[i], 0, n);
+            a[i][n + i] = 1;
+        }
+        for (int col=0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && a[pivot][col] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalStateException("Singular matrix!");
+            int[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+
+            int scale = inverse(a[col][col]);
+            for (int j=0; j < 2 * n; j++)
+                a[col][j] = mul(a[col][j], scale);
+            for (int i=0; i < n; i++) {
+                int factor = a[i][col];
+                if (i == col || factor == 0)
+                    continue;
+                for (int j=0; j < 2 * n; j++)
+                    a[i][j] ^= mul(factor, a[col][j]);
+            }
+        }
+        int[][] res = new int[n][n];
+        for (int i=0; i < n; i++)
+            System.arraycopy(a[i], n, res[i], 0, n);
+        return res;
+    }
+}
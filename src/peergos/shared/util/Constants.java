@@ -5,6 +5,7 @@ public class Constants {
     public static final String PEERGOS_API_PREFIX = "peergos/v0/";
     public static final String ADMIN_URL = PEERGOS_API_PREFIX + "admin/";
     public static final String MUTABLE_POINTERS_URL = PEERGOS_API_PREFIX + "mutable/";
+    public static final String POINTER_UPDATES_URL = PEERGOS_API_PREFIX + "pointer-updates/";
     public static final String CORE_URL = PEERGOS_API_PREFIX + "core/";
     public static final String SOCIAL_URL = PEERGOS_API_PREFIX + "social/";
 
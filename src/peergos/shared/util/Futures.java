@@ -16,13 +16,7 @@ public class Futures {
      * @return
      */
     public static <T> CompletableFuture<Set<T>> combineAll(Collection<CompletableFuture<T>> futures) {
-        CompletableFuture<Set<T>> identity = CompletableFuture.completedFuture(Collections.emptySet());
-        return futures.stream().reduce(identity,
-                (a, b) -> b.thenCompose(opt ->
-                        a.thenApply(set -> Stream.concat(set.stream(), Stream.of(opt))
-                                .collect(Collectors.toSet()))),
-                (a, b) -> b.thenCompose(setb ->
-                        a.thenApply(seta -> Stream.concat(seta.stream(), setb.stream()).collect(Collectors.toSet()))));
+        return combineAllInOrder(futures).thenApply(HashSet::new);
     }
 
     /**
@@ -32,13 +26,171 @@ public class Futures {
      * @return
      */
     public static <T> CompletableFuture<List<T>> combineAllInOrder(Collection<CompletableFuture<T>> futures) {
-        CompletableFuture<List<T>> identity = CompletableFuture.completedFuture(Collections.emptyList());
-        return futures.stream().reduce(identity,
-                (a, b) -> b.thenCompose(opt ->
-                        a.thenApply(set -> Stream.concat(set.stream(), Stream.of(opt))
-                                .collect(Collectors.toList()))),
-                (a, b) -> b.thenCompose(setb ->
-                        a.thenApply(seta -> Stream.concat(seta.stream(), setb.stream()).collect(Collectors.toList()))));
+        List<CompletableFuture<T>> all = new ArrayList<>(futures);
+        Object[] results = new Object[all.size()];
+        int[] remaining = {all.size()};
+        CompletableFuture<List<T>> res = new CompletableFuture<>();
+        if (all.isEmpty()) {
+            res.complete(Collections.emptyList());
+            return res;
+        }
+        for (int i = 0; i < all.size(); i++) {
+            int index = i;
+            all.get(i).thenAccept(value -> {
+                boolean done;
+                synchronized (results) {
+                    results[index] = value;
+                    done = --remaining[0] == 0;
+                }
+                if (done)
+                    res.complete(toList(results));
+            }).exceptionally(t -> {
+                res.completeExceptionally(t);
+                return null;
+            });
+        }
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> toList(Object[] results) {
+        List<T> list = new ArrayList<>(results.length);
+        for (Object result : results)
+            list.add((T) result);
+        return list;
+    }
+
+    /** Apply an asynchronous function to every input, with at most maxInFlight applications incomplete at any time
+     *
+     * @param input the values to map
+     * @param maxInFlight the maximum number of concurrent applications of mapper
+     * @param mapper
+     * @param <T> result type
+     * @param <V> input type
+     * @return the results in the same order as the input
+     */
+    public static <T, V> CompletableFuture<List<T>> mapAsync(Collection<V> input,
+                                                             int maxInFlight,
+                                                             Function<V, CompletableFuture<T>> mapper) {
+        List<V> values = new ArrayList<>(input);
+        Object[] results = new Object[values.size()];
+        return reduceAsync(IntStream.range(0, values.size()).boxed().collect(Collectors.toList()), maxInFlight,
+                i -> mapper.apply(values.get(i)).thenApply(res -> {
+                    results[i] = res;
+                    return true;
+                }), true, (a, b) -> a && b)
+                .thenApply(done -> toList(results));
+    }
+
+    /** Apply an asynchronous function to every input, with at most maxInFlight applications incomplete at any time,
+     *  and fold each result into the accumulated value as it arrives, so the individual results are never all held
+     *  in memory at once.
+     *
+     * @param input the values to map
+     * @param maxInFlight the maximum number of concurrent applications of mapper
+     * @param mapper
+     * @param identity the initial accumulated value
+     * @param accumulator folds a result into the accumulated value, results are folded in the order they complete
+     * @param <R> accumulated type
+     * @param <T> result type
+     * @param <V> input type
+     * @return
+     */
+    public static <R, T, V> CompletableFuture<R> reduceAsync(Collection<V> input,
+                                                             int maxInFlight,
+                                                             Function<V, CompletableFuture<T>> mapper,
+                                                             R identity,
+                                                             BiFunction<R, T, R> accumulator) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        CompletableFuture<R> res = new CompletableFuture<>();
+        new BoundedReduction<>(input.iterator(), input.size(), mapper, identity, accumulator, res)
+                .start(maxInFlight);
+        return res;
+    }
+
+    private static final class BoundedReduction<R, T, V> {
+        private final Iterator<V> remaining;
+        private final Function<V, CompletableFuture<T>> mapper;
+        private final BiFunction<R, T, R> accumulator;
+        private final CompletableFuture<R> result;
+        private R accumulated;
+        private int incomplete, toStart;
+        private boolean starting, failed;
+
+        BoundedReduction(Iterator<V> remaining,
+                         int size,
+                         Function<V, CompletableFuture<T>> mapper,
+                         R identity,
+                         BiFunction<R, T, R> accumulator,
+                         CompletableFuture<R> result) {
+            this.remaining = remaining;
+            this.incomplete = size;
+            this.mapper = mapper;
+            this.accumulated = identity;
+            this.accumulator = accumulator;
+            this.result = result;
+        }
+
+        void start(int maxInFlight) {
+            if (incomplete == 0)
+                result.complete(accumulated);
+            else
+                startMore(maxInFlight);
+        }
+
+        /**
+         *  Start applying the mapper to the next inputs. Mappers which complete synchronously would otherwise recurse
+         *  back into here, so only the outermost call does the starting.
+         */
+        private void startMore(int count) {
+            synchronized (this) {
+                toStart += count;
+                if (starting)
+                    return;
+                starting = true;
+            }
+            while (true) {
+                V value;
+                synchronized (this) {
+                    if (toStart == 0 || failed || ! remaining.hasNext()) {
+                        starting = false;
+                        return;
+                    }
+                    toStart--;
+                    value = remaining.next();
+                }
+                try {
+                    mapper.apply(value)
+                            .thenAccept(this::completed)
+                            .exceptionally(this::fail);
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        }
+
+        private void completed(T value) {
+            boolean done;
+            synchronized (this) {
+                if (failed)
+                    return;
+                accumulated = accumulator.apply(accumulated, value);
+                done = --incomplete == 0;
+            }
+            if (done)
+                result.complete(accumulated);
+            else
+                startMore(1);
+        }
+
+        private Void fail(Throwable t) {
+            synchronized (this) {
+                failed = true;
+            }
+            result.completeExceptionally(t);
+            return null;
+        }
     }
 
     /*** Reduce a set of input values against an Identity where the composition step is asynchronous